@@ -0,0 +1,36 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks with the device's SQLite that none of the fetch and read queries
+ * that select part of the data scan the data table. Run it on a device
+ * with ./gradlew connectedAndroidTest.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseQueryPlanTest extends DatabaseTestCase {
+    public DatabaseQueryPlanTest() {
+        super("queryplan");
+    }
+
+    @Test
+    public void freshDatabaseHasNoTableScans() {
+        assertEquals(0, mDbAdapter.checkQueryPlans());
+    }
+
+    @Test
+    public void databaseWithDataHasNoTableScans() {
+        // Two sessions
+        long startDate = 1500000000000L;
+        insert(startDate, startDate, 50);
+        startDate += 3600000L;
+        insert(startDate, startDate, 50);
+        assertEquals(0, mDbAdapter.checkQueryPlans());
+    }
+
+}
@@ -0,0 +1,110 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.content.Intent;
+import android.util.Log;
+
+import androidx.test.rule.ActivityTestRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Base for the instrumented tests and benchmarks in this directory that
+ * use a database. It launches InfoActivity for a Context, and opens an
+ * adapter on a new database in a directory of the cache, which is deleted
+ * again after each test. Run them on a device with ./gradlew
+ * connectedAndroidTest.
+ */
+public abstract class DatabaseTestCase implements IConstants {
+    /**
+     * The rows inserted in one transaction by insert().
+     */
+    private static final int INSERT_BATCH = 1000;
+
+    @Rule
+    public ActivityTestRule<InfoActivity> mRule =
+            new ActivityTestRule<InfoActivity>(InfoActivity.class, false,
+                    false);
+
+    private final String mDirName;
+    protected InfoActivity mActivity;
+    protected File mDataDir;
+    protected BCMDbAdapter mDbAdapter;
+
+    /**
+     * Constructor.
+     *
+     * @param dirName The name of the directory for the database in the
+     *                cache.
+     */
+    DatabaseTestCase(String dirName) {
+        mDirName = dirName;
+    }
+
+    @Before
+    public void openDatabase() {
+        Intent intent = new Intent();
+        intent.putExtra(INFO_URL, "file:///android_asset/bcm.html");
+        mActivity = mRule.launchActivity(intent);
+        mDataDir = new File(mActivity.getCacheDir(), mDirName);
+        deleteDatabase();
+        mDbAdapter = new BCMDbAdapter(mActivity, mDataDir).open();
+        assertNotNull(mDbAdapter);
+    }
+
+    @After
+    public void closeDatabase() {
+        if (mDbAdapter != null) {
+            mDbAdapter.close();
+        }
+        deleteDatabase();
+    }
+
+    /**
+     * Inserts rows one second apart with two R-R values each, in batches
+     * as BCMDataWriter does.
+     *
+     * @param date      The date of the first row.
+     * @param startDate The start date.
+     * @param count     The number of rows.
+     */
+    protected void insert(long date, long startDate, int count) {
+        int size = Math.min(INSERT_BATCH, count);
+        long[] dates = new long[size];
+        long[] startDates = new long[size];
+        int[] hrs = new int[size];
+        byte[][] rrs = new byte[size][];
+        byte[][] rrMasks = new byte[size][];
+        int[] rr = new int[2];
+        for (int done = 0; done < count; done += size) {
+            int n = Math.min(size, count - done);
+            for (int i = 0; i < n; i++) {
+                dates[i] = date + 1000L * (done + i);
+                startDates[i] = startDate;
+                hrs[i] = 60 + i % 40;
+                rr[0] = 1000 + i % 50;
+                rr[1] = 1010 - i % 50;
+                rrs[i] = BCMDbAdapter.packRr(rr, 2);
+            }
+            assertEquals(n, mDbAdapter.createDataBatch(dates, startDates,
+                    hrs, rrs, rrMasks, n));
+        }
+    }
+
+    private void deleteDatabase() {
+        for (String suffix : new String[]{"", "-wal", "-shm", "-journal"}) {
+            File file = new File(mDataDir, DB_NAME + suffix);
+            if (file.exists() && !file.delete()) {
+                Log.d(TAG, getClass().getSimpleName() + ": Cannot delete "
+                        + file);
+            }
+        }
+    }
+
+}
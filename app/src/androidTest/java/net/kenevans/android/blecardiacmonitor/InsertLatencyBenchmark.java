@@ -0,0 +1,198 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the time to insert a batch of rows, as BCMDataWriter does, while
+ * the database is idle, while plots are reading it, and while plots and a
+ * save are reading it. The results are logged with the tag TAG. Run it on a
+ * device with ./gradlew connectedAndroidTest.
+ */
+@RunWith(AndroidJUnit4.class)
+public class InsertLatencyBenchmark extends DatabaseTestCase {
+    /**
+     * The number of sessions in the database before the inserts.
+     */
+    private static final int SEED_SESSIONS = 20;
+    /**
+     * The number of rows in each of those, an hour at one row a second.
+     */
+    private static final int SEED_ROWS = 3600;
+    /**
+     * The number of batches timed for each load.
+     */
+    private static final int BATCHES = 200;
+    /**
+     * The time between batches in ms, so the readers get the database.
+     */
+    private static final long BATCH_INTERVAL = 5;
+    private static final int PLOT_THREADS = 2;
+
+    private long[] mSessions;
+    private long mNextDate;
+    private volatile boolean mStopLoad;
+
+    public InsertLatencyBenchmark() {
+        super("benchmark");
+    }
+
+    @Before
+    public void seed() {
+        mSessions = new long[SEED_SESSIONS];
+        long date = 1500000000000L;
+        for (int i = 0; i < SEED_SESSIONS; i++) {
+            mSessions[i] = date;
+            insert(date, date, SEED_ROWS);
+            date += 2L * SEED_ROWS * 1000;
+        }
+        mNextDate = date;
+    }
+
+    @After
+    public void stopLoad() {
+        mStopLoad = true;
+    }
+
+    @Test
+    public void insertLatency() throws Exception {
+        long[] idle = timeInserts(0, false);
+        long[] plot = timeInserts(PLOT_THREADS, false);
+        long[] plotAndSave = timeInserts(PLOT_THREADS, true);
+        Log.d(TAG, "InsertLatencyBenchmark: " + DB_WRITE_BATCH_SIZE
+                + " rows per batch, " + SEED_SESSIONS * SEED_ROWS
+                + " rows in the database");
+        log("idle", idle);
+        log(PLOT_THREADS + " plots", plot);
+        log(PLOT_THREADS + " plots and a save", plotAndSave);
+        assertEquals(SEED_SESSIONS + 3, mDbAdapter.getSessionCount());
+    }
+
+    /**
+     * Times inserting BATCHES batches into a new session while readers run
+     * on their own adapters.
+     *
+     * @param nPlots The number of threads reading sessions as plots do.
+     * @param save   Whether a thread is saving the database.
+     * @return The sorted batch times in ns.
+     */
+    private long[] timeInserts(int nPlots, boolean save) throws Exception {
+        mStopLoad = false;
+        Thread[] threads = new Thread[nPlots + (save ? 1 : 0)];
+        for (int i = 0; i < nPlots; i++) {
+            threads[i] = new Thread(new PlotLoad(i));
+        }
+        if (save) {
+            threads[nPlots] = new Thread(new SaveLoad());
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        // Let the readers start
+        Thread.sleep(200);
+        long startDate = mNextDate;
+        long[] times = new long[BATCHES];
+        long start;
+        for (int i = 0; i < BATCHES; i++) {
+            start = System.nanoTime();
+            insert(mNextDate, startDate, DB_WRITE_BATCH_SIZE);
+            times[i] = System.nanoTime() - start;
+            mNextDate += DB_WRITE_BATCH_SIZE * 1000L;
+            Thread.sleep(BATCH_INTERVAL);
+        }
+        mStopLoad = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        mNextDate += 3600000L;
+        Arrays.sort(times);
+        return times;
+    }
+
+    private void log(String load, long[] times) {
+        Log.d(TAG, String.format(Locale.US, "InsertLatencyBenchmark: %s: "
+                        + "median=%.2f p95=%.2f p99=%.2f max=%.2f ms", load,
+                1.e-6 * times[times.length / 2],
+                1.e-6 * times[times.length * 95 / 100],
+                1.e-6 * times[times.length * 99 / 100],
+                1.e-6 * times[times.length - 1]));
+    }
+
+    /**
+     * Reads the heart rates of the sessions in turn, as a plot does.
+     */
+    private class PlotLoad implements Runnable {
+        private final int mFirst;
+
+        private PlotLoad(int first) {
+            mFirst = first;
+        }
+
+        @Override
+        public void run() {
+            BCMDbAdapter adapter = new BCMDbAdapter(mActivity, mDataDir)
+                    .openReadOnly();
+            try {
+                for (int i = mFirst; !mStopLoad; i++) {
+                    DataChunkReader reader =
+                            adapter.readHrDateDataForStartDate(
+                                    mSessions[i % mSessions.length],
+                                    DATA_CHUNK_SIZE, null);
+                    while (!mStopLoad && reader.next() != null) {
+                        // Read the rows
+                    }
+                }
+            } finally {
+                adapter.close();
+            }
+        }
+    }
+
+    /**
+     * Saves the database over and over, as a save does.
+     */
+    private class SaveLoad implements Runnable {
+        @Override
+        public void run() {
+            BCMDbAdapter adapter = new BCMDbAdapter(mActivity, mDataDir)
+                    .openReadOnly();
+            File file = new File(mDataDir, "benchmark.txt");
+            try {
+                while (!mStopLoad) {
+                    CsvExportWriter out = new CsvExportWriter(file);
+                    out.setProgressListener(
+                            new ExportWriter.ProgressListener() {
+                                @Override
+                                public boolean onProgress(long rows) {
+                                    return !mStopLoad;
+                                }
+                            });
+                    try {
+                        out.writeDatabase(adapter.readAllData(
+                                DATA_CHUNK_SIZE, null));
+                    } finally {
+                        out.close();
+                    }
+                }
+            } catch (Exception ex) {
+                Log.e(TAG, "InsertLatencyBenchmark: Error saving", ex);
+            } finally {
+                adapter.close();
+                file.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the time to merge two recordings into a session and to split
+ * it again, for recordings of different lengths. Both only change the
+ * session map, so the times should not grow with the number of rows. The
+ * results are logged with the tag TAG. Run it on a device with ./gradlew
+ * connectedAndroidTest.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SessionMergeBenchmark extends DatabaseTestCase {
+    /**
+     * The numbers of rows in each of the two recordings.
+     */
+    private static final int[] ROWS = {1000, 10000, 100000};
+    /**
+     * The number of merges and splits timed for each length.
+     */
+    private static final int REPEATS = 20;
+
+    public SessionMergeBenchmark() {
+        super("benchmark");
+    }
+
+    @Test
+    public void mergeAndSplit() {
+        long date = 1500000000000L;
+        for (int rows : ROWS) {
+            long first = date;
+            long second = date + 1000L * rows + 3600000L;
+            insert(first, first, rows);
+            insert(second, second, rows);
+            date = second + 1000L * rows + 3600000L;
+            int sessions = mDbAdapter.getSessionCount();
+            long[] merges = new long[REPEATS];
+            long[] splits = new long[REPEATS];
+            long start;
+            for (int i = 0; i < REPEATS; i++) {
+                start = System.nanoTime();
+                long merged = mDbAdapter.mergeSessions(new long[]{second,
+                        first});
+                merges[i] = System.nanoTime() - start;
+                assertEquals(first, merged);
+                if (i == 0) {
+                    assertEquals(sessions - 1, mDbAdapter.getSessionCount());
+                    assertEquals(2 * rows, countRows(first));
+                }
+                start = System.nanoTime();
+                int split = mDbAdapter.splitSession(first);
+                splits[i] = System.nanoTime() - start;
+                assertEquals(2, split);
+            }
+            assertEquals(sessions, mDbAdapter.getSessionCount());
+            assertEquals(rows, countRows(first));
+            assertEquals(rows, countRows(second));
+            Arrays.sort(merges);
+            Arrays.sort(splits);
+            Log.d(TAG, String.format(Locale.US, "SessionMergeBenchmark: "
+                            + "2 x %d rows: merge median=%.3f max=%.3f ms, "
+                            + "split median=%.3f max=%.3f ms", rows,
+                    1.e-6 * merges[REPEATS / 2],
+                    1.e-6 * merges[REPEATS - 1],
+                    1.e-6 * splits[REPEATS / 2],
+                    1.e-6 * splits[REPEATS - 1]));
+        }
+    }
+
+    /**
+     * Counts the rows of a session by reading it as a plot does.
+     *
+     * @param startDate The start date of the session.
+     * @return The number of rows.
+     */
+    private int countRows(long startDate) {
+        DataChunkReader reader = mDbAdapter.readHrDateDataForStartDate(
+                startDate, DATA_CHUNK_SIZE, null);
+        DataChunk chunk;
+        int count = 0;
+        while ((chunk = reader.next()) != null) {
+            count += chunk.getCount();
+        }
+        return count;
+    }
+
+}
@@ -33,13 +33,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.locks.LockSupport;
 
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
@@ -56,16 +61,61 @@ public class BCMBleService extends Service implements IConstants {
     private String mBluetoothDeviceAddress;
     private BluetoothGatt mBluetoothGatt;
     private BCMDbAdapter mDbAdapter;
+    private volatile BCMDataWriter mDataWriter;
     private int mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
     private long mLastHrDate;
     private int mLastBat = INVALID_INT;
     private int mLastHr = INVALID_INT;
-    private String mLastRr = INVALID_STRING;
+    /**
+     * Reused for decoding every heart rate measurement. Only used on the
+     * ingest thread.
+     */
+    private final HeartRateSample mHrSample = new HeartRateSample();
+    /**
+     * Computes the live HRV values. Only used on the ingest thread. A new
+     * one is made for each session, so it does not need to be reset from
+     * another thread.
+     */
+    private volatile HrvAnalyzer mHrvAnalyzer = new HrvAnalyzer(HRV_WINDOW);
+    /**
+     * Marks the R-R artifacts. Only used on the ingest thread and made for
+     * each session like the HrvAnalyzer.
+     */
+    private volatile RrFilter mRrFilter =
+            RrFilter.forName(RrFilter.NAME_MEDIAN);
+    /**
+     * Heart rate measurements copied from the GATT callback, waiting for the
+     * ingest thread.
+     */
+    private final PacketRingBuffer mIngestBuffer = new PacketRingBuffer(
+            INGEST_BUFFER_CAPACITY, INGEST_SLOT_SIZE);
+    private IngestThread mIngestThread;
+    /**
+     * Set to have the ingest thread hand the pending rows to the writer
+     * once it has processed what is in the ingest buffer.
+     */
+    private volatile boolean mFlushRequested;
+    /**
+     * The recent samples. Only added to on the ingest thread. It is kept
+     * for the life of the process, so it can be read before binding to the
+     * service and is not lost if the service is restarted. It is cleared
+     * when a session starts, so it only has samples from the current
+     * device and session.
+     */
+    private static final SampleHistory sHistory = new SampleHistory(
+            HISTORY_CAPACITY, HISTORY_MAX_AGE);
+    /**
+     * The registered heart rate listeners. Replaced, not modified, when a
+     * listener is added or removed, so it can be iterated without locking.
+     */
+    private volatile ListenerRecord[] mHrListeners = new ListenerRecord[0];
+    private final Object mHrListenersLock = new Object();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     private BluetoothGattCharacteristic mCharBat;
     private BluetoothGattCharacteristic mCharHr;
     private boolean mSessionInProgress = false;
-    private long mSessionStartTime;
+    private volatile long mSessionStartTime;
 
     private Queue<BluetoothGattDescriptor> descriptorWriteQueue = new
             LinkedList<>();
@@ -165,7 +215,14 @@ public class BCMBleService extends Service implements IConstants {
                 public void onCharacteristicChanged(BluetoothGatt gatt,
                                                     BluetoothGattCharacteristic
                                                             characteristic) {
-                    broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                    // Heart rate only gets copied here. The rest is done on
+                    // the ingest thread so this Binder thread is not held up.
+                    if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic
+                            .getUuid())) {
+                        enqueueHeartRate(characteristic);
+                    } else {
+                        broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                    }
                 }
 
                 @Override
@@ -194,6 +251,8 @@ public class BCMBleService extends Service implements IConstants {
     @Override
     public void onCreate() {
         super.onCreate();
+        mIngestThread = new IngestThread();
+        mIngestThread.start();
         // Post a notification the service is running
         String channnelId = createNotificationChannel(this);
         Intent activityIntent = new Intent(this, DeviceMonitorActivity.class);
@@ -251,6 +310,13 @@ public class BCMBleService extends Service implements IConstants {
 
     @Override
     public void onDestroy() {
+        // Process and write any pending data
+        drainIngest();
+        stopDatabase();
+        if (mIngestThread != null) {
+            mIngestThread.quit();
+            mIngestThread = null;
+        }
         // Cancel the notification
         NotificationManagerCompat notificationManager =
                 NotificationManagerCompat
@@ -278,6 +344,10 @@ public class BCMBleService extends Service implements IConstants {
     private void broadcastUpdate(final String action,
                                  final BluetoothGattCharacteristic
                                          characteristic) {
+        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
+            enqueueHeartRate(characteristic);
+            return;
+        }
         Date now = new Date();
         long date = now.getTime();
         // // DEBUG
@@ -288,22 +358,7 @@ public class BCMBleService extends Service implements IConstants {
         intent.putExtra(EXTRA_UUID, characteristic.getUuid().toString());
         intent.putExtra(EXTRA_DATE, date);
 
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            HeartRateValues values = new HeartRateValues(characteristic, date);
-            mLastHr = values.getHr();
-            mLastRr = values.getRr();
-            mLastHrDate = date;
-            // // DEBUG
-            // Log.d(TAG, String.format("Received heart rate measurement: %d",
-            // mLastHr));
-            if (mDbAdapter != null) {
-                mDbAdapter.createData(mLastHrDate, mSessionStartTime, mLastHr,
-                        mLastRr);
-            }
-            intent.putExtra(EXTRA_HR, String.valueOf(values.getHr() + dateStr));
-            intent.putExtra(EXTRA_RR, values.getRr() + dateStr);
-            intent.putExtra(EXTRA_DATA, values.getInfo());
-        } else if (UUID_BATTERY_LEVEL.equals(characteristic.getUuid())) {
+        if (UUID_BATTERY_LEVEL.equals(characteristic.getUuid())) {
             mLastBat = characteristic.getIntValue(
                     BluetoothGattCharacteristic.FORMAT_UINT8, 0);
             Log.d(TAG, String.format("Received battery level: %d", mLastBat));
@@ -340,6 +395,302 @@ public class BCMBleService extends Service implements IConstants {
         sendBroadcast(intent);
     }
 
+    /**
+     * Copies a heart rate measurement into the ingest buffer and wakes the
+     * ingest thread. This is all that is done on the GATT callback thread.
+     *
+     * @param characteristic The heart rate characteristic.
+     */
+    private void enqueueHeartRate(BluetoothGattCharacteristic characteristic) {
+        long nanos = System.nanoTime();
+        if (!mIngestBuffer.offer(characteristic.getValue(),
+                System.currentTimeMillis(), nanos)) {
+            Log.w(TAG, "enqueueHeartRate: Ingest buffer full, dropped="
+                    + mIngestBuffer.getDropped());
+        }
+        IngestThread thread = mIngestThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Decodes a heart rate measurement, queues it to be written, and
+     * delivers it to the listeners. Called on the ingest thread.
+     *
+     * @param data   The value of the characteristic.
+     * @param length The number of valid bytes in data.
+     * @param date   The date it was received.
+     * @param nanos  The System.nanoTime() it was received.
+     */
+    private void processHeartRate(byte[] data, int length, long date,
+                                  long nanos) {
+        // Decode
+        HeartRateDecoder.decode(data, length, date, mHrSample);
+        mHrSample.setSeq(sHistory.getNextSeq());
+        mLastHr = mHrSample.getHr();
+        mLastHrDate = date;
+
+        // Analyze
+        HrvAnalyzer hrv = mHrvAnalyzer;
+        int rrCount = mHrSample.getRrCount();
+        byte[] rrMask = null;
+        if (mHrSample.isRrPresent()) {
+            mHrSample.filterRr(mRrFilter);
+            int[] rr = mHrSample.getRr();
+            boolean[] artifacts = mHrSample.getRrArtifacts();
+            for (int i = 0; i < rrCount; i++) {
+                if (artifacts[i]) {
+                    hrv.skip();
+                } else {
+                    hrv.add(rr[i]);
+                }
+            }
+            rrMask = BCMDbAdapter.packRrMask(artifacts, rrCount);
+        }
+        mHrSample.setHrv(hrv);
+
+        // Persist
+        BCMDataWriter writer = mDataWriter;
+        if (writer != null) {
+            writer.add(mLastHrDate, mSessionStartTime, mLastHr,
+                    mHrSample.isRrPresent() ? mHrSample.getRr() : null,
+                    rrCount, rrMask, nanos);
+        }
+
+        // Keep it in the history before the listeners see it, so a listener
+        // that takes a snapshot after getting it will find it there
+        sHistory.add(mHrSample);
+
+        // Fan out to the listeners
+        ListenerRecord[] listeners = mHrListeners;
+        for (ListenerRecord record : listeners) {
+            record.deliver(mHrSample);
+        }
+    }
+
+    /**
+     * Registers a listener for heart rate measurements. If conflate is true
+     * the listener is called on the main thread with only the latest sample
+     * when it gets to run, which is suitable for updating views. Otherwise
+     * it is called for every sample on the ingest thread and must return
+     * quickly.
+     *
+     * @param listener The listener.
+     * @param conflate Whether to conflate samples on the main thread.
+     */
+    public void addHeartRateListener(HeartRateListener listener,
+                                     boolean conflate) {
+        if (listener == null) {
+            return;
+        }
+        synchronized (mHrListenersLock) {
+            ListenerRecord[] old = mHrListeners;
+            for (ListenerRecord record : old) {
+                if (record.mListener == listener) {
+                    return;
+                }
+            }
+            ListenerRecord[] listeners = new ListenerRecord[old.length + 1];
+            System.arraycopy(old, 0, listeners, 0, old.length);
+            listeners[old.length] = new ListenerRecord(listener, conflate);
+            mHrListeners = listeners;
+        }
+    }
+
+    /**
+     * Gets the history of recent samples. It may be read without being
+     * bound to the service.
+     *
+     * @return The history.
+     */
+    public static SampleHistory getHistory() {
+        return sHistory;
+    }
+
+    /**
+     * Registers a listener that is not conflated, as for
+     * addHeartRateListener, and gets the recent samples from the history.
+     * The listener is registered first, so every sample after the last one
+     * in the snapshot is delivered to it, but it may also be delivered
+     * samples that are in the snapshot, which have a sequence number no
+     * greater than that of the last one. It may be called again for a
+     * listener that is already registered to get a new snapshot.
+     *
+     * @param listener The listener.
+     * @param since    The earliest date to include.
+     * @return Copies of the samples, oldest first.
+     */
+    public List<HeartRateSample> addHeartRateListener(
+            HeartRateListener listener, long since) {
+        addHeartRateListener(listener, false);
+        return sHistory.snapshot(since);
+    }
+
+    /**
+     * Unregisters a listener for heart rate measurements. A conflated
+     * listener will not be called after this returns if it is called on
+     * the main thread.
+     *
+     * @param listener The listener.
+     */
+    public void removeHeartRateListener(HeartRateListener listener) {
+        synchronized (mHrListenersLock) {
+            ListenerRecord[] old = mHrListeners;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i].mListener == listener) {
+                    old[i].cancel();
+                    ListenerRecord[] listeners =
+                            new ListenerRecord[old.length - 1];
+                    System.arraycopy(old, 0, listeners, 0, i);
+                    System.arraycopy(old, i + 1, listeners, i,
+                            old.length - i - 1);
+                    mHrListeners = listeners;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds a listener and, if it is conflated, the latest sample waiting to
+     * be delivered on the main thread.
+     */
+    private class ListenerRecord implements Runnable {
+        private final HeartRateListener mListener;
+        private final boolean mConflate;
+        private final HeartRateSample mLatest;
+        private final HeartRateSample mDelivered;
+        private boolean mPending;
+        private boolean mCancelled;
+
+        private ListenerRecord(HeartRateListener listener, boolean conflate) {
+            mListener = listener;
+            mConflate = conflate;
+            mLatest = conflate ? new HeartRateSample() : null;
+            mDelivered = conflate ? new HeartRateSample() : null;
+        }
+
+        /**
+         * Delivers the sample. Called on the ingest thread.
+         *
+         * @param sample The sample.
+         */
+        private void deliver(HeartRateSample sample) {
+            if (!mConflate) {
+                mListener.onHeartRate(sample);
+                return;
+            }
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mLatest.copyFrom(sample);
+                if (mPending) {
+                    // Replaces the sample that has not been delivered yet
+                    return;
+                }
+                mPending = true;
+            }
+            mMainHandler.post(this);
+        }
+
+        private synchronized void cancel() {
+            mCancelled = true;
+            mMainHandler.removeCallbacks(this);
+        }
+
+        /**
+         * Delivers the latest sample on the main thread.
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mDelivered.copyFrom(mLatest);
+                mPending = false;
+            }
+            mListener.onHeartRate(mDelivered);
+        }
+    }
+
+    /**
+     * Waits for the ingest thread to process everything in the ingest
+     * buffer, up to INGEST_DRAIN_TIMEOUT. Only used when the service is
+     * closing, before the writer is closed. The GATT callbacks use
+     * flushData, which does not wait.
+     */
+    private void drainIngest() {
+        IngestThread thread = mIngestThread;
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + INGEST_DRAIN_TIMEOUT;
+        while (mIngestBuffer.size() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                Log.w(TAG, "drainIngest: Timed out with "
+                        + mIngestBuffer.size() + " pending");
+                return;
+            }
+            LockSupport.unpark(thread);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Consumer for the ingest buffer. Parks when the buffer is empty and is
+     * unparked by enqueueHeartRate and flushData.
+     */
+    private class IngestThread extends Thread {
+        private volatile boolean mRunning = true;
+
+        private IngestThread() {
+            super("BCMIngest");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+            while (mRunning) {
+                int slot = mIngestBuffer.peek();
+                if (slot < 0) {
+                    if (mFlushRequested) {
+                        mFlushRequested = false;
+                        BCMDataWriter writer = mDataWriter;
+                        if (writer != null) {
+                            writer.requestFlush();
+                        }
+                        continue;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                try {
+                    processHeartRate(mIngestBuffer.getData(slot),
+                            mIngestBuffer.getLength(slot),
+                            mIngestBuffer.getDate(slot),
+                            mIngestBuffer.getNanos(slot));
+                } catch (Exception ex) {
+                    Log.e(TAG, "IngestThread: Error processing heart rate",
+                            ex);
+                }
+                mIngestBuffer.release();
+            }
+        }
+
+        private void quit() {
+            mRunning = false;
+            LockSupport.unpark(this);
+        }
+    }
+
     class LocalBinder extends Binder {
         BCMBleService getService() {
             return BCMBleService.this;
@@ -393,20 +744,57 @@ public class BCMBleService extends Service implements IConstants {
      * @param adapter The adapter.
      * @return If successful.
      */
-    public boolean startDatabase(BCMDbAdapter adapter) {
+    public synchronized boolean startDatabase(BCMDbAdapter adapter) {
         Log.d(TAG, "startDatabase");
+        if (mDataWriter != null) {
+            mDataWriter.close();
+            mDataWriter = null;
+        }
         mDbAdapter = adapter;
+        if (mDbAdapter != null) {
+            mDataWriter = new BCMDataWriter(mDbAdapter, DB_WRITE_BATCH_SIZE,
+                    DB_WRITE_MAX_DELAY);
+        }
         return mDbAdapter != null;
     }
 
     /**
-     * Stops writing to the the database.
+     * Stops writing to the the database. Any pending data is written first.
      */
-    public void stopDatabase() {
+    public synchronized void stopDatabase() {
         Log.d(TAG, "stopDatabase");
+        if (mDataWriter != null) {
+            mDataWriter.close();
+            mDataWriter = null;
+        }
         mDbAdapter = null;
     }
 
+    /**
+     * Has the data waiting in the ingest buffer and the write-behind queue
+     * written without waiting for it. The ingest thread processes the
+     * buffer and then asks the writer to flush on its own thread, so this
+     * may be called on the GATT callback thread.
+     */
+    private void flushData() {
+        mFlushRequested = true;
+        IngestThread thread = mIngestThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Gets the statistics for the database writes.
+     *
+     * @return The statistics or null if not writing to the database.
+     */
+    public String getDataWriterStatistics() {
+        BCMDataWriter writer = mDataWriter;
+        return writer == null ? null : writer.getStatistics()
+                + " ingestDropped=" + mIngestBuffer.getDropped();
+    }
+
     /**
      * Connects to the GATT server hosted on the Bluetooth LE device.
      *
@@ -465,6 +853,7 @@ public class BCMBleService extends Service implements IConstants {
      */
     public void disconnect() {
         Log.d(TAG, "disconnect");
+        flushData();
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
@@ -478,6 +867,7 @@ public class BCMBleService extends Service implements IConstants {
      */
     public void close() {
         Log.d(TAG, "close");
+        drainIngest();
         stopDatabase();
         if (mBluetoothGatt == null) {
             return;
@@ -664,7 +1054,12 @@ public class BCMBleService extends Service implements IConstants {
         // Log.d(TAG, "  mDoBat=" + mDoBat + " mDoHr=" + mDoHr + " mDoCustom="
         // + mDoCustom);
         if (!mSessionInProgress) {
+            sHistory.clear();
             mSessionStartTime = new Date().getTime();
+            mHrvAnalyzer = new HrvAnalyzer(getHrvWindow());
+            mRrFilter = RrFilter.forName(PreferenceManager
+                    .getDefaultSharedPreferences(this)
+                    .getString(PREF_RR_FILTER, RrFilter.NAME_MEDIAN));
         }
 
         // // DEBUG Check permissions
@@ -688,7 +1083,6 @@ public class BCMBleService extends Service implements IConstants {
         mCharHr = charHr;
         mLastBat = INVALID_INT;
         mLastHr = INVALID_INT;
-        mLastRr = INVALID_STRING;
         mLastHrDate = new Date().getTime();
         BluetoothGattDescriptor descriptor;
         if (mCharBat != null) {
@@ -716,11 +1110,32 @@ public class BCMBleService extends Service implements IConstants {
         return true;
     }
 
+    /**
+     * Gets the length of the window for the live HRV values from the
+     * preferences.
+     *
+     * @return The window (sec).
+     */
+    private int getHrvWindow() {
+        String stringVal = PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(PREF_HRV_WINDOW, null);
+        if (stringVal == null) {
+            return HRV_WINDOW;
+        }
+        try {
+            return Math.max(1, Math.min(HRV_MAX_WINDOW,
+                    Integer.parseInt(stringVal)));
+        } catch (Exception ex) {
+            return HRV_WINDOW;
+        }
+    }
+
     /**
      * Stops a session.
      */
     public void stopSession() {
         Log.d(TAG, "stopSession");
+        flushData();
         // Clear any queues
         while (descriptorWriteQueue.size() > 0) {
             descriptorWriteQueue.remove();
@@ -735,7 +1150,6 @@ public class BCMBleService extends Service implements IConstants {
         mCharBat = null;
         mCharHr = null;
         mLastHr = -1;
-        mLastRr = null;
         mSessionInProgress = false;
     }
 
@@ -0,0 +1,466 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Write-behind stage for heart rate data. Rows are queued by add() and
+ * written on a background thread in one transaction per batch, when either
+ * the batch size is reached or the oldest queued row is older than the
+ * maximum delay. flush() writes any pending rows on the calling thread.
+ * <p>
+ * If a write fails, as when the disk is full or the database is locked by
+ * a restore, the rows are kept ahead of any added since and tried again
+ * after the maximum delay. They are only dropped, and counted as failed,
+ * after DB_WRITE_MAX_RETRIES more failures in a row.
+ * <p>
+ * Each row carries the System.nanoTime() at which its notification arrived,
+ * so the end-to-end latency from the GATT callback to the commit is kept
+ * along with the flush statistics.
+ */
+public class BCMDataWriter implements IConstants {
+    private static final String TAG = "BCMDataWriter";
+
+    private final BCMDbAdapter mDbAdapter;
+    private final int mBatchSize;
+    private final long mMaxDelay;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    /**
+     * Guards mPending.
+     */
+    private final Object mLock = new Object();
+    /**
+     * Serializes flushes. Also guards mSpare and the statistics.
+     */
+    private final Object mFlushLock = new Object();
+    private Batch mPending;
+    private Batch mSpare;
+    private boolean mClosed;
+    /**
+     * Whether the rows at the head of mPending failed to be written and a
+     * retry is scheduled. Guarded by mLock.
+     */
+    private boolean mRetrying;
+    /**
+     * The number of failed writes in a row of the rows at the head of
+     * mPending.
+     */
+    private int mFailures;
+
+    // Statistics
+    private int mMaxQueueDepth;
+    private long mRowsWritten;
+    private long mRowsFailed;
+    private long mRetries;
+    private long mTransactions;
+    private long mTotalFlushNanos;
+    private long mMaxFlushNanos;
+    private long mLastFlushNanos;
+    private int mLastRowsPerTransaction;
+    private long mLatencyRows;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+    private long mLastLatencyNanos;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param dbAdapter The adapter to write to.
+     * @param batchSize The number of rows that triggers a write.
+     * @param maxDelay  The maximum time in ms a row is kept before a write.
+     */
+    public BCMDataWriter(BCMDbAdapter dbAdapter, int batchSize,
+                         long maxDelay) {
+        mDbAdapter = dbAdapter;
+        mBatchSize = batchSize;
+        mMaxDelay = maxDelay;
+        mPending = new Batch(batchSize);
+        mSpare = new Batch(batchSize);
+        mThread = new HandlerThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queues a row to be written.
+     *
+     * @param date      The date.
+     * @param startDate The session start date.
+     * @param hr        The heart rate.
+     * @param rr        The R-R values or null if there are none.
+     * @param rrCount   The number of R-R values to use.
+     * @param rrMask    The R-R artifact mask or null if there are none.
+     * @param nanos     The System.nanoTime() the value was received.
+     */
+    public void add(long date, long startDate, int hr, int[] rr,
+                    int rrCount, byte[] rrMask, long nanos) {
+        byte[] rrBlob = rr == null ? null : BCMDbAdapter.packRr(rr, rrCount);
+        int depth;
+        boolean retrying;
+        synchronized (mLock) {
+            if (mClosed) {
+                Log.w(TAG, "add: Writer is closed, row dropped");
+                return;
+            }
+            depth = mPending.add(date, startDate, hr, rrBlob, rrMask,
+                    nanos);
+            if (depth > mMaxQueueDepth) {
+                mMaxQueueDepth = depth;
+            }
+            retrying = mRetrying;
+        }
+        if (retrying) {
+            // Wait for the scheduled retry
+            return;
+        }
+        if (depth >= mBatchSize) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mFlushRunnable);
+        } else if (depth == 1) {
+            mHandler.postDelayed(mFlushRunnable, mMaxDelay);
+        }
+    }
+
+    /**
+     * Writes all pending rows in one transaction on the calling thread. If
+     * the write fails, the rows are kept to be tried again.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            Batch batch;
+            // Remove before swapping so a delayed flush posted for a row
+            // added after the swap is kept
+            mHandler.removeCallbacks(mFlushRunnable);
+            synchronized (mLock) {
+                if (mPending.count == 0) {
+                    return;
+                }
+                batch = mPending;
+                mPending = mSpare;
+                mSpare = batch;
+            }
+            long start = System.nanoTime();
+            int nWritten = -1;
+            try {
+                nWritten = mDbAdapter.createDataBatch(batch.dates,
+                        batch.startDates, batch.hrs, batch.rrs, batch.rrMasks,
+                        batch.count);
+            } catch (Exception ex) {
+                Log.e(TAG, "flush: Error writing " + batch.count + " rows",
+                        ex);
+            }
+            long end = System.nanoTime();
+            long elapsed = end - start;
+            if (nWritten < 0) {
+                if (mFailures < DB_WRITE_MAX_RETRIES) {
+                    mFailures++;
+                    mRetries++;
+                    keep(batch);
+                    return;
+                }
+                Log.e(TAG, "flush: Dropped " + batch.count + " rows after "
+                        + (mFailures + 1) + " failed writes");
+                mRowsFailed += batch.count;
+            } else {
+                mRowsWritten += nWritten;
+                mRowsFailed += batch.count - nWritten;
+                mTransactions++;
+                mLastRowsPerTransaction = nWritten;
+                mTotalFlushNanos += elapsed;
+                mLastFlushNanos = elapsed;
+                if (elapsed > mMaxFlushNanos) {
+                    mMaxFlushNanos = elapsed;
+                }
+                if (nWritten == batch.count) {
+                    for (int i = 0; i < batch.count; i++) {
+                        long latency = end - batch.nanos[i];
+                        mTotalLatencyNanos += latency;
+                        if (latency > mMaxLatencyNanos) {
+                            mMaxLatencyNanos = latency;
+                        }
+                    }
+                    mLatencyRows += batch.count;
+                    mLastLatencyNanos = end - batch.nanos[batch.count - 1];
+                }
+            }
+            if (mFailures > 0) {
+                mFailures = 0;
+                synchronized (mLock) {
+                    mRetrying = false;
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes all pending rows on the background thread as soon as it gets
+     * to them, without waiting. If a retry is scheduled, the rows are left
+     * for it.
+     */
+    public void requestFlush() {
+        synchronized (mLock) {
+            if (mClosed || mRetrying || mPending.count == 0) {
+                return;
+            }
+        }
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(mFlushRunnable);
+    }
+
+    /**
+     * Puts the rows of a batch that failed to be written back at the head
+     * of the queue, ahead of those added since, and schedules a retry.
+     * Called holding mFlushLock.
+     *
+     * @param batch The batch, which is mSpare.
+     */
+    private void keep(Batch batch) {
+        boolean closed;
+        synchronized (mLock) {
+            batch.addAll(mPending);
+            mPending.clear();
+            mSpare = mPending;
+            mPending = batch;
+            mRetrying = true;
+            closed = mClosed;
+        }
+        if (!closed) {
+            mHandler.postDelayed(mFlushRunnable, mMaxDelay);
+        }
+    }
+
+    /**
+     * Flushes any pending rows and stops the background thread. A failed
+     * write is tried again at once, up to DB_WRITE_MAX_RETRIES times. Rows
+     * added after this are dropped.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+        }
+        for (int i = 0; i <= DB_WRITE_MAX_RETRIES && getQueueDepth() > 0;
+             i++) {
+            flush();
+        }
+        mThread.quit();
+        Log.d(TAG, "close: " + getStatistics());
+    }
+
+    /**
+     * Gets the number of rows waiting to be written.
+     *
+     * @return The queue depth.
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mPending.count;
+        }
+    }
+
+    /**
+     * Gets the largest number of rows that have been waiting.
+     *
+     * @return The maximum queue depth.
+     */
+    public int getMaxQueueDepth() {
+        synchronized (mLock) {
+            return mMaxQueueDepth;
+        }
+    }
+
+    /**
+     * Gets the number of rows written.
+     *
+     * @return The number of rows.
+     */
+    public long getRowsWritten() {
+        synchronized (mFlushLock) {
+            return mRowsWritten;
+        }
+    }
+
+    /**
+     * Gets the number of transactions.
+     *
+     * @return The number of transactions.
+     */
+    public long getTransactions() {
+        synchronized (mFlushLock) {
+            return mTransactions;
+        }
+    }
+
+    /**
+     * Gets the average number of rows per transaction.
+     *
+     * @return The average rows per transaction.
+     */
+    public double getAverageRowsPerTransaction() {
+        synchronized (mFlushLock) {
+            return mTransactions == 0 ? 0 :
+                    (double) mRowsWritten / mTransactions;
+        }
+    }
+
+    /**
+     * Gets the average time to write a batch.
+     *
+     * @return The average flush latency in ms.
+     */
+    public double getAverageFlushLatency() {
+        synchronized (mFlushLock) {
+            return mTransactions == 0 ? 0 :
+                    1.e-6 * mTotalFlushNanos / mTransactions;
+        }
+    }
+
+    /**
+     * Gets the longest time to write a batch.
+     *
+     * @return The maximum flush latency in ms.
+     */
+    public double getMaxFlushLatency() {
+        synchronized (mFlushLock) {
+            return 1.e-6 * mMaxFlushNanos;
+        }
+    }
+
+    /**
+     * Gets the average time from receiving a value to committing it.
+     *
+     * @return The average end-to-end latency in ms.
+     */
+    public double getAverageLatency() {
+        synchronized (mFlushLock) {
+            return mLatencyRows == 0 ? 0 :
+                    1.e-6 * mTotalLatencyNanos / mLatencyRows;
+        }
+    }
+
+    /**
+     * Gets the longest time from receiving a value to committing it.
+     *
+     * @return The maximum end-to-end latency in ms.
+     */
+    public double getMaxLatency() {
+        synchronized (mFlushLock) {
+            return 1.e-6 * mMaxLatencyNanos;
+        }
+    }
+
+    /**
+     * Gets a summary of the statistics.
+     *
+     * @return The summary.
+     */
+    public String getStatistics() {
+        synchronized (mFlushLock) {
+            return String.format(Locale.US, "rows=%d failed=%d retries=%d " +
+                            "transactions=%d queueDepth=%d maxQueueDepth=%d " +
+                            "rowsPerTransaction(last/avg)=%d/%.1f " +
+                            "flushLatency(last/avg/max)=%.2f/%.2f/%.2f ms " +
+                            "latency(last/avg/max)=%.1f/%.1f/%.1f ms",
+                    mRowsWritten, mRowsFailed, mRetries, mTransactions,
+                    getQueueDepth(), getMaxQueueDepth(),
+                    mLastRowsPerTransaction,
+                    getAverageRowsPerTransaction(), 1.e-6 * mLastFlushNanos,
+                    getAverageFlushLatency(), getMaxFlushLatency(),
+                    1.e-6 * mLastLatencyNanos, getAverageLatency(),
+                    getMaxLatency());
+        }
+    }
+
+    /**
+     * Holds queued rows in parallel arrays that grow as needed.
+     */
+    private static class Batch {
+        private long[] dates;
+        private long[] startDates;
+        private int[] hrs;
+        private byte[][] rrs;
+        private byte[][] rrMasks;
+        private long[] nanos;
+        private int count;
+
+        private Batch(int capacity) {
+            dates = new long[capacity];
+            startDates = new long[capacity];
+            hrs = new int[capacity];
+            rrs = new byte[capacity][];
+            rrMasks = new byte[capacity][];
+            nanos = new long[capacity];
+        }
+
+        /**
+         * Adds a row.
+         *
+         * @return The number of rows after adding.
+         */
+        private int add(long date, long startDate, int hr, byte[] rr,
+                        byte[] rrMask, long nano) {
+            if (count == dates.length) {
+                int capacity = 2 * count;
+                long[] newDates = new long[capacity];
+                long[] newStartDates = new long[capacity];
+                int[] newHrs = new int[capacity];
+                byte[][] newRrs = new byte[capacity][];
+                byte[][] newRrMasks = new byte[capacity][];
+                long[] newNanos = new long[capacity];
+                System.arraycopy(dates, 0, newDates, 0, count);
+                System.arraycopy(startDates, 0, newStartDates, 0, count);
+                System.arraycopy(hrs, 0, newHrs, 0, count);
+                System.arraycopy(rrs, 0, newRrs, 0, count);
+                System.arraycopy(rrMasks, 0, newRrMasks, 0, count);
+                System.arraycopy(nanos, 0, newNanos, 0, count);
+                dates = newDates;
+                startDates = newStartDates;
+                hrs = newHrs;
+                rrs = newRrs;
+                rrMasks = newRrMasks;
+                nanos = newNanos;
+            }
+            dates[count] = date;
+            startDates[count] = startDate;
+            hrs[count] = hr;
+            rrs[count] = rr;
+            rrMasks[count] = rrMask;
+            nanos[count] = nano;
+            return ++count;
+        }
+
+        /**
+         * Adds the rows of another batch after these.
+         *
+         * @param other The other batch.
+         */
+        private void addAll(Batch other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.dates[i], other.startDates[i], other.hrs[i],
+                        other.rrs[i], other.rrMasks[i], other.nanos[i]);
+            }
+        }
+
+        private void clear() {
+            for (int i = 0; i < count; i++) {
+                rrs[i] = null;
+                rrMasks[i] = null;
+            }
+            count = 0;
+        }
+    }
+
+}
@@ -4,22 +4,72 @@ import android.app.Activity;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
 import android.util.Log;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Simple database access helper class, modified from the Notes example
  * application.
+ * <p>
+ * All the adapters in the process for the same file share one reference
+ * counted DatabaseHelper, and so one SQLiteDatabase, which is opened in
+ * write-ahead log mode. SQLite then uses one connection for all the writes
+ * and a pool of read connections for queries made on other threads outside
+ * a transaction, so a plot or export does not wait for the inserts of a
+ * session or block them. Each adapter keeps its own cached statements, so
+ * an adapter should still be used by one writer at a time.
+ * <p>
+ * The rows with the same start date in the data table are a recording, and
+ * the session map groups recordings into sessions. The ForStartDate methods
+ * take the start date of a session and go through the map, so sessions are
+ * merged and split by changing the map without rewriting any rows. Saved
+ * databases keep the start dates of the recordings and carry the merges in
+ * a session map after the rows, so a restore keeps the recordings apart.
+ * <p>
+ * Sessions read with their R-R values are kept in the SessionCache. The
+ * methods that change the data invalidate the sessions they change after
+ * the change is committed.
  */
 public class BCMDbAdapter implements IConstants {
+    /**
+     * The open helpers by path. Guarded by the class.
+     */
+    private static final Map<String, DatabaseHelper> sHelpers =
+            new HashMap<String, DatabaseHelper>();
+
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
     private final Activity mActivity;
     private File mDataDir;
+    private final SessionCache mCache;
+    /**
+     * The path of the database file, the key for the cache.
+     */
+    private final String mDbPath;
+    private SQLiteStatement mInsertDataStatement;
+    private SQLiteStatement mInsertSessionStatement;
+    private SQLiteStatement mUpdateSessionStatement;
+    private SQLiteStatement mInsertSessionMapStatement;
+    private SQLiteStatement mSessionStartStatement;
+    private RollupWriter mRollupWriter;
+    /**
+     * Holds the HRV totals for the rows being added to a session, and the
+     * last R-R value so the difference across batches is counted.
+     */
+    private final HrvAnalyzer mSessionHrv = new HrvAnalyzer(0);
+    private long mSessionHrvStartDate = INVALID_DATE;
 
     /**
      * Database creation SQL statement
@@ -28,7 +78,175 @@ public class BCMDbAdapter implements IConstants {
             + DB_DATA_TABLE + " (_id integer primary key autoincrement, "
             + COL_DATE + " integer not null, " + COL_START_DATE
             + " integer not null, " + COL_HR + " integer not null, " + COL_RR
-            + " text not null);";
+            + " blob, " + COL_RR_MASK + " blob);";
+
+    /**
+     * Index for the session (ForStartDate) queries, which select on the start
+     * date and sort by date. The heart rate is included so the HR-only and
+     * session list queries do not need to read the table rows.
+     */
+    private static final String DB_CREATE_START_DATE_INDEX = "create index "
+            + "if not exists " + DB_DATA_TABLE + "_startdate_date_idx on "
+            + DB_DATA_TABLE + " (" + COL_START_DATE + ", " + COL_DATE + ", "
+            + COL_HR + ");";
+
+    /**
+     * Index for the date range (ForDates and StartingAtDate) queries. The
+     * heart rate is included for the same reason.
+     */
+    private static final String DB_CREATE_DATE_INDEX = "create index "
+            + "if not exists " + DB_DATA_TABLE + "_date_idx on "
+            + DB_DATA_TABLE + " (" + COL_DATE + ", " + COL_HR + ");";
+
+    /**
+     * Sessions table creation SQL statement. The start date is the primary
+     * key, so the table is kept in start date order. The R-R sums are the
+     * totals HrvAnalyzer needs for the HRV values of the whole session.
+     */
+    private static final String DB_CREATE_SESSIONS_TABLE = "create table "
+            + DB_SESSIONS_TABLE + " (" + COL_START_DATE
+            + " integer primary key, " + COL_END_DATE + " integer not null, "
+            + COL_N_SAMPLES + " integer not null default 0, " + COL_HR_MIN
+            + " integer, " + COL_HR_MAX + " integer, " + COL_HR_SUM
+            + " integer not null default 0, " + COL_HR_COUNT
+            + " integer not null default 0, " + COL_RR_COUNT
+            + " integer not null default 0, " + COL_RR_SUM
+            + " integer not null default 0, " + COL_RR_SUM_SQ
+            + " integer not null default 0, " + COL_RR_DIFF_SUM_SQ
+            + " integer not null default 0, " + COL_RR_DIFF_COUNT
+            + " integer not null default 0, " + COL_NN50_COUNT
+            + " integer not null default 0);";
+
+    /**
+     * Session map table creation SQL statement. The start date is that of a
+     * recording, as in the data and sessions tables, and the session start
+     * is that of the session it belongs to. A recording that has not been
+     * merged is a session with its own start date.
+     */
+    private static final String DB_CREATE_SESSION_MAP_TABLE = "create table "
+            + DB_SESSION_MAP_TABLE + " (" + COL_START_DATE
+            + " integer primary key, " + COL_SESSION_START
+            + " integer not null);";
+
+    /**
+     * Index for finding the recordings of a session.
+     */
+    private static final String DB_CREATE_SESSION_MAP_INDEX = "create index "
+            + "if not exists " + DB_SESSION_MAP_TABLE + "_sessionstart_idx on "
+            + DB_SESSION_MAP_TABLE + " (" + COL_SESSION_START + ", "
+            + COL_START_DATE + ");";
+
+    /**
+     * The sessions table joined to the session map, for queries that group
+     * the recordings into sessions. A recording missing from the map is a
+     * session of its own.
+     */
+    private static final String SQL_SESSIONS_JOIN_MAP = DB_SESSIONS_TABLE
+            + " s LEFT JOIN " + DB_SESSION_MAP_TABLE + " m ON m."
+            + COL_START_DATE + " = s." + COL_START_DATE;
+
+    /**
+     * The start date of the session of a row in SQL_SESSIONS_JOIN_MAP.
+     */
+    private static final String SQL_SESSION_START = "COALESCE(m."
+            + COL_SESSION_START + ", s." + COL_START_DATE + ")";
+
+    /**
+     * SQL to fill the sessions table from the data table. A WHERE clause
+     * may be added before the GROUP BY to fill some of them. A heart rate
+     * is counted as valid if it is positive. The R-R count and HRV totals,
+     * which skip artifacts, are filled by rebuildRollupsAndHrv.
+     */
+    private static final String DB_FILL_SESSIONS_TABLE = "INSERT INTO "
+            + DB_SESSIONS_TABLE + " (" + COL_START_DATE + ", " + COL_END_DATE
+            + ", " + COL_N_SAMPLES + ", " + COL_HR_MIN + ", " + COL_HR_MAX
+            + ", " + COL_HR_SUM + ", " + COL_HR_COUNT
+            + ") SELECT " + COL_START_DATE + ", MAX(" + COL_DATE
+            + "), COUNT(*), MIN(CASE WHEN " + COL_HR + " > 0 THEN " + COL_HR
+            + " END), MAX(CASE WHEN " + COL_HR + " > 0 THEN " + COL_HR
+            + " END), TOTAL(CASE WHEN " + COL_HR + " > 0 THEN " + COL_HR
+            + " ELSE 0 END), TOTAL(" + COL_HR + " > 0) FROM "
+            + DB_DATA_TABLE;
+
+    /**
+     * Rollups table creation SQL statement.
+     */
+    private static final String DB_CREATE_ROLLUPS_TABLE = "create table "
+            + DB_ROLLUPS_TABLE + " (" + COL_START_DATE + " integer not null, "
+            + COL_LEVEL + " integer not null, " + COL_BUCKET
+            + " integer not null, " + COL_N_SAMPLES
+            + " integer not null default 0, " + COL_HR_MIN + " integer, "
+            + COL_HR_MAX + " integer, " + COL_HR_SUM
+            + " integer not null default 0, " + COL_HR_COUNT
+            + " integer not null default 0, " + COL_RR_MIN + " integer, "
+            + COL_RR_MAX + " integer, " + COL_RR_SUM
+            + " integer not null default 0, " + COL_RR_COUNT
+            + " integer not null default 0, primary key (" + COL_START_DATE
+            + ", " + COL_LEVEL + ", " + COL_BUCKET + "));";
+
+    /**
+     * Restore table creation SQL statement.
+     */
+    private static final String DB_CREATE_RESTORE_TABLE = "create table "
+            + DB_RESTORE_TABLE + " (" + COL_PATH + " text not null, "
+            + COL_LENGTH + " integer not null, " + COL_MODIFIED
+            + " integer not null, " + COL_OFFSET + " integer not null, "
+            + COL_LINES + " integer not null, " + COL_ROWS
+            + " integer not null, " + COL_ERRORS + " integer not null);";
+
+    private static final String[] ROLLUP_COLUMNS = {COL_BUCKET,
+            COL_N_SAMPLES, COL_HR_MIN, COL_HR_MAX, COL_HR_SUM, COL_HR_COUNT,
+            COL_RR_MIN, COL_RR_MAX, COL_RR_SUM, COL_RR_COUNT};
+    private static final String[] SESSION_COLUMNS = {COL_START_DATE,
+            COL_END_DATE, COL_N_SAMPLES, COL_HR_MIN, COL_HR_MAX, COL_HR_SUM,
+            COL_HR_COUNT, COL_RR_COUNT, COL_RR_SUM, COL_RR_SUM_SQ,
+            COL_RR_DIFF_SUM_SQ, COL_RR_DIFF_COUNT, COL_NN50_COUNT};
+    private static final String[] SESSION_HRV_COLUMNS = {COL_RR_SUM,
+            COL_RR_SUM_SQ, COL_RR_DIFF_SUM_SQ, COL_RR_DIFF_COUNT,
+            COL_NN50_COUNT};
+    private static final String[] ALL_COLUMNS = {COL_ID, COL_DATE,
+            COL_START_DATE, COL_HR, COL_RR};
+    private static final String[] HR_DATE_COLUMNS = {COL_DATE, COL_HR};
+    private static final String[] HR_RR_DATE_COLUMNS = {COL_DATE, COL_HR,
+            COL_RR, COL_RR_MASK};
+    private static final String[] RESTORE_COLUMNS = {COL_PATH, COL_LENGTH,
+            COL_MODIFIED, COL_OFFSET, COL_LINES, COL_ROWS, COL_ERRORS};
+
+    /**
+     * The progress of a database restore, as saved in the restore table.
+     */
+    public static class RestoreState {
+        public final String path;
+        public final long length;
+        public final long modified;
+        public final long offset;
+        public final int lines;
+        public final long rows;
+        public final int errors;
+
+        public RestoreState(String path, long length, long modified,
+                            long offset, int lines, long rows, int errors) {
+            this.path = path;
+            this.length = length;
+            this.modified = modified;
+            this.offset = offset;
+            this.lines = lines;
+            this.rows = rows;
+            this.errors = errors;
+        }
+
+        /**
+         * Checks if this is the state for the given file and the file has
+         * not changed since the restore started.
+         *
+         * @param file The file.
+         * @return If it is.
+         */
+        public boolean isFor(File file) {
+            return file.getPath().equals(path) && file.length() == length
+                    && file.lastModified() == modified;
+        }
+    }
 
     /**
      * Constructor - takes the context to allow the database to be
@@ -40,6 +258,9 @@ public class BCMDbAdapter implements IConstants {
     public BCMDbAdapter(Activity activity, File dataDir) {
         mActivity = activity;
         mDataDir = dataDir;
+        mCache = SessionCache.getInstance(activity);
+        mDbPath = dataDir == null ? null : dataDir.getPath()
+                + File.separator + DB_NAME;
     }
 
     /**
@@ -78,9 +299,10 @@ public class BCMDbAdapter implements IConstants {
                     return null;
                 }
             }
-            mDbHelper = new DatabaseHelper(mActivity, mDataDir.getPath()
-                    + File.separator + DB_NAME);
-            mDb = mDbHelper.getWritableDatabase();
+            boolean first = acquireDatabase();
+            if (first && BuildConfig.DEBUG) {
+                checkQueryPlans();
+            }
         } catch (final Exception ex) {
             mActivity.runOnUiThread(new Runnable() {
                 @Override
@@ -93,8 +315,117 @@ public class BCMDbAdapter implements IConstants {
         return this;
     }
 
+    /**
+     * Opens the shared database for reading on a background thread, without
+     * the error dialogs of open(). Queries from several of these run on the
+     * pooled read connections at the same time as each other and as the
+     * writes. Only the fetch methods should be used.
+     *
+     * @return this or null if the database cannot be opened.
+     */
+    public BCMDbAdapter openReadOnly() {
+        if (mDataDir == null) {
+            return null;
+        }
+        try {
+            acquireDatabase();
+        } catch (Exception ex) {
+            Log.e(TAG, "Error opening read-only database at " + mDataDir, ex);
+            return null;
+        }
+        return this;
+    }
+
+    /**
+     * Gets the shared helper for the data directory, making it if
+     * necessary, and opens its database.
+     *
+     * @return If the database was not already open.
+     */
+    private boolean acquireDatabase() {
+        if (mDbHelper != null) {
+            // Already open
+            return false;
+        }
+        String path = mDbPath;
+        synchronized (BCMDbAdapter.class) {
+            DatabaseHelper helper = sHelpers.get(path);
+            boolean first = helper == null;
+            if (first) {
+                helper = new DatabaseHelper(
+                        mActivity.getApplicationContext(), path);
+            }
+            // Creates or upgrades the database the first time
+            mDb = helper.getWritableDatabase();
+            helper.mRefCount++;
+            if (first) {
+                sHelpers.put(path, helper);
+            }
+            mDbHelper = helper;
+            return first;
+        }
+    }
+
+    /**
+     * Releases this adapter's use of the shared database. It is closed when
+     * no adapter is using it.
+     */
     public void close() {
-        mDbHelper.close();
+        closeStatements();
+        if (mDbHelper == null) {
+            return;
+        }
+        synchronized (BCMDbAdapter.class) {
+            if (--mDbHelper.mRefCount == 0) {
+                sHelpers.remove(mDbHelper.mPath);
+                mDbHelper.close();
+            }
+        }
+        mDbHelper = null;
+        mDb = null;
+    }
+
+    /**
+     * Closes the cached statements. They are compiled again when needed.
+     */
+    private synchronized void closeStatements() {
+        if (mInsertDataStatement != null) {
+            mInsertDataStatement.close();
+            mInsertDataStatement = null;
+        }
+        if (mInsertSessionStatement != null) {
+            mInsertSessionStatement.close();
+            mInsertSessionStatement = null;
+        }
+        if (mUpdateSessionStatement != null) {
+            mUpdateSessionStatement.close();
+            mUpdateSessionStatement = null;
+        }
+        if (mInsertSessionMapStatement != null) {
+            mInsertSessionMapStatement.close();
+            mInsertSessionMapStatement = null;
+        }
+        if (mSessionStartStatement != null) {
+            mSessionStartStatement.close();
+            mSessionStartStatement = null;
+        }
+        if (mRollupWriter != null) {
+            mRollupWriter.close();
+            mRollupWriter = null;
+        }
+    }
+
+    /**
+     * Gets the RollupWriter, creating it if necessary. Must be called holding
+     * the lock on this adapter.
+     *
+     * @return The RollupWriter.
+     */
+    private RollupWriter getRollupWriter() {
+        if (mRollupWriter == null) {
+            mRollupWriter = new RollupWriter(mDb);
+        }
+        return mRollupWriter;
     }
 
     /**
@@ -102,13 +433,48 @@ public class BCMDbAdapter implements IConstants {
      * successfully created return the new rowId for that entry, otherwise
      * return a -1 to indicate failure.
      *
-     * @param date
-     * @param startDate
-     * @param hr
-     * @param rr
-     * @return
+     * @param date      The date.
+     * @param startDate The session start date.
+     * @param hr        The heart rate.
+     * @param rr        The R-R values or null if there are none.
+     * @param rrCount   The number of R-R values to use.
+     * @return The rowId or -1.
+     */
+    public long createData(long date, long startDate, int hr, int[] rr,
+                           int rrCount) {
+        return createData(date, startDate, hr,
+                rr == null ? null : packRr(rr, rrCount), null);
+    }
+
+    /**
+     * Create new data using the parameters provided. The R-R values are
+     * given as a space-separated String as found in saved files.
+     *
+     * @param date      The date.
+     * @param startDate The session start date.
+     * @param hr        The heart rate.
+     * @param rr        The R-R values as a String.
+     * @return The rowId or -1.
+     * @see #createData(long, long, int, int[], int)
      */
     public long createData(long date, long startDate, int hr, String rr) {
+        return createData(date, startDate, hr, packRr(rr), null);
+    }
+
+    /**
+     * Create new data using the parameters provided, with the R-R values
+     * already packed. The session and rollups are updated in the same
+     * transaction.
+     *
+     * @param date      The date.
+     * @param startDate The session start date.
+     * @param hr        The heart rate.
+     * @param rr        The packed R-R values or null.
+     * @param rrMask    The R-R artifact mask or null.
+     * @return The rowId or -1.
+     */
+    private synchronized long createData(long date, long startDate, int hr,
+                                         byte[] rr, byte[] rrMask) {
         if (mDb == null) {
             mActivity.runOnUiThread(new Runnable() {
                 @Override
@@ -123,252 +489,1813 @@ public class BCMDbAdapter implements IConstants {
         values.put(COL_DATE, date);
         values.put(COL_START_DATE, startDate);
         values.put(COL_HR, hr);
-        values.put(COL_RR, rr);
+        if (rr == null) {
+            values.putNull(COL_RR);
+        } else {
+            values.put(COL_RR, rr);
+        }
+        if (rrMask == null) {
+            values.putNull(COL_RR_MASK);
+        } else {
+            values.put(COL_RR_MASK, rrMask);
+        }
 
-        return mDb.insert(DB_DATA_TABLE, null, values);
+        long id;
+        boolean committed = false;
+        mDb.beginTransaction();
+        try {
+            try {
+                id = mDb.insert(DB_DATA_TABLE, null, values);
+                if (id >= 0) {
+                    boolean valid = hr > 0;
+                    HrvAnalyzer hrv = getSessionHrv(startDate);
+                    hrv.add(rr, rrMask);
+                    updateSession(startDate, date, 1,
+                            valid ? hr : INVALID_INT,
+                            valid ? hr : INVALID_INT, valid ? hr : 0,
+                            valid ? 1 : 0, hrv);
+                    RollupWriter rollups = getRollupWriter();
+                    rollups.add(startDate, date, hr, rr, rrMask);
+                    rollups.finish();
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            committed = true;
+        } finally {
+            if (!committed) {
+                discardUncommittedTotals();
+            }
+        }
+        mCache.invalidate(getSessionStart(startDate));
+        return id;
     }
 
     /**
-     * Delete all the data and recreate the table.
+     * Inserts a batch of rows in one transaction using a precompiled
+     * statement. The arrays are parallel, and the first count entries are
+     * used. The sessions are updated once for each run of rows with the same
+     * start date, and the rollups once for each run in the same bucket.
      *
-     * @return true if deleted, false otherwise.
+     * @param dates      The dates.
+     * @param startDates The session start dates.
+     * @param hrs        The heart rates.
+     * @param rrs        The packed R-R values. Entries may be null.
+     * @param rrMasks    The R-R artifact masks. Entries may be null.
+     * @param count      The number of rows.
+     * @return The number of rows inserted, or -1 if the database is not
+     * open.
      */
-    public void recreateDataTable() {
-        mDb.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
-        mDb.execSQL(DB_CREATE_DATA_TABLE);
+    public synchronized int createDataBatch(long[] dates, long[] startDates,
+                                            int[] hrs, byte[][] rrs,
+                                            byte[][] rrMasks, int count) {
+        if (mDb == null) {
+            return -1;
+        }
+        SQLiteStatement insert = getInsertDataStatement();
+        RollupWriter rollups = getRollupWriter();
+        int nInserted = 0;
+        // Session totals for the current run of start dates
+        long endDate = Long.MIN_VALUE;
+        int nSamples = 0, hrMin = INVALID_INT, hrMax = INVALID_INT;
+        int hrCount = 0;
+        long hrSum = 0;
+        int hr;
+        HrvAnalyzer hrv;
+        boolean committed = false;
+        mDb.beginTransaction();
+        try {
+            try {
+                for (int i = 0; i < count; i++) {
+                    hr = hrs[i];
+                    bindData(insert, dates[i], startDates[i], hr, rrs[i],
+                            rrMasks[i]);
+                    if (insert.executeInsert() >= 0) {
+                        nInserted++;
+                        nSamples++;
+                        if (dates[i] > endDate) {
+                            endDate = dates[i];
+                        }
+                        if (hr > 0) {
+                            if (hrCount == 0 || hr < hrMin) hrMin = hr;
+                            if (hrCount == 0 || hr > hrMax) hrMax = hr;
+                            hrSum += hr;
+                            hrCount++;
+                        }
+                        hrv = getSessionHrv(startDates[i]);
+                        hrv.add(rrs[i], rrMasks[i]);
+                        rollups.add(startDates[i], dates[i], hr, rrs[i],
+                                rrMasks[i]);
+                    }
+                    if ((i == count - 1 || startDates[i + 1] != startDates[i])
+                            && nSamples > 0) {
+                        updateSession(startDates[i], endDate, nSamples, hrMin,
+                                hrMax, hrSum, hrCount, mSessionHrv);
+                        endDate = Long.MIN_VALUE;
+                        nSamples = hrCount = 0;
+                        hrMin = hrMax = INVALID_INT;
+                        hrSum = 0;
+                    }
+                }
+                rollups.finish();
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            committed = true;
+        } finally {
+            if (!committed) {
+                discardUncommittedTotals();
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || startDates[i] != startDates[i - 1]) {
+                mCache.invalidate(getSessionStart(startDates[i]));
+            }
+        }
+        return nInserted;
     }
 
     /**
-     * Return a Cursor over the list of all items in the database.
+     * Gets the precompiled statement for inserting a data row, creating it
+     * if necessary. Must be called holding the lock on this adapter.
      *
-     * @return Cursor over items.
+     * @return The statement.
      */
-    public Cursor fetchAllData(String filter) {
-        if (mDb == null) {
-            return null;
+    private SQLiteStatement getInsertDataStatement() {
+        if (mInsertDataStatement == null) {
+            mInsertDataStatement = mDb.compileStatement("INSERT INTO "
+                    + DB_DATA_TABLE + " (" + COL_DATE + ", " + COL_START_DATE
+                    + ", " + COL_HR + ", " + COL_RR + ", " + COL_RR_MASK
+                    + ") VALUES (?, ?, ?, ?, ?)");
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
-                        COL_START_DATE, COL_HR, COL_RR}, filter, null, null,
-                null,
-                SORT_ASCENDING);
+        return mInsertDataStatement;
     }
 
     /**
-     * Delete the data with the given rowId.
+     * Binds the values of a row to the statement from
+     * getInsertDataStatement.
      *
-     * @param rowId id of data to delete
-     * @return true if deleted, false otherwise.
+     * @param insert    The statement.
+     * @param date      The date.
+     * @param startDate The session start date.
+     * @param hr        The heart rate.
+     * @param rr        The packed R-R values or null.
+     * @param rrMask    The R-R artifact mask or null.
      */
-    public boolean deleteData(long rowId) {
-        return mDb.delete(DB_DATA_TABLE, COL_ID + "=" + rowId, null) > 0;
+    private static void bindData(SQLiteStatement insert, long date,
+                                 long startDate, int hr, byte[] rr,
+                                 byte[] rrMask) {
+        insert.bindLong(1, date);
+        insert.bindLong(2, startDate);
+        insert.bindLong(3, hr);
+        if (rr == null) {
+            insert.bindNull(4);
+        } else {
+            insert.bindBlob(4, rr);
+        }
+        if (rrMask == null) {
+            insert.bindNull(5);
+        } else {
+            insert.bindBlob(5, rrMask);
+        }
     }
 
     /**
-     * Return a Cursor positioned at the data that matches the given rowId
+     * Starts restoring the database from a file. Deletes all the data,
+     * drops the data indexes so the rows can be inserted faster, and saves
+     * the initial restore state. The rows are then added with
+     * createRestoreBatch and the restore is ended with endRestore.
      *
-     * @param rowId id of entry to retrieve.
-     * @return Cursor positioned to matching entry, if found.
-     * @throws SQLException if entry could not be found/retrieved.
+     * @param file The file being restored.
      */
-    public Cursor fetchData(long rowId) throws SQLException {
-        Cursor mCursor = mDb.query(true, DB_DATA_TABLE, new String[]{COL_ID,
-                COL_DATE, COL_START_DATE, COL_HR, COL_RR}, COL_ID + "="
-                + rowId, null, null, null, null, null);
-        if (mCursor != null) {
-            mCursor.moveToFirst();
+    public synchronized void beginRestore(File file) {
+        recreateDataTable();
+        mDb.beginTransaction();
+        try {
+            dropDataIndexes(mDb);
+            mDb.execSQL("DROP TABLE IF EXISTS " + DB_RESTORE_TABLE);
+            mDb.execSQL(DB_CREATE_RESTORE_TABLE);
+            ContentValues values = new ContentValues();
+            values.put(COL_PATH, file.getPath());
+            values.put(COL_LENGTH, file.length());
+            values.put(COL_MODIFIED, file.lastModified());
+            values.put(COL_OFFSET, 0L);
+            values.put(COL_LINES, 0);
+            values.put(COL_ROWS, 0L);
+            values.put(COL_ERRORS, 0);
+            mDb.insert(DB_RESTORE_TABLE, null, values);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
         }
-        return mCursor;
     }
 
     /**
-     * Update the data using the details provided. The data to be updated is
-     * specified using the rowId, and it is altered to use the values passed in.
+     * Continues a restore that was ended before it was complete. Drops the
+     * data indexes again. The rows already restored are kept.
      *
-     * @param rowId
-     * @param date
-     * @param startDate
-     * @param hr
-     * @param rr
-     * @return
+     * @return The saved state or null if there is no restore to resume.
      */
-    public boolean updateData(long rowId, long date, long startDate, int hr,
-                              String rr) {
-        ContentValues values = new ContentValues();
-        values.put(COL_DATE, date);
-        values.put(COL_START_DATE, startDate);
-        values.put(COL_HR, hr);
-        values.put(COL_RR, rr);
-
-        return mDb.update(DB_DATA_TABLE, values, COL_ID + "=" + rowId, null) > 0;
+    public synchronized RestoreState resumeRestore() {
+        RestoreState state = getRestoreState();
+        if (state != null) {
+            dropDataIndexes(mDb);
+        }
+        return state;
     }
 
     /**
-     * Return a Cursor over the list of start and ending times, sorted in
-     * reverse order.
+     * Gets the state of an unfinished restore.
      *
-     * @return Cursor over items.
+     * @return The state or null if there is none.
      */
-    public Cursor fetchAllSessionStartEndData() {
+    public synchronized RestoreState getRestoreState() {
         if (mDb == null) {
             return null;
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_START_DATE,
-                        COL_END_DATE}, null, null, COL_START_DATE, null,
-                SORT_DESCENDING);
+        Cursor cursor = null;
+        try {
+            cursor = mDb.query(DB_RESTORE_TABLE, RESTORE_COLUMNS, null, null,
+                    null, null, null);
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new RestoreState(cursor.getString(0), cursor.getLong(1),
+                    cursor.getLong(2), cursor.getLong(3), cursor.getInt(4),
+                    cursor.getLong(5), cursor.getInt(6));
+        } finally {
+            if (cursor != null) cursor.close();
+        }
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Get data for start date only (ForStartDate) ////////////////////////////
-    // /////////////////////////////////////////////////////////////////////////
-
     /**
-     * Deletes all data in the database for the interval corresponding to the
-     * given the start date.
+     * Inserts a batch of restored rows in one transaction using a
+     * precompiled statement and saves the progress in the same transaction,
+     * so the saved state always matches the rows in the database. The
+     * sessions and rollups are not updated. That is done once by
+     * endRestore.
      *
-     * @param start
-     * @return
+     * @param dates      The dates.
+     * @param startDates The session start dates.
+     * @param hrs        The heart rates.
+     * @param rrs        The packed R-R values. Entries may be null.
+     * @param rrMasks    The R-R artifact masks. Entries may be null.
+     * @param count      The number of rows.
+     * @param offset     The offset in the file after the last row.
+     * @param lines      The number of lines read.
+     * @param rows       The number of rows restored before these.
+     * @param errors     The number of lines with errors.
+     * @return The number of rows inserted, or -1 if the database is not
+     * open.
      */
-    public boolean deleteAllDataForStartDate(long start) {
-        return mDb.delete(DB_DATA_TABLE,
-                COL_START_DATE + "=" + Long.toString(start), null) > 0;
+    public synchronized int createRestoreBatch(long[] dates,
+                                               long[] startDates, int[] hrs,
+                                               byte[][] rrs,
+                                               byte[][] rrMasks, int count,
+                                               long offset, int lines,
+                                               long rows, int errors) {
+        if (mDb == null) {
+            return -1;
+        }
+        SQLiteStatement insert = getInsertDataStatement();
+        int nInserted = 0;
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                bindData(insert, dates[i], startDates[i], hrs[i], rrs[i],
+                        rrMasks[i]);
+                if (insert.executeInsert() >= 0) {
+                    nInserted++;
+                }
+            }
+            ContentValues values = new ContentValues();
+            values.put(COL_OFFSET, offset);
+            values.put(COL_LINES, lines);
+            values.put(COL_ROWS, rows + nInserted);
+            values.put(COL_ERRORS, errors);
+            mDb.update(DB_RESTORE_TABLE, values, null, null);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        mCache.invalidateAll();
+        return nInserted;
     }
 
     /**
-     * Return a Cursor over the HR items in the database having the given the
-     * start date.
+     * Ends a restore. Recreates the data indexes and rebuilds the sessions
+     * and rollups from the data. The recordings are merged as given by the
+     * session map from the file. If the restore is complete the saved state
+     * is deleted, otherwise it is kept so the restore can be resumed.
      *
-     * @param date
-     * @return Cursor over items.
+     * @param complete   Whether the whole file was restored.
+     * @param sessionMap The start dates of the sessions of the merged
+     *                   recordings, by the start dates of the recordings,
+     *                   or null if there are none.
      */
-    public Cursor fetchAllHrDateDataForStartDate(long date) {
-        if (mDb == null) {
-            return null;
+    public synchronized void endRestore(boolean complete,
+                                        Map<Long, Long> sessionMap) {
+        mDb.beginTransaction();
+        try {
+            createDataIndexes(mDb);
+            rebuildSessions(mDb);
+            syncSessionMap(mDb);
+            if (sessionMap != null) {
+                applySessionMap(mDb, sessionMap);
+            }
+            rebuildRollupsAndHrv(mDb);
+            if (complete) {
+                mDb.execSQL("DELETE FROM " + DB_RESTORE_TABLE);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR},
-                COL_START_DATE + "=" + Long.toString(date), null, null, null,
-                SORT_ASCENDING);
+        mCache.invalidateAll();
     }
 
     /**
-     * Return a Cursor over the HR and RR items in the database having the given
-     * the start date
+     * Adds values to the totals for a recording, creating it in the sessions
+     * table and the session map if it does not exist. Must be called in a
+     * transaction, holding the lock on this adapter.
      *
-     * @param date
-     * @return Cursor over items.
+     * @param startDate The session start date.
+     * @param endDate   The latest date of the new samples.
+     * @param nSamples  The number of new samples.
+     * @param hrMin     The minimum valid heart rate or INVALID_INT if none.
+     * @param hrMax     The maximum valid heart rate or INVALID_INT if none.
+     * @param hrSum     The sum of the valid heart rates.
+     * @param hrCount   The number of valid heart rates.
+     * @param hrv       The HRV totals of the new R-R values. They are
+     *                  cleared.
      */
-    public Cursor fetchAllHrRrDateDataForStartDate(long date) {
-        if (mDb == null) {
-            return null;
+    private void updateSession(long startDate, long endDate, int nSamples,
+                               int hrMin, int hrMax, long hrSum,
+                               int hrCount, HrvAnalyzer hrv) {
+        if (mInsertSessionStatement == null) {
+            // UPSERT needs SQLite 3.24, so insert then update
+            mInsertSessionStatement = mDb.compileStatement("INSERT OR IGNORE"
+                    + " INTO " + DB_SESSIONS_TABLE + " (" + COL_START_DATE
+                    + ", " + COL_END_DATE + ") VALUES (?, ?)");
+            mUpdateSessionStatement = mDb.compileStatement("UPDATE "
+                    + DB_SESSIONS_TABLE + " SET "
+                    + COL_END_DATE + " = MAX(" + COL_END_DATE + ", ?2), "
+                    + COL_N_SAMPLES + " = " + COL_N_SAMPLES + " + ?3, "
+                    + COL_HR_MIN + " = COALESCE(MIN(" + COL_HR_MIN
+                    + ", ?4), " + COL_HR_MIN + ", ?4), "
+                    + COL_HR_MAX + " = COALESCE(MAX(" + COL_HR_MAX
+                    + ", ?5), " + COL_HR_MAX + ", ?5), "
+                    + COL_HR_SUM + " = " + COL_HR_SUM + " + ?6, "
+                    + COL_HR_COUNT + " = " + COL_HR_COUNT + " + ?7, "
+                    + COL_RR_COUNT + " = " + COL_RR_COUNT + " + ?8, "
+                    + COL_RR_SUM + " = " + COL_RR_SUM + " + ?9, "
+                    + COL_RR_SUM_SQ + " = " + COL_RR_SUM_SQ + " + ?10, "
+                    + COL_RR_DIFF_SUM_SQ + " = " + COL_RR_DIFF_SUM_SQ
+                    + " + ?11, "
+                    + COL_RR_DIFF_COUNT + " = " + COL_RR_DIFF_COUNT
+                    + " + ?12, "
+                    + COL_NN50_COUNT + " = " + COL_NN50_COUNT + " + ?13"
+                    + " WHERE " + COL_START_DATE + " = ?1");
+            mInsertSessionMapStatement = mDb.compileStatement("INSERT OR"
+                    + " IGNORE INTO " + DB_SESSION_MAP_TABLE + " ("
+                    + COL_START_DATE + ", " + COL_SESSION_START
+                    + ") VALUES (?1, ?1)");
+        }
+        SQLiteStatement insert = mInsertSessionStatement;
+        insert.bindLong(1, startDate);
+        insert.bindLong(2, endDate);
+        insert.executeInsert();
+        insert = mInsertSessionMapStatement;
+        insert.bindLong(1, startDate);
+        insert.executeInsert();
+        SQLiteStatement update = mUpdateSessionStatement;
+        update.bindLong(1, startDate);
+        update.bindLong(2, endDate);
+        update.bindLong(3, nSamples);
+        if (hrCount > 0) {
+            update.bindLong(4, hrMin);
+            update.bindLong(5, hrMax);
+        } else {
+            update.bindNull(4);
+            update.bindNull(5);
         }
-        return mDb
-                .query(DB_DATA_TABLE,
-                        new String[]{COL_DATE, COL_HR, COL_RR},
-                        COL_START_DATE + "=" + Long.toString(date), null, null,
-                        null, SORT_ASCENDING);
+        update.bindLong(6, hrSum);
+        update.bindLong(7, hrCount);
+        update.bindLong(8, hrv.getCount());
+        update.bindLong(9, hrv.getSum());
+        update.bindLong(10, hrv.getSumSq());
+        update.bindLong(11, hrv.getDiffSumSq());
+        update.bindLong(12, hrv.getDiffCount());
+        update.bindLong(13, hrv.getNn50Count());
+        update.executeUpdateDelete();
+        hrv.clearTotals();
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Get data for start date through end date (ForDate) /////////////////////
-    // /////////////////////////////////////////////////////////////////////////
+    /**
+     * Discards the HRV totals and the rollup buckets that were accumulated
+     * for rows whose transaction was rolled back, so they are not counted
+     * again when the rows are retried. The difference between the last
+     * value committed and the first one retried is not counted. Must be
+     * called holding the lock on this adapter.
+     */
+    private void discardUncommittedTotals() {
+        mSessionHrv.reset();
+        mSessionHrvStartDate = INVALID_DATE;
+        if (mRollupWriter != null) {
+            mRollupWriter.discard();
+        }
+    }
 
     /**
-     * Return a Cursor over the HR items in the database for a given start and
-     * end times.
+     * Gets the HRV totals for the rows being added to a session. They are
+     * reset when the session changes. Must be called holding the lock on
+     * this adapter.
      *
-     * @param start
-     * @param end
-     * @return Cursor over items.
+     * @param startDate The session start date.
+     * @return The totals.
      */
-    public Cursor fetchAllHrDateDataForDates(long start, long end) {
-        if (mDb == null) {
-            return null;
+    private HrvAnalyzer getSessionHrv(long startDate) {
+        if (startDate != mSessionHrvStartDate) {
+            mSessionHrv.reset();
+            mSessionHrvStartDate = startDate;
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR},
-                COL_DATE + ">=" + Long.toString(start) + " AND " + COL_DATE
-                        + "<=" + Long.toString(end), null, null, null,
-                SORT_ASCENDING);
+        return mSessionHrv;
     }
 
     /**
-     * Return a Cursor over the HR and RR items in the database for a given
-     * start and end times.
+     * Gets the start date of the session a recording belongs to. Must be
+     * called holding the lock on this adapter.
      *
-     * @param start
-     * @param end
-     * @return Cursor over items.
+     * @param startDate The start date of the recording.
+     * @return The session start date, which is the same if it has not been
+     * merged.
      */
-    public Cursor fetchAllHrRrDateDataForDates(long start, long end) {
-        if (mDb == null) {
-            return null;
+    private long getSessionStart(long startDate) {
+        if (mSessionStartStatement == null) {
+            mSessionStartStatement = mDb.compileStatement("SELECT "
+                    + COL_SESSION_START + " FROM " + DB_SESSION_MAP_TABLE
+                    + " WHERE " + COL_START_DATE + " = ?");
+        }
+        mSessionStartStatement.bindLong(1, startDate);
+        try {
+            return mSessionStartStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException ex) {
+            return startDate;
         }
-        return mDb.query(DB_DATA_TABLE,
-                new String[]{COL_DATE, COL_HR, COL_RR}, COL_DATE + ">="
-                        + Long.toString(start) + " AND " + COL_DATE + "<="
-                        + Long.toString(end), null, null, null, SORT_ASCENDING);
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Get data for start date and later (StartingAtDate) /////////////////////
-    // /////////////////////////////////////////////////////////////////////////
+    /**
+     * Delete all the data and recreate the tables.
+     */
+    public synchronized void recreateDataTable() {
+        closeStatements();
+        mDb.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
+        mDb.execSQL("DROP TABLE IF EXISTS " + DB_SESSIONS_TABLE);
+        mDb.execSQL("DROP TABLE IF EXISTS " + DB_ROLLUPS_TABLE);
+        mDb.execSQL("DROP TABLE IF EXISTS " + DB_SESSION_MAP_TABLE);
+        createDataTable(mDb);
+        mDb.execSQL(DB_CREATE_SESSIONS_TABLE);
+        mDb.execSQL(DB_CREATE_ROLLUPS_TABLE);
+        createSessionMapTable(mDb);
+        mCache.invalidateAll();
+    }
 
     /**
-     * Return a Cursor over the list of all items in the database for a given
-     * time and later.
+     * Recomputes the sessions and rollups tables from the data table. The
+     * session map keeps the recordings that still exist in the sessions
+     * they were merged into.
      *
-     * @param date
-     * @return Cursor over items.
+     * @return The number of sessions or -1 if the database is not open.
      */
-    public Cursor fetchAllDataStartingAtDate(long date) {
+    public synchronized int rebuildSessions() {
         if (mDb == null) {
-            return null;
+            return -1;
+        }
+        mDb.beginTransaction();
+        try {
+            rebuildSessions(mDb);
+            syncSessionMap(mDb);
+            rebuildRollupsAndHrv(mDb);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
-                        COL_START_DATE, COL_HR, COL_RR},
-                COL_DATE + ">=" + Long.toString(date), null, null, null,
-                SORT_ASCENDING);
+        mCache.invalidateAll();
+        return getSessionCount();
     }
 
     /**
-     * Return a Cursor over the HR and RR items in the database for a given time
-     * and later.
+     * Recomputes the sessions table from the data table.
      *
-     * @param date
-     * @return Cursor over items.
+     * @param db The database.
      */
-    public Cursor fetchAllHrRrDateDataStartingAtDate(long date) {
-        if (mDb == null) {
-            return null;
-        }
-        return mDb
-                .query(DB_DATA_TABLE,
-                        new String[]{COL_DATE, COL_HR, COL_RR}, COL_DATE
-                                + ">=" + Long.toString(date), null, null, null,
-                        SORT_ASCENDING);
+    private static void rebuildSessions(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + DB_SESSIONS_TABLE);
+        db.execSQL(DB_FILL_SESSIONS_TABLE + " GROUP BY " + COL_START_DATE);
     }
 
     /**
-     * A SQLiteOpenHelper helper to help manage database creation and version
-     * management. Extends a custom version that writes to the SD Card instead
-     * of using the Context.
+     * Recomputes the sessions row and the rollups of one recording from
+     * the data table, after rows have been deleted from it or changed. The
+     * session map must be synced after. Must be called in a transaction
+     * holding the lock on this adapter.
+     *
+     * @param startDate The start date of the recording.
      */
-    private static class DatabaseHelper extends SQLiteOpenHelper {
-        private DatabaseHelper(Context context, String dir) {
-            super(context, dir, null, DB_VERSION);
+    private void rebuildRecording(long startDate) {
+        String selection = COL_START_DATE + " = ?";
+        String[] selectionArgs = {Long.toString(startDate)};
+        mDb.delete(DB_SESSIONS_TABLE, selection, selectionArgs);
+        mDb.execSQL(DB_FILL_SESSIONS_TABLE + " WHERE " + selection
+                + " GROUP BY " + COL_START_DATE, selectionArgs);
+        rebuildRollupsAndHrv(mDb, selection, selectionArgs);
+        if (startDate == mSessionHrvStartDate) {
+            // The totals being added to no longer follow on from the data
+            mSessionHrv.reset();
+            mSessionHrvStartDate = INVALID_DATE;
         }
+    }
 
-        @Override
-        public void onCreate(SQLiteDatabase db) {
-            db.execSQL(DB_CREATE_DATA_TABLE);
-        }
+    /**
+     * Makes the session map match the sessions table. Recordings that are
+     * not in the map are added as sessions of their own, and those that no
+     * longer exist are removed.
+     *
+     * @param db The database.
+     */
+    private static void syncSessionMap(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + DB_SESSION_MAP_TABLE + " WHERE "
+                + COL_START_DATE + " NOT IN (SELECT " + COL_START_DATE
+                + " FROM " + DB_SESSIONS_TABLE + ")");
+        db.execSQL("INSERT OR IGNORE INTO " + DB_SESSION_MAP_TABLE + " ("
+                + COL_START_DATE + ", " + COL_SESSION_START + ") SELECT "
+                + COL_START_DATE + ", " + COL_START_DATE + " FROM "
+                + DB_SESSIONS_TABLE);
+    }
 
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // TODO Re-do this so nothing is lost if there is a need to change
-            // the version
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
-            onCreate(db);
+    /**
+     * Merges recordings as given by a saved session map. An entry is skipped
+     * if either recording was not restored.
+     *
+     * @param db         The database.
+     * @param sessionMap The start dates of the sessions by the start dates
+     *                   of the recordings.
+     */
+    private static void applySessionMap(SQLiteDatabase db,
+                                        Map<Long, Long> sessionMap) {
+        SQLiteStatement update = db.compileStatement("UPDATE "
+                + DB_SESSION_MAP_TABLE + " SET " + COL_SESSION_START
+                + " = ?2 WHERE " + COL_START_DATE + " = ?1 AND ?2 IN (SELECT "
+                + COL_START_DATE + " FROM " + DB_SESSIONS_TABLE + ")");
+        try {
+            for (Map.Entry<Long, Long> entry : sessionMap.entrySet()) {
+                update.bindLong(1, entry.getKey());
+                update.bindLong(2, entry.getValue());
+                update.executeUpdateDelete();
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Recomputes the rollups table and the R-R count and HRV totals in the
+     * sessions table from the data table in one pass. The sessions must
+     * already exist.
+     *
+     * @param db The database.
+     */
+    private static void rebuildRollupsAndHrv(SQLiteDatabase db) {
+        rebuildRollupsAndHrv(db, null, null);
+    }
+
+    /**
+     * Recomputes the rollups and the R-R count and HRV totals of the
+     * recordings that match a selection on the data and rollups tables.
+     * The sessions must already exist.
+     *
+     * @param db            The database.
+     * @param selection     The WHERE clause or null for all recordings.
+     * @param selectionArgs The arguments for the selection.
+     */
+    private static void rebuildRollupsAndHrv(SQLiteDatabase db,
+                                             String selection,
+                                             String[] selectionArgs) {
+        db.delete(DB_ROLLUPS_TABLE, selection, selectionArgs);
+        RollupWriter rollups = new RollupWriter(db);
+        SQLiteStatement update = db.compileStatement("UPDATE "
+                + DB_SESSIONS_TABLE + " SET " + COL_RR_COUNT + " = ?2, "
+                + COL_RR_SUM + " = ?3, " + COL_RR_SUM_SQ + " = ?4, "
+                + COL_RR_DIFF_SUM_SQ + " = ?5, " + COL_RR_DIFF_COUNT
+                + " = ?6, " + COL_NN50_COUNT + " = ?7"
+                + " WHERE " + COL_START_DATE + " = ?1");
+        HrvAnalyzer hrv = new HrvAnalyzer(0);
+        Cursor cursor = null;
+        int nRows = 0;
+        long startDate, prevStartDate = INVALID_DATE;
+        try {
+            cursor = db.query(DB_DATA_TABLE, new String[]{COL_START_DATE,
+                            COL_DATE, COL_HR, COL_RR, COL_RR_MASK}, selection,
+                    selectionArgs, null, null,
+                    COL_START_DATE + ", " + COL_DATE);
+            byte[] rr, rrMask;
+            while (cursor.moveToNext()) {
+                startDate = cursor.getLong(0);
+                if (startDate != prevStartDate) {
+                    if (nRows > 0) {
+                        updateSessionHrv(update, prevStartDate, hrv);
+                    }
+                    hrv.reset();
+                    prevStartDate = startDate;
+                }
+                rr = getRrBlob(cursor, 3);
+                rrMask = getRrBlob(cursor, 4);
+                rollups.add(startDate, cursor.getLong(1), cursor.getInt(2),
+                        rr, rrMask);
+                hrv.add(rr, rrMask);
+                nRows++;
+            }
+            if (nRows > 0) {
+                updateSessionHrv(update, prevStartDate, hrv);
+            }
+            rollups.finish();
+        } finally {
+            if (cursor != null) cursor.close();
+            rollups.close();
+            update.close();
+        }
+        Log.d(TAG, "rebuildRollupsAndHrv: processed " + nRows + " rows");
+    }
+
+    /**
+     * Sets the R-R artifact masks of all the data using the given filter.
+     * Only rows with artifacts are written.
+     *
+     * @param db     The database.
+     * @param filter The filter.
+     */
+    private static void markRrArtifacts(SQLiteDatabase db, RrFilter filter) {
+        SQLiteStatement update = db.compileStatement("UPDATE "
+                + DB_DATA_TABLE + " SET " + COL_RR_MASK + " = ? WHERE "
+                + COL_ID + " = ?");
+        Cursor cursor = null;
+        int nRows = 0, nMarked = 0;
+        long startDate, prevStartDate = INVALID_DATE;
+        byte[] rrMask;
+        try {
+            cursor = db.query(DB_DATA_TABLE, new String[]{COL_ID,
+                            COL_START_DATE, COL_RR}, null, null, null, null,
+                    COL_START_DATE + ", " + COL_DATE);
+            while (cursor.moveToNext()) {
+                startDate = cursor.getLong(1);
+                if (startDate != prevStartDate) {
+                    filter.reset();
+                    prevStartDate = startDate;
+                }
+                rrMask = filter.filter(getRrBlob(cursor, 2));
+                if (rrMask != null) {
+                    update.bindBlob(1, rrMask);
+                    update.bindLong(2, cursor.getLong(0));
+                    update.executeUpdateDelete();
+                    nMarked++;
+                }
+                nRows++;
+            }
+        } finally {
+            if (cursor != null) cursor.close();
+            update.close();
+        }
+        Log.d(TAG, "markRrArtifacts: marked " + nMarked + " of " + nRows
+                + " rows");
+    }
+
+    /**
+     * Sets the R-R count and HRV totals for a session.
+     *
+     * @param update    The statement from rebuildRollupsAndHrv.
+     * @param startDate The session start date.
+     * @param hrv       The totals.
+     */
+    private static void updateSessionHrv(SQLiteStatement update,
+                                         long startDate, HrvAnalyzer hrv) {
+        update.bindLong(1, startDate);
+        update.bindLong(2, hrv.getCount());
+        update.bindLong(3, hrv.getSum());
+        update.bindLong(4, hrv.getSumSq());
+        update.bindLong(5, hrv.getDiffSumSq());
+        update.bindLong(6, hrv.getDiffCount());
+        update.bindLong(7, hrv.getNn50Count());
+        update.executeUpdateDelete();
+    }
+
+    /**
+     * Gets the number of sessions.
+     *
+     * @return The number of sessions or -1 if the database is not open.
+     */
+    public int getSessionCount() {
+        if (mDb == null) {
+            return -1;
+        }
+        return (int) DatabaseUtils.longForQuery(mDb, "SELECT COUNT(DISTINCT "
+                + SQL_SESSION_START + ") FROM " + SQL_SESSIONS_JOIN_MAP, null);
+    }
+
+    /**
+     * Creates the session map table and its index.
+     *
+     * @param db The database.
+     */
+    private static void createSessionMapTable(SQLiteDatabase db) {
+        db.execSQL(DB_CREATE_SESSION_MAP_TABLE);
+        db.execSQL(DB_CREATE_SESSION_MAP_INDEX);
+    }
+
+    /**
+     * Creates the data table and its indexes.
+     *
+     * @param db The database.
+     */
+    private static void createDataTable(SQLiteDatabase db) {
+        db.execSQL(DB_CREATE_DATA_TABLE);
+        createDataIndexes(db);
+    }
+
+    /**
+     * Creates the indexes on the data table if they do not exist.
+     *
+     * @param db The database.
+     */
+    private static void createDataIndexes(SQLiteDatabase db) {
+        db.execSQL(DB_CREATE_START_DATE_INDEX);
+        db.execSQL(DB_CREATE_DATE_INDEX);
+    }
+
+    /**
+     * Drops the indexes on the data table if they exist.
+     *
+     * @param db The database.
+     */
+    private static void dropDataIndexes(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS " + DB_DATA_TABLE
+                + "_startdate_date_idx");
+        db.execSQL("DROP INDEX IF EXISTS " + DB_DATA_TABLE + "_date_idx");
+    }
+
+    /**
+     * Return a Cursor over the list of all items in the database.
+     *
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllData(String filter) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_DATA_TABLE, ALL_COLUMNS, filter, null, null,
+                null, SORT_ASCENDING);
+    }
+
+    /**
+     * Delete the data with the given rowId. The session, session map, and
+     * rollups of its recording are recomputed.
+     *
+     * @param rowId id of data to delete
+     * @return true if deleted, false otherwise.
+     */
+    public synchronized boolean deleteData(long rowId) {
+        boolean deleted = false;
+        mDb.beginTransaction();
+        try {
+            long startDate = getDataStartDate(rowId);
+            if (startDate != INVALID_DATE) {
+                deleted = mDb.delete(DB_DATA_TABLE, COL_ID + "=" + rowId,
+                        null) > 0;
+                rebuildRecording(startDate);
+                syncSessionMap(mDb);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        // The session is not known
+        mCache.invalidateAll();
+        return deleted;
+    }
+
+    /**
+     * Gets the start date of a data row. Must be called holding the lock on
+     * this adapter.
+     *
+     * @param rowId The rowId.
+     * @return The start date or INVALID_DATE if there is no such row.
+     */
+    private long getDataStartDate(long rowId) {
+        Cursor cursor = null;
+        try {
+            cursor = mDb.query(DB_DATA_TABLE, new String[]{COL_START_DATE},
+                    COL_ID + "=" + rowId, null, null, null, null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : INVALID_DATE;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /**
+     * Return a Cursor positioned at the data that matches the given rowId
+     *
+     * @param rowId id of entry to retrieve.
+     * @return Cursor positioned to matching entry, if found.
+     * @throws SQLException if entry could not be found/retrieved.
+     */
+    public Cursor fetchData(long rowId) throws SQLException {
+        Cursor mCursor = mDb.query(true, DB_DATA_TABLE, new String[]{COL_ID,
+                COL_DATE, COL_START_DATE, COL_HR, COL_RR}, COL_ID + "="
+                + rowId, null, null, null, null, null);
+        if (mCursor != null) {
+            mCursor.moveToFirst();
+        }
+        return mCursor;
+    }
+
+    /**
+     * Update the data using the details provided. The data to be updated is
+     * specified using the rowId, and it is altered to use the values passed in.
+     * The sessions, session map, and rollups of the recordings it was in
+     * and is now in are recomputed.
+     *
+     * @param rowId     The rowId.
+     * @param date      The date.
+     * @param startDate The session start date.
+     * @param hr        The heart rate.
+     * @param rr        The R-R values or null if there are none.
+     * @param rrCount   The number of R-R values to use.
+     * @return If any rows were updated.
+     */
+    public synchronized boolean updateData(long rowId, long date,
+                                           long startDate, int hr, int[] rr,
+                                           int rrCount) {
+        ContentValues values = new ContentValues();
+        values.put(COL_DATE, date);
+        values.put(COL_START_DATE, startDate);
+        values.put(COL_HR, hr);
+        if (rr == null) {
+            values.putNull(COL_RR);
+        } else {
+            values.put(COL_RR, packRr(rr, rrCount));
+        }
+        // The values may have changed
+        values.putNull(COL_RR_MASK);
+
+        boolean updated = false;
+        mDb.beginTransaction();
+        try {
+            long oldStartDate = getDataStartDate(rowId);
+            if (oldStartDate != INVALID_DATE) {
+                updated = mDb.update(DB_DATA_TABLE, values,
+                        COL_ID + "=" + rowId, null) > 0;
+                rebuildRecording(oldStartDate);
+                if (startDate != oldStartDate) {
+                    rebuildRecording(startDate);
+                }
+                syncSessionMap(mDb);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        // The row may have moved to another session
+        mCache.invalidateAll();
+        return updated;
+    }
+
+    /**
+     * Return a Cursor over the sessions with their start and end times and
+     * summary values, sorted in reverse order.
+     *
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllSessionStartEndData() {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.rawQuery(sqlSessionStartEnd(), null);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Get data for start date only (ForStartDate) ////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Deletes all data in the database for the interval corresponding to the
+     * given the start date. All the recordings in the session are deleted.
+     *
+     * @param start
+     * @return
+     */
+    public synchronized boolean deleteAllDataForStartDate(long start) {
+        int nDeleted;
+        String where = COL_START_DATE + " IN " + sqlRecordings(start);
+        mDb.beginTransaction();
+        try {
+            nDeleted = mDb.delete(DB_DATA_TABLE, where, null);
+            mDb.delete(DB_SESSIONS_TABLE, where, null);
+            mDb.delete(DB_ROLLUPS_TABLE, where, null);
+            mDb.delete(DB_SESSION_MAP_TABLE,
+                    COL_SESSION_START + "=" + Long.toString(start), null);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        mCache.invalidate(start);
+        return nDeleted > 0;
+    }
+
+    /**
+     * Return a Cursor over the HR items in the database having the given the
+     * start date.
+     *
+     * @param date
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrDateDataForStartDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.rawQuery(sqlForStartDate(HR_DATE_COLUMNS, date), null);
+    }
+
+    /**
+     * Return a Cursor over the HR and RR items in the database having the given
+     * the start date
+     *
+     * @param date
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrDateDataForStartDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.rawQuery(sqlForStartDate(HR_RR_DATE_COLUMNS, date), null);
+    }
+
+    /**
+     * Gets the end date of the session with the given start date.
+     *
+     * @param start The start date.
+     * @return The end date or INVALID_DATE if there is no such session.
+     */
+    public long getSessionEndDate(long start) {
+        if (mDb == null) {
+            return INVALID_DATE;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mDb.query(DB_SESSIONS_TABLE, new String[]{"MAX("
+                            + COL_END_DATE + ")"},
+                    COL_START_DATE + " IN " + sqlRecordings(start), null,
+                    null, null, null);
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+            return INVALID_DATE;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /**
+     * Return a Cursor over the rollups at the given level for the session
+     * with the given start date, in bucket order. The buckets of the
+     * recordings in the session are combined.
+     *
+     * @param start The start date.
+     * @param level The level, an index into ROLLUP_INTERVALS.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllRollupsForStartDate(long start, int level) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.rawQuery(sqlRollupsForStartDate(start, level), null);
+    }
+
+    /**
+     * Gets the start dates of the recordings in the session with the given
+     * start date, in order.
+     *
+     * @param start The start date.
+     * @return The start dates, which are empty if there is no such session.
+     */
+    public long[] getRecordingStartDates(long start) {
+        if (mDb == null) {
+            return new long[0];
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mDb.query(DB_SESSION_MAP_TABLE,
+                    new String[]{COL_START_DATE}, COL_SESSION_START + "="
+                            + Long.toString(start), null, null, null,
+                    COL_START_DATE + " ASC");
+            long[] startDates = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                startDates[i] = cursor.getLong(0);
+            }
+            return startDates;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /**
+     * Gets the recordings that have been merged into sessions with other
+     * start dates, for saving with the data.
+     *
+     * @return The start dates of their sessions by the start dates of the
+     * recordings, in order, which is empty if there are none or the database
+     * is not open.
+     */
+    public Map<Long, Long> getMergedRecordings() {
+        Map<Long, Long> map = new LinkedHashMap<Long, Long>();
+        if (mDb == null) {
+            return map;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mDb.query(DB_SESSION_MAP_TABLE, new String[]{
+                            COL_START_DATE, COL_SESSION_START},
+                    COL_SESSION_START + "<>" + COL_START_DATE, null, null,
+                    null, COL_START_DATE + " ASC");
+            while (cursor.moveToNext()) {
+                map.put(cursor.getLong(0), cursor.getLong(1));
+            }
+            return map;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /**
+     * Merges sessions into the one with the earliest start date. Only the
+     * session map is changed, so the time depends on the number of
+     * recordings and not on the number of rows.
+     *
+     * @param starts The start dates of the sessions.
+     * @return The start date of the merged session or INVALID_DATE if the
+     * database is not open or there are fewer than 2 sessions.
+     */
+    public synchronized long mergeSessions(long[] starts) {
+        if (mDb == null || starts == null || starts.length < 2) {
+            return INVALID_DATE;
+        }
+        long merged = starts[0];
+        StringBuilder sb = new StringBuilder();
+        for (long start : starts) {
+            if (start < merged) {
+                merged = start;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(start);
+        }
+        ContentValues values = new ContentValues();
+        values.put(COL_SESSION_START, merged);
+        mDb.update(DB_SESSION_MAP_TABLE, values, COL_SESSION_START + " IN ("
+                + sb + ")", null);
+        for (long start : starts) {
+            mCache.invalidate(start);
+        }
+        return merged;
+    }
+
+    /**
+     * Splits a session into its recordings, each of which becomes a session
+     * with its own start date. Only the session map is changed.
+     *
+     * @param start The start date of the session.
+     * @return The number of sessions it was split into, 1 if it only has one
+     * recording, or 0 if there is no such session.
+     */
+    public synchronized int splitSession(long start) {
+        long[] startDates = getRecordingStartDates(start);
+        if (startDates.length > 1) {
+            mDb.execSQL("UPDATE " + DB_SESSION_MAP_TABLE + " SET "
+                    + COL_SESSION_START + " = " + COL_START_DATE + " WHERE "
+                    + COL_SESSION_START + "=" + Long.toString(start));
+            mCache.invalidate(start);
+            for (long startDate : startDates) {
+                mCache.invalidate(startDate);
+            }
+        }
+        return startDates.length;
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Get data for start date through end date (ForDate) /////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Return a Cursor over the HR items in the database for a given start and
+     * end times.
+     *
+     * @param start
+     * @param end
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrDateDataForDates(long start, long end) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.rawQuery(sqlForDates(HR_DATE_COLUMNS, start, end), null);
+    }
+
+    /**
+     * Return a Cursor over the HR and RR items in the database for a given
+     * start and end times.
+     *
+     * @param start
+     * @param end
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrDateDataForDates(long start, long end) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.rawQuery(sqlForDates(HR_RR_DATE_COLUMNS, start, end),
+                null);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Get data for start date and later (StartingAtDate) /////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Return a Cursor over the list of all items in the database for a given
+     * time and later.
+     *
+     * @param date
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllDataStartingAtDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.rawQuery(sqlStartingAtDate(ALL_COLUMNS, date), null);
+    }
+
+    /**
+     * Return a Cursor over the HR and RR items in the database for a given time
+     * and later.
+     *
+     * @param date
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrDateDataStartingAtDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.rawQuery(sqlStartingAtDate(HR_RR_DATE_COLUMNS, date),
+                null);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Read data in chunks (DataChunkReader) //////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns a DataChunkReader over all the items in the database. The
+     * start date of each row is that of its recording, so the recordings are
+     * kept apart when the rows are saved. The merges are saved separately
+     * from getMergedRecordings().
+     *
+     * @param chunkSize The maximum number of rows in a chunk.
+     * @param signal    The signal for cancelling the reads or null.
+     * @return The reader or null if the database is not open.
+     */
+    public DataChunkReader readAllData(int chunkSize,
+                                       CancellationSignal signal) {
+        if (mDb == null) {
+            return null;
+        }
+        return new DataChunkReader(mDb, new String[]{null}, true, chunkSize,
+                signal);
+    }
+
+    /**
+     * Returns a DataChunkReader over the HR items in the database having the
+     * given start date. The rows come from the SessionCache if the session
+     * is cached.
+     *
+     * @param date      The start date.
+     * @param chunkSize The maximum number of rows in a chunk.
+     * @param signal    The signal for cancelling the reads or null.
+     * @return The reader or null if the database is not open.
+     */
+    public DataChunkReader readHrDateDataForStartDate(
+            long date, int chunkSize, CancellationSignal signal) {
+        if (mDb == null) {
+            return null;
+        }
+        SessionCache.Entry entry = mCache.get(mDbPath, date);
+        if (entry != null) {
+            return new DataChunkReader(entry, false, chunkSize);
+        }
+        return new DataChunkReader(mDb, sqlRecordingSelections(date), false,
+                chunkSize, signal);
+    }
+
+    /**
+     * Returns a DataChunkReader over the HR and RR items in the database
+     * having the given start date. The rows come from the SessionCache if
+     * the session is cached, and otherwise it is added when all the rows
+     * have been read.
+     *
+     * @param date      The start date.
+     * @param chunkSize The maximum number of rows in a chunk.
+     * @param signal    The signal for cancelling the reads or null.
+     * @return The reader or null if the database is not open.
+     */
+    public DataChunkReader readHrRrDateDataForStartDate(
+            long date, int chunkSize, CancellationSignal signal) {
+        if (mDb == null) {
+            return null;
+        }
+        SessionCache.Entry entry = mCache.get(mDbPath, date);
+        if (entry != null) {
+            return new DataChunkReader(entry, true, chunkSize);
+        }
+        return new DataChunkReader(mDb, sqlRecordingSelections(date),
+                chunkSize, signal, mCache,
+                mCache.startRecording(mDbPath, date));
+    }
+
+    /**
+     * Returns a DataChunkReader over the HR and RR items in the database for
+     * a given time and later.
+     *
+     * @param date      The date.
+     * @param chunkSize The maximum number of rows in a chunk.
+     * @param signal    The signal for cancelling the reads or null.
+     * @return The reader or null if the database is not open.
+     */
+    public DataChunkReader readHrRrDateDataStartingAtDate(
+            long date, int chunkSize, CancellationSignal signal) {
+        if (mDb == null) {
+            return null;
+        }
+        return new DataChunkReader(mDb, new String[]{COL_DATE + ">="
+                + Long.toString(date)}, true, chunkSize, signal);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Query SQL and plans ////////////////////////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the SQL for the sessions, newest first. The summary values of the
+     * recordings in each session are combined. The R-R differences between
+     * recordings are not counted, since there is a gap between them.
+     *
+     * @return The SQL.
+     */
+    private static String sqlSessionStartEnd() {
+        StringBuilder sb = new StringBuilder("SELECT " + SQL_SESSION_START
+                + " AS " + COL_START_DATE);
+        for (int i = 1; i < SESSION_COLUMNS.length; i++) {
+            appendAggregate(sb, "s.", SESSION_COLUMNS[i]);
+        }
+        sb.append(" FROM ").append(SQL_SESSIONS_JOIN_MAP)
+                .append(" GROUP BY 1 ORDER BY 1 DESC");
+        return sb.toString();
+    }
+
+    /**
+     * Gets the SQL for the rollups at the given level for the session with
+     * the given start date, with the buckets of its recordings combined.
+     *
+     * @param date  The start date.
+     * @param level The level.
+     * @return The SQL.
+     */
+    private static String sqlRollupsForStartDate(long date, int level) {
+        StringBuilder sb = new StringBuilder("SELECT " + COL_BUCKET);
+        for (int i = 1; i < ROLLUP_COLUMNS.length; i++) {
+            appendAggregate(sb, "", ROLLUP_COLUMNS[i]);
+        }
+        sb.append(" FROM ").append(DB_ROLLUPS_TABLE).append(" WHERE ")
+                .append(COL_LEVEL).append('=').append(level).append(" AND ")
+                .append(COL_START_DATE).append(" IN ")
+                .append(sqlRecordings(date)).append(" GROUP BY ")
+                .append(COL_BUCKET).append(" ORDER BY ").append(COL_BUCKET)
+                .append(" ASC");
+        return sb.toString();
+    }
+
+    /**
+     * Appends a summary column combined over the rows of a group, with the
+     * column name as its name.
+     *
+     * @param sb     The SQL.
+     * @param prefix The table alias and dot or empty.
+     * @param column The column, which is a minimum, a maximum, an end date,
+     *               or a total.
+     */
+    private static void appendAggregate(StringBuilder sb, String prefix,
+                                        String column) {
+        String function = "SUM";
+        if (column.equals(COL_HR_MIN) || column.equals(COL_RR_MIN)) {
+            function = "MIN";
+        } else if (column.equals(COL_HR_MAX) || column.equals(COL_RR_MAX)
+                || column.equals(COL_END_DATE)) {
+            function = "MAX";
+        }
+        sb.append(", ").append(function).append('(').append(prefix)
+                .append(column).append(") AS ").append(column);
+    }
+
+    /**
+     * Gets the SQL for the start dates of the recordings in the session with
+     * the given start date, as the right side of an IN.
+     *
+     * @param date The start date.
+     * @return The SQL.
+     */
+    private static String sqlRecordings(long date) {
+        return "(SELECT " + COL_START_DATE + " FROM " + DB_SESSION_MAP_TABLE
+                + " WHERE " + COL_SESSION_START + "=" + Long.toString(date)
+                + ")";
+    }
+
+    /**
+     * Gets a selection of the data table for each recording in the session
+     * with the given start date, in order. Reading them one after the other
+     * keeps each query on the start date index without a sort. The session
+     * itself is used if it is not in the session map.
+     *
+     * @param date The start date.
+     * @return The selections.
+     */
+    private String[] sqlRecordingSelections(long date) {
+        long[] startDates = getRecordingStartDates(date);
+        if (startDates.length == 0) {
+            startDates = new long[]{date};
+        }
+        String[] selections = new String[startDates.length];
+        for (int i = 0; i < startDates.length; i++) {
+            selections[i] = COL_START_DATE + "="
+                    + Long.toString(startDates[i]);
+        }
+        return selections;
+    }
+
+    /**
+     * Gets the SQL for the given columns having the given session start
+     * date.
+     *
+     * @param columns The columns.
+     * @param date    The start date.
+     * @return The SQL.
+     */
+    private static String sqlForStartDate(String[] columns, long date) {
+        return SQLiteQueryBuilder.buildQueryString(false, DB_DATA_TABLE,
+                columns, COL_START_DATE + " IN " + sqlRecordings(date), null,
+                null, SORT_ASCENDING, null);
+    }
+
+    /**
+     * Gets the SQL for the given columns between the given dates.
+     *
+     * @param columns The columns.
+     * @param start   The start date.
+     * @param end     The end date.
+     * @return The SQL.
+     */
+    private static String sqlForDates(String[] columns, long start,
+                                      long end) {
+        return SQLiteQueryBuilder.buildQueryString(false, DB_DATA_TABLE,
+                columns, COL_DATE + ">=" + Long.toString(start) + " AND "
+                        + COL_DATE + "<=" + Long.toString(end), null, null,
+                SORT_ASCENDING, null);
+    }
+
+    /**
+     * Gets the SQL for the given columns at the given date and later.
+     *
+     * @param columns The columns.
+     * @param date    The date.
+     * @return The SQL.
+     */
+    private static String sqlStartingAtDate(String[] columns, long date) {
+        return SQLiteQueryBuilder.buildQueryString(false, DB_DATA_TABLE,
+                columns, COL_DATE + ">=" + Long.toString(date), null, null,
+                SORT_ASCENDING, null);
+    }
+
+    /**
+     * Runs EXPLAIN QUERY PLAN on each of the fetchAll queries that select
+     * part of the data and logs an error for any that would scan the data
+     * table instead of using an index. This is run when the database is
+     * opened in debug builds.
+     *
+     * @return The number of queries that would scan the table or -1 if the
+     * database is not open.
+     */
+    public int checkQueryPlans() {
+        if (mDb == null) {
+            return -1;
+        }
+        String[] queries = {
+                sqlSessionStartEnd(),
+                sqlForStartDate(HR_DATE_COLUMNS, 0),
+                sqlForStartDate(HR_RR_DATE_COLUMNS, 0),
+                sqlForDates(HR_DATE_COLUMNS, 0, 0),
+                sqlForDates(HR_RR_DATE_COLUMNS, 0, 0),
+                sqlStartingAtDate(ALL_COLUMNS, 0),
+                sqlStartingAtDate(HR_RR_DATE_COLUMNS, 0),
+                DataChunkReader.sqlForCheck(null),
+                DataChunkReader.sqlForCheck(COL_START_DATE + "=0"),
+                DataChunkReader.sqlForCheck(COL_DATE + ">=0"),
+        };
+        int nScans = 0;
+        String plan;
+        for (String sql : queries) {
+            plan = explainQueryPlan(sql);
+            if (isTableScan(plan)) {
+                Log.e(TAG, "checkQueryPlans: Query scans " + DB_DATA_TABLE
+                        + ": " + sql + "\n" + plan);
+                nScans++;
+            }
+        }
+        Log.d(TAG, "checkQueryPlans: " + queries.length + " queries, "
+                + nScans + " table scans");
+        return nScans;
+    }
+
+    /**
+     * Gets the EXPLAIN QUERY PLAN details for the given SQL, one line per
+     * step.
+     *
+     * @param sql The SQL.
+     * @return The plan.
+     */
+    private String explainQueryPlan(String sql) {
+        StringBuilder sb = new StringBuilder();
+        Cursor cursor = null;
+        try {
+            cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+            int indexDetail = cursor.getColumnIndex("detail");
+            if (indexDetail < 0) {
+                indexDetail = cursor.getColumnCount() - 1;
+            }
+            while (cursor.moveToNext()) {
+                sb.append(cursor.getString(indexDetail)).append('\n');
+            }
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Determines if a query plan reads every row of the data table rather
+     * than using an index. The wording is "SCAN TABLE data" in older
+     * versions of SQLite and "SCAN data" in newer ones. A scan of a covering
+     * index is not counted.
+     *
+     * @param plan The plan from explainQueryPlan.
+     * @return If the data table is scanned.
+     */
+    static boolean isTableScan(String plan) {
+        for (String line : plan.split("\n")) {
+            String detail = line.trim();
+            if (detail.startsWith("SCAN TABLE ")) {
+                detail = detail.substring("SCAN TABLE ".length());
+            } else if (detail.startsWith("SCAN ")) {
+                detail = detail.substring("SCAN ".length());
+            } else {
+                continue;
+            }
+            if (!detail.equals(DB_DATA_TABLE)
+                    && !detail.startsWith(DB_DATA_TABLE + " ")) {
+                continue;
+            }
+            if (!detail.contains(" USING ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // R-R packing ////////////////////////////////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Packs R-R values into a BLOB of little-endian uint16 values.
+     *
+     * @param rr    The R-R values.
+     * @param count The number of values to use.
+     * @return The BLOB.
+     */
+    public static byte[] packRr(int[] rr, int count) {
+        byte[] blob = new byte[2 * count];
+        int val;
+        for (int i = 0, j = 0; i < count; i++) {
+            val = rr[i];
+            blob[j++] = (byte) val;
+            blob[j++] = (byte) (val >> 8);
+        }
+        return blob;
+    }
+
+    /**
+     * Packs R-R values given as a space-separated String, as they were
+     * stored before database version 2 and as they are in saved files.
+     * Tokens that are not integers are skipped.
+     *
+     * @param rr The R-R String.
+     * @return The BLOB or null if rr is null or INVALID_STRING.
+     */
+    public static byte[] packRr(String rr) {
+        if (rr == null) {
+            return null;
+        }
+        rr = rr.trim();
+        if (rr.equals(INVALID_STRING)) {
+            return null;
+        }
+        int len = rr.length();
+        int[] values = new int[len / 2 + 1];
+        int count = 0;
+        int i = 0, val;
+        boolean valid;
+        char c;
+        while (i < len) {
+            // Skip whitespace
+            while (i < len && Character.isWhitespace(rr.charAt(i))) {
+                i++;
+            }
+            if (i == len) {
+                break;
+            }
+            // Parse the token
+            val = 0;
+            valid = true;
+            while (i < len && !Character.isWhitespace(c = rr.charAt(i))) {
+                if (c < '0' || c > '9') {
+                    valid = false;
+                } else if (valid) {
+                    val = 10 * val + (c - '0');
+                    if (val > 0xFFFF) {
+                        valid = false;
+                    }
+                }
+                i++;
+            }
+            if (valid) {
+                values[count++] = val;
+            }
+        }
+        return packRr(values, count);
+    }
+
+    /**
+     * Packs R-R artifact flags into a mask.
+     *
+     * @param artifacts The flags.
+     * @param count     The number of flags to use.
+     * @return The mask, or null if no flags are set.
+     */
+    public static byte[] packRrMask(boolean[] artifacts, int count) {
+        byte[] mask = null;
+        for (int i = 0; i < count; i++) {
+            if (artifacts[i]) {
+                if (mask == null) {
+                    mask = new byte[(count + 7) / 8];
+                }
+                mask[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Gets whether an R-R value is marked as an artifact in a mask.
+     *
+     * @param mask  The mask or null.
+     * @param index The index of the R-R value.
+     * @return If it is an artifact.
+     */
+    public static boolean isRrArtifact(byte[] mask, int index) {
+        return mask != null && (index >> 3) < mask.length
+                && (mask[index >> 3] & (1 << (index & 7))) != 0;
+    }
+
+    /**
+     * Gets the number of R-R values in a packed BLOB.
+     *
+     * @param blob The BLOB.
+     * @return The number of values, or -1 if the blob is null.
+     */
+    public static int getRrCount(byte[] blob) {
+        return blob == null ? -1 : blob.length / 2;
+    }
+
+    /**
+     * Unpacks R-R values from a packed BLOB.
+     *
+     * @param blob The BLOB.
+     * @param dest Where to put the values. Must hold at least
+     *             getRrCount(blob) values.
+     * @return The number of values, or -1 if the blob is null.
+     */
+    public static int unpackRr(byte[] blob, int[] dest) {
+        if (blob == null) {
+            return -1;
+        }
+        int count = blob.length / 2;
+        for (int i = 0, j = 0; i < count; i++, j += 2) {
+            dest[i] = (blob[j] & 0xFF) | ((blob[j + 1] & 0xFF) << 8);
+        }
+        return count;
+    }
+
+    /**
+     * Converts a packed BLOB to the space-separated String used in saved
+     * files.
+     *
+     * @param blob The BLOB.
+     * @return The String, or INVALID_STRING if the blob is null.
+     */
+    public static String unpackRrToString(byte[] blob) {
+        if (blob == null) {
+            return INVALID_STRING;
+        }
+        int count = blob.length / 2;
+        StringBuilder sb = new StringBuilder(5 * count);
+        for (int i = 0, j = 0; i < count; i++, j += 2) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append((blob[j] & 0xFF) | ((blob[j + 1] & 0xFF) << 8));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the packed R-R BLOB from a Cursor.
+     *
+     * @param cursor The Cursor.
+     * @param index  The index of COL_RR.
+     * @return The BLOB, or null if the column is null.
+     */
+    public static byte[] getRrBlob(Cursor cursor, int index) {
+        if (cursor.isNull(index)) {
+            return null;
+        }
+        return cursor.getBlob(index);
+    }
+
+    /**
+     * A SQLiteOpenHelper helper to help manage database creation and version
+     * management. Extends a custom version that writes to the SD Card instead
+     * of using the Context. There is one for each database file, shared by
+     * the adapters using it.
+     */
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        private final String mPath;
+        /**
+         * The number of adapters using it. Guarded by BCMDbAdapter.class.
+         */
+        private int mRefCount;
+
+        private DatabaseHelper(Context context, String path) {
+            super(context, path, null, DB_VERSION);
+            mPath = path;
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // Called for the write connection before it is created or
+            // upgraded
+            db.execSQL("PRAGMA synchronous=" + DB_SYNCHRONOUS);
+            // Returns a row, so it cannot use execSQL, and the statement
+            // must be stepped to take effect. This only maps the file for
+            // the write connection. The pooled read connections used with
+            // WAL are opened by the framework without a hook for pragmas,
+            // so plots and exports read without mmap.
+            try {
+                long mmapSize = DatabaseUtils.longForQuery(db,
+                        "PRAGMA mmap_size=" + DB_MMAP_SIZE, null);
+                Log.d(TAG, "DatabaseHelper: mmap_size=" + mmapSize);
+            } catch (SQLiteDoneException ex) {
+                // No row from versions of SQLite without mmap
+                Log.d(TAG, "DatabaseHelper: mmap_size is not supported");
+            }
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            createDataTable(db);
+            db.execSQL(DB_CREATE_SESSIONS_TABLE);
+            db.execSQL(DB_CREATE_ROLLUPS_TABLE);
+            db.execSQL(DB_CREATE_RESTORE_TABLE);
+            createSessionMapTable(db);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                    + newVersion);
+            // This is called inside a transaction. Each step converts the
+            // data in place, so nothing is lost.
+            if (oldVersion < 2) {
+                upgradeRrToBlob(db);
+            }
+            if (oldVersion < 3) {
+                createDataIndexes(db);
+            }
+            if (oldVersion < 4) {
+                db.execSQL(DB_CREATE_SESSIONS_TABLE);
+                rebuildSessions(db);
+            }
+            if (oldVersion < 5) {
+                // Filled below
+                db.execSQL(DB_CREATE_ROLLUPS_TABLE);
+            }
+            if (oldVersion < 6) {
+                db.execSQL(DB_CREATE_RESTORE_TABLE);
+            }
+            if (oldVersion < 7 && oldVersion >= 4) {
+                // The table was made without the HRV columns
+                for (String column : SESSION_HRV_COLUMNS) {
+                    db.execSQL("ALTER TABLE " + DB_SESSIONS_TABLE
+                            + " ADD COLUMN " + column
+                            + " integer not null default 0");
+                }
+            }
+            if (oldVersion < 8) {
+                if (oldVersion >= 2) {
+                    // The table was made without the mask column
+                    db.execSQL("ALTER TABLE " + DB_DATA_TABLE
+                            + " ADD COLUMN " + COL_RR_MASK + " blob");
+                }
+                markRrArtifacts(db,
+                        RrFilter.forName(RrFilter.NAME_MEDIAN));
+                rebuildRollupsAndHrv(db);
+            }
+            if (oldVersion < 9) {
+                // Each recording starts as a session of its own
+                createSessionMapTable(db);
+                syncSessionMap(db);
+            }
+        }
+
+        /**
+         * Converts the R-R column from space-separated text to a packed
+         * BLOB by copying the rows into a new table.
+         *
+         * @param db The database.
+         */
+        private void upgradeRrToBlob(SQLiteDatabase db) {
+            final String oldTable = DB_DATA_TABLE + "_v1";
+            db.execSQL("ALTER TABLE " + DB_DATA_TABLE + " RENAME TO "
+                    + oldTable);
+            db.execSQL(DB_CREATE_DATA_TABLE);
+            SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                    + DB_DATA_TABLE + " (" + COL_ID + ", " + COL_DATE + ", "
+                    + COL_START_DATE + ", " + COL_HR + ", " + COL_RR
+                    + ") VALUES (?, ?, ?, ?, ?)");
+            Cursor cursor = null;
+            int nRows = 0;
+            try {
+                cursor = db.query(oldTable, new String[]{COL_ID, COL_DATE,
+                                COL_START_DATE, COL_HR, COL_RR}, null, null,
+                        null, null, null);
+                byte[] rr;
+                while (cursor.moveToNext()) {
+                    insert.bindLong(1, cursor.getLong(0));
+                    insert.bindLong(2, cursor.getLong(1));
+                    insert.bindLong(3, cursor.getLong(2));
+                    insert.bindLong(4, cursor.getLong(3));
+                    rr = packRr(cursor.getString(4));
+                    if (rr == null) {
+                        insert.bindNull(5);
+                    } else {
+                        insert.bindBlob(5, rr);
+                    }
+                    insert.executeInsert();
+                    nRows++;
+                }
+            } finally {
+                if (cursor != null) cursor.close();
+                insert.close();
+            }
+            db.execSQL("DROP TABLE " + oldTable);
+            Log.d(TAG, "upgradeRrToBlob: converted " + nRows + " rows");
         }
     }
 
@@ -0,0 +1,362 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a database file written by BinaryBackupWriter, which describes the
+ * format. Each block is read from a channel into a ByteBuffer, its CRC
+ * is checked, and the rows are decoded from the buffer. A block with a bad
+ * CRC is counted as an error and skipped. A file without an end marker is
+ * counted as an error, but the rows in its complete blocks are returned.
+ * The session map after the end marker is read when the end marker is
+ * reached. A file without one has no merged recordings.
+ * <p>
+ * The line numbers are row numbers. getOffset() is the offset of the block
+ * holding the next row, and seek() skips the rows in that block before the
+ * given line number. The offsets are in the uncompressed data if the file
+ * is compressed.
+ * <p>
+ * An instance is not thread safe but may be used on any one thread.
+ */
+public class BinaryBackupReader implements RestoreReader, IConstants {
+    /**
+     * A block longer than this is taken to be corrupt.
+     */
+    private static final int MAX_BLOCK_LENGTH = 64 * 1024 * 1024;
+
+    private final ReadableByteChannel mChannel;
+    private final ByteBuffer mHeader;
+    private ByteBuffer mBody;
+    private final CRC32 mCrc = new CRC32();
+    private boolean mEnd;
+    /**
+     * The number of bytes read from the channel.
+     */
+    private long mPosition;
+    /**
+     * The offset of the current block.
+     */
+    private long mBlockOffset;
+    /**
+     * The offset of the block after the current one.
+     */
+    private long mNextBlockOffset;
+    private int mBlockRows;
+    private int mBlockRow;
+    private int mLineNumber;
+    private int mErrors;
+    private final Map<Long, Long> mSessionMap =
+            new LinkedHashMap<Long, Long>();
+    /**
+     * The line number to skip to after a seek.
+     */
+    private int mSkipTo;
+
+    // The current row
+    private long mDate;
+    private long mStartDate;
+    private int mHr;
+    private byte[] mRr;
+
+    /**
+     * Constructor. Reads and checks the file header.
+     *
+     * @param channel The channel for the file, as from
+     *                ExportCodec.openInput(). It is closed by close().
+     * @throws IOException If there is a read error or the file is not a
+     *                     binary backup of a known version.
+     */
+    public BinaryBackupReader(ReadableByteChannel channel)
+            throws IOException {
+        mChannel = channel;
+        mHeader = ByteBuffer.allocate(BinaryBackupWriter.BODY_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mBody = ByteBuffer.allocate(BinaryBackupWriter.BLOCK_SIZE + 1024)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (!read(mHeader, 8)) {
+                throw new IOException("Not a binary backup");
+            }
+            for (byte b : BinaryBackupWriter.MAGIC) {
+                if (mHeader.get() != b) {
+                    throw new IOException("Not a binary backup");
+                }
+            }
+            int version = mHeader.getInt();
+            if (version != BinaryBackupWriter.VERSION) {
+                throw new IOException("Unsupported binary backup version "
+                        + version);
+            }
+        } catch (IOException ex) {
+            mChannel.close();
+            throw ex;
+        }
+        mBlockOffset = mNextBlockOffset = mPosition;
+    }
+
+    @Override
+    public void seek(long offset, int lineNumber, int errors)
+            throws IOException {
+        ExportCodec.seek(mChannel, mPosition, offset, mBody);
+        mPosition = offset;
+        mBlockOffset = mNextBlockOffset = offset;
+        mLineNumber = mSkipTo = lineNumber;
+        mErrors = errors;
+    }
+
+    @Override
+    public long getOffset() {
+        return mBlockRow < mBlockRows ? mBlockOffset : mNextBlockOffset;
+    }
+
+    @Override
+    public int getLineNumber() {
+        return mLineNumber;
+    }
+
+    @Override
+    public int getErrors() {
+        return mErrors;
+    }
+
+    @Override
+    public long getDate() {
+        return mDate;
+    }
+
+    @Override
+    public long getStartDate() {
+        return mStartDate;
+    }
+
+    @Override
+    public int getHr() {
+        return mHr;
+    }
+
+    @Override
+    public byte[] getRr() {
+        return mRr;
+    }
+
+    @Override
+    public Map<Long, Long> getSessionMap() {
+        return mSessionMap;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (mBlockRow == mBlockRows) {
+            if (!readBlock()) {
+                return false;
+            }
+        }
+        decodeRow();
+        mBlockRow++;
+        mLineNumber++;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    /**
+     * Reads the next block and checks it. Skips the rows before mSkipTo.
+     *
+     * @return False if there are no more blocks.
+     */
+    private boolean readBlock() throws IOException {
+        if (mEnd) {
+            return false;
+        }
+        mBlockOffset = mNextBlockOffset;
+        mBlockRows = mBlockRow = 0;
+        mHeader.clear();
+        if (!read(mHeader, BinaryBackupWriter.BLOCK_HEADER_SIZE)) {
+            return truncated();
+        }
+        int length = mHeader.getInt();
+        int crc = mHeader.getInt();
+        if (length == 0) {
+            // End marker. The CRC field is the start of the row count.
+            mHeader.clear();
+            mEnd = true;
+            if (!read(mHeader, 4)) {
+                return truncated();
+            }
+            long rows = ((long) mHeader.getInt() << 32) | (crc & 0xFFFFFFFFL);
+            if (rows != mLineNumber) {
+                Log.d(TAG, "BinaryBackupReader: Read " + mLineNumber
+                        + " rows, expected " + rows);
+            }
+            readSessionMap();
+            return false;
+        }
+        if (length < BinaryBackupWriter.BODY_HEADER_SIZE
+                || length > MAX_BLOCK_LENGTH) {
+            mErrors++;
+            mEnd = true;
+            Log.d(TAG, "BinaryBackupReader: Bad block length " + length
+                    + " at " + mBlockOffset);
+            return false;
+        }
+        mNextBlockOffset = mPosition + length;
+        if (mBody.capacity() < length) {
+            mBody = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mBody.clear();
+        if (!read(mBody, length)) {
+            return truncated();
+        }
+        mCrc.reset();
+        mCrc.update(mBody.array(), mBody.arrayOffset(), length);
+        if ((int) mCrc.getValue() != crc) {
+            mErrors++;
+            Log.d(TAG, "BinaryBackupReader: Bad CRC in block at "
+                    + mBlockOffset);
+            // Skip it
+            return true;
+        }
+        int nRows = mBody.getInt();
+        long firstRow = mBody.getLong();
+        mBlockRows = nRows;
+        mDate = 0;
+        mStartDate = 0;
+        // Keep the line numbers right if a block was skipped
+        mLineNumber = (int) firstRow;
+        // Skip rows already read before a seek
+        while (mBlockRow < mBlockRows && mLineNumber < mSkipTo) {
+            decodeRow();
+            mBlockRow++;
+            mLineNumber++;
+        }
+        mSkipTo = 0;
+        return true;
+    }
+
+    /**
+     * Reads the session map after the end marker into mSessionMap, if there
+     * is one. A map that is truncated or has a bad CRC is counted as an
+     * error and not used.
+     */
+    private void readSessionMap() throws IOException {
+        mHeader.clear();
+        // Files from before the map was added end here
+        if (!read(mHeader, 8)) {
+            return;
+        }
+        int count = mHeader.getInt();
+        int crc = mHeader.getInt();
+        if (count < 0 || count > MAX_BLOCK_LENGTH / 16) {
+            mErrors++;
+            Log.d(TAG, "BinaryBackupReader: Bad session map size " + count);
+            return;
+        }
+        int length = 16 * count;
+        if (mBody.capacity() < length) {
+            mBody = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mBody.clear();
+        if (!read(mBody, length)) {
+            mErrors++;
+            Log.d(TAG, "BinaryBackupReader: Session map is truncated");
+            return;
+        }
+        mCrc.reset();
+        mCrc.update(mBody.array(), mBody.arrayOffset(), length);
+        if ((int) mCrc.getValue() != crc) {
+            mErrors++;
+            Log.d(TAG, "BinaryBackupReader: Bad CRC in session map");
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            mSessionMap.put(mBody.getLong(), mBody.getLong());
+        }
+    }
+
+    /**
+     * Counts a truncated file as an error.
+     *
+     * @return False.
+     */
+    private boolean truncated() {
+        mErrors++;
+        mEnd = true;
+        Log.d(TAG, "BinaryBackupReader: File is truncated after "
+                + mLineNumber + " rows");
+        return false;
+    }
+
+    /**
+     * Decodes the next row from the body.
+     */
+    private void decodeRow() {
+        mDate += getZigzag();
+        mStartDate += getZigzag();
+        int hr = mBody.get() & 0xFF;
+        mHr = hr == BinaryBackupWriter.HR_ESCAPE ? (int) getZigzag() : hr;
+        int nRr = (int) getVarint() - 1;
+        if (nRr < 0) {
+            mRr = null;
+            return;
+        }
+        mRr = new byte[2 * nRr];
+        int val = 0;
+        for (int i = 0, j = 0; i < nRr; i++) {
+            if (i == 0) {
+                val = (int) getVarint();
+            } else {
+                val += (int) getZigzag();
+            }
+            mRr[j++] = (byte) val;
+            mRr[j++] = (byte) (val >> 8);
+        }
+    }
+
+    private long getVarint() {
+        long val = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = mBody.get();
+            val |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return val;
+    }
+
+    private long getZigzag() {
+        long val = getVarint();
+        return (val >>> 1) ^ -(val & 1);
+    }
+
+    /**
+     * Reads exactly n bytes into a buffer and flips it.
+     *
+     * @return False if the end of the file came first.
+     */
+    private boolean read(ByteBuffer buffer, int n) throws IOException {
+        buffer.limit(buffer.position() + n);
+        int nRead;
+        while (buffer.hasRemaining()) {
+            nRead = mChannel.read(buffer);
+            if (nRead < 0) {
+                return false;
+            }
+            mPosition += nRead;
+        }
+        buffer.flip();
+        return true;
+    }
+
+}
@@ -0,0 +1,339 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the database in a compact binary format, which is smaller and
+ * faster to restore than the CSV format. It is read by BinaryBackupReader.
+ * <p>
+ * The file is little-endian and has a header, blocks of rows, an end
+ * marker, and an optional session map:
+ * <pre>
+ * header: "BCMB" (4 bytes), version (int32)
+ * block:  body length (int32), CRC32 of the body (int32), body
+ * body:   number of rows (int32), index of the first row (int64), rows
+ * end:    0 (int32), total number of rows (int64)
+ * map:    number of entries (int32), CRC32 of the entries (int32), entries
+ * entry:  recording start date (int64), session start date (int64)
+ * </pre>
+ * The map gives the sessions of the merged recordings. It comes after the
+ * end marker so older versions, which stop there, still read the file.
+ * Each row is:
+ * <pre>
+ * date       zigzag varint, difference from the previous date
+ * start date zigzag varint, difference from the previous start date
+ * HR         one byte 0-254, or 0xFF and a zigzag varint
+ * R-R count  varint, the number of values + 1, or 0 for null
+ * R-R values varint for the first, then zigzag varint differences
+ * </pre>
+ * The differences are from the previous row in the same block, with 0 used
+ * for the first row, so each block can be decoded by itself. A block with a
+ * bad CRC can be skipped, and a restore can be resumed at a block. The file
+ * may be compressed with an ExportCodec.
+ * <p>
+ * An instance is not thread safe but may be used on any one thread.
+ */
+public class BinaryBackupWriter implements IConstants {
+    /**
+     * The bytes at the start of the file.
+     */
+    static final byte[] MAGIC = {'B', 'C', 'M', 'B'};
+    /**
+     * The version of the format.
+     */
+    static final int VERSION = 1;
+    /**
+     * The size of the block header, the body length and CRC.
+     */
+    static final int BLOCK_HEADER_SIZE = 8;
+    /**
+     * The size of the start of the body before the rows.
+     */
+    static final int BODY_HEADER_SIZE = 12;
+    /**
+     * A block is written when its body reaches this size.
+     */
+    static final int BLOCK_SIZE = 32 * 1024;
+    /**
+     * Escape for an HR that does not fit in one byte.
+     */
+    static final int HR_ESCAPE = 0xFF;
+    /**
+     * Number of rows between calls to the progress listener.
+     */
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final FileOutputStream mStream;
+    private final WritableByteChannel mChannel;
+    private final ByteBuffer mHeader;
+    private ByteBuffer mBody;
+    private final CRC32 mCrc = new CRC32();
+    private int mBlockRows;
+    private long mPrevDate;
+    private long mPrevStartDate;
+    private boolean mComplete;
+    private Map<Long, Long> mSessionMap;
+    private ExportWriter.ProgressListener mProgressListener;
+    private long mRows;
+
+    /**
+     * Constructor for an uncompressed file. Creates or truncates the file
+     * and writes the header.
+     *
+     * @param file The file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public BinaryBackupWriter(File file) throws IOException {
+        this(file, ExportCodec.NONE);
+    }
+
+    /**
+     * Constructor. Creates or truncates the file and writes the header.
+     *
+     * @param file  The file. The codec suffix is not added.
+     * @param codec The codec for compressing the file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public BinaryBackupWriter(File file, ExportCodec codec)
+            throws IOException {
+        mStream = new FileOutputStream(file);
+        try {
+            mChannel = codec.openOutput(mStream);
+        } catch (IOException ex) {
+            mStream.close();
+            throw ex;
+        }
+        mHeader = ByteBuffer.allocate(BODY_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mBody = ByteBuffer.allocate(BLOCK_SIZE + 1024)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mHeader.put(MAGIC).putInt(VERSION);
+        mHeader.flip();
+        write(mHeader);
+        startBlock();
+    }
+
+    public void setProgressListener(ExportWriter.ProgressListener
+                                            listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Gets the number of rows written.
+     *
+     * @return The number of rows.
+     */
+    public long getRows() {
+        return mRows;
+    }
+
+    /**
+     * Writes all the rows from a reader.
+     *
+     * @param reader The reader, as from readAllData.
+     * @return False if stopped by the progress listener.
+     * @throws IOException If there is a write error.
+     */
+    public boolean writeDatabase(DataChunkReader reader) throws IOException {
+        DataChunk chunk;
+        long[] dates, startDates;
+        int[] hrs, rrStarts, rrValues;
+        boolean[] rrPresent;
+        while ((chunk = reader.next()) != null) {
+            dates = chunk.getDates();
+            startDates = chunk.getStartDates();
+            hrs = chunk.getHrs();
+            rrPresent = chunk.getRrPresent();
+            rrStarts = chunk.getRrStarts();
+            rrValues = chunk.getRrValues();
+            for (int i = 0, count = chunk.getCount(); i < count; i++) {
+                writeRow(dates[i], startDates[i], hrs[i], rrValues,
+                        rrStarts[i], rrPresent[i] ?
+                                rrStarts[i + 1] - rrStarts[i] : -1);
+                if (mProgressListener != null
+                        && mRows % PROGRESS_INTERVAL == 0
+                        && !mProgressListener.onProgress(mRows)) {
+                    return false;
+                }
+            }
+        }
+        mComplete = true;
+        return true;
+    }
+
+    /**
+     * Sets the session map to write after the end marker when the file is
+     * closed.
+     *
+     * @param sessionMap The start dates of the sessions by the start dates
+     *                   of the recordings, as from getMergedRecordings.
+     */
+    public void setSessionMap(Map<Long, Long> sessionMap) {
+        mSessionMap = sessionMap;
+    }
+
+    /**
+     * Writes one row.
+     *
+     * @param date      The date.
+     * @param startDate The start date.
+     * @param hr        The heart rate.
+     * @param rr        The R-R values.
+     * @param start     The index in rr of the first value for the row.
+     * @param count     The number of R-R values, or -1 if there are none.
+     * @throws IOException If there is a write error.
+     */
+    public void writeRow(long date, long startDate, int hr, int[] rr,
+                         int start, int count) throws IOException {
+        int nRr = Math.max(0, count);
+        // Enough for the largest possible row
+        int maxSize = 10 + 10 + 6 + 5 + 3 * nRr;
+        if (mBody.remaining() < maxSize) {
+            ByteBuffer body = ByteBuffer.allocate(mBody.position() + maxSize
+                    + 1024).order(ByteOrder.LITTLE_ENDIAN);
+            mBody.flip();
+            body.put(mBody);
+            mBody = body;
+        }
+        putZigzag(date - mPrevDate);
+        putZigzag(startDate - mPrevStartDate);
+        mPrevDate = date;
+        mPrevStartDate = startDate;
+        if (hr >= 0 && hr < HR_ESCAPE) {
+            mBody.put((byte) hr);
+        } else {
+            mBody.put((byte) HR_ESCAPE);
+            putZigzag(hr);
+        }
+        if (count < 0) {
+            putVarint(0);
+        } else {
+            putVarint(nRr + 1L);
+            int prev = 0, val;
+            for (int i = 0; i < nRr; i++) {
+                val = rr[start + i];
+                if (i == 0) {
+                    putVarint(val);
+                } else {
+                    putZigzag(val - prev);
+                }
+                prev = val;
+            }
+        }
+        mBlockRows++;
+        mRows++;
+        if (mBody.position() >= BLOCK_SIZE) {
+            writeBlock();
+            startBlock();
+        }
+    }
+
+    /**
+     * Writes the last block and closes the file. The end marker and the
+     * session map are only written if all the rows were written, so a file
+     * that was stopped early is seen as truncated when it is read.
+     *
+     * @throws IOException If there is a write error.
+     */
+    public void close() throws IOException {
+        try {
+            writeBlock();
+            if (mComplete) {
+                mHeader.clear();
+                mHeader.putInt(0).putLong(mRows);
+                mHeader.flip();
+                write(mHeader);
+                if (mSessionMap != null && !mSessionMap.isEmpty()) {
+                    writeSessionMap();
+                }
+            }
+        } finally {
+            try {
+                // Finishes the compression
+                mChannel.close();
+            } finally {
+                mStream.close();
+            }
+        }
+    }
+
+    /**
+     * Starts a new block with room for the body header.
+     */
+    private void startBlock() {
+        mBody.clear();
+        mBody.position(BODY_HEADER_SIZE);
+        mBlockRows = 0;
+        mPrevDate = 0;
+        mPrevStartDate = 0;
+    }
+
+    /**
+     * Writes the current block if it has any rows.
+     */
+    private void writeBlock() throws IOException {
+        if (mBlockRows == 0) {
+            return;
+        }
+        mBody.putInt(0, mBlockRows);
+        mBody.putLong(4, mRows - mBlockRows);
+        mBody.flip();
+        mCrc.reset();
+        mCrc.update(mBody.array(), mBody.arrayOffset(), mBody.limit());
+        mHeader.clear();
+        mHeader.putInt(mBody.limit()).putInt((int) mCrc.getValue());
+        mHeader.flip();
+        write(mHeader);
+        write(mBody);
+        mBlockRows = 0;
+    }
+
+    /**
+     * Writes the session map using the body buffer.
+     */
+    private void writeSessionMap() throws IOException {
+        int length = 16 * mSessionMap.size();
+        if (mBody.capacity() < length) {
+            mBody = ByteBuffer.allocate(length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mBody.clear();
+        for (Map.Entry<Long, Long> entry : mSessionMap.entrySet()) {
+            mBody.putLong(entry.getKey()).putLong(entry.getValue());
+        }
+        mBody.flip();
+        mCrc.reset();
+        mCrc.update(mBody.array(), mBody.arrayOffset(), mBody.limit());
+        mHeader.clear();
+        mHeader.putInt(mSessionMap.size()).putInt((int) mCrc.getValue());
+        mHeader.flip();
+        write(mHeader);
+        write(mBody);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private void putVarint(long val) {
+        while ((val & ~0x7FL) != 0) {
+            mBody.put((byte) ((val & 0x7F) | 0x80));
+            val >>>= 7;
+        }
+        mBody.put((byte) val);
+    }
+
+    private void putZigzag(long val) {
+        putVarint((val << 1) ^ (val >> 63));
+    }
+
+}
@@ -0,0 +1,207 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes session and database CSV files. Dates are formatted like
+ * sessionSaveFormatter, but the "yyyy-MM-dd HH:mm:" prefix is only formatted
+ * when the minute changes, and the seconds and milliseconds are added by
+ * hand. The files are the same as those written with sessionSaveFormatter
+ * and String.format.
+ * <p>
+ * An instance is not thread safe but may be used on any one thread.
+ */
+public class CsvExportWriter extends ExportWriter {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] BLANK_LINE = {'\n'};
+
+    private final byte mSessionDelim;
+    private final byte mDatabaseDelim;
+    private final byte[] mInvalid;
+
+    // The cached date prefix
+    private final SimpleDateFormat mMinuteFormatter = new SimpleDateFormat(
+            "yyyy-MM-dd HH:mm:", Locale.US);
+    private final Date mDate = new Date();
+    private long mCachedMinute = Long.MIN_VALUE;
+    private byte[] mMinutePrefix;
+
+    /**
+     * Constructor for an uncompressed file. Creates or truncates the file.
+     *
+     * @param file The file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public CsvExportWriter(File file) throws IOException {
+        this(file, ExportCodec.NONE);
+    }
+
+    /**
+     * Constructor. Creates or truncates the file.
+     *
+     * @param file  The file. The codec suffix is not added.
+     * @param codec The codec for compressing the file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public CsvExportWriter(File file, ExportCodec codec) throws IOException {
+        super(file, codec);
+        mSessionDelim = (byte) SAVE_SESSION_DELIM.charAt(0);
+        mDatabaseDelim = (byte) SAVE_DATABASE_DELIM.charAt(0);
+        mInvalid = INVALID_STRING.getBytes(ASCII);
+    }
+
+    /**
+     * Writes the date, HR, and RR rows from a reader in session format.
+     *
+     * @param reader The reader, as from readHrRrDateDataForStartDate.
+     * @return False if stopped by the progress listener.
+     * @throws IOException If there is a write error.
+     */
+    public boolean writeSession(DataChunkReader reader) throws IOException {
+        DataChunk chunk;
+        long[] dates;
+        int[] hrs, rrStarts, rrValues;
+        boolean[] rrPresent;
+        while ((chunk = reader.next()) != null) {
+            dates = chunk.getDates();
+            hrs = chunk.getHrs();
+            rrPresent = chunk.getRrPresent();
+            rrStarts = chunk.getRrStarts();
+            rrValues = chunk.getRrValues();
+            for (int i = 0, count = chunk.getCount(); i < count; i++) {
+                startRow();
+                appendDate(dates[i]);
+                append(mSessionDelim);
+                appendLong(hrs[i]);
+                append(mSessionDelim);
+                if (rrPresent[i]) {
+                    appendRr(rrValues, rrStarts[i], rrStarts[i + 1]);
+                } else {
+                    append(mInvalid);
+                }
+                append((byte) '\n');
+                if (!endRow()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes all the columns from a reader in database format.
+     *
+     * @param reader The reader, as from readAllData.
+     * @return False if stopped by the progress listener.
+     * @throws IOException If there is a write error.
+     */
+    public boolean writeDatabase(DataChunkReader reader) throws IOException {
+        DataChunk chunk;
+        long[] dates, startDates;
+        int[] hrs, rrStarts, rrValues;
+        boolean[] rrPresent;
+        while ((chunk = reader.next()) != null) {
+            dates = chunk.getDates();
+            startDates = chunk.getStartDates();
+            hrs = chunk.getHrs();
+            rrPresent = chunk.getRrPresent();
+            rrStarts = chunk.getRrStarts();
+            rrValues = chunk.getRrValues();
+            for (int i = 0, count = chunk.getCount(); i < count; i++) {
+                startRow();
+                appendLong(dates[i]);
+                append(mDatabaseDelim);
+                appendLong(startDates[i]);
+                append(mDatabaseDelim);
+                appendLong(hrs[i]);
+                append(mDatabaseDelim);
+                if (rrPresent[i] && rrStarts[i + 1] > rrStarts[i]) {
+                    appendRr(rrValues, rrStarts[i], rrStarts[i + 1]);
+                } else if (rrPresent[i]) {
+                    // Empty needs a space, or it isn't recognized as a token
+                    append((byte) ' ');
+                } else {
+                    append(mInvalid);
+                }
+                append(mDatabaseDelim);
+                append((byte) '\n');
+                if (!endRow()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the session map after the rows written by writeDatabase. Each
+     * entry is a line starting with SAVE_DATABASE_SESSION_MAP, which older
+     * versions skip as a comment.
+     *
+     * @param sessionMap The start dates of the sessions by the start dates
+     *                   of the recordings, as from getMergedRecordings.
+     * @throws IOException If there is a write error.
+     */
+    public void writeSessionMap(Map<Long, Long> sessionMap)
+            throws IOException {
+        for (Map.Entry<Long, Long> entry : sessionMap.entrySet()) {
+            write((SAVE_DATABASE_SESSION_MAP + SAVE_DATABASE_DELIM
+                    + entry.getKey() + SAVE_DATABASE_DELIM
+                    + entry.getValue() + "\n").getBytes(ASCII));
+        }
+    }
+
+    /**
+     * Writes a blank line.
+     *
+     * @throws IOException If there is a write error.
+     */
+    public void writeBlankLine() throws IOException {
+        write(BLANK_LINE);
+    }
+
+    /**
+     * Appends a date as yyyy-MM-dd HH:mm:ss.SSS in the default time zone.
+     *
+     * @param date The date.
+     */
+    private void appendDate(long date) {
+        long minute = date / 60000;
+        if (date % 60000 < 0) {
+            minute--;
+        }
+        if (minute != mCachedMinute) {
+            mDate.setTime(minute * 60000);
+            mMinutePrefix = mMinuteFormatter.format(mDate).getBytes(ASCII);
+            mCachedMinute = minute;
+        }
+        append(mMinutePrefix);
+        int ms = (int) (date - minute * 60000);
+        appendDigits(ms / 1000, 2);
+        append((byte) '.');
+        appendDigits(ms % 1000, 3);
+    }
+
+    /**
+     * Appends R-R values separated by spaces.
+     *
+     * @param values The R-R values.
+     * @param start  The index of the first value.
+     * @param end    The index after the last value.
+     */
+    private void appendRr(int[] values, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                append((byte) ' ');
+            }
+            appendLong(values[i]);
+        }
+    }
+
+}
@@ -0,0 +1,480 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the rows of a database file written by saveDatabase. The file is
+ * read from a channel in large blocks and decoded into a CharBuffer, and
+ * the lines are tokenized in place, so no Strings are created per row. The
+ * numbers are parsed by hand. The only allocation per row is the packed R-R
+ * BLOB.
+ * <p>
+ * The lines are interpreted as they were with String.split and
+ * Long.parseLong. Blank lines and lines starting with # are skipped, except
+ * for the session map lines, which are kept for getSessionMap(). A line
+ * with fewer than 4 tokens is counted as an error. A date or heart rate
+ * that cannot be parsed is INVALID_DATE or 0. The R-R token is packed as
+ * with BCMDbAdapter.packRr(String).
+ * <p>
+ * The file is ASCII, so each char is one byte, and getOffset() can be used
+ * with seek() to continue reading later from the same place. The offsets
+ * are in the uncompressed data if the file is compressed.
+ * <p>
+ * An instance is not thread safe but may be used on any one thread.
+ */
+public class CsvRestoreReader implements RestoreReader, IConstants {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ReadableByteChannel mChannel;
+    private final ByteBuffer mBytes;
+    private CharBuffer mChars;
+    private final CharsetDecoder mDecoder;
+    private final char mDelim;
+    private boolean mEof;
+    /**
+     * Offset in the file of the start of the unread chars.
+     */
+    private long mOffset;
+    private int mLineNumber;
+    private int mErrors;
+    private final Map<Long, Long> mSessionMap =
+            new LinkedHashMap<Long, Long>();
+
+    // The current row
+    private long mDate;
+    private long mStartDate;
+    private int mHr;
+    private byte[] mRr;
+    private int[] mRrValues = new int[16];
+    private boolean mParseFailed;
+
+    /**
+     * Constructor.
+     *
+     * @param channel The channel for the file, as from
+     *                ExportCodec.openInput(). It is closed by close().
+     */
+    public CsvRestoreReader(ReadableByteChannel channel) {
+        mChannel = channel;
+        mBytes = ByteBuffer.allocateDirect(RESTORE_BUFFER_SIZE);
+        mChars = CharBuffer.allocate(RESTORE_BUFFER_SIZE);
+        mChars.flip();
+        // Non-ASCII bytes are replaced one for one, keeping the offsets
+        mDecoder = ASCII.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        mDelim = SAVE_DATABASE_DELIM.charAt(0);
+    }
+
+    /**
+     * Continues reading from a place returned by getOffset() earlier. Must
+     * be called before reading.
+     *
+     * @param offset     The offset in the file.
+     * @param lineNumber The number of lines before the offset.
+     * @param errors     The number of errors before the offset.
+     * @throws IOException If there is an error.
+     */
+    @Override
+    public void seek(long offset, int lineNumber, int errors)
+            throws IOException {
+        ExportCodec.seek(mChannel, mOffset, offset, mBytes);
+        mOffset = offset;
+        mLineNumber = lineNumber;
+        mErrors = errors;
+    }
+
+    /**
+     * Gets the offset in the file of the line after the last row read.
+     *
+     * @return The offset.
+     */
+    @Override
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Gets the number of lines read.
+     *
+     * @return The number of lines.
+     */
+    @Override
+    public int getLineNumber() {
+        return mLineNumber;
+    }
+
+    /**
+     * Gets the number of lines that could not be used.
+     *
+     * @return The number of errors.
+     */
+    @Override
+    public int getErrors() {
+        return mErrors;
+    }
+
+    @Override
+    public long getDate() {
+        return mDate;
+    }
+
+    @Override
+    public long getStartDate() {
+        return mStartDate;
+    }
+
+    @Override
+    public int getHr() {
+        return mHr;
+    }
+
+    /**
+     * Gets the packed R-R values of the current row.
+     *
+     * @return The BLOB or null if the row has no R-R values.
+     */
+    @Override
+    public byte[] getRr() {
+        return mRr;
+    }
+
+    @Override
+    public Map<Long, Long> getSessionMap() {
+        return mSessionMap;
+    }
+
+    /**
+     * Reads the next row.
+     *
+     * @return False if there are no more rows.
+     * @throws IOException If there is a read error.
+     */
+    @Override
+    public boolean next() throws IOException {
+        int pos, limit, eol;
+        while (true) {
+            pos = mChars.position();
+            limit = mChars.limit();
+            eol = pos;
+            while (eol < limit && mChars.get(eol) != '\n') {
+                eol++;
+            }
+            if (eol == limit) {
+                if (!mEof) {
+                    fill();
+                    continue;
+                }
+                if (pos == limit) {
+                    return false;
+                }
+                // Last line without a newline
+                mChars.position(limit);
+            } else {
+                mChars.position(eol + 1);
+            }
+            mOffset += mChars.position() - pos;
+            mLineNumber++;
+            if (parseLine(pos, eol)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException If there is an error.
+     */
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    /**
+     * Moves the unread chars to the start of the buffer and reads more after
+     * them. The buffer is made larger if it is full of one line.
+     */
+    private void fill() throws IOException {
+        mChars.compact();
+        if (!mChars.hasRemaining()) {
+            CharBuffer chars = CharBuffer.allocate(2 * mChars.capacity());
+            mChars.flip();
+            chars.put(mChars);
+            mChars = chars;
+        }
+        int nRead = mChannel.read(mBytes);
+        mBytes.flip();
+        if (nRead < 0) {
+            mEof = true;
+        }
+        mDecoder.decode(mBytes, mChars, mEof);
+        if (mEof) {
+            mDecoder.flush(mChars);
+        }
+        mBytes.compact();
+        mChars.flip();
+    }
+
+    /**
+     * Parses a line into the current row.
+     *
+     * @param start The index of the start of the line.
+     * @param end   The index after the end of the line.
+     * @return True if it is a row, false if it is skipped or is an error.
+     */
+    private boolean parseLine(int start, int end) {
+        // Trim
+        while (start < end && mChars.get(start) <= ' ') {
+            start++;
+        }
+        while (end > start && mChars.get(end - 1) <= ' ') {
+            end--;
+        }
+        // Skip blank lines and lines starting with #
+        if (start == end) {
+            return false;
+        }
+        if (mChars.get(start) == '#') {
+            int len = SAVE_DATABASE_SESSION_MAP.length();
+            if (start + len < end && mChars.get(start + len) == mDelim
+                    && startsWith(start, end, SAVE_DATABASE_SESSION_MAP)) {
+                parseSessionMap(start + len, end);
+            }
+            return false;
+        }
+        // Find the first three delimiters
+        int d0 = indexOfDelim(start, end);
+        int d1 = indexOfDelim(d0 + 1, end);
+        int d2 = indexOfDelim(d1 + 1, end);
+        int rrEnd = indexOfDelim(d2 + 1, end);
+        if (d2 >= end || !hasToken(d2 + 1, end)) {
+            // Fewer than 4 tokens
+            mErrors++;
+            Log.d(TAG, "CsvRestoreReader: Fewer than 4 tokens @ line "
+                    + mLineNumber);
+            Log.d(TAG, getString(start, end));
+            return false;
+        }
+        mDate = parseLong(start, d0, INVALID_DATE);
+        if (mParseFailed) {
+            Log.d(TAG, "CsvRestoreReader: Invalid date @ line "
+                    + mLineNumber);
+        }
+        mStartDate = parseLong(d0 + 1, d1, INVALID_DATE);
+        if (mParseFailed) {
+            Log.d(TAG, "CsvRestoreReader: Invalid start date @ line "
+                    + mLineNumber);
+        }
+        long hr = parseLong(d1 + 1, d2, 0);
+        if (mParseFailed || hr < Integer.MIN_VALUE
+                || hr > Integer.MAX_VALUE) {
+            Log.d(TAG, "CsvRestoreReader: Invalid hr @ line "
+                    + mLineNumber);
+            hr = 0;
+        }
+        mHr = (int) hr;
+        mRr = parseRr(d2 + 1, rrEnd);
+        return true;
+    }
+
+    /**
+     * Parses the recording and session start dates of a session map line
+     * into mSessionMap.
+     *
+     * @param start The index of the delimiter after the
+     *              SAVE_DATABASE_SESSION_MAP.
+     * @param end   The index after the end of the line.
+     */
+    private void parseSessionMap(int start, int end) {
+        int d1 = indexOfDelim(start + 1, end);
+        int d2 = indexOfDelim(d1 + 1, end);
+        long startDate = parseLong(start + 1, d1, INVALID_DATE);
+        long sessionStart = mParseFailed ? INVALID_DATE :
+                parseLong(d1 + 1, d2, INVALID_DATE);
+        if (mParseFailed) {
+            mErrors++;
+            Log.d(TAG, "CsvRestoreReader: Invalid session map @ line "
+                    + mLineNumber);
+            return;
+        }
+        mSessionMap.put(startDate, sessionStart);
+    }
+
+    /**
+     * Gets the index of the next delimiter.
+     *
+     * @return The index or end if there is none.
+     */
+    private int indexOfDelim(int start, int end) {
+        while (start < end && mChars.get(start) != mDelim) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Checks if there is anything but delimiters in a range, which means
+     * String.split would return a token for it.
+     */
+    private boolean hasToken(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (mChars.get(i) != mDelim) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a decimal number surrounded by optional whitespace. Sets
+     * mParseFailed.
+     *
+     * @param start        The index of the start.
+     * @param end          The index after the end.
+     * @param defaultValue The value to return if it is not a number.
+     * @return The number.
+     */
+    private long parseLong(int start, int end, long defaultValue) {
+        while (start < end && mChars.get(start) <= ' ') {
+            start++;
+        }
+        while (end > start && mChars.get(end - 1) <= ' ') {
+            end--;
+        }
+        mParseFailed = true;
+        if (start == end) {
+            return defaultValue;
+        }
+        boolean negative = false;
+        char c = mChars.get(start);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            if (++start == end) {
+                return defaultValue;
+            }
+        }
+        // Accumulate negatively so Long.MIN_VALUE can be parsed
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multMin = limit / 10;
+        long val = 0;
+        int digit;
+        for (int i = start; i < end; i++) {
+            digit = mChars.get(i) - '0';
+            if (digit < 0 || digit > 9 || val < multMin) {
+                return defaultValue;
+            }
+            val *= 10;
+            if (val < limit + digit) {
+                return defaultValue;
+            }
+            val -= digit;
+        }
+        mParseFailed = false;
+        return negative ? val : -val;
+    }
+
+    /**
+     * Packs whitespace-separated R-R values. Tokens that are not integers
+     * from 0 to 0xFFFF are skipped.
+     *
+     * @param start The index of the start.
+     * @param end   The index after the end.
+     * @return The BLOB or null if the token is INVALID_STRING.
+     */
+    private byte[] parseRr(int start, int end) {
+        while (start < end && mChars.get(start) <= ' ') {
+            start++;
+        }
+        while (end > start && mChars.get(end - 1) <= ' ') {
+            end--;
+        }
+        if (isInvalidString(start, end)) {
+            return null;
+        }
+        int count = 0;
+        int i = start, val;
+        boolean valid;
+        char c;
+        while (i < end) {
+            // Skip whitespace
+            while (i < end && mChars.get(i) <= ' ') {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            // Parse the token
+            val = 0;
+            valid = true;
+            while (i < end && (c = mChars.get(i)) > ' ') {
+                if (c < '0' || c > '9') {
+                    valid = false;
+                } else if (valid) {
+                    val = 10 * val + (c - '0');
+                    if (val > 0xFFFF) {
+                        valid = false;
+                    }
+                }
+                i++;
+            }
+            if (valid) {
+                if (count == mRrValues.length) {
+                    int[] values = new int[2 * count];
+                    System.arraycopy(mRrValues, 0, values, 0, count);
+                    mRrValues = values;
+                }
+                mRrValues[count++] = val;
+            }
+        }
+        return BCMDbAdapter.packRr(mRrValues, count);
+    }
+
+    /**
+     * Gets a range of the buffer as a String. Only used for messages.
+     */
+    private String getString(int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            sb.append(mChars.get(i));
+        }
+        return sb.toString();
+    }
+
+    private boolean startsWith(int start, int end, String prefix) {
+        int len = prefix.length();
+        if (end - start < len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (mChars.get(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isInvalidString(int start, int end) {
+        int len = INVALID_STRING.length();
+        if (end - start != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (mChars.get(start + i) != INVALID_STRING.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,178 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * A chunk of rows from the data table held as columns of primitive arrays,
+ * as filled by a DataChunkReader. The R-R values of all the rows are
+ * unpacked into one array, and the values of row i are at indexes
+ * getRrStarts()[i] to getRrStarts()[i + 1] - 1. The arrays are reused for
+ * each chunk, so a chunk is only valid until the next one is read, and
+ * only the first getCount() rows are valid.
+ */
+public class DataChunk {
+    private final long[] dates;
+    private final long[] startDates;
+    private final int[] hrs;
+    private final boolean[] rrPresent;
+    private final int[] rrStarts;
+    private int[] rrValues = new int[1024];
+    private boolean[] rrArtifacts = new boolean[1024];
+    private int count;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of rows.
+     */
+    DataChunk(int capacity) {
+        dates = new long[capacity];
+        startDates = new long[capacity];
+        hrs = new int[capacity];
+        rrPresent = new boolean[capacity];
+        rrStarts = new int[capacity + 1];
+    }
+
+    /**
+     * Removes all the rows.
+     */
+    void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds a row. The R-R values are unpacked from the BLOBs as stored in
+     * the database.
+     *
+     * @param date      The date.
+     * @param startDate The start date.
+     * @param hr        The heart rate.
+     * @param rrBlob    The packed R-R values or null if there are none.
+     * @param rrMask    The R-R artifact mask or null.
+     */
+    void add(long date, long startDate, int hr, byte[] rrBlob,
+             byte[] rrMask) {
+        int start = rrStarts[count];
+        int nRr = rrBlob == null ? 0 : rrBlob.length / 2;
+        if (start + nRr > rrValues.length) {
+            int capacity = Math.max(2 * rrValues.length, start + nRr);
+            int[] values = new int[capacity];
+            boolean[] artifacts = new boolean[capacity];
+            System.arraycopy(rrValues, 0, values, 0, start);
+            System.arraycopy(rrArtifacts, 0, artifacts, 0, start);
+            rrValues = values;
+            rrArtifacts = artifacts;
+        }
+        for (int i = 0, j = 0; i < nRr; i++, j += 2) {
+            rrValues[start + i] = (rrBlob[j] & 0xFF)
+                    | ((rrBlob[j + 1] & 0xFF) << 8);
+            rrArtifacts[start + i] = BCMDbAdapter.isRrArtifact(rrMask, i);
+        }
+        dates[count] = date;
+        startDates[count] = startDate;
+        hrs[count] = hr;
+        rrPresent[count] = rrBlob != null;
+        rrStarts[++count] = start + nRr;
+    }
+
+    /**
+     * Sets the rows to rows of a cached session.
+     *
+     * @param entry  The session.
+     * @param from   The index of the first row.
+     * @param n      The number of rows.
+     * @param withRr Whether to include the R-R values.
+     */
+    void set(SessionCache.Entry entry, int from, int n, boolean withRr) {
+        System.arraycopy(entry.dates, from, dates, 0, n);
+        System.arraycopy(entry.hrs, from, hrs, 0, n);
+        for (int i = 0; i < n; i++) {
+            startDates[i] = entry.startDate;
+        }
+        count = n;
+        if (!withRr) {
+            for (int i = 0; i < n; i++) {
+                rrPresent[i] = false;
+                rrStarts[i + 1] = 0;
+            }
+            return;
+        }
+        System.arraycopy(entry.rrPresent, from, rrPresent, 0, n);
+        int base = entry.rrStarts[from];
+        int nRr = entry.rrStarts[from + n] - base;
+        if (nRr > rrValues.length) {
+            rrValues = new int[nRr];
+            rrArtifacts = new boolean[nRr];
+        }
+        for (int i = 1; i <= n; i++) {
+            rrStarts[i] = entry.rrStarts[from + i] - base;
+        }
+        System.arraycopy(entry.rrValues, base, rrValues, 0, nRr);
+        System.arraycopy(entry.rrArtifacts, base, rrArtifacts, 0, nRr);
+    }
+
+    /**
+     * Gets the number of rows.
+     *
+     * @return The number of rows.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public long[] getDates() {
+        return dates;
+    }
+
+    public long[] getStartDates() {
+        return startDates;
+    }
+
+    /**
+     * Gets the heart rates. They are ints since the measurement may have 16
+     * bits and invalid values are INVALID_INT.
+     *
+     * @return The heart rates.
+     */
+    public int[] getHrs() {
+        return hrs;
+    }
+
+    /**
+     * Gets whether each row has R-R values. A row without them is different
+     * from one with none, as in the database.
+     *
+     * @return Whether each row has R-R values.
+     */
+    public boolean[] getRrPresent() {
+        return rrPresent;
+    }
+
+    /**
+     * Gets the index in getRrValues() of the first R-R value of each row.
+     * There are getCount() + 1 valid values, so the last is the end of the
+     * last row.
+     *
+     * @return The indexes.
+     */
+    public int[] getRrStarts() {
+        return rrStarts;
+    }
+
+    /**
+     * Gets the R-R values of all the rows in units of 1/1024 sec.
+     *
+     * @return The values.
+     */
+    public int[] getRrValues() {
+        return rrValues;
+    }
+
+    /**
+     * Gets whether each R-R value is an artifact.
+     *
+     * @return The artifact flags, parallel to getRrValues().
+     */
+    public boolean[] getRrArtifacts() {
+        return rrArtifacts;
+    }
+
+}
@@ -0,0 +1,249 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.CancellationSignal;
+
+/**
+ * Reads rows from the data table in date order as DataChunks. Each chunk is
+ * a separate query of at most the chunk size rows that starts at the date
+ * of the last row of the previous one, so no query has to hold more than a
+ * chunk in its CursorWindow and each one starts from the date index instead
+ * of skipping the rows already read. Rows with the same date as the last
+ * row already read are skipped with an OFFSET, which relies on the index
+ * returning rows with the same date in the same order each time.
+ * <p>
+ * There may be several selections, as for the recordings of a merged
+ * session, which are read one after the other. A chunk then has rows from
+ * only one of them and may have fewer than the chunk size rows.
+ * <p>
+ * The rows of a session may instead come from the SessionCache. When a
+ * session read with its R-R values is not cached, the chunks are recorded
+ * and the session is added to the cache when the last one has been read.
+ * <p>
+ * Made by the read methods of BCMDbAdapter. The queries may be cancelled
+ * with a CancellationSignal, in which case next() throws an
+ * OperationCanceledException. An instance is not thread safe but may be
+ * used on any one thread.
+ */
+public class DataChunkReader implements IConstants {
+    private static final String[] HR_COLUMNS = {COL_DATE, COL_START_DATE,
+            COL_HR};
+    private static final String[] HR_RR_COLUMNS = {COL_DATE, COL_START_DATE,
+            COL_HR, COL_RR, COL_RR_MASK};
+
+    private final SQLiteDatabase mDb;
+    private final boolean mWithRr;
+    private final String[] mColumns;
+    private final String[] mWheres;
+    /**
+     * The index in mWheres of the selection being read.
+     */
+    private int mWhereIndex;
+    private final CancellationSignal mSignal;
+    private final DataChunk mChunk;
+    private final int mChunkSize;
+    /**
+     * The date of the last row read, or INVALID_DATE before the first
+     * chunk.
+     */
+    private long mLastDate = INVALID_DATE;
+    /**
+     * The number of rows read with the date of the last row.
+     */
+    private int mLastDateRows;
+    private boolean mDone;
+    /**
+     * The cached session the rows come from or null to query them.
+     */
+    private final SessionCache.Entry mEntry;
+    private int mEntryRow;
+    private final SessionCache mCache;
+    /**
+     * Records the rows for the cache or null.
+     */
+    private SessionCache.Recorder mRecorder;
+
+    /**
+     * Constructor.
+     *
+     * @param db        The database.
+     * @param wheres    The selections, without the date of the chunk, to
+     *                  read in order.
+     * @param withRr    Whether to read the R-R values and masks.
+     * @param chunkSize The maximum number of rows in a chunk.
+     * @param signal    The signal for cancelling the queries or null.
+     */
+    DataChunkReader(SQLiteDatabase db, String[] wheres, boolean withRr,
+                    int chunkSize, CancellationSignal signal) {
+        this(db, wheres, withRr, chunkSize, signal, null, null, null);
+    }
+
+    /**
+     * Constructor for reading a session from the cache.
+     *
+     * @param entry     The cached session.
+     * @param withRr    Whether to include the R-R values and masks.
+     * @param chunkSize The maximum number of rows in a chunk.
+     */
+    DataChunkReader(SessionCache.Entry entry, boolean withRr,
+                    int chunkSize) {
+        this(null, null, withRr, chunkSize, null, entry, null, null);
+    }
+
+    /**
+     * Constructor for reading a session from the database and adding it to
+     * the cache.
+     *
+     * @param db        The database.
+     * @param wheres    The selections, without the date of the chunk, to
+     *                  read in order.
+     * @param chunkSize The maximum number of rows in a chunk.
+     * @param signal    The signal for cancelling the queries or null.
+     * @param cache     The cache.
+     * @param recorder  The recorder from the cache.
+     */
+    DataChunkReader(SQLiteDatabase db, String[] wheres, int chunkSize,
+                    CancellationSignal signal, SessionCache cache,
+                    SessionCache.Recorder recorder) {
+        this(db, wheres, true, chunkSize, signal, null, cache, recorder);
+    }
+
+    private DataChunkReader(SQLiteDatabase db, String[] wheres,
+                            boolean withRr, int chunkSize,
+                            CancellationSignal signal,
+                            SessionCache.Entry entry, SessionCache cache,
+                            SessionCache.Recorder recorder) {
+        mDb = db;
+        mWithRr = withRr;
+        mColumns = withRr ? HR_RR_COLUMNS : HR_COLUMNS;
+        mWheres = wheres;
+        mSignal = signal;
+        mChunkSize = chunkSize;
+        mChunk = new DataChunk(chunkSize);
+        mEntry = entry;
+        mCache = cache;
+        mRecorder = recorder;
+    }
+
+    /**
+     * Reads the next chunk.
+     *
+     * @return The chunk, which is reused for each call, or null if there
+     * are no more rows.
+     * @throws android.os.OperationCanceledException If cancelled.
+     */
+    public DataChunk next() {
+        mChunk.clear();
+        if (mDone) {
+            return null;
+        }
+        if (mEntry != null) {
+            int n = Math.min(mChunkSize, mEntry.count - mEntryRow);
+            if (n <= 0) {
+                mDone = true;
+                return null;
+            }
+            mChunk.set(mEntry, mEntryRow, n, mWithRr);
+            mEntryRow += n;
+            return mChunk;
+        }
+        int count = 0;
+        while (count == 0 && !mDone) {
+            count = readChunk();
+        }
+        if (mRecorder != null) {
+            mRecorder.add(mChunk);
+            if (mDone) {
+                mCache.put(mRecorder);
+                mRecorder = null;
+            }
+        }
+        return count == 0 ? null : mChunk;
+    }
+
+    /**
+     * Reads the next chunk of the current selection into mChunk. Goes on to
+     * the next selection when there are no more rows for this one.
+     *
+     * @return The number of rows read.
+     */
+    private int readChunk() {
+        Cursor cursor = mDb.rawQuery(sqlForChunk(mColumns,
+                mWheres[mWhereIndex], mLastDate, mLastDateRows, mChunkSize),
+                null, mSignal);
+        try {
+            while (cursor.moveToNext()) {
+                mChunk.add(cursor.getLong(0), cursor.getLong(1),
+                        cursor.getInt(2),
+                        mWithRr ? BCMDbAdapter.getRrBlob(cursor, 3) : null,
+                        mWithRr ? BCMDbAdapter.getRrBlob(cursor, 4) : null);
+            }
+        } finally {
+            cursor.close();
+        }
+        int count = mChunk.getCount();
+        if (count < mChunkSize) {
+            if (++mWhereIndex == mWheres.length) {
+                mDone = true;
+            }
+            mLastDate = INVALID_DATE;
+            mLastDateRows = 0;
+            return count;
+        }
+        // Count the rows at the end with the same date
+        long[] dates = mChunk.getDates();
+        long lastDate = dates[count - 1];
+        int nSame = 1;
+        while (nSame < count && dates[count - 1 - nSame] == lastDate) {
+            nSame++;
+        }
+        if (nSame == count && lastDate == mLastDate) {
+            mLastDateRows += nSame;
+        } else {
+            mLastDateRows = nSame;
+        }
+        mLastDate = lastDate;
+        return count;
+    }
+
+    /**
+     * Gets the SQL for a chunk.
+     *
+     * @param columns   The columns.
+     * @param where     The selection or null.
+     * @param date      The date of the last row read or INVALID_DATE for
+     *                  the first chunk.
+     * @param nDateRows The number of rows read with that date.
+     * @param chunkSize The maximum number of rows.
+     * @return The SQL.
+     */
+    private static String sqlForChunk(String[] columns, String where,
+                                      long date, int nDateRows,
+                                      int chunkSize) {
+        if (date != INVALID_DATE) {
+            String dateWhere = COL_DATE + ">=" + Long.toString(date);
+            where = where == null ? dateWhere : where + " AND " + dateWhere;
+        }
+        // As offset,limit, since buildQueryString does not allow OFFSET
+        String limit = Integer.toString(chunkSize);
+        if (nDateRows > 0) {
+            limit = nDateRows + "," + limit;
+        }
+        return SQLiteQueryBuilder.buildQueryString(false, DB_DATA_TABLE,
+                columns, where, null, null, SORT_ASCENDING, limit);
+    }
+
+    /**
+     * Gets the SQL for the later chunks of a query with R-R values, for
+     * checking the query plans.
+     *
+     * @param where The selection or null.
+     * @return The SQL.
+     */
+    static String sqlForCheck(String where) {
+        return sqlForChunk(HR_RR_COLUMNS, where, 0, 1, 1);
+    }
+
+}
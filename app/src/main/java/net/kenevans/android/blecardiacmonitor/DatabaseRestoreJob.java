@@ -0,0 +1,293 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Restores the database from a file written by saveDatabase. The file is
+ * read by a CsvRestoreReader, or a BinaryBackupReader if it has the binary
+ * suffix, and is decompressed if it has the suffix of an ExportCodec. The
+ * rows are inserted in transactions of
+ * RESTORE_BATCH_SIZE rows. The data indexes are dropped during the load and
+ * the sessions and rollups are not updated per row. They are all rebuilt
+ * once at the end, which is much faster than keeping them up to date.
+ * <p>
+ * The place in the file is saved in the database in the same transaction as
+ * each batch of rows. If the restore is cancelled or the app is stopped, it
+ * can be resumed from the end of the last batch as long as the file has not
+ * changed. When cancelled, the indexes, sessions, and rollups are rebuilt
+ * for the rows restored so far.
+ * <p>
+ * The R-R artifacts are marked again with an RrFilter as the rows are read,
+ * since the file does not have the masks. The filter is reset when the
+ * session changes, and a resumed restore starts it again at the place it
+ * resumes from.
+ * <p>
+ * run() blocks until the restore is done, so it should be called from a
+ * background thread. cancel() may be called from any thread.
+ */
+public class DatabaseRestoreJob implements IConstants {
+    private final BCMDbAdapter mDbAdapter;
+    private final File mFile;
+    private final boolean mResume;
+    private final RrFilter mRrFilter;
+    private volatile boolean mCancelled;
+    private ProgressListener mProgressListener;
+    /**
+     * The channel of the file itself, used for the progress when the file
+     * is compressed.
+     */
+    private FileChannel mFileChannel;
+
+    /**
+     * Listener for the progress of a restore. Called on the thread calling
+     * run() after each batch.
+     */
+    public interface ProgressListener {
+        /**
+         * Called after each batch is written.
+         *
+         * @param rows   The total number of rows restored.
+         * @param offset The number of bytes of the file read. If the file
+         *               is compressed these are compressed bytes.
+         * @param length The length of the file.
+         */
+        void onProgress(long rows, long offset, long length);
+    }
+
+    /**
+     * The result of a restore.
+     */
+    public static class Result {
+        /**
+         * The total number of rows restored, including any restored before
+         * resuming.
+         */
+        public long rows;
+        /**
+         * The number of rows restored by this run.
+         */
+        public long newRows;
+        public int lines;
+        public int errors;
+        public boolean resumed;
+        public boolean cancelled;
+        public double elapsed;
+        /**
+         * A message if there was an exception, otherwise null.
+         */
+        public String exceptionMsg;
+
+        /**
+         * Gets the rate at which rows were restored by this run.
+         *
+         * @return The rate in rows per second.
+         */
+        public double getRowsPerSecond() {
+            return elapsed > 0 ? newRows / elapsed : 0;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dbAdapter The adapter for the database, which must be open.
+     * @param file      The file.
+     * @param resume    Whether to continue an unfinished restore of the same
+     *                  file. If there is none, the restore starts over.
+     * @param rrFilter  The filter for marking the R-R artifacts.
+     */
+    public DatabaseRestoreJob(BCMDbAdapter dbAdapter, File file,
+                              boolean resume, RrFilter rrFilter) {
+        mDbAdapter = dbAdapter;
+        mFile = file;
+        mResume = resume;
+        mRrFilter = rrFilter;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Stops the restore after the current batch. It can then be resumed.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Runs the restore.
+     *
+     * @return The result.
+     */
+    public Result run() {
+        long start = System.nanoTime();
+        Result result = new Result();
+        long length = mFile.length();
+        long[] dates = new long[RESTORE_BATCH_SIZE];
+        long[] startDates = new long[RESTORE_BATCH_SIZE];
+        int[] hrs = new int[RESTORE_BATCH_SIZE];
+        byte[][] rrs = new byte[RESTORE_BATCH_SIZE][];
+        byte[][] rrMasks = new byte[RESTORE_BATCH_SIZE][];
+        long lastStartDate = INVALID_DATE;
+        int count = 0;
+        long rows = 0, resumedRows = 0;
+        boolean started = false;
+        boolean complete = false;
+        Map<Long, Long> sessionMap = null;
+        RestoreReader reader = null;
+        try {
+            BCMDbAdapter.RestoreState state = null;
+            if (mResume) {
+                state = mDbAdapter.resumeRestore();
+                if (state != null && !state.isFor(mFile)) {
+                    Log.d(TAG, "DatabaseRestoreJob: Cannot resume "
+                            + state.path + " with " + mFile);
+                    state = null;
+                }
+            }
+            reader = openReader(mFile);
+            if (state != null) {
+                reader.seek(state.offset, state.lines, state.errors);
+                rows = resumedRows = state.rows;
+                result.resumed = true;
+            } else {
+                mDbAdapter.beginRestore(mFile);
+            }
+            started = true;
+            while (!mCancelled) {
+                if (!reader.next()) {
+                    complete = true;
+                    sessionMap = reader.getSessionMap();
+                    break;
+                }
+                dates[count] = reader.getDate();
+                startDates[count] = reader.getStartDate();
+                hrs[count] = reader.getHr();
+                rrs[count] = reader.getRr();
+                if (startDates[count] != lastStartDate) {
+                    mRrFilter.reset();
+                    lastStartDate = startDates[count];
+                }
+                rrMasks[count] = mRrFilter.filter(rrs[count]);
+                if (++count == RESTORE_BATCH_SIZE) {
+                    rows += writeBatch(reader, dates, startDates, hrs, rrs,
+                            rrMasks, count, rows, length);
+                    count = 0;
+                }
+            }
+            // Write the rest. They are also written if cancelled, since
+            // the saved offset is after them.
+            if (count > 0) {
+                rows += writeBatch(reader, dates, startDates, hrs, rrs,
+                        rrMasks, count, rows, length);
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, "DatabaseRestoreJob: Error restoring " + mFile, ex);
+            result.exceptionMsg = "Got Exception restoring at line "
+                    + (reader != null ? reader.getLineNumber() : 0) + "\n"
+                    + ex.getMessage();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (Exception ex) {
+                    // Do nothing
+                }
+            }
+        }
+        // Rebuild what was dropped during the load
+        if (started) {
+            try {
+                mDbAdapter.endRestore(complete, sessionMap);
+            } catch (Exception ex) {
+                Log.e(TAG, "DatabaseRestoreJob: Error ending restore", ex);
+                if (result.exceptionMsg == null) {
+                    result.exceptionMsg = "Got Exception rebuilding "
+                            + "sessions\n" + ex.getMessage();
+                }
+            }
+        }
+        if (reader != null) {
+            result.lines = reader.getLineNumber();
+            result.errors = reader.getErrors();
+        }
+        result.rows = rows;
+        result.newRows = rows - resumedRows;
+        result.cancelled = mCancelled && !complete;
+        result.elapsed = 1.e-9 * (System.nanoTime() - start);
+        Log.d(TAG, String.format(Locale.US, "DatabaseRestoreJob: %d rows "
+                        + "%d lines %d errors in %.3f s (%.0f rows/s)%s%s",
+                result.rows, result.lines, result.errors, result.elapsed,
+                result.getRowsPerSecond(),
+                result.resumed ? " (resumed)" : "",
+                result.cancelled ? " (cancelled)" : ""));
+        return result;
+    }
+
+    /**
+     * Opens a reader for a file, chosen by its suffix, decompressing it if
+     * necessary.
+     *
+     * @param file The file.
+     * @return The reader.
+     * @throws IOException If the file cannot be opened.
+     */
+    private RestoreReader openReader(File file) throws IOException {
+        ExportCodec codec = ExportCodec.forFile(file);
+        FileInputStream in = new FileInputStream(file);
+        ReadableByteChannel channel;
+        try {
+            mFileChannel = in.getChannel();
+            channel = codec.openInput(in);
+            if (ExportCodec.stripSuffix(file.getName()).endsWith(
+                    SAVE_DATABASE_BINARY_FILENAME_SUFFIX)) {
+                return new BinaryBackupReader(channel);
+            }
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+        return new CsvRestoreReader(channel);
+    }
+
+    /**
+     * Writes a batch of rows with the place in the file and reports
+     * progress.
+     *
+     * @return The number of rows inserted.
+     */
+    private int writeBatch(RestoreReader reader, long[] dates,
+                           long[] startDates, int[] hrs, byte[][] rrs,
+                           byte[][] rrMasks, int count, long rows,
+                           long length) {
+        int nInserted = mDbAdapter.createRestoreBatch(dates, startDates, hrs,
+                rrs, rrMasks, count, reader.getOffset(),
+                reader.getLineNumber(), rows, reader.getErrors());
+        // Do not keep the BLOBs for the next batch
+        for (int i = 0; i < count; i++) {
+            rrs[i] = null;
+            rrMasks[i] = null;
+        }
+        ProgressListener listener = mProgressListener;
+        if (listener != null) {
+            long offset;
+            try {
+                offset = mFileChannel.position();
+            } catch (IOException ex) {
+                offset = 0;
+            }
+            listener.onProgress(rows + nInserted, offset, length);
+        }
+        return nInserted;
+    }
+
+}
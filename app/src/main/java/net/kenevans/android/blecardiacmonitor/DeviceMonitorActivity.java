@@ -41,6 +41,7 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
     private TextView mBat;
     private TextView mHr;
     private TextView mRr;
+    private TextView mHrv;
     private TextView mStatus;
     private String mDeviceName;
     private String mDeviceAddress;
@@ -72,6 +73,8 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                     if (mDbAdapter != null) {
                         mBLECardiacBleService.startDatabase(mDbAdapter);
                     }
+                    mBLECardiacBleService.addHeartRateListener(mHrListener,
+                            true);
                     // Automatically connects to the device upon successful
                     // start-up
                     // initialization.
@@ -98,6 +101,17 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                 }
             };
 
+    /**
+     * Receives heart rate measurements from the service, conflated on the
+     * main thread.
+     */
+    private final HeartRateListener mHrListener = new HeartRateListener() {
+        @Override
+        public void onHeartRate(HeartRateSample sample) {
+            displayHeartRate(sample);
+        }
+    };
+
     /**
      * Handles various events fired by the Service.
      * <p/>
@@ -106,8 +120,8 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
      * ACTION_GATT_CONNECTED: connected to a GATT server.<br>
      * ACTION_GATT_DISCONNECTED: disconnected from a GATT server.<br>
      * ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.<br>
-     * ACTION_DATA_AVAILABLE: received data from the device. This can be a
-     * result of read or notification operations.<br>
+     * ACTION_DATA_AVAILABLE: received data from the device other than heart
+     * rate. This can be a result of read or notification operations.<br>
      */
     private final BroadcastReceiver mGattUpdateReceiver = new
             BroadcastReceiver() {
@@ -195,6 +209,7 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         mBat = findViewById(R.id.bat_value);
         mHr = findViewById(R.id.hr_value);
         mRr = findViewById(R.id.rr_value);
+        mHrv = findViewById(R.id.hrv_value);
         mStatus = findViewById(R.id.status_value);
         resetDataViews();
 
@@ -245,6 +260,12 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // Make the service write any pending data before the database is
+        // closed. onUnbind is called asynchronously.
+        if (mBLECardiacBleService != null) {
+            mBLECardiacBleService.removeHeartRateListener(mHrListener);
+            mBLECardiacBleService.stopDatabase();
+        }
         unbindService(mServiceConnection);
         mBLECardiacBleService = null;
         if (mDbAdapter != null) {
@@ -504,21 +525,9 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                 mStatus.setText(R.string.null_uuid_msg);
                 return;
             }
+            // Heart rate comes through mHrListener
             uuid = UUID.fromString(uuidString);
-            if (uuid.equals(UUID_HEART_RATE_MEASUREMENT)) {
-                value = intent.getStringExtra(EXTRA_HR);
-                if (value == null) {
-                    mHr.setText(R.string.not_available);
-                } else {
-                    mHr.setText(value);
-                }
-                value = intent.getStringExtra(EXTRA_RR);
-                if (value == null) {
-                    mRr.setText(R.string.not_available);
-                } else {
-                    mRr.setText(value);
-                }
-            } else if (uuid.equals(UUID_BATTERY_LEVEL)) {
+            if (uuid.equals(UUID_BATTERY_LEVEL)) {
                 value = intent.getStringExtra(EXTRA_BAT);
                 if (value == null) {
                     mBat.setText(R.string.not_available);
@@ -535,6 +544,23 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         }
     }
 
+    /**
+     * Displays a heart rate measurement from the service.
+     *
+     * @param sample The sample.
+     */
+    private void displayHeartRate(HeartRateSample sample) {
+        mHr.setText(String.valueOf(sample.getHr()));
+        mRr.setText(sample.getRrString());
+        if (Double.isNaN(sample.getRmssd())) {
+            mHrv.setText(R.string.not_available);
+        } else {
+            mHrv.setText(getString(R.string.hrv_format, sample.getRmssd(),
+                    sample.getSdnn(), sample.getPnn50(),
+                    sample.getHrvMeanHr()));
+        }
+    }
+
     /**
      * Sets the PREF_MANUALLY_DISCONNECTED preference in PreferenceManager
      * .getDefaultSharedPreferences.
@@ -589,6 +615,7 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         mBat.setText(R.string.not_available);
         mHr.setText(R.string.not_available);
         mRr.setText(R.string.not_available);
+        mHrv.setText(R.string.not_available);
         mStatus.setText("");
     }
 
@@ -0,0 +1,417 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import com.androidplot.xy.XYSeries;
+
+import java.util.Arrays;
+
+/**
+ * XYSeries that keeps its points in a primitive ring buffer but only shows
+ * a downsampled copy for the current viewport. The viewport is set with
+ * setViewport(), typically from PlotListener.onBeforeDraw(). Points in the
+ * viewport are divided into one bucket per pixel, and the minimum and
+ * maximum of each bucket are shown in the order they occur. The first and
+ * last points in the viewport and the points just outside it are kept, so
+ * the extent is unchanged and lines run to the edges. The number of
+ * points the plot iterates is then at most about twice the pixel width no
+ * matter how many points there are.
+ * <p>
+ * The x values are times in ms and are expected to be added in
+ * nondecreasing order. A y value of NaN marks a gap and is returned as null,
+ * which the plot does not draw.
+ * <p>
+ * The buffer either grows to hold all the points or has a fixed capacity
+ * and a maximum age. With a maximum age, points older than that relative to
+ * the newest point are removed as points are added, and the oldest point is
+ * overwritten if the buffer is full. Nothing is allocated per point.
+ * <p>
+ * Points may be added from any thread. size(), getX(), and getY() return
+ * the downsampled points and should only be called on the thread that calls
+ * setViewport(), which is the thread that draws the plot.
+ * <p>
+ * If the viewport reaches the first or last point shown the previous time,
+ * that end is left open so new points are included. This lets the plot
+ * follow incoming data when its domain is calculated from the series.
+ */
+public class DownsampledXYSeries implements XYSeries {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final String mTitle;
+    private final boolean mFixedCapacity;
+    private final long mMaximumAge;
+    /**
+     * Guards the data arrays, mHead, mCount, and mModCount.
+     */
+    private final Object mLock = new Object();
+    private long[] mX;
+    private float[] mY;
+    private int mMask;
+    /**
+     * Slot of the oldest point.
+     */
+    private int mHead;
+    private int mCount;
+    /**
+     * Incremented when the data changes.
+     */
+    private int mModCount;
+
+    // The downsampled points, only used on the drawing thread
+    private double[] mOutX = new double[0];
+    private double[] mOutY = new double[0];
+    private int mOutCount;
+    private double mViewMinX = Double.NaN;
+    private double mViewMaxX = Double.NaN;
+    private int mViewPixels;
+    private int mViewModCount = -1;
+    private double mViewFirstX = Double.POSITIVE_INFINITY;
+    private double mViewLastX = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Constructor for a series that keeps all its points.
+     *
+     * @param title The title.
+     */
+    public DownsampledXYSeries(String title) {
+        this(title, INITIAL_CAPACITY, false, 0);
+    }
+
+    /**
+     * Constructor for a series that only keeps recent points.
+     *
+     * @param title      The title.
+     * @param capacity   The maximum number of points. Rounded up to a power
+     *                   of 2.
+     * @param maximumAge The maximum age of a point relative to the newest
+     *                   point in ms.
+     */
+    public DownsampledXYSeries(String title, int capacity, long maximumAge) {
+        this(title, capacity, true, maximumAge);
+    }
+
+    private DownsampledXYSeries(String title, int capacity,
+                                boolean fixedCapacity, long maximumAge) {
+        mTitle = title;
+        mFixedCapacity = fixedCapacity;
+        mMaximumAge = maximumAge;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mX = new long[size];
+        mY = new float[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Adds a point at the end.
+     *
+     * @param x The x value.
+     * @param y The y value or NaN for a gap.
+     */
+    public void add(long x, double y) {
+        synchronized (mLock) {
+            if (mMaximumAge > 0) {
+                long oldest = x - mMaximumAge;
+                while (mCount > 0 && mX[mHead] < oldest) {
+                    mHead = (mHead + 1) & mMask;
+                    mCount--;
+                }
+            }
+            if (mCount == mX.length) {
+                if (mFixedCapacity) {
+                    // Overwrite the oldest
+                    mHead = (mHead + 1) & mMask;
+                    mCount--;
+                } else {
+                    grow();
+                }
+            }
+            int slot = (mHead + mCount) & mMask;
+            mX[slot] = x;
+            mY[slot] = (float) y;
+            mCount++;
+            mModCount++;
+        }
+    }
+
+    /**
+     * Doubles the size of the buffer, moving the oldest point to slot 0.
+     * Must be called holding mLock.
+     */
+    private void grow() {
+        int size = 2 * mX.length;
+        long[] newX = new long[size];
+        float[] newY = new float[size];
+        int n = Math.min(mCount, mX.length - mHead);
+        System.arraycopy(mX, mHead, newX, 0, n);
+        System.arraycopy(mY, mHead, newY, 0, n);
+        System.arraycopy(mX, 0, newX, n, mCount - n);
+        System.arraycopy(mY, 0, newY, n, mCount - n);
+        mX = newX;
+        mY = newY;
+        mMask = size - 1;
+        mHead = 0;
+    }
+
+    /**
+     * Removes all the points.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mHead = 0;
+            mCount = 0;
+            mModCount++;
+        }
+    }
+
+    /**
+     * Gets the number of points, not the number shown.
+     *
+     * @return The number of points.
+     */
+    public int getDataSize() {
+        synchronized (mLock) {
+            return mCount;
+        }
+    }
+
+    /**
+     * Gets the smallest x value.
+     *
+     * @return The x value or NaN if there are no points.
+     */
+    public double getDataMinX() {
+        synchronized (mLock) {
+            return mCount == 0 ? Double.NaN : x(0);
+        }
+    }
+
+    /**
+     * Gets the largest x value.
+     *
+     * @return The x value or NaN if there are no points.
+     */
+    public double getDataMaxX() {
+        synchronized (mLock) {
+            return mCount == 0 ? Double.NaN : x(mCount - 1);
+        }
+    }
+
+    /**
+     * Sets the range of x values being shown and the number of pixels they
+     * cover, and recomputes the points to show if anything has changed.
+     * An end that reaches the data shown the previous time is left open.
+     *
+     * @param minX    The minimum x or NaN for the start of the data.
+     * @param maxX    The maximum x or NaN for the end of the data.
+     * @param nPixels The number of pixels.
+     */
+    public void setViewport(double minX, double maxX, int nPixels) {
+        if (nPixels < 1) {
+            nPixels = 1;
+        }
+        synchronized (mLock) {
+            if (!(minX > mViewFirstX)) {
+                minX = Double.NaN;
+            }
+            if (!(maxX < mViewLastX)) {
+                maxX = Double.NaN;
+            }
+            if (mViewModCount == mModCount && nPixels == mViewPixels
+                    && sameValue(minX, mViewMinX)
+                    && sameValue(maxX, mViewMaxX)) {
+                return;
+            }
+            mViewMinX = minX;
+            mViewMaxX = maxX;
+            mViewPixels = nPixels;
+            mViewModCount = mModCount;
+            downsample(Double.isNaN(minX) ? Double.NEGATIVE_INFINITY : minX,
+                    Double.isNaN(maxX) ? Double.POSITIVE_INFINITY : maxX,
+                    nPixels);
+            if (mCount > 0) {
+                mViewFirstX = x(0);
+                mViewLastX = x(mCount - 1);
+            } else {
+                mViewFirstX = Double.POSITIVE_INFINITY;
+                mViewLastX = Double.NEGATIVE_INFINITY;
+            }
+        }
+    }
+
+    /**
+     * Fills the output arrays with the points to show. Must be called
+     * holding mLock.
+     */
+    private void downsample(double minX, double maxX, int nPixels) {
+        mOutCount = 0;
+        if (mCount == 0) {
+            return;
+        }
+        // Include the points on either side of the viewport
+        int first = Math.max(lowerBound(minX) - 1, 0);
+        int last = Math.min(upperBound(maxX), mCount - 1);
+        if (last < first) {
+            return;
+        }
+        int n = last - first + 1;
+        if (n <= 2 * nPixels + 2) {
+            ensureOutCapacity(n);
+            for (int i = first; i <= last; i++) {
+                append(x(i), y(i));
+            }
+            return;
+        }
+        ensureOutCapacity(2 * nPixels + 6);
+        // The edge points are kept as is
+        int start = first, end = last;
+        if (x(first) < minX) {
+            append(x(first), y(first));
+            start++;
+        }
+        boolean lastOutside = x(last) > maxX;
+        if (lastOutside) {
+            end--;
+        }
+        // The first and last points in the viewport are always kept, so
+        // the extent of the series is that of the data
+        append(x(start), y(start));
+        start++;
+        end--;
+        double x0 = x(start);
+        double width = (x(end) - x0) / nPixels;
+        if (width <= 0) {
+            width = 1;
+        }
+        int i = start;
+        int bucket, iMin, iMax, iNaN;
+        double val;
+        while (i <= end) {
+            bucket = (int) ((x(i) - x0) / width);
+            iMin = iMax = iNaN = -1;
+            while (i <= end && (int) ((x(i) - x0) / width) <= bucket) {
+                val = y(i);
+                if (Double.isNaN(val)) {
+                    if (iNaN < 0) iNaN = i;
+                } else {
+                    if (iMin < 0 || val < y(iMin)) iMin = i;
+                    if (iMax < 0 || val > y(iMax)) iMax = i;
+                }
+                i++;
+            }
+            if (iMin < 0) {
+                // Only gaps in this bucket
+                append(x(iNaN), Double.NaN);
+            } else if (iMin == iMax) {
+                append(x(iMin), y(iMin));
+            } else if (iMin < iMax) {
+                append(x(iMin), y(iMin));
+                append(x(iMax), y(iMax));
+            } else {
+                append(x(iMax), y(iMax));
+                append(x(iMin), y(iMin));
+            }
+        }
+        append(x(end + 1), y(end + 1));
+        if (lastOutside) {
+            append(x(last), y(last));
+        }
+    }
+
+    /**
+     * Gets the x value of a point. Must be called holding mLock.
+     *
+     * @param index The index, 0 for the oldest.
+     */
+    private long x(int index) {
+        return mX[(mHead + index) & mMask];
+    }
+
+    /**
+     * Gets the y value of a point. Must be called holding mLock.
+     *
+     * @param index The index, 0 for the oldest.
+     */
+    private double y(int index) {
+        return mY[(mHead + index) & mMask];
+    }
+
+    /**
+     * Gets the index of the first point with x >= the given value.
+     */
+    private int lowerBound(double x) {
+        int lo = 0, hi = mCount;
+        int mid;
+        while (lo < hi) {
+            mid = (lo + hi) >>> 1;
+            if (x(mid) < x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Gets the index of the first point with x > the given value.
+     */
+    private int upperBound(double x) {
+        int lo = 0, hi = mCount;
+        int mid;
+        while (lo < hi) {
+            mid = (lo + hi) >>> 1;
+            if (x(mid) <= x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Grows the output arrays if necessary, keeping the points already in
+     * them. Must be called holding mLock.
+     *
+     * @param capacity The number of points needed.
+     */
+    private void ensureOutCapacity(int capacity) {
+        if (mOutX.length < capacity) {
+            mOutX = Arrays.copyOf(mOutX, capacity);
+            mOutY = Arrays.copyOf(mOutY, capacity);
+        }
+    }
+
+    private void append(double x, double y) {
+        if (mOutCount == mOutX.length) {
+            ensureOutCapacity(2 * mOutCount + 2);
+        }
+        mOutX[mOutCount] = x;
+        mOutY[mOutCount] = y;
+        mOutCount++;
+    }
+
+    private static boolean sameValue(double a, double b) {
+        return a == b || (Double.isNaN(a) && Double.isNaN(b));
+    }
+
+    @Override
+    public String getTitle() {
+        return mTitle;
+    }
+
+    @Override
+    public int size() {
+        return mOutCount;
+    }
+
+    @Override
+    public Number getX(int index) {
+        return mOutX[index];
+    }
+
+    @Override
+    public Number getY(int index) {
+        double y = mOutY[index];
+        return Double.isNaN(y) ? null : y;
+    }
+
+}
@@ -0,0 +1,237 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression used for exported files. A codec wraps the file streams and
+ * adds a suffix to the file name. The codec for reading a file is chosen by
+ * its suffix, so restores decompress files transparently.
+ * <p>
+ * New codecs are added by subclassing and adding them to forName() and
+ * forFile().
+ */
+public abstract class ExportCodec implements IConstants {
+    /**
+     * Name of the codec that does no compression.
+     */
+    public static final String NAME_NONE = "none";
+    /**
+     * Name of the gzip codec.
+     */
+    public static final String NAME_GZIP = "gzip";
+
+    /**
+     * The codec that does no compression.
+     */
+    public static final ExportCodec NONE = new ExportCodec(NAME_NONE, "") {
+        @Override
+        public OutputStream newOutputStream(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream newInputStream(InputStream in) {
+            return in;
+        }
+
+        @Override
+        public WritableByteChannel openOutput(FileOutputStream out) {
+            return out.getChannel();
+        }
+
+        @Override
+        public ReadableByteChannel openInput(FileInputStream in) {
+            return in.getChannel();
+        }
+    };
+
+    private final String mName;
+    private final String mSuffix;
+
+    private ExportCodec(String name, String suffix) {
+        mName = name;
+        mSuffix = suffix;
+    }
+
+    /**
+     * Gets a codec by name, as stored in the preferences.
+     *
+     * @param name  The name. Unknown names give NONE.
+     * @param level The compression level, for codecs that have one.
+     * @return The codec.
+     */
+    public static ExportCodec forName(String name, int level) {
+        if (NAME_GZIP.equals(name)) {
+            return new GzipCodec(level);
+        }
+        return NONE;
+    }
+
+    /**
+     * Gets the codec for reading a file from its suffix.
+     *
+     * @param file The file.
+     * @return The codec.
+     */
+    public static ExportCodec forFile(File file) {
+        if (file.getName().endsWith(GzipCodec.SUFFIX)) {
+            return new GzipCodec(EXPORT_COMPRESSION_LEVEL);
+        }
+        return NONE;
+    }
+
+    /**
+     * Removes the suffix of any codec from a file name.
+     *
+     * @param name The name.
+     * @return The name without the suffix.
+     */
+    public static String stripSuffix(String name) {
+        if (name.endsWith(GzipCodec.SUFFIX)) {
+            return name.substring(0, name.length()
+                    - GzipCodec.SUFFIX.length());
+        }
+        return name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Gets the suffix added to file names.
+     *
+     * @return The suffix, empty for NONE.
+     */
+    public String getSuffix() {
+        return mSuffix;
+    }
+
+    /**
+     * Wraps a stream so the data written to it is compressed. Closing the
+     * returned stream closes the given one.
+     *
+     * @param out The stream.
+     * @return The compressing stream.
+     * @throws IOException If there is an error.
+     */
+    public abstract OutputStream newOutputStream(OutputStream out)
+            throws IOException;
+
+    /**
+     * Wraps a stream so the data read from it is decompressed. Closing the
+     * returned stream closes the given one.
+     *
+     * @param in The stream.
+     * @return The decompressing stream.
+     * @throws IOException If there is an error.
+     */
+    public abstract InputStream newInputStream(InputStream in)
+            throws IOException;
+
+    /**
+     * Gets a channel that compresses what is written to it and writes it to
+     * a file. Closing the channel closes the file.
+     *
+     * @param out The file stream.
+     * @return The channel.
+     * @throws IOException If there is an error.
+     */
+    public WritableByteChannel openOutput(FileOutputStream out)
+            throws IOException {
+        return Channels.newChannel(newOutputStream(out));
+    }
+
+    /**
+     * Gets a channel that reads from a file and decompresses. Closing the
+     * channel closes the file.
+     *
+     * @param in The file stream.
+     * @return The channel.
+     * @throws IOException If there is an error.
+     */
+    public ReadableByteChannel openInput(FileInputStream in)
+            throws IOException {
+        return Channels.newChannel(newInputStream(in));
+    }
+
+    /**
+     * Moves to an offset from the start of a channel opened with
+     * openInput(). A FileChannel is positioned. Other channels can only
+     * move forward, and the data up to the offset is read and discarded.
+     *
+     * @param channel  The channel.
+     * @param position The number of bytes already read from the channel.
+     * @param offset   The offset.
+     * @param buffer   A buffer to use for reading. It is cleared.
+     * @throws IOException If there is an error or the channel is shorter.
+     */
+    public static void seek(ReadableByteChannel channel, long position,
+                            long offset, ByteBuffer buffer)
+            throws IOException {
+        if (channel instanceof FileChannel) {
+            ((FileChannel) channel).position(offset);
+            return;
+        }
+        if (offset < position) {
+            throw new IOException("Cannot seek backwards");
+        }
+        long remaining = offset - position;
+        int nRead;
+        while (remaining > 0) {
+            buffer.clear();
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int) remaining);
+            }
+            nRead = channel.read(buffer);
+            if (nRead < 0) {
+                throw new IOException("Cannot seek past the end");
+            }
+            remaining -= nRead;
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Codec for gzip. Concatenated gzip files are also a valid gzip file,
+     * so compressed files can be appended to each other.
+     */
+    private static class GzipCodec extends ExportCodec {
+        private static final String SUFFIX = ".gz";
+        private final int mLevel;
+
+        private GzipCodec(int level) {
+            super(NAME_GZIP, SUFFIX);
+            mLevel = level;
+        }
+
+        @Override
+        public OutputStream newOutputStream(OutputStream out)
+                throws IOException {
+            return new GZIPOutputStream(out, EXPORT_BUFFER_SIZE) {
+                {
+                    def.setLevel(mLevel);
+                }
+            };
+        }
+
+        @Override
+        public InputStream newInputStream(InputStream in)
+                throws IOException {
+            return new GZIPInputStream(in, RESTORE_BUFFER_SIZE);
+        }
+    }
+
+}
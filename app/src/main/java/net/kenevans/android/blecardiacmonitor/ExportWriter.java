@@ -0,0 +1,224 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Base class for writers of text export files. Each row is encoded as
+ * ASCII into a reusable line array by the subclass, then copied to a
+ * preallocated buffer that is written to the file's channel when it is
+ * full. Numbers are formatted by hand, so nothing is allocated per row.
+ * The file may be compressed with an ExportCodec.
+ * <p>
+ * An instance is not thread safe but may be used on any one thread.
+ */
+public abstract class ExportWriter implements IConstants {
+    /**
+     * Number of rows between calls to the progress listener.
+     */
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final FileOutputStream mStream;
+    private final WritableByteChannel mChannel;
+    private final ByteBuffer mBuffer;
+    /**
+     * Holds the line being encoded.
+     */
+    private byte[] mLine = new byte[256];
+    private int mPos;
+    private ProgressListener mProgressListener;
+    private long mRows;
+
+    /**
+     * Listener for progress while writing rows from a Cursor.
+     */
+    public interface ProgressListener {
+        /**
+         * Called every PROGRESS_INTERVAL rows.
+         *
+         * @param rows The total number of rows written by this writer.
+         * @return False to stop writing.
+         */
+        boolean onProgress(long rows);
+    }
+
+    /**
+     * Constructor. Creates or truncates the file.
+     *
+     * @param file  The file. The codec suffix is not added.
+     * @param codec The codec for compressing the file.
+     * @throws IOException If the file cannot be opened.
+     */
+    protected ExportWriter(File file, ExportCodec codec) throws IOException {
+        mStream = new FileOutputStream(file);
+        try {
+            mChannel = codec.openOutput(mStream);
+        } catch (IOException ex) {
+            mStream.close();
+            throw ex;
+        }
+        mBuffer = ByteBuffer.allocateDirect(EXPORT_BUFFER_SIZE);
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Gets the number of rows written.
+     *
+     * @return The number of rows.
+     */
+    public long getRows() {
+        return mRows;
+    }
+
+    /**
+     * Writes any buffered bytes and closes the file.
+     *
+     * @throws IOException If there is a write error.
+     */
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            try {
+                // Finishes the compression
+                mChannel.close();
+            } finally {
+                mStream.close();
+            }
+        }
+    }
+
+    /**
+     * Writes bytes that are not part of a row.
+     *
+     * @param bytes The bytes.
+     * @throws IOException If there is a write error.
+     */
+    protected void write(byte[] bytes) throws IOException {
+        write(bytes, bytes.length);
+    }
+
+    /**
+     * Copies bytes to the buffer, writing it to the channel when it is
+     * full.
+     *
+     * @param bytes  The bytes.
+     * @param length The number of bytes to use.
+     */
+    private void write(byte[] bytes, int length) throws IOException {
+        int offset = 0, n;
+        while (offset < length) {
+            if (!mBuffer.hasRemaining()) {
+                drain();
+            }
+            n = Math.min(length - offset, mBuffer.remaining());
+            mBuffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    /**
+     * Starts encoding a row.
+     */
+    protected void startRow() {
+        mPos = 0;
+    }
+
+    /**
+     * Moves the encoded row to the buffer and calls the progress listener
+     * if it is time.
+     *
+     * @return False if the progress listener says to stop.
+     * @throws IOException If there is a write error.
+     */
+    protected boolean endRow() throws IOException {
+        write(mLine, mPos);
+        mRows++;
+        return mProgressListener == null || mRows % PROGRESS_INTERVAL != 0
+                || mProgressListener.onProgress(mRows);
+    }
+
+    /**
+     * Writes the buffer to the channel and clears it.
+     */
+    private void drain() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    private void ensureLineCapacity(int n) {
+        if (mPos + n > mLine.length) {
+            byte[] line = new byte[Math.max(2 * mLine.length, mPos + n)];
+            System.arraycopy(mLine, 0, line, 0, mPos);
+            mLine = line;
+        }
+    }
+
+    protected void append(byte b) {
+        ensureLineCapacity(1);
+        mLine[mPos++] = b;
+    }
+
+    protected void append(byte[] bytes) {
+        ensureLineCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mLine, mPos, bytes.length);
+        mPos += bytes.length;
+    }
+
+    /**
+     * Appends a number in decimal.
+     *
+     * @param val The number.
+     */
+    protected void appendLong(long val) {
+        if (val == Long.MIN_VALUE) {
+            // Cannot be negated
+            for (char c : Long.toString(val).toCharArray()) {
+                append((byte) c);
+            }
+            return;
+        }
+        ensureLineCapacity(20);
+        if (val < 0) {
+            mLine[mPos++] = '-';
+            val = -val;
+        }
+        int start = mPos;
+        do {
+            mLine[mPos++] = (byte) ('0' + val % 10);
+            val /= 10;
+        } while (val != 0);
+        // Reverse the digits
+        byte tmp;
+        for (int i = start, j = mPos - 1; i < j; i++, j--) {
+            tmp = mLine[i];
+            mLine[i] = mLine[j];
+            mLine[j] = tmp;
+        }
+    }
+
+    /**
+     * Appends a number as exactly the given number of digits.
+     *
+     * @param val    The number, not negative.
+     * @param digits The number of digits.
+     */
+    protected void appendDigits(int val, int digits) {
+        ensureLineCapacity(digits);
+        for (int i = mPos + digits - 1; i >= mPos; i--) {
+            mLine[i] = (byte) ('0' + val % 10);
+            val /= 10;
+        }
+        mPos += digits;
+    }
+
+}
@@ -0,0 +1,142 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes session GPX files. The track point lines from
+ * GPXUtils.GPX_FILE_TRACK_LINES are split at the %s into byte fragments
+ * once, and the time and HR are added between them by hand, so the format
+ * string is not parsed per row. Times are formatted like
+ * yyyy-MM-dd'T'HH:mm:ss.SSS'Z' in GMT, but the "yyyy-MM-dd'T'" prefix is
+ * only formatted when the day changes. The files are the same as those
+ * written with String.format.
+ * <p>
+ * An instance is not thread safe but may be used on any one thread.
+ */
+public class GpxExportWriter extends ExportWriter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long MS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+    // The parts of GPX_FILE_TRACK_LINES before, between, and after the %s
+    private final byte[] mTrackStart;
+    private final byte[] mTrackMiddle;
+    private final byte[] mTrackEnd;
+
+    private final SimpleDateFormat mFormatter = new SimpleDateFormat(
+            "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+    // The cached date prefix
+    private final SimpleDateFormat mDayFormatter = new SimpleDateFormat(
+            "yyyy-MM-dd'T'", Locale.US);
+    private final Date mDate = new Date();
+    private long mCachedDay = Long.MIN_VALUE;
+    private byte[] mDayPrefix;
+
+    /**
+     * Constructor. Creates or truncates the file.
+     *
+     * @param file  The file. The codec suffix is not added.
+     * @param codec The codec for compressing the file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public GpxExportWriter(File file, ExportCodec codec) throws IOException {
+        super(file, codec);
+        String[] parts = GPXUtils.GPX_FILE_TRACK_LINES.split("%s", -1);
+        mTrackStart = parts[0].getBytes(UTF8);
+        mTrackMiddle = parts[1].getBytes(UTF8);
+        mTrackEnd = parts[2].getBytes(UTF8);
+        TimeZone gmt = TimeZone.getTimeZone("GMT");
+        mFormatter.setTimeZone(gmt);
+        mDayFormatter.setTimeZone(gmt);
+    }
+
+    /**
+     * Writes the lines at the beginning of the file.
+     *
+     * @param creator The creator name.
+     * @param time    The creation time.
+     * @throws IOException If there is a write error.
+     */
+    public void writeStart(String creator, long time) throws IOException {
+        mDate.setTime(time);
+        write(String.format(GPXUtils.GPX_FILE_START_LINES, creator,
+                mFormatter.format(mDate)).getBytes(UTF8));
+    }
+
+    /**
+     * Writes a track point for each row from a reader.
+     *
+     * @param reader The reader, as from readHrDateDataForStartDate.
+     * @return False if stopped by the progress listener.
+     * @throws IOException If there is a write error.
+     */
+    public boolean writeSession(DataChunkReader reader) throws IOException {
+        DataChunk chunk;
+        long[] dates;
+        int[] hrs;
+        while ((chunk = reader.next()) != null) {
+            dates = chunk.getDates();
+            hrs = chunk.getHrs();
+            for (int i = 0, count = chunk.getCount(); i < count; i++) {
+                startRow();
+                append(mTrackStart);
+                appendTime(dates[i]);
+                append(mTrackMiddle);
+                appendLong(hrs[i]);
+                append(mTrackEnd);
+                if (!endRow()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the lines at the end of the file.
+     *
+     * @throws IOException If there is a write error.
+     */
+    public void writeEnd() throws IOException {
+        write(GPXUtils.GPX_FILE_END_LINES.getBytes(UTF8));
+    }
+
+    /**
+     * Appends a time as yyyy-MM-dd'T'HH:mm:ss.SSS'Z' in GMT.
+     *
+     * @param date The date.
+     */
+    private void appendTime(long date) {
+        if (date < Long.MIN_VALUE + MS_PER_DAY) {
+            // The start of the day cannot be found without overflow
+            mDate.setTime(date);
+            append(mFormatter.format(mDate).getBytes(UTF8));
+            return;
+        }
+        long day = date / MS_PER_DAY;
+        if (date % MS_PER_DAY < 0) {
+            day--;
+        }
+        if (day != mCachedDay) {
+            mDate.setTime(day * MS_PER_DAY);
+            mDayPrefix = mDayFormatter.format(mDate).getBytes(UTF8);
+            mCachedDay = day;
+        }
+        append(mDayPrefix);
+        int ms = (int) (date - day * MS_PER_DAY);
+        appendDigits(ms / 3600000, 2);
+        append((byte) ':');
+        appendDigits(ms / 60000 % 60, 2);
+        append((byte) ':');
+        appendDigits(ms / 1000 % 60, 2);
+        append((byte) '.');
+        appendDigits(ms % 1000, 3);
+        append((byte) 'Z');
+    }
+
+}
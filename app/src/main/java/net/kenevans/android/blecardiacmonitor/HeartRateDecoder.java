@@ -0,0 +1,83 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Decodes the raw bytes of a Heart Rate Measurement characteristic into a
+ * reusable HeartRateSample. The layout is described in the Bluetooth GATT
+ * Heart Rate Measurement specification. All values are little-endian.
+ */
+public class HeartRateDecoder implements IConstants {
+    private static final int FLAG_HR_UINT16 = 0x01;
+    private static final int FLAG_EE_PRESENT = 0x08;
+    private static final int FLAG_RR_PRESENT = 0x10;
+
+    private HeartRateDecoder() {
+    }
+
+    /**
+     * Decodes the given bytes into the sample. Nothing is allocated unless
+     * the sample needs to grow its R-R array.
+     *
+     * @param data   The value of the characteristic.
+     * @param length The number of valid bytes in data.
+     * @param date   The date the value was received.
+     * @param sample The sample to fill in.
+     * @return If the data could be decoded. If not the sample has invalid
+     * values.
+     */
+    public static boolean decode(byte[] data, int length, long date,
+                                 HeartRateSample sample) {
+        sample.reset(date);
+        if (data == null || length < 2) {
+            return false;
+        }
+        int flag = data[0] & 0xFF;
+        int offset = 1;
+        if ((flag & FLAG_HR_UINT16) != 0) {
+            if (length < 3) {
+                return false;
+            }
+            sample.setHr(uint16(data, offset));
+            offset += 2;
+        } else {
+            sample.setHr(data[offset] & 0xFF);
+            offset += 1;
+        }
+        // Sensor Contact
+        sample.setSensorContact((flag >> 1) & 0x03);
+        // Energy Expended
+        if ((flag & FLAG_EE_PRESENT) != 0) {
+            if (offset + 1 < length) {
+                sample.setEe(uint16(data, offset));
+            }
+            offset += 2;
+        }
+        // R-R. There may be more than 1 R-R value.
+        if ((flag & FLAG_RR_PRESENT) != 0) {
+            sample.setRrPresent(true);
+            while (offset + 1 < length) {
+                sample.addRr(uint16(data, offset));
+                offset += 2;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the given bytes into the sample.
+     *
+     * @param data   The value of the characteristic.
+     * @param date   The date the value was received.
+     * @param sample The sample to fill in.
+     * @return If the data could be decoded.
+     * @see #decode(byte[], int, long, HeartRateSample)
+     */
+    public static boolean decode(byte[] data, long date,
+                                 HeartRateSample sample) {
+        return decode(data, data == null ? 0 : data.length, date, sample);
+    }
+
+    private static int uint16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+}
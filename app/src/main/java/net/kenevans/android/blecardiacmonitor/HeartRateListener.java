@@ -0,0 +1,17 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Receives decoded heart rate measurements from BCMBleService.
+ *
+ * @see BCMBleService#addHeartRateListener(HeartRateListener, boolean)
+ */
+public interface HeartRateListener {
+    /**
+     * Called for a heart rate measurement. The sample is reused, so it is
+     * only valid for the duration of the call. Use
+     * HeartRateSample.copyFrom() to keep the values.
+     *
+     * @param sample The sample.
+     */
+    void onHeartRate(HeartRateSample sample);
+}
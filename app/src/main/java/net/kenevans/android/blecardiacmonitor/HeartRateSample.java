@@ -0,0 +1,333 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Mutable holder for one decoded Heart Rate Measurement. It is meant to be
+ * reused for every notification, so the values are kept as primitives and
+ * the R-R values are kept in an int array with a count. Strings are only
+ * built when asked for.
+ */
+public class HeartRateSample implements IConstants {
+    /**
+     * Initial capacity of the R-R array. A default 20-byte ATT payload holds
+     * at most 9 R-R values.
+     */
+    private static final int INITIAL_RR_CAPACITY = 16;
+
+    /**
+     * The sequence number given by the service, or 0 if there is none.
+     */
+    private long seq;
+    private long date = INVALID_DATE;
+    private int hr = INVALID_INT;
+    private int sensorContact = INVALID_INT;
+    private int ee = INVALID_INT;
+    private boolean rrPresent;
+    private int[] rr = new int[INITIAL_RR_CAPACITY];
+    /**
+     * Whether each R-R value is an artifact, as set by an RrFilter.
+     */
+    private boolean[] rrArtifacts = new boolean[INITIAL_RR_CAPACITY];
+    private int rrCount;
+    // The HRV values for the window ending with this sample
+    private double rmssd = Double.NaN;
+    private double sdnn = Double.NaN;
+    private double pnn50 = Double.NaN;
+    private double meanHr = Double.NaN;
+
+    /**
+     * Resets the values to invalid for the given date.
+     *
+     * @param date The date.
+     */
+    void reset(long date) {
+        this.date = date;
+        hr = INVALID_INT;
+        sensorContact = INVALID_INT;
+        ee = INVALID_INT;
+        rrPresent = false;
+        rrCount = 0;
+        rmssd = sdnn = pnn50 = meanHr = Double.NaN;
+    }
+
+    /**
+     * Copies the values from another sample into this one. It does not
+     * fail if the other sample is being changed on another thread, as in
+     * SampleHistory, but then the copy may be inconsistent.
+     *
+     * @param other The sample to copy.
+     */
+    public void copyFrom(HeartRateSample other) {
+        seq = other.seq;
+        date = other.date;
+        hr = other.hr;
+        sensorContact = other.sensorContact;
+        ee = other.ee;
+        rrPresent = other.rrPresent;
+        int[] otherRr = other.rr;
+        boolean[] otherArtifacts = other.rrArtifacts;
+        int count = Math.min(other.rrCount, Math.min(otherRr.length,
+                otherArtifacts.length));
+        rrCount = 0;
+        for (int i = 0; i < count; i++) {
+            addRr(otherRr[i]);
+            rrArtifacts[i] = otherArtifacts[i];
+        }
+        rmssd = other.rmssd;
+        sdnn = other.sdnn;
+        pnn50 = other.pnn50;
+        meanHr = other.meanHr;
+    }
+
+    /**
+     * Sets the HRV values from the current values of an analyzer.
+     *
+     * @param hrv The analyzer.
+     */
+    void setHrv(HrvAnalyzer hrv) {
+        rmssd = hrv.getRmssd();
+        sdnn = hrv.getSdnn();
+        pnn50 = hrv.getPnn50();
+        meanHr = hrv.getMeanHr();
+    }
+
+    void setHr(int hr) {
+        this.hr = hr;
+    }
+
+    void setSensorContact(int sensorContact) {
+        this.sensorContact = sensorContact;
+    }
+
+    void setEe(int ee) {
+        this.ee = ee;
+    }
+
+    void setRrPresent(boolean rrPresent) {
+        this.rrPresent = rrPresent;
+    }
+
+    /**
+     * Adds an R-R value, growing the array only if necessary.
+     *
+     * @param value The R-R value in units of 1/1024 sec.
+     */
+    void addRr(int value) {
+        if (rrCount == rr.length) {
+            int[] newRr = new int[2 * rr.length];
+            System.arraycopy(rr, 0, newRr, 0, rrCount);
+            rr = newRr;
+            boolean[] newArtifacts = new boolean[rr.length];
+            System.arraycopy(rrArtifacts, 0, newArtifacts, 0, rrCount);
+            rrArtifacts = newArtifacts;
+        }
+        rrArtifacts[rrCount] = false;
+        rr[rrCount++] = value;
+    }
+
+    /**
+     * Marks the R-R values that are artifacts.
+     *
+     * @param filter The filter for the session.
+     */
+    void filterRr(RrFilter filter) {
+        for (int i = 0; i < rrCount; i++) {
+            rrArtifacts[i] = filter.isArtifact(rr[i]);
+        }
+    }
+
+    /**
+     * Gets the sequence number. The service numbers the samples it receives
+     * consecutively from 1, so a listener can tell which samples it already
+     * has from the SampleHistory.
+     *
+     * @return The sequence number or 0 if there is none.
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    /**
+     * Gets the date.
+     *
+     * @return The date.
+     */
+    public long getDate() {
+        return date;
+    }
+
+    /**
+     * Gets the heart rate.
+     *
+     * @return The heart rate.
+     */
+    public int getHr() {
+        return hr;
+    }
+
+    /**
+     * Gets the sensor contact.
+     *
+     * @return The sensor contact.
+     */
+    @SuppressWarnings("unused")
+    public int getSensorContact() {
+        return sensorContact;
+    }
+
+    /**
+     * Gets the energy expended.
+     *
+     * @return The energy expended.
+     */
+    @SuppressWarnings("unused")
+    public int getEe() {
+        return ee;
+    }
+
+    /**
+     * Gets whether the measurement had the R-R flag set.
+     *
+     * @return If R-R values are present.
+     */
+    public boolean isRrPresent() {
+        return rrPresent;
+    }
+
+    /**
+     * Gets the backing array of R-R values. Only the first getRrCount()
+     * values are valid. The array may be replaced when the sample is reused.
+     *
+     * @return The R-R values in units of 1/1024 sec.
+     */
+    public int[] getRr() {
+        return rr;
+    }
+
+    /**
+     * Gets the backing array of R-R artifact flags. Only the first
+     * getRrCount() values are valid.
+     *
+     * @return Whether each R-R value is an artifact.
+     */
+    public boolean[] getRrArtifacts() {
+        return rrArtifacts;
+    }
+
+    /**
+     * Gets the number of R-R values.
+     *
+     * @return The number of R-R values.
+     */
+    public int getRrCount() {
+        return rrCount;
+    }
+
+    /**
+     * Gets the RMSSD for the HRV window ending with this sample.
+     *
+     * @return The RMSSD (ms) or NaN if not available.
+     */
+    public double getRmssd() {
+        return rmssd;
+    }
+
+    /**
+     * Gets the SDNN for the HRV window ending with this sample.
+     *
+     * @return The SDNN (ms) or NaN if not available.
+     */
+    public double getSdnn() {
+        return sdnn;
+    }
+
+    /**
+     * Gets the pNN50 for the HRV window ending with this sample.
+     *
+     * @return The pNN50 (%) or NaN if not available.
+     */
+    public double getPnn50() {
+        return pnn50;
+    }
+
+    /**
+     * Gets the mean heart rate from the R-R values in the HRV window ending
+     * with this sample.
+     *
+     * @return The mean HR (bpm) or NaN if not available.
+     */
+    public double getHrvMeanHr() {
+        return meanHr;
+    }
+
+    /**
+     * Gets the R-R values as a space-separated String, or INVALID_STRING if
+     * there were none.
+     *
+     * @return The R-R values.
+     */
+    public String getRrString() {
+        if (!rrPresent) {
+            return INVALID_STRING;
+        }
+        StringBuilder sb = new StringBuilder(5 * rrCount);
+        appendRr(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the R-R values separated by spaces to the given StringBuilder.
+     *
+     * @param sb The StringBuilder.
+     * @return The StringBuilder.
+     */
+    public StringBuilder appendRr(StringBuilder sb) {
+        for (int i = 0; i < rrCount; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(rr[i]);
+        }
+        return sb;
+    }
+
+    /**
+     * Gets info on the data in the measurement. This is built each time it
+     * is called.
+     *
+     * @return The info.
+     */
+    public String getInfo() {
+        StringBuilder sb = new StringBuilder(100);
+        sb.append("Heart Rate: ").append(hr);
+        switch (sensorContact) {
+            case 0:
+            case 1:
+                sb.append("\nSensor contact not supported");
+                break;
+            case 2:
+                sb.append("\nSensor contact not detected");
+                break;
+            case 3:
+                sb.append("\nSensor contact detected");
+                break;
+        }
+        sb.append("\nEnergy Expended: ");
+        if (ee != INVALID_INT) {
+            sb.append(ee);
+        } else {
+            sb.append("NA");
+        }
+        sb.append("\nR-R: ");
+        if (rrPresent) {
+            appendRr(sb);
+        } else {
+            sb.append("NA");
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,299 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Computes heart rate variability values from a stream of R-R values. The
+ * values are kept as running integer sums of the R-R values, their squares,
+ * and the squares of the successive differences, so each value is added in
+ * constant time and the results do not drift as values enter and leave the
+ * window.
+ * <p>
+ * With a window, a ring buffer holds the R-R values whose total is within
+ * the window, and the oldest values are subtracted from the sums as new
+ * ones are added. Without a window the sums cover every value added, which
+ * is what is stored for a session.
+ * <p>
+ * Successive differences are only taken between values that were
+ * successive beats. When an artifact is skipped, skip() is called, and the
+ * difference between the values on either side of it is not counted. A
+ * value in the ring with no difference to the one before it is stored as
+ * its complement.
+ * <p>
+ * The R-R values are in units of 1/1024 sec. The results are in ms, beats
+ * per minute, and percent. An instance is not thread safe.
+ */
+public class HrvAnalyzer {
+    /**
+     * R-R units per second.
+     */
+    private static final double RR_UNITS_PER_SEC = 1024.;
+    /**
+     * A difference d counts for pNN50 if 1000 * |d| is greater than this,
+     * which is 50 ms in R-R units times 1000.
+     */
+    private static final long NN50_THRESHOLD = 50 * 1024;
+    private static final int INITIAL_CAPACITY = 512;
+
+    /**
+     * The length of the window in R-R units or 0 for no window.
+     */
+    private final long mWindow;
+    private int[] mRing;
+    private int mHead;
+    private int mSize;
+    /**
+     * The last R-R value added or -1 if there is none.
+     */
+    private int mLast = -1;
+
+    private long mCount;
+    private long mSum;
+    private long mSumSq;
+    private long mDiffCount;
+    private long mDiffSumSq;
+    private long mNn50Count;
+
+    /**
+     * Constructor.
+     *
+     * @param windowSec The length of the window (sec), or 0 to use all the
+     *                  values added.
+     */
+    public HrvAnalyzer(int windowSec) {
+        mWindow = Math.max(0, windowSec) * 1024L;
+        if (mWindow > 0) {
+            mRing = new int[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * Removes all the values.
+     */
+    public void reset() {
+        clearTotals();
+        mHead = mSize = 0;
+        mLast = -1;
+    }
+
+    /**
+     * Sets the sums to zero but keeps the last value, so the difference to
+     * the next value is still counted. Used without a window to get the
+     * totals for consecutive runs of values.
+     */
+    public void clearTotals() {
+        mCount = mSum = mSumSq = 0;
+        mDiffCount = mDiffSumSq = mNn50Count = 0;
+        mHead = mSize = 0;
+    }
+
+    /**
+     * Marks a gap in the values, such as an artifact that is not added, so
+     * the difference between the last value and the next one is not
+     * counted.
+     */
+    public void skip() {
+        mLast = -1;
+    }
+
+    /**
+     * Adds an R-R value.
+     *
+     * @param rr The value in units of 1/1024 sec.
+     */
+    public void add(int rr) {
+        boolean hasDiff = mLast >= 0;
+        if (hasDiff) {
+            long diff = rr - mLast;
+            mDiffSumSq += diff * diff;
+            mDiffCount++;
+            if (1000 * Math.abs(diff) > NN50_THRESHOLD) {
+                mNn50Count++;
+            }
+        }
+        mLast = rr;
+        mCount++;
+        mSum += rr;
+        mSumSq += (long) rr * rr;
+        if (mRing == null) {
+            return;
+        }
+        if (mSize == mRing.length) {
+            int[] ring = new int[2 * mRing.length];
+            for (int i = 0; i < mSize; i++) {
+                ring[i] = mRing[(mHead + i) % mRing.length];
+            }
+            mRing = ring;
+            mHead = 0;
+        }
+        mRing[(mHead + mSize) % mRing.length] = hasDiff ? rr : ~rr;
+        mSize++;
+        while (mSum > mWindow && mSize > 1) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * Adds the R-R values from a BLOB as stored in the database, skipping
+     * the artifacts. The differences across an artifact are not counted.
+     *
+     * @param blob The packed values or null.
+     * @param mask The artifact mask or null.
+     */
+    public void add(byte[] blob, byte[] mask) {
+        if (blob == null) {
+            return;
+        }
+        int count = blob.length / 2;
+        for (int i = 0, j = 0; i < count; i++, j += 2) {
+            if (BCMDbAdapter.isRrArtifact(mask, i)) {
+                skip();
+            } else {
+                add((blob[j] & 0xFF) | ((blob[j + 1] & 0xFF) << 8));
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest value in the window and its difference to the next
+     * one, if that was counted.
+     */
+    private void removeOldest() {
+        int oldest = mRing[mHead];
+        if (oldest < 0) {
+            oldest = ~oldest;
+        }
+        mHead = (mHead + 1) % mRing.length;
+        mSize--;
+        int next = mRing[mHead];
+        if (next >= 0) {
+            long diff = next - oldest;
+            mDiffSumSq -= diff * diff;
+            mDiffCount--;
+            if (1000 * Math.abs(diff) > NN50_THRESHOLD) {
+                mNn50Count--;
+            }
+        }
+        mCount--;
+        mSum -= oldest;
+        mSumSq -= (long) oldest * oldest;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getSum() {
+        return mSum;
+    }
+
+    public long getSumSq() {
+        return mSumSq;
+    }
+
+    public long getDiffCount() {
+        return mDiffCount;
+    }
+
+    public long getDiffSumSq() {
+        return mDiffSumSq;
+    }
+
+    public long getNn50Count() {
+        return mNn50Count;
+    }
+
+    /**
+     * Gets the root mean square of the successive differences.
+     *
+     * @return The RMSSD (ms) or NaN if there are fewer than 2 values.
+     */
+    public double getRmssd() {
+        return rmssd(mDiffSumSq, mDiffCount);
+    }
+
+    /**
+     * Gets the standard deviation of the R-R values.
+     *
+     * @return The SDNN (ms) or NaN if there are fewer than 2 values.
+     */
+    public double getSdnn() {
+        return sdnn(mSum, mSumSq, mCount);
+    }
+
+    /**
+     * Gets the percentage of successive differences greater than 50 ms.
+     *
+     * @return The pNN50 (%) or NaN if there are fewer than 2 values.
+     */
+    public double getPnn50() {
+        return pnn50(mNn50Count, mDiffCount);
+    }
+
+    /**
+     * Gets the mean heart rate from the R-R values.
+     *
+     * @return The mean HR (bpm) or NaN if there are no values.
+     */
+    public double getMeanHr() {
+        return meanHr(mSum, mCount);
+    }
+
+    /**
+     * Calculates the RMSSD from totals.
+     *
+     * @param diffSumSq The sum of the squares of the successive differences.
+     * @param diffCount The number of successive differences.
+     * @return The RMSSD (ms) or NaN if there are no differences.
+     */
+    public static double rmssd(long diffSumSq, long diffCount) {
+        if (diffCount <= 0) {
+            return Double.NaN;
+        }
+        return 1000 * Math.sqrt((double) diffSumSq / diffCount)
+                / RR_UNITS_PER_SEC;
+    }
+
+    /**
+     * Calculates the SDNN from totals.
+     *
+     * @param sum   The sum of the R-R values.
+     * @param sumSq The sum of the squares of the R-R values.
+     * @param count The number of R-R values.
+     * @return The SDNN (ms) or NaN if there are fewer than 2 values.
+     */
+    public static double sdnn(long sum, long sumSq, long count) {
+        if (count < 2) {
+            return Double.NaN;
+        }
+        double var = (sumSq - (double) sum * sum / count) / (count - 1);
+        return 1000 * Math.sqrt(Math.max(0, var)) / RR_UNITS_PER_SEC;
+    }
+
+    /**
+     * Calculates the pNN50 from totals.
+     *
+     * @param nn50Count The number of differences greater than 50 ms.
+     * @param diffCount The number of successive differences.
+     * @return The pNN50 (%) or NaN if there are no differences.
+     */
+    public static double pnn50(long nn50Count, long diffCount) {
+        if (diffCount <= 0) {
+            return Double.NaN;
+        }
+        return 100. * nn50Count / diffCount;
+    }
+
+    /**
+     * Calculates the mean heart rate from totals.
+     *
+     * @param sum   The sum of the R-R values.
+     * @param count The number of R-R values.
+     * @return The mean HR (bpm) or NaN if there are no values.
+     */
+    public static double meanHr(long sum, long count) {
+        if (count <= 0 || sum <= 0) {
+            return Double.NaN;
+        }
+        return 60 * RR_UNITS_PER_SEC * count / sum;
+    }
+
+}
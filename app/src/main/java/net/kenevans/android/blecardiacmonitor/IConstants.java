@@ -110,6 +110,11 @@ public interface IConstants {
     String PREF_PLOT_RR = "plotRrPreference";
     String PREF_PLOT_INTERVAL = "plotIntervalPreference";
     String PREF_MANUALLY_DISCONNECTED = "manuallyDisconnected";
+    String PREF_EXPORT_COMPRESSION = "exportCompressionPreference";
+    String PREF_EXPORT_COMPRESSION_LEVEL =
+            "exportCompressionLevelPreference";
+    String PREF_HRV_WINDOW = "hrvWindowPreference";
+    String PREF_RR_FILTER = "rrFilterPreference";
 
     // Session
     int SESSION_IDLE = 0;
@@ -171,9 +176,93 @@ public interface IConstants {
      */
     String DB_DATA_TABLE = "data";
     /**
-     * The database version
+     * Simple name of the sessions table. It has one row per recording, the
+     * rows in the data table with the same start date, with summary values
+     * that are kept up to date as data is added.
      */
-    int DB_VERSION = 1;
+    String DB_SESSIONS_TABLE = "sessions";
+    /**
+     * Simple name of the session map table. It has the start date of the
+     * session each recording belongs to, so sessions can be merged and split
+     * without changing the data table.
+     */
+    String DB_SESSION_MAP_TABLE = "sessionmap";
+    /**
+     * Simple name of the rollups table. It has min/max/sum/count values of
+     * the heart rate and R-R for each session in time buckets at several
+     * levels.
+     */
+    String DB_ROLLUPS_TABLE = "rollups";
+    /**
+     * The bucket interval in ms for each rollup level, from finest to
+     * coarsest.
+     */
+    long[] ROLLUP_INTERVALS = {1000, 10000, 60000, 600000};
+    /**
+     * Simple name of the restore table. It has one row while a database
+     * restore is in progress, recording how far it has got so it can be
+     * resumed.
+     */
+    String DB_RESTORE_TABLE = "restorestate";
+    /**
+     * The database version. Version 2 stores the R-R values as a packed
+     * BLOB. Version 3 adds indexes on (startdate, date) and (date). Version 4
+     * adds the sessions table. Version 5 adds the rollups table. Version 6
+     * adds the restore table. Version 7 adds the HRV totals to the sessions
+     * table. Version 8 adds the R-R artifact mask. Version 9 adds the session
+     * map table.
+     */
+    int DB_VERSION = 9;
+    /**
+     * The SQLite synchronous level used with the write-ahead log. NORMAL
+     * only syncs at checkpoints, so a commit cannot corrupt the database but
+     * the last commits may be lost if the power fails.
+     */
+    String DB_SYNCHRONOUS = "NORMAL";
+    /**
+     * The amount of the database file that is memory mapped for reading by
+     * the write connection. Ignored by versions of SQLite older than 3.7.17.
+     */
+    long DB_MMAP_SIZE = 32 * 1024 * 1024;
+    /**
+     * Number of queued rows that causes them to be written in one
+     * transaction.
+     */
+    int DB_WRITE_BATCH_SIZE = 64;
+    /**
+     * Maximum time a queued row waits before being written (ms).
+     */
+    long DB_WRITE_MAX_DELAY = 2000;
+    /**
+     * Number of times a batch that failed to be written is tried again
+     * before its rows are dropped.
+     */
+    int DB_WRITE_MAX_RETRIES = 5;
+    /**
+     * Number of slots in the buffer between the GATT callback and the ingest
+     * thread. Must be a power of 2.
+     */
+    int INGEST_BUFFER_CAPACITY = 256;
+    /**
+     * Initial size of each slot in the ingest buffer. A default 20-byte ATT
+     * payload fits.
+     */
+    int INGEST_SLOT_SIZE = 32;
+    /**
+     * Maximum time to wait for the ingest thread to catch up when flushing
+     * (ms).
+     */
+    long INGEST_DRAIN_TIMEOUT = 1000;
+    /**
+     * How long the service keeps the recent samples in memory for plots
+     * that attach to it (ms).
+     */
+    long HISTORY_MAX_AGE = 300000;
+    /**
+     * Maximum number of recent samples the service keeps in memory. Allows
+     * for 4 samples per second over HISTORY_MAX_AGE.
+     */
+    int HISTORY_CAPACITY = 1200;
     /**
      * Database column for the id. Identifies the row.
      */
@@ -187,17 +276,130 @@ public interface IConstants {
      */
     String COL_START_DATE = "startdate";
     /**
-     * Database column for the end date.
+     * Sessions table column for the end date.
+     */
+    String COL_END_DATE = "enddate";
+    /**
+     * Session map table column for the start date of the session a
+     * recording belongs to.
+     */
+    String COL_SESSION_START = "sessionstart";
+    /**
+     * Sessions and rollups table column for the number of samples.
+     */
+    String COL_N_SAMPLES = "nsamples";
+    /**
+     * Sessions and rollups table column for the minimum valid heart rate.
+     * Null if there are none.
+     */
+    String COL_HR_MIN = "hrmin";
+    /**
+     * Sessions and rollups table column for the maximum valid heart rate.
+     * Null if there are none.
+     */
+    String COL_HR_MAX = "hrmax";
+    /**
+     * Sessions and rollups table column for the sum of the valid heart rates.
+     */
+    String COL_HR_SUM = "hrsum";
+    /**
+     * Sessions and rollups table column for the number of valid heart
+     * rates.
+     */
+    String COL_HR_COUNT = "hrcount";
+    /**
+     * Sessions and rollups table column for the number of R-R values that
+     * are not artifacts.
+     */
+    String COL_RR_COUNT = "rrcount";
+    /**
+     * Rollups table column for the minimum R-R value. Null if there are
+     * none.
+     */
+    String COL_RR_MIN = "rrmin";
+    /**
+     * Rollups table column for the maximum R-R value. Null if there are
+     * none.
+     */
+    String COL_RR_MAX = "rrmax";
+    /**
+     * Sessions and rollups table column for the sum of the R-R values that
+     * are not artifacts. The R-R totals below also skip artifacts.
+     */
+    String COL_RR_SUM = "rrsum";
+    /**
+     * Sessions table column for the sum of the squares of the R-R values.
+     */
+    String COL_RR_SUM_SQ = "rrsumsq";
+    /**
+     * Sessions table column for the sum of the squares of the differences
+     * between successive R-R values.
+     */
+    String COL_RR_DIFF_SUM_SQ = "rrdiffsumsq";
+    /**
+     * Sessions table column for the number of differences between
+     * successive R-R values.
+     */
+    String COL_RR_DIFF_COUNT = "rrdiffcount";
+    /**
+     * Sessions table column for the number of differences between
+     * successive R-R values that are greater than 50 ms.
+     */
+    String COL_NN50_COUNT = "nn50count";
+    /**
+     * Rollups table column for the level, an index into ROLLUP_INTERVALS.
+     */
+    String COL_LEVEL = "level";
+    /**
+     * Rollups table column for the bucket, the date divided by the interval
+     * for the level.
      */
-    String COL_END_DATE = "MAX(" + COL_DATE + ")";
+    String COL_BUCKET = "bucket";
     /**
      * Database column for the heart rate.
      */
     String COL_HR = "hr";
     /**
-     * Database column for the R-R.
+     * Database column for the R-R. The values are stored as a BLOB of
+     * little-endian uint16 values in units of 1/1024 sec. A null value means
+     * the measurement had no R-R values.
      */
     String COL_RR = "rr";
+    /**
+     * Database column for the R-R artifact mask. Bit i of byte i / 8 is set
+     * if R-R value i is an artifact. A null value means there are none.
+     */
+    String COL_RR_MASK = "rrmask";
+    /**
+     * Restore table column for the path of the file being restored.
+     */
+    String COL_PATH = "path";
+    /**
+     * Restore table column for the length of the file being restored.
+     */
+    String COL_LENGTH = "length";
+    /**
+     * Restore table column for the modification time of the file being
+     * restored.
+     */
+    String COL_MODIFIED = "modified";
+    /**
+     * Restore table column for the offset in the file of the first line not
+     * yet restored.
+     */
+    String COL_OFFSET = "fileoffset";
+    /**
+     * Restore table column for the number of lines read.
+     */
+    String COL_LINES = "nlines";
+    /**
+     * Restore table column for the number of rows restored.
+     */
+    String COL_ROWS = "nrows";
+    /**
+     * Restore table column for the number of lines with errors.
+     */
+    String COL_ERRORS = "nerrors";
     // /** Database column for the temporary flag. */
     //  String COL_TMP = "temporary";
     /**
@@ -213,6 +415,17 @@ public interface IConstants {
      */
     String SAVE_DATABASE_FILENAME_TEMPLATE = SAVE_DATABASE_FILENAME_PREFIX
             + ".%s" + SAVE_DATABASE_FILENAME_SUFFIX;
+    /**
+     * Suffix for the file name for saving the database in binary format.
+     */
+    String SAVE_DATABASE_BINARY_FILENAME_SUFFIX = ".bcm";
+    /**
+     * Template for creating the file name for saving the database in binary
+     * format.
+     */
+    String SAVE_DATABASE_BINARY_FILENAME_TEMPLATE =
+            SAVE_DATABASE_FILENAME_PREFIX + ".%s"
+                    + SAVE_DATABASE_BINARY_FILENAME_SUFFIX;
     /**
      * Name of the file that will be restored. It would typically be a file that
      * was previously saved and then renamed.
@@ -227,6 +440,78 @@ public interface IConstants {
      * Delimiter for saving the database.
      */
     String SAVE_DATABASE_DELIM = ",";
+    /**
+     * Start of the lines at the end of a saved database that give the
+     * session of each merged recording. They start with # so older versions
+     * skip them.
+     */
+    String SAVE_DATABASE_SESSION_MAP = "#sessionmap";
+    /**
+     * Size of the buffer used when writing exported files.
+     */
+    int EXPORT_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Number of rows read in each query when exporting or saving data.
+     */
+    int DATA_CHUNK_SIZE = 2000;
+    /**
+     * Maximum size of the sessions held by the SessionCache, in bytes.
+     */
+    long SESSION_CACHE_BUDGET = 16 * 1024 * 1024;
+    /**
+     * Maximum fraction of the heap used by the SessionCache.
+     */
+    double SESSION_CACHE_HEAP_FRACTION = .125;
+    /**
+     * Maximum number of threads used to export sessions. The export is
+     * mostly limited by storage, so more threads do not help.
+     */
+    int EXPORT_MAX_THREADS = 4;
+    /**
+     * Default compression level for compressed exports. Level 1 compresses
+     * CSV and GPX files several times while being fast enough that the
+     * export is still limited by storage rather than by compression.
+     */
+    int EXPORT_COMPRESSION_LEVEL = 1;
+    /**
+     * Size of the buffer used when reading a database file to restore.
+     */
+    int RESTORE_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Number of rows restored in each transaction. The progress is saved
+     * with each transaction, so this is also how much is redone when a
+     * restore is resumed.
+     */
+    int RESTORE_BATCH_SIZE = 5000;
+    /**
+     * Default length of the window for the live HRV values (sec). Five
+     * minutes is the usual length for short-term HRV.
+     */
+    int HRV_WINDOW = 300;
+    /**
+     * Maximum length of the window for the live HRV values (sec).
+     */
+    int HRV_MAX_WINDOW = 24 * 60 * 60;
+    /**
+     * Number of previous R-R values whose median is used by the median
+     * R-R filter.
+     */
+    int RR_FILTER_WINDOW = 7;
+    /**
+     * Fraction of the median an R-R value may differ from it without being
+     * an artifact.
+     */
+    double RR_FILTER_TOLERANCE = .2;
+    /**
+     * Smallest R-R value that is not an artifact, in units of 1/1024 sec.
+     * 0.25 sec is 240 bpm.
+     */
+    int RR_FILTER_MIN = 256;
+    /**
+     * Largest R-R value that is not an artifact, in units of 1/1024 sec.
+     * 3 sec is 20 bpm.
+     */
+    int RR_FILTER_MAX = 3072;
 
     /**
      * SQL sort command for date ascending
@@ -281,14 +566,6 @@ public interface IConstants {
      * The intent code for the date.
      */
     String EXTRA_DATE = PACKAGE_NAME + ".extraDate";
-    /**
-     * The intent code for the heart rate.
-     */
-    String EXTRA_HR = PACKAGE_NAME + ".extraHr";
-    /**
-     * The intent code for the R-R values.
-     */
-    String EXTRA_RR = PACKAGE_NAME + ".extraRr";
     /**
      * The intent code for the battery level.
      */
@@ -347,6 +624,20 @@ public interface IConstants {
      * Maximum item age for real-time plot, in ms.
      */
     int PLOT_MAXIMUM_AGE = 300000;
+    /**
+     * Maximum number of points per second kept for each real-time series.
+     * R-R values at 240 bpm arrive at 4 per second.
+     */
+    int PLOT_LIVE_POINTS_PER_SECOND = 4;
+    /**
+     * Maximum number of plot redraws per second, 0 for every frame.
+     */
+    int PLOT_TARGET_FPS = 30;
+    /**
+     * Number of rows read in each chunk, and between redraws, when loading
+     * a plot.
+     */
+    int PLOT_LOAD_PAGE_SIZE = 1000;
 
     // Formatters
     /**
@@ -0,0 +1,139 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated single-producer / single-consumer ring buffer of raw
+ * characteristic values. The producer copies the bytes and the time stamps
+ * into the next free slot with offer(). The consumer gets the index of the
+ * oldest slot with peek(), reads it in place, and then calls release(). No
+ * locks are used, and nothing is allocated unless a value is longer than a
+ * slot.
+ */
+public class PacketRingBuffer {
+    private final byte[][] mData;
+    private final int[] mLengths;
+    private final long[] mDates;
+    private final long[] mNanos;
+    private final int mMask;
+    /**
+     * Index of the next slot to read. Only written by the consumer.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+    /**
+     * Index of the next slot to write. Only written by the producer.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+    /**
+     * Number of values dropped because the buffer was full.
+     */
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of slots. Must be a power of 2.
+     * @param slotSize The initial number of bytes in each slot.
+     */
+    public PacketRingBuffer(int capacity, int slotSize) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of 2");
+        }
+        mMask = capacity - 1;
+        mData = new byte[capacity][slotSize];
+        mLengths = new int[capacity];
+        mDates = new long[capacity];
+        mNanos = new long[capacity];
+    }
+
+    /**
+     * Copies a value into the next free slot. Producer only.
+     *
+     * @param data  The value.
+     * @param date  The date it was received.
+     * @param nanos The System.nanoTime() it was received.
+     * @return If there was room. If not, the value is dropped.
+     */
+    public boolean offer(byte[] data, long date, long nanos) {
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        int slot = (int) (tail & mMask);
+        int length = data == null ? 0 : data.length;
+        if (length > mData[slot].length) {
+            mData[slot] = new byte[length];
+        }
+        if (length > 0) {
+            System.arraycopy(data, 0, mData[slot], 0, length);
+        }
+        mLengths[slot] = length;
+        mDates[slot] = date;
+        mNanos[slot] = nanos;
+        // Publish the slot
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Gets the slot of the oldest value. Consumer only.
+     *
+     * @return The slot or -1 if the buffer is empty.
+     */
+    public int peek() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return -1;
+        }
+        return (int) (head & mMask);
+    }
+
+    /**
+     * Frees the slot returned by peek(). Consumer only.
+     */
+    public void release() {
+        mHead.lazySet(mHead.get() + 1);
+    }
+
+    /**
+     * Gets the bytes in a slot. Only the first getLength(slot) are valid.
+     *
+     * @param slot The slot.
+     * @return The bytes.
+     */
+    public byte[] getData(int slot) {
+        return mData[slot];
+    }
+
+    public int getLength(int slot) {
+        return mLengths[slot];
+    }
+
+    public long getDate(int slot) {
+        return mDates[slot];
+    }
+
+    public long getNanos(int slot) {
+        return mNanos[slot];
+    }
+
+    /**
+     * Gets the number of values waiting to be consumed.
+     *
+     * @return The number of values.
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * Gets the number of values dropped because the buffer was full.
+     *
+     * @return The number dropped.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+}
@@ -2,23 +2,31 @@ package net.kenevans.android.blecardiacmonitor;
 
 import android.app.Activity;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.WindowManager;
 
+import com.androidplot.Plot;
+import com.androidplot.PlotListener;
 import com.androidplot.xy.BoundaryMode;
 import com.androidplot.xy.LineAndPointFormatter;
 import com.androidplot.xy.PanZoom;
-import com.androidplot.xy.SimpleXYSeries;
+import com.androidplot.xy.RectRegion;
 import com.androidplot.xy.StepMode;
 import com.androidplot.xy.XYGraphWidget;
 import com.androidplot.xy.XYPlot;
@@ -30,7 +38,9 @@ import java.text.FieldPosition;
 import java.text.Format;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import androidx.annotation.NonNull;
@@ -53,17 +63,103 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
     private long mPlotStartTime = INVALID_DATE;
     private long mPlotSessionStart = INVALID_DATE;
     private boolean mIsSession = false;
-    private long mLastRrUpdateTime = INVALID_DATE;
-    private long mLastRrTime = INVALID_DATE;
 
     private double RR_SCALE = .1;  // to 100 ms to use same axis
 
     private Context context;
     private XYSeriesFormatter hrFormatter;
     private XYSeriesFormatter rrFormatter;
-    private SimpleXYSeries hrSeries;
-    private SimpleXYSeries rrSeries;
+    /**
+     * Guards mSeries, mLoadTask, mPendingSamples, and mLastSeq, which are
+     * used on the service ingest thread by addValues and on the main thread.
+     */
+    private final Object mSeriesLock = new Object();
+    private SeriesSet mSeries;
+    private SeriesLoadTask mLoadTask;
+    private final List<HeartRateSample> mPendingSamples = new ArrayList<>();
+    /**
+     * The sequence number of the last sample from the service added to the
+     * series, so samples that are in both a history snapshot and delivered
+     * to mHrListener are only added once.
+     */
+    private long mLastSeq;
+    private RedrawScheduler mRedrawScheduler;
+    private BCMBleService mService;
+    private boolean mServiceBound;
 
+    /**
+     * Receives every heart rate measurement on the service ingest thread.
+     */
+    private final HeartRateListener mHrListener = new HeartRateListener() {
+        @Override
+        public void onHeartRate(HeartRateSample sample) {
+            addValues(sample);
+        }
+    };
+
+    /**
+     * Downsamples the series to the current domain and width before each
+     * draw, so the cost of drawing does not depend on the number of points.
+     */
+    private final PlotListener mPlotListener = new PlotListener() {
+        @Override
+        public void onBeforeDraw(Plot plot, Canvas canvas) {
+            RectRegion bounds = mPlot.getBounds();
+            double minX = Double.NaN, maxX = Double.NaN;
+            if (bounds != null && bounds.getMinX() != null
+                    && bounds.getMaxX() != null) {
+                minX = bounds.getMinX().doubleValue();
+                maxX = bounds.getMaxX().doubleValue();
+            }
+            int nPixels = mPlot.getWidth();
+            SeriesSet series = mSeries;
+            if (series == null) {
+                return;
+            }
+            if (series.hr != null) {
+                series.hr.setViewport(minX, maxX, nPixels);
+            }
+            if (series.rr != null) {
+                series.rr.setViewport(minX, maxX, nPixels);
+            }
+        }
+
+        @Override
+        public void onAfterDraw(Plot plot, Canvas canvas) {
+        }
+    };
+
+    /**
+     * Manages the connection to the service that supplies the current data.
+     */
+    private final ServiceConnection mServiceConnection = new
+            ServiceConnection() {
+                @Override
+                public void onServiceConnected(ComponentName componentName,
+                                               IBinder service) {
+                    Log.d(TAG, "onServiceConnected");
+                    mService = ((BCMBleService.LocalBinder) service)
+                            .getService();
+                    // Not conflated. Every sample is needed for the R-R
+                    // values. Add what arrived since the series were
+                    // filled from the history.
+                    List<HeartRateSample> samples = mService
+                            .addHeartRateListener(mHrListener,
+                                    new Date().getTime() - mPlotInterval);
+                    synchronized (mSeriesLock) {
+                        if (mLoadTask == null && mSeries != null) {
+                            addSamplesLocked(samples);
+                        }
+                    }
+                    update();
+                }
+
+                @Override
+                public void onServiceDisconnected(ComponentName componentName) {
+                    Log.d(TAG, "onServiceDisconnected");
+                    mService = null;
+                }
+            };
 
     /**
      * Handles various events fired by the Service.
@@ -73,19 +169,16 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
      * ACTION_GATT_CONNECTED: connected to a GATT server.<br>
      * ACTION_GATT_DISCONNECTED: disconnected from a GATT server.<br>
      * ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.<br>
-     * ACTION_DATA_AVAILABLE: received data from the device. This can be a
-     * result of read or notification operations.<br>
+     * ACTION_ERROR: an error occurred.<br>
+     * <br>
+     * Heart rate data comes through mHrListener.
      */
     private final BroadcastReceiver mGattUpdateReceiver = new
             BroadcastReceiver() {
                 @Override
                 public void onReceive(Context context, Intent intent) {
                     final String action = intent.getAction();
-                    if (BCMBleService.ACTION_DATA_AVAILABLE.equals(action)) {
-//                        Log.d(TAG, "mGattUpdateReceiver:onReceive: " +
-//                                action);
-                        addValues(intent);
-                    } else if (BCMBleService.ACTION_ERROR.equals(action)) {
+                    if (BCMBleService.ACTION_ERROR.equals(action)) {
 //                        Log.d(TAG, "mGattUpdateReceiver:onReceive: " +
 //                                action);
                         displayError(intent);
@@ -104,7 +197,7 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
         // intentFilter.addAction(BCMBleService.ACTION_GATT_DISCONNECTED);
         // intentFilter
         // .addAction(BCMBleService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BCMBleService.ACTION_DATA_AVAILABLE);
+        intentFilter.addAction(BCMBleService.ACTION_ERROR);
         return intentFilter;
     }
 
@@ -119,6 +212,15 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
         }
         setContentView(R.layout.activity_plot);
         mPlot = findViewById(R.id.plot);
+        if (mPlot != null) {
+            mPlot.addListener(mPlotListener);
+            mRedrawScheduler = new RedrawScheduler(new Runnable() {
+                @Override
+                public void run() {
+                    mPlot.redraw();
+                }
+            }, PLOT_TARGET_FPS);
+        }
 
         // Get whether to plot a session or current
         Bundle extras = getIntent().getExtras();
@@ -161,8 +263,7 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
     @Override
     protected void onResume() {
         Log.d(TAG, this.getClass().getSimpleName() + ": onResume: " + "mPlot="
-                + mPlot + " hrSeries=" + hrSeries + " rrSeries="
-                + rrSeries);
+                + mPlot + " mSeries=" + mSeries);
         super.onResume();
         // Get the settings
         SharedPreferences prefs = PreferenceManager
@@ -190,6 +291,10 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
         if (!mIsSession) {
             Log.d(TAG, "onResume: Starting registerReceiver");
             registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+            // Don't create the service if it is not running
+            Intent gattServiceIntent = new Intent(this, BCMBleService.class);
+            mServiceBound = bindService(gattServiceIntent,
+                    mServiceConnection, 0);
             mPlotStartTime = new Date().getTime() - mPlotInterval;
             // Make it keep the screen on
             getWindow()
@@ -201,14 +306,31 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
         }
         // Create the datasets and fill them
         refresh();
+        if (mRedrawScheduler != null) {
+            mRedrawScheduler.start();
+        }
     }
 
     @Override
     protected void onPause() {
         Log.d(TAG, this.getClass().getSimpleName() + ": onPause");
         super.onPause();
+        cancelLoad();
+        if (mRedrawScheduler != null) {
+            mRedrawScheduler.stop();
+            Log.d(TAG, "onPause: Redraws: "
+                    + mRedrawScheduler.getStatistics());
+        }
         if (!mIsSession) {
             unregisterReceiver(mGattUpdateReceiver);
+            if (mService != null) {
+                mService.removeHeartRateListener(mHrListener);
+                mService = null;
+            }
+            if (mServiceBound) {
+                unbindService(mServiceConnection);
+                mServiceBound = false;
+            }
         }
     }
 
@@ -349,219 +471,570 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
     }
 
     /**
-     * Creates the data sets and series.
+     * Creates new, empty series and shows them. When not in a session they
+     * are filled from the service history if it has samples for the plot
+     * interval. Otherwise it starts loading them from the database in the
+     * background.
      */
     private void createSeries() {
         Log.d(TAG, "Creating series");
         if (!mPlotHr && !mPlotRr) {
             Utils.errMsg(this, "Neither HR nor RR is selected to be plotted");
         }
-        if (mPlotHr) {
-            hrSeries = new SimpleXYSeries("HR");
-//            if (!mIsSession) {
-//                mHrSeries.setMaximumItemAge(mPlotInterval);
-//            }
-        } else {
-            hrSeries = null;
+        cancelLoad();
+        SeriesSet series = new SeriesSet();
+        List<HeartRateSample> samples = null;
+        if (!mIsSession && mPlotInterval <= HISTORY_MAX_AGE) {
+            samples = BCMBleService.getHistory().snapshot(
+                    new Date().getTime() - mPlotInterval);
         }
-        if (mPlotRr) {
-            rrSeries = new SimpleXYSeries("RR");
-//            if (!mIsSession) {
-//                mRrSeries.setMaximumItemAge(mPlotInterval);
-//            }
-        } else {
-            rrSeries = null;
-        }
-        mLastRrTime = INVALID_DATE;
-        mLastRrUpdateTime = INVALID_DATE;
-        Cursor cursor = null;
-        int nHrItems = 0, nRrItems = 0;
-        int nErrors = 0;
-        boolean res;
-        try {
-            if (mDbAdapter != null) {
-                if (mIsSession) {
-                    cursor = mDbAdapter
-                            .fetchAllHrRrDateDataForStartDate
-                                    (mPlotSessionStart);
-                } else {
-                    cursor = mDbAdapter
-                            .fetchAllHrRrDateDataStartingAtDate
-                                    (mPlotStartTime);
-                }
-                int indexDate = cursor.getColumnIndex(COL_DATE);
-                int indexHr = mPlotHr ? cursor.getColumnIndex(COL_HR) : -1;
-                int indexRr = mPlotRr ? cursor.getColumnIndex(COL_RR) : -1;
-
-                // Loop over items
-                cursor.moveToFirst();
-                long date;
-                double hr;
-                String rrString;
-                while (!cursor.isAfterLast()) {
-                    date = cursor.getLong(indexDate);
-                    if (indexHr > -1) {
-                        hr = cursor.getInt(indexHr);
-                        if (hr == INVALID_INT) {
-                            hr = Double.NaN;
-                        }
-                        hrSeries.addLast(date, hr);
-                        nHrItems++;
-                    }
-                    if (indexRr > -1) {
-                        rrString = cursor.getString(indexRr);
-                        if (nRrItems == 0) {
-                            mLastRrUpdateTime = date;
-                            mLastRrTime = date - INITIAL_RR_START_TIME;
-                        }
-                        res = addRrValues(date, rrString);
-                        nRrItems++;
-                        if (!res) {
-                            nErrors++;
-                        }
-                    }
-                    cursor.moveToNext();
-                }
+        boolean filled = samples != null && !samples.isEmpty();
+        synchronized (mSeriesLock) {
+            setSeriesLocked(series);
+            mPendingSamples.clear();
+            mLastSeq = 0;
+            if (filled) {
+                addSamplesLocked(samples);
             }
-        } catch (Exception ex) {
-            Utils.excMsg(this, "Error creating datasets", ex);
-        } finally {
-            try {
-                if (cursor != null) cursor.close();
-            } catch (Exception ex) {
-                // Do nothing
+        }
+        if (filled) {
+            Log.d(TAG, "Filled series from history: " + samples.size()
+                    + " samples");
+            update();
+            return;
+        }
+        if (mDbAdapter == null) {
+            update();
+            return;
+        }
+        int nPixels = mPlot.getWidth();
+        if (nPixels <= 0) {
+            // Not laid out yet
+            nPixels = getResources().getDisplayMetrics().widthPixels;
+        }
+        SeriesLoadTask task = new SeriesLoadTask(series, nPixels);
+        synchronized (mSeriesLock) {
+            mLoadTask = task;
+        }
+        task.execute();
+    }
+
+    /**
+     * Adds samples from the service history to the series, skipping those
+     * that have already been added. Must be called holding mSeriesLock.
+     *
+     * @param samples The samples, oldest first.
+     */
+    private void addSamplesLocked(List<HeartRateSample> samples) {
+        for (HeartRateSample sample : samples) {
+            // Also skip those already loaded from the database
+            if (sample.getSeq() > mLastSeq
+                    && (mSeries.lastDate == INVALID_DATE
+                    || sample.getDate() > mSeries.lastDate)) {
+                mSeries.addSample(sample);
+                mLastSeq = sample.getSeq();
+            }
+        }
+    }
+
+    /**
+     * Cancels loading the series, if it is in progress.
+     */
+    private void cancelLoad() {
+        SeriesLoadTask task;
+        synchronized (mSeriesLock) {
+            task = mLoadTask;
+            mLoadTask = null;
+            mPendingSamples.clear();
+        }
+        if (task != null) {
+            task.cancel(false);
+            task.mSignal.cancel();
+        }
+    }
+
+    /**
+     * Replaces the series in the plot. Must be called holding mSeriesLock on
+     * the main thread.
+     *
+     * @param series The new series.
+     */
+    private void setSeriesLocked(SeriesSet series) {
+        // Remove the previous series so they are not drawn as well
+        if (mSeries != null) {
+            if (mSeries.hr != null) {
+                mPlot.removeSeries(mSeries.hr);
             }
+            if (mSeries.rr != null) {
+                mPlot.removeSeries(mSeries.rr);
+            }
+        }
+        mSeries = series;
+        if (series.hr != null) {
+            mPlot.addSeries(series.hr, hrFormatter);
+        }
+        if (series.rr != null) {
+            mPlot.addSeries(series.rr, rrFormatter);
         }
-        if (nErrors > 0) {
-            Utils.errMsg(this, nErrors + " creating RR series");
+    }
+
+    /**
+     * Gets the coarsest rollup level that still has at least one bucket per
+     * pixel for the session being plotted. Queries the database.
+     *
+     * @param nPixels The width of the plot in pixels.
+     * @return The level or -1 to use the raw data.
+     */
+    private int getRollupLevel(int nPixels) {
+        if (mDbAdapter == null) {
+            return -1;
         }
-        if (mPlotHr) {
-            Log.d(TAG, "HR series created with " + nHrItems + " items");
-            mPlot.addSeries(hrSeries, hrFormatter);
+        long end = mDbAdapter.getSessionEndDate(mPlotSessionStart);
+        if (end == INVALID_DATE) {
+            return -1;
         }
-        if (mPlotRr) {
-            Log.d(TAG, "RR series created with " + nRrItems
-                    + " items with nErrors=" + nErrors);
-            mPlot.addSeries(rrSeries, rrFormatter);
+        long duration = end - mPlotSessionStart;
+        for (int level = ROLLUP_INTERVALS.length - 1; level >= 0; level--) {
+            if (duration / ROLLUP_INTERVALS[level] >= nPixels) {
+                return level;
+            }
         }
+        return -1;
     }
 
     /**
-     * Add new values to the plot when received from the Gatt broadcast
-     * receiver.  This only happens when not in a session.
+     * Add new values to the plot when received from the service. This only
+     * happens when not in a session. It is called on the service ingest
+     * thread. Values that arrive while the series are loading are kept and
+     * added when the load is done. Values already added from the service
+     * history are skipped.
      *
-     * @param intent Intent from the mGattUpdateReceiver.
+     * @param sample The heart rate sample.
      */
-    public void addValues(Intent intent) {
+    public void addValues(HeartRateSample sample) {
 //        Log.d(TAG, this.getClass().getSimpleName() + ": addValues: mPlotHr="
 //                + mPlotHr + " mPlotRr=" + mPlotRr);
-        String strValue;
-        double value;
-        long date = intent.getLongExtra(EXTRA_DATE, INVALID_DATE);
+        long date = sample.getDate();
         if (date == INVALID_DATE) {
             Log.d(TAG, this.getClass().getSimpleName() + ": addValues: " +
                     "INVALID_DATE");
             return;
         }
-        //
-        if (mPlotHr) {
-            strValue = intent.getStringExtra(EXTRA_HR);
-            if (strValue != null && strValue.length() > 0) {
-                try {
-                    value = Double.parseDouble(strValue);
-                } catch (NumberFormatException ex) {
-                    value = Double.NaN;
+        synchronized (mSeriesLock) {
+            if (mLoadTask != null) {
+                HeartRateSample copy = new HeartRateSample();
+                copy.copyFrom(sample);
+                mPendingSamples.add(copy);
+                return;
+            }
+            if (sample.getSeq() <= mLastSeq) {
+                // Already added from the history
+                return;
+            }
+            mLastSeq = sample.getSeq();
+            if (mSeries != null) {
+                mSeries.addSample(sample);
+            }
+        }
+        update();
+    }
+
+    /**
+     * The series being plotted and the state needed to add R-R values to
+     * them. Each load creates a new one, so a load that has been cancelled
+     * does not change the series being shown.
+     */
+    private class SeriesSet {
+        private final DownsampledXYSeries hr;
+        private final DownsampledXYSeries rr;
+        private long lastDate = INVALID_DATE;
+        private long lastRrUpdateTime = INVALID_DATE;
+        private long lastRrTime = INVALID_DATE;
+        private long[] rrTimes = new long[16];
+        private int nHrItems;
+        private int nRrItems;
+        private int nErrors;
+
+        private SeriesSet() {
+            hr = mPlotHr ? createSeries("HR") : null;
+            rr = mPlotRr ? createSeries("RR") : null;
+        }
+
+        /**
+         * Creates a series. For the real-time plot it only keeps the last
+         * mPlotInterval, so memory does not grow while monitoring.
+         *
+         * @param title The title.
+         * @return The series.
+         */
+        private DownsampledXYSeries createSeries(String title) {
+            if (mIsSession) {
+                return new DownsampledXYSeries(title);
+            }
+            int capacity = (int) ((long) PLOT_LIVE_POINTS_PER_SECOND
+                    * mPlotInterval / 1000);
+            return new DownsampledXYSeries(title, capacity, mPlotInterval);
+        }
+
+        /**
+         * Adds the rows of a chunk from the data table.
+         *
+         * @param chunk The chunk.
+         */
+        private void addRows(DataChunk chunk) {
+            long[] dates = chunk.getDates();
+            int[] hrs = chunk.getHrs();
+            boolean[] rrPresent = chunk.getRrPresent();
+            int[] rrStarts = chunk.getRrStarts();
+            int[] rrValues = chunk.getRrValues();
+            boolean[] rrArtifacts = chunk.getRrArtifacts();
+            long date;
+            int hrVal, nRr;
+            for (int i = 0, count = chunk.getCount(); i < count; i++) {
+                date = dates[i];
+                if (hr != null) {
+                    hrVal = hrs[i];
+                    hr.add(date, hrVal == INVALID_INT ? Double.NaN : hrVal);
+                    nHrItems++;
                 }
-                if (value == INVALID_INT) {
-                    value = Double.NaN;
+                if (rr != null) {
+                    nRr = rrPresent[i] ? rrStarts[i + 1] - rrStarts[i] : -1;
+                    if (nRrItems == 0) {
+                        lastRrUpdateTime = date;
+                        lastRrTime = date - INITIAL_RR_START_TIME;
+                    }
+                    if (!addRrValues(date, rrValues, rrArtifacts,
+                            rrStarts[i], nRr)) {
+                        nErrors++;
+                    }
+                    nRrItems++;
+                }
+                lastDate = date;
+            }
+        }
+
+        /**
+         * Adds a bucket from the rollups table. Each bucket adds its minimum
+         * and maximum, so the extent of the data is kept.
+         *
+         * @param date     The start of the bucket.
+         * @param interval The length of the bucket.
+         * @param hrCount  The number of valid heart rates.
+         * @param hrMin    The minimum heart rate.
+         * @param hrMax    The maximum heart rate.
+         * @param rrCount  The number of R-R values.
+         * @param rrMin    The minimum R-R value.
+         * @param rrMax    The maximum R-R value.
+         */
+        private void addRollup(long date, long interval, int hrCount,
+                               int hrMin, int hrMax, int rrCount, int rrMin,
+                               int rrMax) {
+            if (hr != null) {
+                if (hrCount > 0) {
+                    hr.add(date, hrMin);
+                    hr.add(date + interval / 2, hrMax);
+                } else {
+                    hr.add(date, Double.NaN);
                 }
-                hrSeries.addLast(date, value);
+                nHrItems++;
+            }
+            if (rr != null && rrCount > 0) {
+                rr.add(date, RR_SCALE * rrMin / 1.024);
+                rr.add(date + interval / 2, RR_SCALE * rrMax / 1.024);
+                nRrItems++;
             }
+            lastDate = date;
         }
-        if (mPlotRr) {
-            if (mLastRrUpdateTime == INVALID_DATE) {
-                mLastRrUpdateTime = date;
-                mLastRrTime = date;
+
+        /**
+         * Adds a sample received from the service.
+         *
+         * @param sample The sample.
+         */
+        private void addSample(HeartRateSample sample) {
+            long date = sample.getDate();
+            if (hr != null) {
+                double value = sample.getHr();
+                if (value == INVALID_INT) {
+                    value = Double.NaN;
+                }
+                hr.add(date, value);
             }
-            strValue = intent.getStringExtra(EXTRA_RR);
-            if (strValue != null && strValue.length() > 0) {
-                // boolean res = addRrValues(mRrSeries, date, strValue);
+            if (rr != null) {
+                if (lastRrUpdateTime == INVALID_DATE) {
+                    lastRrUpdateTime = date;
+                    lastRrTime = date;
+                }
                 // Don't check for errors here to avoid error storms
-                addRrValues(date, strValue);
+                addRrValues(date, sample.getRr(), sample.getRrArtifacts(), 0,
+                        sample.isRrPresent() ? sample.getRrCount() : -1);
             }
+            lastDate = date;
+        }
 
-            if (mLastRrUpdateTime == INVALID_DATE) {
-                mLastRrUpdateTime = date;
-                mLastRrTime = date;
+        /**
+         * Makes sure the R-R buffers can hold the given number of values.
+         *
+         * @param nRrValues The number of values.
+         */
+        private void ensureRrCapacity(int nRrValues) {
+            if (nRrValues > rrTimes.length) {
+                rrTimes = new long[nRrValues];
             }
         }
-        update();
+
+        /**
+         * Adds R-R values to the series at the appropriate times. Artifacts
+         * still advance the times but are not added, so the plot
+         * interpolates across them.
+         *
+         * @param updateTime The time of this update.
+         * @param rrVals     The R-R values in units of 1/1024 sec.
+         * @param artifacts  Whether each R-R value is an artifact.
+         * @param offset     The index of the first value to use.
+         * @param nRrValues  The number of values, or -1 if the update had no
+         *                   R-R values.
+         * @return If the operation was successful.
+         */
+        private boolean addRrValues(long updateTime, int[] rrVals,
+                                    boolean[] artifacts, int offset,
+                                    int nRrValues) {
+            if (nRrValues < 0) {
+                lastRrUpdateTime = updateTime;
+                lastRrTime = updateTime - INITIAL_RR_START_TIME;
+                return true;
+            }
+            if (nRrValues == 0) {
+                // Do nothing
+                return true;
+            }
+            ensureRrCapacity(nRrValues);
+            long[] times = rrTimes;
+            long time = lastRrTime;
+            for (int i = 0; i < nRrValues; i++) {
+                time += rrVals[offset + i];
+                times[i] = time;
+            }
+            // Make first rr time be >= lastRrUpdateTime
+            long deltaTime;
+            long firstTime = times[0];
+            if (firstTime < lastRrUpdateTime) {
+                deltaTime = lastRrUpdateTime - firstTime;
+                for (int i = 0; i < nRrValues; i++) {
+                    times[i] += deltaTime;
+                }
+            }
+            // Make all times be <= updateTime. Overrides previous if
+            // necessary.
+            long lastTime = times[nRrValues - 1];
+            if (times[nRrValues - 1] > updateTime) {
+                deltaTime = lastTime - updateTime;
+                for (int i = 0; i < nRrValues; i++) {
+                    times[i] -= deltaTime;
+                }
+            }
+            for (int i = 0; i < nRrValues; i++) {
+                if (!artifacts[offset + i]) {
+                    rr.add(times[i], RR_SCALE * rrVals[offset + i] / 1.024);
+                }
+            }
+            lastRrUpdateTime = updateTime;
+            lastRrTime = times[nRrValues - 1];
+            return true;
+        }
     }
 
     /**
-     * Parses the RR String and adds items to the series at the appropriate
-     * times.
-     *
-     * @param updateTime The time of this update.
-     * @param strValue   The RR String from the database.
-     * @return If the operation was successful.
+     * Loads the series from the database in the background. The data is
+     * read in chunks of PLOT_LOAD_PAGE_SIZE rows and the plot is redrawn after
+     * each chunk. For a session that uses rollups, the next coarser level is
+     * loaded and shown first, then the chosen level is loaded and replaces
+     * it when it is complete. When cancelled, the query in progress is
+     * cancelled and the load stops.
      */
-    private boolean addRrValues(long updateTime,
-                                String strValue) {
-        if (strValue.length() == 0) {
-            // Do nothing
-            return true;
+    private class SeriesLoadTask extends AsyncTask<Void, SeriesSet, Void> {
+        private final SeriesSet mVisible;
+        private final int mNPixels;
+        private int mLevel = -1;
+        private long mRows;
+        private long mStartTime;
+        private Exception mException;
+        /**
+         * Cancels the query in progress when the load is cancelled.
+         */
+        private final CancellationSignal mSignal = new CancellationSignal();
+
+        private SeriesLoadTask(SeriesSet series, int nPixels) {
+            super();
+            mVisible = series;
+            mNPixels = nPixels;
         }
-        if (strValue.equals(INVALID_STRING)) {
-            mLastRrUpdateTime = updateTime;
-            mLastRrTime = updateTime - INITIAL_RR_START_TIME;
-            return true;
+
+        @Override
+        protected Void doInBackground(Void... dummy) {
+            mStartTime = System.nanoTime();
+            try {
+                SeriesSet target = mVisible;
+                boolean loaded = false;
+                if (mIsSession) {
+                    mLevel = getRollupLevel(mNPixels);
+                }
+                if (mLevel >= 0) {
+                    if (mLevel + 1 < ROLLUP_INTERVALS.length
+                            && loadRollups(target, mLevel + 1) > 0) {
+                        // Shown, now get the finer level
+                        target = new SeriesSet();
+                    }
+                    loaded = !isCancelled() && loadRollups(target, mLevel) > 0;
+                }
+                if (!loaded && !isCancelled()) {
+                    mLevel = -1;
+                    loadData(target);
+                }
+                if (target != mVisible && !isCancelled()) {
+                    publishProgress(target);
+                }
+            } catch (Exception ex) {
+                mException = ex;
+            }
+            return null;
+        }
+
+        /**
+         * Loads the rows from the data table.
+         *
+         * @param series The series to add to.
+         */
+        private void loadData(SeriesSet series) {
+            DataChunkReader reader;
+            if (mIsSession) {
+                reader = mDbAdapter.readHrRrDateDataForStartDate(
+                        mPlotSessionStart, PLOT_LOAD_PAGE_SIZE, mSignal);
+            } else {
+                reader = mDbAdapter.readHrRrDateDataStartingAtDate(
+                        mPlotStartTime, PLOT_LOAD_PAGE_SIZE, mSignal);
+            }
+            if (reader == null) {
+                return;
+            }
+            DataChunk chunk;
+            while (!isCancelled() && (chunk = reader.next()) != null) {
+                series.addRows(chunk);
+                mRows += chunk.getCount();
+                publishPage(series);
+            }
         }
-        String[] tokens;
-        tokens = strValue.trim().split("\\s+");
-        int nRrValues = tokens.length;
-        if (nRrValues == 0) {
-            return false;
-        }
-        long[] times = new long[nRrValues];
-        double[] values = new double[nRrValues];
-        long lastRrTime = mLastRrTime;
-        double val;
-        for (int i = 0; i < nRrValues; i++) {
+
+        /**
+         * Loads the buckets at the given level from the rollups table.
+         *
+         * @param series The series to add to.
+         * @param level  The level.
+         * @return The number of buckets.
+         */
+        private int loadRollups(SeriesSet series, int level) {
+            Cursor cursor = mDbAdapter.fetchAllRollupsForStartDate
+                    (mPlotSessionStart, level);
+            if (cursor == null) {
+                return 0;
+            }
+            int nBuckets = 0;
             try {
-                val = Double.parseDouble(tokens[i]);
-            } catch (NumberFormatException ex) {
-                return false;
-            }
-            lastRrTime += val;
-            times[i] = lastRrTime;
-            values[i] = val / 1.024;
-        }
-        // Make first rr time be >= mLastRrUpdateTime
-        long deltaTime;
-        long firstTime = times[0];
-        if (firstTime < mLastRrUpdateTime) {
-            deltaTime = mLastRrUpdateTime - firstTime;
-            for (int i = 0; i < nRrValues; i++) {
-                times[i] += deltaTime;
+                int indexBucket = cursor.getColumnIndex(COL_BUCKET);
+                int indexHrMin = cursor.getColumnIndex(COL_HR_MIN);
+                int indexHrMax = cursor.getColumnIndex(COL_HR_MAX);
+                int indexHrCount = cursor.getColumnIndex(COL_HR_COUNT);
+                int indexRrMin = cursor.getColumnIndex(COL_RR_MIN);
+                int indexRrMax = cursor.getColumnIndex(COL_RR_MAX);
+                int indexRrCount = cursor.getColumnIndex(COL_RR_COUNT);
+                long interval = ROLLUP_INTERVALS[level];
+                while (!isCancelled() && cursor.moveToNext()) {
+                    series.addRollup(cursor.getLong(indexBucket) * interval,
+                            interval, cursor.getInt(indexHrCount),
+                            cursor.getInt(indexHrMin),
+                            cursor.getInt(indexHrMax),
+                            cursor.getInt(indexRrCount),
+                            cursor.getInt(indexRrMin),
+                            cursor.getInt(indexRrMax));
+                    mRows++;
+                    if (++nBuckets % PLOT_LOAD_PAGE_SIZE == 0) {
+                        publishPage(series);
+                    }
+                }
+                publishPage(series);
+            } finally {
+                cursor.close();
             }
+            Log.d(TAG, "Loaded rollup level " + level + " with " + nBuckets
+                    + " buckets");
+            return nBuckets;
         }
-        // Make all times be <= updateTime. Overrides previous if necessary.
-        long lastTime = times[nRrValues - 1];
-        if (times[nRrValues - 1] > updateTime) {
-            deltaTime = lastTime - updateTime;
-            for (int i = 0; i < nRrValues; i++) {
-                times[i] -= deltaTime;
+
+        /**
+         * Redraws the plot if the series are being shown.
+         *
+         * @param series The series being loaded.
+         */
+        private void publishPage(SeriesSet series) {
+            if (series == mVisible) {
+                publishProgress();
             }
         }
-        double rr;
-        for (int i = 0; i < nRrValues; i++) {
-            rr = RR_SCALE * values[i];
-            rrSeries.addLast(times[i], rr);
+
+        @Override
+        protected void onProgressUpdate(SeriesSet... values) {
+            if (isCancelled()) {
+                return;
+            }
+            if (values.length > 0) {
+                synchronized (mSeriesLock) {
+                    setSeriesLocked(values[0]);
+                }
+            }
+            update();
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            synchronized (mSeriesLock) {
+                if (mLoadTask != this) {
+                    return;
+                }
+                mLoadTask = null;
+                // Add what arrived while loading and is not in the database
+                SeriesSet series = mSeries;
+                for (HeartRateSample sample : mPendingSamples) {
+                    if (series.lastDate == INVALID_DATE
+                            || sample.getDate() > series.lastDate) {
+                        series.addSample(sample);
+                        mLastSeq = sample.getSeq();
+                    }
+                }
+                mPendingSamples.clear();
+            }
+            double elapsed = 1.e-9 * (System.nanoTime() - mStartTime);
+            Log.d(TAG, String.format(Locale.US, "Loaded %d rows (level %d) " +
+                            "in %.3f s, %.0f rows/s: HR items=%d RR items=%d " +
+                            "nErrors=%d", mRows, mLevel, elapsed,
+                    elapsed > 0 ? mRows / elapsed : 0, mSeries.nHrItems,
+                    mSeries.nRrItems, mSeries.nErrors));
+            Log.d(TAG, "SessionCache: " + SessionCache.getInstance(
+                    PlotActivity.this).getStatistics());
+            if (mException != null) {
+                Utils.excMsg(PlotActivity.this, "Error creating datasets",
+                        mException);
+            } else if (mSeries.nErrors > 0) {
+                Utils.errMsg(PlotActivity.this, mSeries.nErrors
+                        + " creating RR series");
+            }
+            update();
+        }
+
+        @Override
+        protected void onCancelled() {
+            Log.d(TAG, "Loading cancelled after " + mRows + " rows in "
+                    + (System.nanoTime() - mStartTime) / 1000000 + " ms");
         }
-        mLastRrUpdateTime = updateTime;
-        mLastRrTime = times[nRrValues - 1];
-        return true;
     }
 
     /**
@@ -585,24 +1058,35 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
         sb.append("Domain Step Value=").append(mPlot.getDomainStepValue()).append(LF);
         sb.append("Graph Width=").append(mPlot.getGraph().getSize().getWidth().getValue()).append(LF);
         sb.append("Graph Height=").append(mPlot.getGraph().getSize().getHeight().getValue()).append(LF);
+        DownsampledXYSeries hrSeries = mSeries == null ? null : mSeries.hr;
+        DownsampledXYSeries rrSeries = mSeries == null ? null : mSeries.rr;
         if (hrSeries != null) {
-            if (hrSeries.getxVals() != null) {
-                sb.append("hrSeries Size=").append(hrSeries.getxVals().size()).append(LF);
-            }
+            sb.append("hrSeries Size=").append(hrSeries.getDataSize())
+                    .append(" (").append(hrSeries.size()).append(" shown)")
+                    .append(LF);
         } else {
             sb.append("hrSeries=Null").append(LF);
         }
         if (rrSeries != null) {
-            if (rrSeries.getxVals() != null) {
-                sb.append("rrSeries Size=").append(rrSeries.getxVals().size()).append(LF);
-            }
+            sb.append("rrSeries Size=").append(rrSeries.getDataSize())
+                    .append(" (").append(rrSeries.size()).append(" shown)")
+                    .append(LF);
         } else {
             sb.append("rrSeries=Null").append(LF);
         }
         return sb.toString();
     }
 
+    /**
+     * Requests a redraw. Requests are combined so there is at most one
+     * redraw per frame, and none while the activity is paused. May be
+     * called from any thread.
+     */
     public void update() {
+        if (mRedrawScheduler != null) {
+            mRedrawScheduler.markDirty();
+            return;
+        }
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -0,0 +1,182 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.view.Choreographer;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces redraw requests into at most one redraw per display frame.
+ * markDirty() may be called from any thread as often as data arrives. The
+ * redraw is run on the next Choreographer frame, and requests made before
+ * then are combined into it. A target frame rate lower than the display's
+ * can be given, in which case frames that come too soon are skipped.
+ * <p>
+ * Nothing is drawn between stop() and start(), typically onPause() and
+ * onResume(). A request made while stopped is drawn when started.
+ * <p>
+ * Must be created on the main thread. start(), stop(), and the redraw run
+ * on the main thread.
+ */
+public class RedrawScheduler implements Choreographer.FrameCallback {
+    /**
+     * The frame time assumed when there is no target frame rate, used for
+     * counting slow redraws (ns).
+     */
+    private static final long DEFAULT_FRAME_NANOS = 1000000000L / 60;
+
+    private final Runnable mRedraw;
+    private final Choreographer mChoreographer;
+    private final long mMinFrameNanos;
+    private final long mFrameBudgetNanos;
+    private final AtomicBoolean mDirty = new AtomicBoolean();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private volatile boolean mRunning;
+    private long mLastFrameNanos;
+
+    // Statistics
+    private final AtomicLong mRequests = new AtomicLong();
+    private volatile long mRedraws;
+    private volatile long mThrottled;
+    private volatile long mSlow;
+
+    /**
+     * Constructor.
+     *
+     * @param redraw    What to run to redraw.
+     * @param targetFps The maximum redraws per second or 0 for every frame.
+     */
+    public RedrawScheduler(Runnable redraw, int targetFps) {
+        mRedraw = redraw;
+        mChoreographer = Choreographer.getInstance();
+        mMinFrameNanos = targetFps > 0 ? 1000000000L / targetFps : 0;
+        mFrameBudgetNanos = targetFps > 0 ? mMinFrameNanos :
+                DEFAULT_FRAME_NANOS;
+    }
+
+    /**
+     * Requests a redraw. May be called from any thread.
+     */
+    public void markDirty() {
+        mRequests.incrementAndGet();
+        mDirty.set(true);
+        if (mRunning) {
+            schedule();
+        }
+    }
+
+    /**
+     * Starts drawing. Draws if there was a request while stopped.
+     */
+    public void start() {
+        mRunning = true;
+        if (mDirty.get()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Stops drawing until start() is called.
+     */
+    public void stop() {
+        mRunning = false;
+        mChoreographer.removeFrameCallback(this);
+        mScheduled.set(false);
+    }
+
+    /**
+     * Posts a frame callback if one is not already posted.
+     */
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mScheduled.set(false);
+        if (!mRunning) {
+            return;
+        }
+        if (mMinFrameNanos > 0
+                && frameTimeNanos - mLastFrameNanos < mMinFrameNanos) {
+            // Too soon for the target frame rate
+            mThrottled++;
+            schedule();
+            return;
+        }
+        if (!mDirty.getAndSet(false)) {
+            return;
+        }
+        mLastFrameNanos = frameTimeNanos;
+        long start = System.nanoTime();
+        mRedraw.run();
+        mRedraws++;
+        if (System.nanoTime() - start > mFrameBudgetNanos) {
+            mSlow++;
+        }
+    }
+
+    /**
+     * Gets the number of redraw requests.
+     *
+     * @return The number of requests.
+     */
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    /**
+     * Gets the number of redraws.
+     *
+     * @return The number of redraws.
+     */
+    public long getRedraws() {
+        return mRedraws;
+    }
+
+    /**
+     * Gets the number of requests that were combined with another request
+     * instead of causing their own redraw.
+     *
+     * @return The number of coalesced requests.
+     */
+    public long getCoalesced() {
+        long coalesced = mRequests.get() - mRedraws - (mDirty.get() ? 1 : 0);
+        return coalesced < 0 ? 0 : coalesced;
+    }
+
+    /**
+     * Gets the number of frames skipped to keep to the target frame rate.
+     *
+     * @return The number of frames.
+     */
+    public long getThrottled() {
+        return mThrottled;
+    }
+
+    /**
+     * Gets the number of redraws that took longer than a frame, and so
+     * caused at least one frame to be dropped.
+     *
+     * @return The number of redraws.
+     */
+    public long getSlow() {
+        return mSlow;
+    }
+
+    /**
+     * Gets a summary of the statistics.
+     *
+     * @return The summary.
+     */
+    public String getStatistics() {
+        return String.format(Locale.US, "requests=%d redraws=%d " +
+                        "coalesced=%d throttled=%d slow=%d",
+                getRequests(), getRedraws(), getCoalesced(), getThrottled(),
+                getSlow());
+    }
+
+}
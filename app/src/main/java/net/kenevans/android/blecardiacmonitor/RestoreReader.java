@@ -0,0 +1,82 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads the rows of a saved database file for DatabaseRestoreJob. The place
+ * returned by getOffset() and getLineNumber() after a row can be passed to
+ * seek() on a new reader to continue after that row.
+ */
+public interface RestoreReader {
+    /**
+     * Continues reading from a place returned earlier. Must be called
+     * before reading.
+     *
+     * @param offset     The offset in the file from getOffset().
+     * @param lineNumber The line number from getLineNumber().
+     * @param errors     The number of errors before that place.
+     * @throws IOException If there is an error.
+     */
+    void seek(long offset, int lineNumber, int errors) throws IOException;
+
+    /**
+     * Reads the next row.
+     *
+     * @return False if there are no more rows.
+     * @throws IOException If there is a read error.
+     */
+    boolean next() throws IOException;
+
+    long getDate();
+
+    long getStartDate();
+
+    int getHr();
+
+    /**
+     * Gets the packed R-R values of the current row.
+     *
+     * @return The BLOB or null if the row has no R-R values.
+     */
+    byte[] getRr();
+
+    /**
+     * Gets the session map saved after the rows, which gives the sessions of
+     * the recordings that had been merged. It has only been read once
+     * next() has returned false.
+     *
+     * @return The start dates of the sessions by the start dates of the
+     * recordings, which is empty if there are none.
+     */
+    Map<Long, Long> getSessionMap();
+
+    /**
+     * Gets the offset in the file to seek to to continue after the last row
+     * read.
+     *
+     * @return The offset.
+     */
+    long getOffset();
+
+    /**
+     * Gets the number of lines or records read.
+     *
+     * @return The number of lines.
+     */
+    int getLineNumber();
+
+    /**
+     * Gets the number of lines or blocks that could not be used.
+     *
+     * @return The number of errors.
+     */
+    int getErrors();
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException If there is an error.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,218 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Accumulates heart rate rows into the rollups table. There is one level
+ * for each interval in ROLLUP_INTERVALS. Buckets are global, the date
+ * divided by the interval, and are kept per session. Rows are added in
+ * order with add(), and consecutive rows in the same bucket are combined
+ * before the bucket is written. Call finish() to write the remaining
+ * buckets. Existing buckets are added to, so rows can arrive in any number
+ * of batches.
+ * <p>
+ * The R-R values are counted in the bucket of the row that contains them,
+ * except for artifacts. Heart rates are counted if they are positive.
+ * <p>
+ * This must be used in a transaction on the thread that owns the database.
+ */
+public class RollupWriter implements IConstants {
+    private final SQLiteDatabase mDb;
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mUpdateStatement;
+    private final Bucket[] mBuckets;
+
+    /**
+     * Constructor.
+     *
+     * @param db The database.
+     */
+    public RollupWriter(SQLiteDatabase db) {
+        mDb = db;
+        mBuckets = new Bucket[ROLLUP_INTERVALS.length];
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Adds a row.
+     *
+     * @param startDate The session start date.
+     * @param date      The date.
+     * @param hr        The heart rate.
+     * @param rr        The packed R-R values or null.
+     * @param rrMask    The R-R artifact mask or null. Artifacts are not
+     *                  counted.
+     */
+    public void add(long startDate, long date, int hr, byte[] rr,
+                    byte[] rrMask) {
+        int count = rr == null ? 0 : rr.length / 2;
+        int rrMin = Integer.MAX_VALUE, rrMax = Integer.MIN_VALUE;
+        long rrSum = 0;
+        int nRr = 0;
+        int val;
+        for (int i = 0, j = 0; i < count; i++, j += 2) {
+            if (BCMDbAdapter.isRrArtifact(rrMask, i)) {
+                continue;
+            }
+            val = (rr[j] & 0xFF) | ((rr[j + 1] & 0xFF) << 8);
+            if (val < rrMin) rrMin = val;
+            if (val > rrMax) rrMax = val;
+            rrSum += val;
+            nRr++;
+        }
+        Bucket bucket;
+        long index;
+        for (int level = 0; level < mBuckets.length; level++) {
+            bucket = mBuckets[level];
+            index = date / ROLLUP_INTERVALS[level];
+            if (bucket.nSamples > 0 && (bucket.startDate != startDate
+                    || bucket.index != index)) {
+                write(level, bucket);
+            }
+            if (bucket.nSamples == 0) {
+                bucket.startDate = startDate;
+                bucket.index = index;
+            }
+            bucket.nSamples++;
+            if (hr > 0) {
+                if (bucket.hrCount == 0 || hr < bucket.hrMin) bucket.hrMin = hr;
+                if (bucket.hrCount == 0 || hr > bucket.hrMax) bucket.hrMax = hr;
+                bucket.hrSum += hr;
+                bucket.hrCount++;
+            }
+            if (nRr > 0) {
+                if (bucket.rrCount == 0 || rrMin < bucket.rrMin) {
+                    bucket.rrMin = rrMin;
+                }
+                if (bucket.rrCount == 0 || rrMax > bucket.rrMax) {
+                    bucket.rrMax = rrMax;
+                }
+                bucket.rrSum += rrSum;
+                bucket.rrCount += nRr;
+            }
+        }
+    }
+
+    /**
+     * Writes all the buckets that have not been written.
+     */
+    public void finish() {
+        for (int level = 0; level < mBuckets.length; level++) {
+            if (mBuckets[level].nSamples > 0) {
+                write(level, mBuckets[level]);
+            }
+        }
+    }
+
+    /**
+     * Clears the buckets without writing them, for rows whose transaction
+     * was rolled back.
+     */
+    public void discard() {
+        for (Bucket bucket : mBuckets) {
+            bucket.clear();
+        }
+    }
+
+    /**
+     * Closes the statements. The writer can still be used, and they will be
+     * compiled again.
+     */
+    public void close() {
+        if (mInsertStatement != null) {
+            mInsertStatement.close();
+            mInsertStatement = null;
+        }
+        if (mUpdateStatement != null) {
+            mUpdateStatement.close();
+            mUpdateStatement = null;
+        }
+    }
+
+    /**
+     * Adds a bucket to the table and clears it.
+     *
+     * @param level  The level.
+     * @param bucket The bucket.
+     */
+    private void write(int level, Bucket bucket) {
+        if (mInsertStatement == null) {
+            mInsertStatement = mDb.compileStatement("INSERT OR IGNORE INTO "
+                    + DB_ROLLUPS_TABLE + " (" + COL_START_DATE + ", "
+                    + COL_LEVEL + ", " + COL_BUCKET + ") VALUES (?, ?, ?)");
+            mUpdateStatement = mDb.compileStatement("UPDATE "
+                    + DB_ROLLUPS_TABLE + " SET "
+                    + COL_N_SAMPLES + " = " + COL_N_SAMPLES + " + ?4, "
+                    + COL_HR_MIN + " = COALESCE(MIN(" + COL_HR_MIN
+                    + ", ?5), " + COL_HR_MIN + ", ?5), "
+                    + COL_HR_MAX + " = COALESCE(MAX(" + COL_HR_MAX
+                    + ", ?6), " + COL_HR_MAX + ", ?6), "
+                    + COL_HR_SUM + " = " + COL_HR_SUM + " + ?7, "
+                    + COL_HR_COUNT + " = " + COL_HR_COUNT + " + ?8, "
+                    + COL_RR_MIN + " = COALESCE(MIN(" + COL_RR_MIN
+                    + ", ?9), " + COL_RR_MIN + ", ?9), "
+                    + COL_RR_MAX + " = COALESCE(MAX(" + COL_RR_MAX
+                    + ", ?10), " + COL_RR_MAX + ", ?10), "
+                    + COL_RR_SUM + " = " + COL_RR_SUM + " + ?11, "
+                    + COL_RR_COUNT + " = " + COL_RR_COUNT + " + ?12"
+                    + " WHERE " + COL_START_DATE + " = ?1 AND " + COL_LEVEL
+                    + " = ?2 AND " + COL_BUCKET + " = ?3");
+        }
+        SQLiteStatement insert = mInsertStatement;
+        insert.bindLong(1, bucket.startDate);
+        insert.bindLong(2, level);
+        insert.bindLong(3, bucket.index);
+        insert.executeInsert();
+        SQLiteStatement update = mUpdateStatement;
+        update.bindLong(1, bucket.startDate);
+        update.bindLong(2, level);
+        update.bindLong(3, bucket.index);
+        update.bindLong(4, bucket.nSamples);
+        if (bucket.hrCount > 0) {
+            update.bindLong(5, bucket.hrMin);
+            update.bindLong(6, bucket.hrMax);
+        } else {
+            update.bindNull(5);
+            update.bindNull(6);
+        }
+        update.bindLong(7, bucket.hrSum);
+        update.bindLong(8, bucket.hrCount);
+        if (bucket.rrCount > 0) {
+            update.bindLong(9, bucket.rrMin);
+            update.bindLong(10, bucket.rrMax);
+        } else {
+            update.bindNull(9);
+            update.bindNull(10);
+        }
+        update.bindLong(11, bucket.rrSum);
+        update.bindLong(12, bucket.rrCount);
+        update.executeUpdateDelete();
+        bucket.clear();
+    }
+
+    /**
+     * The totals for the bucket being accumulated at one level.
+     */
+    private static class Bucket {
+        private long startDate;
+        private long index;
+        private int nSamples;
+        private int hrMin;
+        private int hrMax;
+        private long hrSum;
+        private int hrCount;
+        private int rrMin;
+        private int rrMax;
+        private long rrSum;
+        private int rrCount;
+
+        private void clear() {
+            nSamples = hrCount = rrCount = 0;
+            hrSum = rrSum = 0;
+        }
+    }
+
+}
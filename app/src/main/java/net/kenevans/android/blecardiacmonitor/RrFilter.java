@@ -0,0 +1,189 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.Arrays;
+
+/**
+ * Marks R-R values that are artifacts, such as those from strap dropouts
+ * or ectopic beats. A filter sees the values of a session in order, once,
+ * as they are received or restored. The result is stored as a mask with
+ * the values, which are kept as received. The marked values are left out,
+ * not replaced: a plot draws its line from the value before to the value
+ * after, the rollups do not count them, and the HRV values do not take a
+ * successive difference across them.
+ * <p>
+ * Filters keep state, so forName() makes a new one each time. New filters
+ * are added by subclassing and adding them to forName().
+ */
+public abstract class RrFilter implements IConstants {
+    /**
+     * Name of the filter that marks nothing.
+     */
+    public static final String NAME_NONE = "none";
+    /**
+     * Name of the median filter.
+     */
+    public static final String NAME_MEDIAN = "median";
+
+    private final String mName;
+
+    private RrFilter(String name) {
+        mName = name;
+    }
+
+    /**
+     * Makes a filter by name, as stored in the preferences.
+     *
+     * @param name The name. Unknown names give the median filter.
+     * @return The filter.
+     */
+    public static RrFilter forName(String name) {
+        if (NAME_NONE.equals(name)) {
+            return new NoneFilter();
+        }
+        return new MedianFilter(RR_FILTER_WINDOW, RR_FILTER_TOLERANCE);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Checks the next R-R value of the session.
+     *
+     * @param rr The value in units of 1/1024 sec.
+     * @return If it is an artifact.
+     */
+    public abstract boolean isArtifact(int rr);
+
+    /**
+     * Starts a new session.
+     */
+    public abstract void reset();
+
+    /**
+     * Checks the R-R values of a packed BLOB, as stored in the database.
+     *
+     * @param blob The packed values or null.
+     * @return The mask as from BCMDbAdapter.packRrMask, or null if there are
+     * no artifacts.
+     */
+    public byte[] filter(byte[] blob) {
+        if (blob == null) {
+            return null;
+        }
+        int count = blob.length / 2;
+        byte[] mask = null;
+        for (int i = 0, j = 0; i < count; i++, j += 2) {
+            if (isArtifact((blob[j] & 0xFF) | ((blob[j + 1] & 0xFF) << 8))) {
+                if (mask == null) {
+                    mask = new byte[(count + 7) / 8];
+                }
+                mask[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Filter that marks nothing.
+     */
+    private static class NoneFilter extends RrFilter {
+        private NoneFilter() {
+            super(NAME_NONE);
+        }
+
+        @Override
+        public boolean isArtifact(int rr) {
+            return false;
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+
+    /**
+     * Filter that marks values outside the physiological range and values
+     * that differ from the median of the previous values by more than a
+     * fraction of it. The median is of the values as received, including
+     * artifacts, so it follows a real change in the rhythm after half the
+     * window.
+     */
+    private static class MedianFilter extends RrFilter {
+        private final double mTolerance;
+        /**
+         * The values in the window in the order received.
+         */
+        private final int[] mWindow;
+        /**
+         * The same values sorted, kept sorted as each value enters and
+         * leaves, so the median is the middle one.
+         */
+        private final int[] mSorted;
+        private int mNext;
+        private int mSize;
+
+        /**
+         * Constructor.
+         *
+         * @param window    The number of previous values. Should be odd.
+         * @param tolerance The fraction of the median a value may differ
+         *                  by.
+         */
+        private MedianFilter(int window, double tolerance) {
+            super(NAME_MEDIAN);
+            mTolerance = tolerance;
+            mWindow = new int[window];
+            mSorted = new int[window];
+        }
+
+        @Override
+        public boolean isArtifact(int rr) {
+            int n = mWindow.length;
+            boolean artifact = rr < RR_FILTER_MIN || rr > RR_FILTER_MAX;
+            if (!artifact && mSize == n) {
+                int median = mSorted[n / 2];
+                artifact = Math.abs(rr - median) > mTolerance * median;
+            }
+            if (mSize == n) {
+                remove(mWindow[mNext]);
+            }
+            insert(rr);
+            mWindow[mNext] = rr;
+            mNext = (mNext + 1) % n;
+            return artifact;
+        }
+
+        @Override
+        public void reset() {
+            mNext = mSize = 0;
+        }
+
+        /**
+         * Removes a value that leaves the window from the sorted values.
+         *
+         * @param val The value, which must be in them.
+         */
+        private void remove(int val) {
+            int i = Arrays.binarySearch(mSorted, 0, mSize, val);
+            mSize--;
+            System.arraycopy(mSorted, i + 1, mSorted, i, mSize - i);
+        }
+
+        /**
+         * Inserts a value that enters the window into the sorted values.
+         *
+         * @param val The value.
+         */
+        private void insert(int val) {
+            int i = Arrays.binarySearch(mSorted, 0, mSize, val);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            System.arraycopy(mSorted, i, mSorted, i + 1, mSize - i);
+            mSorted[i] = val;
+            mSize++;
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded history of the most recent heart rate samples, so a view that
+ * attaches to the service can show the recent past without reading the
+ * database. The samples are kept in a ring of the given capacity, and
+ * snapshot() only returns those within the maximum age of the newest one.
+ * <p>
+ * There is one writer, the ingest thread, which copies each sample into a
+ * slot allocated when the history is made, so adding a sample does not
+ * allocate. Each slot has a version, which is the sequence number of the
+ * sample in it, or its negative while the writer is changing it. A reader
+ * reads the version, copies the sample, and then checks the version has
+ * not changed, so any thread may take a snapshot without locking and
+ * without blocking the writer. The check is a compareAndSet of the version
+ * to itself, which unlike a plain read cannot happen before the reads of
+ * the sample. The sequence numbers also let a listener skip the samples it
+ * already has from a snapshot.
+ */
+public class SampleHistory {
+    private final HeartRateSample[] mSlots;
+    /**
+     * The version of each slot: 0 if it is empty, the sequence number of
+     * the sample in it, or its negative while it is being written.
+     */
+    private final AtomicLongArray mVersions;
+    private final int mCapacity;
+    private final long mMaxAge;
+    /**
+     * The sequence number of the next sample to be added. Only written by
+     * the writer, after the sample is stored.
+     */
+    private volatile long mNextSeq = 1;
+    /**
+     * The sequence number of the first sample after the last clear().
+     */
+    private volatile long mFirstSeq = 1;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of samples.
+     * @param maxAge   The maximum age of a sample relative to the newest
+     *                 one, in ms.
+     */
+    public SampleHistory(int capacity, long maxAge) {
+        mCapacity = capacity;
+        mMaxAge = maxAge;
+        mSlots = new HeartRateSample[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new HeartRateSample();
+        }
+        mVersions = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Gets the sequence number the next sample added will have. Only called
+     * by the writer, which sets it on the sample before delivering it
+     * anywhere.
+     *
+     * @return The sequence number.
+     */
+    long getNextSeq() {
+        return mNextSeq;
+    }
+
+    /**
+     * Removes the samples added so far from later snapshots, as when a new
+     * session starts. The sequence numbers continue. May be called on any
+     * thread.
+     */
+    void clear() {
+        mFirstSeq = mNextSeq;
+    }
+
+    /**
+     * Stores a copy of a sample. Only called by the writer, and the sample
+     * must have the sequence number from getNextSeq().
+     *
+     * @param sample The sample.
+     */
+    void add(HeartRateSample sample) {
+        long seq = mNextSeq;
+        int index = (int) (seq % mCapacity);
+        // getAndSet so the writes to the slot cannot happen before it
+        mVersions.getAndSet(index, -seq);
+        mSlots[index].copyFrom(sample);
+        mVersions.set(index, seq);
+        mNextSeq = seq + 1;
+    }
+
+    /**
+     * Gets copies of the samples in the history whose date is at least the
+     * given date, oldest first.
+     *
+     * @param since The earliest date.
+     * @return The samples, which may be empty.
+     */
+    public List<HeartRateSample> snapshot(long since) {
+        long next = mNextSeq;
+        long first = Math.max(mFirstSeq, next - mCapacity);
+        List<HeartRateSample> samples =
+                new ArrayList<HeartRateSample>((int) (next - first));
+        HeartRateSample sample = null;
+        int index;
+        for (long seq = first; seq < next; seq++) {
+            index = (int) (seq % mCapacity);
+            // Skip a slot the writer has reused since mNextSeq was read
+            if (mVersions.get(index) != seq) {
+                continue;
+            }
+            if (sample == null) {
+                sample = new HeartRateSample();
+            }
+            sample.copyFrom(mSlots[index]);
+            if (mVersions.compareAndSet(index, seq, seq)
+                    && sample.getDate() >= since) {
+                samples.add(sample);
+                sample = null;
+            }
+        }
+        int n = samples.size();
+        if (n > 0) {
+            long oldest = samples.get(n - 1).getDate() - mMaxAge;
+            int start = 0;
+            while (start < n && samples.get(start).getDate() < oldest) {
+                start++;
+            }
+            if (start > 0) {
+                samples = samples.subList(start, n);
+            }
+        }
+        return samples;
+    }
+
+}
@@ -6,6 +6,14 @@ public class Session implements IConstants {
     private String name;
     private long startDate = INVALID_DATE;
     private long endDate = INVALID_DATE;
+    private int nSamples;
+    private int hrMin = INVALID_INT;
+    private int hrMax = INVALID_INT;
+    private double hrAvg = Double.NaN;
+    private int rrCount;
+    private double rmssd = Double.NaN;
+    private double sdnn = Double.NaN;
+    private double pnn50 = Double.NaN;
     private boolean checked = false;
     private CheckBox checkBox;
 
@@ -43,6 +51,72 @@ public class Session implements IConstants {
         return endDate - startDate;
     }
 
+    public int getNSamples() {
+        return nSamples;
+    }
+
+    public void setNSamples(int nSamples) {
+        this.nSamples = nSamples;
+    }
+
+    public int getHrMin() {
+        return hrMin;
+    }
+
+    public int getHrMax() {
+        return hrMax;
+    }
+
+    public double getHrAvg() {
+        return hrAvg;
+    }
+
+    /**
+     * Sets the heart rate statistics.
+     *
+     * @param hrMin The minimum or INVALID_INT if there are no valid values.
+     * @param hrMax The maximum or INVALID_INT if there are no valid values.
+     * @param hrAvg The average or NaN if there are no valid values.
+     */
+    public void setHrStats(int hrMin, int hrMax, double hrAvg) {
+        this.hrMin = hrMin;
+        this.hrMax = hrMax;
+        this.hrAvg = hrAvg;
+    }
+
+    public int getRrCount() {
+        return rrCount;
+    }
+
+    public void setRrCount(int rrCount) {
+        this.rrCount = rrCount;
+    }
+
+    public double getRmssd() {
+        return rmssd;
+    }
+
+    public double getSdnn() {
+        return sdnn;
+    }
+
+    public double getPnn50() {
+        return pnn50;
+    }
+
+    /**
+     * Sets the HRV statistics for the whole session.
+     *
+     * @param rmssd The RMSSD (ms) or NaN if there are too few R-R values.
+     * @param sdnn  The SDNN (ms) or NaN if there are too few R-R values.
+     * @param pnn50 The pNN50 (%) or NaN if there are too few R-R values.
+     */
+    public void setHrvStats(double rmssd, double sdnn, double pnn50) {
+        this.rmssd = rmssd;
+        this.sdnn = sdnn;
+        this.pnn50 = pnn50;
+    }
+
     public boolean isChecked() {
         return checked;
     }
@@ -0,0 +1,419 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the rows of recently read sessions, held in the
+ * same primitive columns as a DataChunk and keyed by the session start date
+ * and the database path. A session is added when a DataChunkReader has
+ * read all of its rows with the R-R values, and later readers for the
+ * session are then served from memory instead of SQLite.
+ * <p>
+ * The least recently used sessions are evicted to keep the total size
+ * within a budget, and the cache is trimmed or cleared when the system
+ * asks the app to trim its memory. BCMDbAdapter invalidates a session when
+ * its rows are added, changed, or deleted, and invalidates everything for a
+ * restore. A read that overlaps an invalidation of its session is not
+ * added.
+ * <p>
+ * The methods are thread safe.
+ */
+public class SessionCache implements IConstants {
+    private static SessionCache sInstance;
+
+    /**
+     * The entries in order of access, least recent first.
+     */
+    private final LinkedHashMap<Long, Entry> mEntries =
+            new LinkedHashMap<Long, Entry>(16, .75f, true);
+    /**
+     * The number of times each session has been invalidated, so a read
+     * that started before an invalidation is not added.
+     */
+    private final Map<Long, Integer> mVersions = new HashMap<Long, Integer>();
+    /**
+     * The number of times everything has been invalidated.
+     */
+    private int mEpoch;
+    private final long mBudget;
+    private long mBytes;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    /**
+     * Constructor.
+     *
+     * @param budget The maximum total size of the entries in bytes.
+     */
+    private SessionCache(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Gets the cache, making it the first time. The budget is
+     * SESSION_CACHE_BUDGET, but no more than SESSION_CACHE_HEAP_FRACTION of
+     * the heap.
+     *
+     * @param context A context, used to listen for memory trim requests.
+     * @return The cache.
+     */
+    public static synchronized SessionCache getInstance(Context context) {
+        if (sInstance == null) {
+            long budget = Math.min(SESSION_CACHE_BUDGET, (long)
+                    (SESSION_CACHE_HEAP_FRACTION
+                            * Runtime.getRuntime().maxMemory()));
+            final SessionCache cache = new SessionCache(budget);
+            context.getApplicationContext().registerComponentCallbacks(
+                    new ComponentCallbacks2() {
+                        @Override
+                        public void onTrimMemory(int level) {
+                            cache.onTrimMemory(level);
+                        }
+
+                        @Override
+                        public void onLowMemory() {
+                            cache.onTrimMemory(TRIM_MEMORY_COMPLETE);
+                        }
+
+                        @Override
+                        public void onConfigurationChanged(
+                                Configuration newConfig) {
+                        }
+                    });
+            sInstance = cache;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Gets a session, counting a hit or a miss.
+     *
+     * @param path      The path of the database.
+     * @param startDate The start date.
+     * @return The entry or null if it is not cached.
+     */
+    synchronized Entry get(String path, long startDate) {
+        Entry entry = mEntries.get(startDate);
+        if (entry != null && entry.path.equals(path)) {
+            mHits++;
+            return entry;
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Starts recording a session as it is read.
+     *
+     * @param path      The path of the database.
+     * @param startDate The start date.
+     * @return The recorder.
+     */
+    synchronized Recorder startRecording(String path, long startDate) {
+        return new Recorder(path, startDate, mEpoch, getVersion(startDate),
+                mBudget);
+    }
+
+    /**
+     * Adds a session that has been read completely, unless it has been
+     * invalidated since the recording started or the recording was
+     * abandoned because the session is larger than the budget.
+     *
+     * @param recorder The recorder.
+     */
+    synchronized void put(Recorder recorder) {
+        if (recorder.isAbandoned() || recorder.epoch != mEpoch
+                || recorder.version != getVersion(recorder.startDate)) {
+            return;
+        }
+        Entry entry = recorder.toEntry();
+        Entry old = mEntries.put(entry.startDate, entry);
+        if (old != null) {
+            mBytes -= old.bytes;
+        }
+        mBytes += entry.bytes;
+        trimToSize(mBudget);
+    }
+
+    /**
+     * Removes a session whose rows have changed.
+     *
+     * @param startDate The start date.
+     */
+    public synchronized void invalidate(long startDate) {
+        mVersions.put(startDate, getVersion(startDate) + 1);
+        Entry entry = mEntries.remove(startDate);
+        if (entry != null) {
+            mBytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Removes all the sessions, as when the data is restored.
+     */
+    public synchronized void invalidateAll() {
+        mEpoch++;
+        mVersions.clear();
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Evicts the least recently used sessions until the total size is no
+     * more than the given size.
+     *
+     * @param size The size in bytes.
+     */
+    public synchronized void trimToSize(long size) {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        Entry entry;
+        while (mBytes > size && iterator.hasNext()) {
+            entry = iterator.next();
+            iterator.remove();
+            mBytes -= entry.bytes;
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Trims the cache for a memory trim level from ComponentCallbacks2. It
+     * is cleared when the app is in the background and the system is
+     * running low, and halved for the lesser levels.
+     *
+     * @param level The level.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mBudget / 2);
+        }
+        Log.d(TAG, "SessionCache: onTrimMemory(" + level + "): "
+                + getStatistics());
+    }
+
+    private int getVersion(long startDate) {
+        Integer version = mVersions.get(startDate);
+        return version == null ? 0 : version;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    /**
+     * Gets the total size of the cached sessions.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Gets a summary of the statistics.
+     *
+     * @return The summary.
+     */
+    public synchronized String getStatistics() {
+        long lookups = mHits + mMisses;
+        return String.format(Locale.US, "sessions=%d size=%.1f/%.1f MB " +
+                        "hits=%d misses=%d hitRate=%.1f%% evictions=%d",
+                mEntries.size(), mBytes / 1048576., mBudget / 1048576.,
+                mHits, mMisses, lookups > 0 ? 100. * mHits / lookups : 0,
+                mEvictions);
+    }
+
+    /**
+     * The rows of a session in columns. The R-R values of row i are at
+     * indexes rrStarts[i] to rrStarts[i + 1] - 1 of rrValues. The arrays
+     * are not changed once it is made.
+     */
+    static class Entry {
+        final String path;
+        final long startDate;
+        final int count;
+        final long[] dates;
+        final int[] hrs;
+        final boolean[] rrPresent;
+        final int[] rrStarts;
+        final int[] rrValues;
+        final boolean[] rrArtifacts;
+        /**
+         * The approximate size of the arrays.
+         */
+        final long bytes;
+
+        private Entry(String path, long startDate, int count, long[] dates,
+                      int[] hrs, boolean[] rrPresent, int[] rrStarts,
+                      int[] rrValues, boolean[] rrArtifacts) {
+            this.path = path;
+            this.startDate = startDate;
+            this.count = count;
+            this.dates = dates;
+            this.hrs = hrs;
+            this.rrPresent = rrPresent;
+            this.rrStarts = rrStarts;
+            this.rrValues = rrValues;
+            this.rrArtifacts = rrArtifacts;
+            bytes = estimateBytes(count, rrValues.length);
+        }
+    }
+
+    /**
+     * Estimates the size of the arrays of an entry.
+     *
+     * @param count The number of rows.
+     * @param nRr   The number of R-R values.
+     * @return The size in bytes.
+     */
+    private static long estimateBytes(int count, int nRr) {
+        return 17L * count + 4 + 5L * nRr;
+    }
+
+    /**
+     * Collects the chunks of a session as they are read. The recording is
+     * abandoned, and the arrays released, as soon as the session is larger
+     * than the budget, so a session that cannot be cached does not hold
+     * more memory than one that can.
+     */
+    static class Recorder {
+        private final String path;
+        private final long startDate;
+        private final int epoch;
+        private final int version;
+        private final long budget;
+        private int count;
+        private long[] dates = new long[1024];
+        private int[] hrs = new int[1024];
+        private boolean[] rrPresent = new boolean[1024];
+        private int[] rrStarts = new int[1025];
+        private int[] rrValues = new int[1024];
+        private boolean[] rrArtifacts = new boolean[1024];
+
+        private Recorder(String path, long startDate, int epoch,
+                         int version, long budget) {
+            this.path = path;
+            this.startDate = startDate;
+            this.epoch = epoch;
+            this.version = version;
+            this.budget = budget;
+        }
+
+        /**
+         * Gets whether the recording was abandoned because the session is
+         * larger than the budget.
+         *
+         * @return Whether it was abandoned.
+         */
+        boolean isAbandoned() {
+            return dates == null;
+        }
+
+        /**
+         * Adds the rows of a chunk, or abandons the recording if they would
+         * make the session larger than the budget.
+         *
+         * @param chunk The chunk.
+         */
+        void add(DataChunk chunk) {
+            if (isAbandoned()) {
+                return;
+            }
+            int n = chunk.getCount();
+            int[] chunkRrStarts = chunk.getRrStarts();
+            int nRr = chunkRrStarts[n];
+            int rrStart = rrStarts[count];
+            if (estimateBytes(count + n, rrStart + nRr) > budget) {
+                Log.d(TAG, "SessionCache: Not caching " + startDate
+                        + ", larger than the budget after " + count
+                        + " rows");
+                dates = null;
+                hrs = null;
+                rrPresent = null;
+                rrStarts = null;
+                rrValues = null;
+                rrArtifacts = null;
+                return;
+            }
+            if (count + n > dates.length) {
+                int capacity = Math.max(2 * dates.length, count + n);
+                long[] newDates = new long[capacity];
+                int[] newHrs = new int[capacity];
+                boolean[] newRrPresent = new boolean[capacity];
+                int[] newRrStarts = new int[capacity + 1];
+                System.arraycopy(dates, 0, newDates, 0, count);
+                System.arraycopy(hrs, 0, newHrs, 0, count);
+                System.arraycopy(rrPresent, 0, newRrPresent, 0, count);
+                System.arraycopy(rrStarts, 0, newRrStarts, 0, count + 1);
+                dates = newDates;
+                hrs = newHrs;
+                rrPresent = newRrPresent;
+                rrStarts = newRrStarts;
+            }
+            if (rrStart + nRr > rrValues.length) {
+                int capacity = Math.max(2 * rrValues.length, rrStart + nRr);
+                int[] newRrValues = new int[capacity];
+                boolean[] newRrArtifacts = new boolean[capacity];
+                System.arraycopy(rrValues, 0, newRrValues, 0, rrStart);
+                System.arraycopy(rrArtifacts, 0, newRrArtifacts, 0, rrStart);
+                rrValues = newRrValues;
+                rrArtifacts = newRrArtifacts;
+            }
+            System.arraycopy(chunk.getDates(), 0, dates, count, n);
+            System.arraycopy(chunk.getHrs(), 0, hrs, count, n);
+            System.arraycopy(chunk.getRrPresent(), 0, rrPresent, count, n);
+            for (int i = 1; i <= n; i++) {
+                rrStarts[count + i] = rrStart + chunkRrStarts[i];
+            }
+            System.arraycopy(chunk.getRrValues(), 0, rrValues, rrStart, nRr);
+            System.arraycopy(chunk.getRrArtifacts(), 0, rrArtifacts, rrStart,
+                    nRr);
+            count += n;
+        }
+
+        /**
+         * Makes an entry with arrays trimmed to the rows added.
+         *
+         * @return The entry.
+         */
+        private Entry toEntry() {
+            int nRr = rrStarts[count];
+            long[] newDates = new long[count];
+            int[] newHrs = new int[count];
+            boolean[] newRrPresent = new boolean[count];
+            int[] newRrStarts = new int[count + 1];
+            int[] newRrValues = new int[nRr];
+            boolean[] newRrArtifacts = new boolean[nRr];
+            System.arraycopy(dates, 0, newDates, 0, count);
+            System.arraycopy(hrs, 0, newHrs, 0, count);
+            System.arraycopy(rrPresent, 0, newRrPresent, 0, count);
+            System.arraycopy(rrStarts, 0, newRrStarts, 0, count + 1);
+            System.arraycopy(rrValues, 0, newRrValues, 0, nRr);
+            System.arraycopy(rrArtifacts, 0, newRrArtifacts, 0, nRr);
+            return new Entry(path, startDate, count, newDates, newHrs,
+                    newRrPresent, newRrStarts, newRrValues, newRrArtifacts);
+        }
+    }
+
+}
@@ -0,0 +1,403 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.app.Activity;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exports sessions to files using a fixed pool of worker threads, one
+ * session per job. Each job reads through its own read-only database
+ * connection, so the sessions are read in parallel. The pool has at most
+ * EXPORT_MAX_THREADS threads, fewer if there are fewer processors or
+ * sessions, since the jobs are mostly limited by storage.
+ * <p>
+ * In combined mode each session is written to a temporary part file in
+ * parallel, and the parts are then appended to the combined file in the
+ * order of the sessions, separated by blank lines, and deleted.
+ * <p>
+ * The files may be compressed with an ExportCodec, in which case its suffix
+ * is added to the names. Compressed parts are complete compressed streams,
+ * and a compressed stream appended to another is a valid stream for the
+ * codecs used, so the parts are combined the same way.
+ * <p>
+ * run() blocks until all the jobs are done, so it should be called from a
+ * background thread. cancel() may be called from any thread.
+ */
+public class SessionExportJob implements IConstants {
+    /**
+     * Format for CSV files.
+     */
+    public static final int FORMAT_CSV = 0;
+    /**
+     * Format for GPX files.
+     */
+    public static final int FORMAT_GPX = 1;
+
+    private final Activity mActivity;
+    private final File mDataDir;
+    private final List<Session> mSessions;
+    private final int mFormat;
+    private final boolean mCombined;
+    private final String mCreator;
+    private final ExportCodec mCodec;
+    private volatile boolean mCancelled;
+    /**
+     * Cancels the queries in progress when the job is cancelled.
+     */
+    private final CancellationSignal mSignal = new CancellationSignal();
+    private final AtomicLong mRows = new AtomicLong();
+    private final AtomicInteger mFilesDone = new AtomicInteger();
+    private ProgressListener mProgressListener;
+
+    /**
+     * Listener for the progress of a job. Called on the worker threads.
+     */
+    public interface ProgressListener {
+        /**
+         * Called as rows are written and when a session is done.
+         *
+         * @param rows      The total number of rows written.
+         * @param filesDone The number of sessions done.
+         * @param nFiles    The number of sessions.
+         */
+        void onProgress(long rows, int filesDone, int nFiles);
+    }
+
+    /**
+     * The result of a job.
+     */
+    public static class Result {
+        /**
+         * The names of the files that were written.
+         */
+        public final List<String> fileNames = new ArrayList<>();
+        /**
+         * The names of the sessions or files that had errors.
+         */
+        public final List<String> errorNames = new ArrayList<>();
+        public int nErrors;
+        public long rows;
+        public boolean cancelled;
+        public double elapsed;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param activity The activity, used to open database connections.
+     * @param dataDir  The directory for the files and the database.
+     * @param sessions The sessions. For combined mode they should be in
+     *                 increasing order of start date.
+     * @param format   FORMAT_CSV or FORMAT_GPX.
+     * @param combined Whether to write one combined CSV file.
+     * @param creator  The creator name for GPX files.
+     * @param codec    The codec for compressing the files.
+     */
+    public SessionExportJob(Activity activity, File dataDir,
+                            List<Session> sessions, int format,
+                            boolean combined, String creator,
+                            ExportCodec codec) {
+        mActivity = activity;
+        mDataDir = dataDir;
+        mSessions = sessions;
+        mFormat = format;
+        mCombined = combined && format == FORMAT_CSV;
+        mCreator = creator;
+        mCodec = codec;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Stops the job as soon as possible. Files already started are
+     * deleted.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mSignal.cancel();
+    }
+
+    /**
+     * Runs the job.
+     *
+     * @return The result.
+     */
+    public Result run() {
+        long start = System.nanoTime();
+        Result result = new Result();
+        int nSessions = mSessions.size();
+        int nThreads = Math.min(nSessions, Math.min(EXPORT_MAX_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(nThreads, 1), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(
+                                        Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "BCMExport-" + mCount.incrementAndGet());
+                    }
+                });
+        String combinedName = mCombined ? mSessions.get(0).getName()
+                + "-Combined.csv" + mCodec.getSuffix() : null;
+        List<File> files = new ArrayList<>(nSessions);
+        List<Future<Boolean>> futures = new ArrayList<>(nSessions);
+        boolean[] written = new boolean[nSessions];
+        try {
+            File file;
+            for (int i = 0; i < nSessions; i++) {
+                Session session = mSessions.get(i);
+                if (mCombined) {
+                    file = new File(mDataDir, combinedName + ".part" + i);
+                } else {
+                    file = new File(mDataDir, session.getName()
+                            + (mFormat == FORMAT_GPX ? ".gpx" : ".csv")
+                            + mCodec.getSuffix());
+                }
+                files.add(file);
+                futures.add(executor.submit(new SessionWriter(session,
+                        file)));
+            }
+            // Collect the results in order
+            boolean ok;
+            for (int i = 0; i < nSessions; i++) {
+                try {
+                    ok = futures.get(i).get();
+                } catch (Exception ex) {
+                    Log.e(TAG, "SessionExportJob: Error in job", ex);
+                    ok = false;
+                }
+                written[i] = ok;
+                if (!ok && !mCancelled) {
+                    result.nErrors++;
+                    result.errorNames.add(mSessions.get(i).getName());
+                } else if (ok && !mCombined) {
+                    result.fileNames.add(files.get(i).getName());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (mCombined) {
+            if (mCancelled) {
+                deleteParts(files);
+            } else {
+                File combined = new File(mDataDir, combinedName);
+                try {
+                    concatenate(files, written, combined);
+                    result.fileNames.add(combinedName);
+                } catch (Exception ex) {
+                    Log.e(TAG, "SessionExportJob: Error combining files", ex);
+                    deleteParts(Collections.singletonList(combined));
+                    result.nErrors++;
+                    result.errorNames.add("Writing combined file");
+                } finally {
+                    deleteParts(files);
+                }
+            }
+        }
+        result.rows = mRows.get();
+        result.cancelled = mCancelled;
+        result.elapsed = 1.e-9 * (System.nanoTime() - start);
+        Log.d(TAG, String.format(Locale.US, "SessionExportJob: %d sessions "
+                        + "%d rows %d errors in %.3f s with %d threads%s",
+                nSessions, result.rows, result.nErrors, result.elapsed,
+                nThreads, mCancelled ? " (cancelled)" : ""));
+        return result;
+    }
+
+    /**
+     * Appends the part files to the combined file with a blank line
+     * between them. Parts that were not written completely are skipped.
+     *
+     * @param parts   The part files in order.
+     * @param written Whether each part was written completely.
+     * @param file    The combined file.
+     * @throws IOException If there is an error.
+     */
+    private void concatenate(List<File> parts, boolean[] written, File file)
+            throws IOException {
+        // The separator is compressed like the parts
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream separatorOut = mCodec.newOutputStream(bytes);
+        separatorOut.write('\n');
+        separatorOut.close();
+        ByteBuffer separator = ByteBuffer.wrap(bytes.toByteArray());
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel outChannel = out.getChannel();
+            boolean first = true;
+            File part;
+            for (int i = 0; i < parts.size(); i++) {
+                part = parts.get(i);
+                if (!written[i] || !part.exists()) {
+                    continue;
+                }
+                // Write a blank line to separate sessions
+                if (first) {
+                    first = false;
+                } else {
+                    separator.rewind();
+                    while (separator.hasRemaining()) {
+                        outChannel.write(separator);
+                    }
+                }
+                FileInputStream in = new FileInputStream(part);
+                try {
+                    FileChannel inChannel = in.getChannel();
+                    long size = inChannel.size();
+                    long pos = 0;
+                    while (pos < size) {
+                        pos += inChannel.transferTo(pos, size - pos,
+                                outChannel);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void deleteParts(List<File> parts) {
+        for (File part : parts) {
+            if (part.exists() && !part.delete()) {
+                Log.w(TAG, "SessionExportJob: Could not delete " + part);
+            }
+        }
+    }
+
+    /**
+     * Adds rows to the total and reports progress.
+     *
+     * @param rows The number of rows to add.
+     */
+    private void addRows(long rows) {
+        long total = mRows.addAndGet(rows);
+        ProgressListener listener = mProgressListener;
+        if (listener != null) {
+            listener.onProgress(total, mFilesDone.get(), mSessions.size());
+        }
+    }
+
+    /**
+     * Job that writes one session to one file. The file is deleted if it is
+     * not written completely, as when there is an error or the job is
+     * cancelled.
+     */
+    private class SessionWriter implements Callable<Boolean>,
+            ExportWriter.ProgressListener {
+        private final Session mSession;
+        private final File mFile;
+        private long mReported;
+
+        private SessionWriter(Session session, File file) {
+            mSession = session;
+            mFile = file;
+        }
+
+        @Override
+        public Boolean call() {
+            if (mCancelled) {
+                return false;
+            }
+            BCMDbAdapter dbAdapter = new BCMDbAdapter(mActivity, mDataDir)
+                    .openReadOnly();
+            if (dbAdapter == null) {
+                return false;
+            }
+            boolean ok = false;
+            try {
+                if (mFormat == FORMAT_GPX) {
+                    ok = writeGpx(dbAdapter);
+                } else {
+                    ok = writeCsv(dbAdapter);
+                }
+                mFilesDone.incrementAndGet();
+                addRows(0);
+                return ok;
+            } catch (OperationCanceledException ex) {
+                return false;
+            } catch (Exception ex) {
+                Log.e(TAG, "SessionExportJob: Error writing " + mFile, ex);
+                return false;
+            } finally {
+                dbAdapter.close();
+                if (!ok && mFile.exists() && !mFile.delete()) {
+                    Log.w(TAG, "SessionExportJob: Could not delete "
+                            + mFile);
+                }
+            }
+        }
+
+        private boolean writeCsv(BCMDbAdapter dbAdapter) throws IOException {
+            CsvExportWriter out = new CsvExportWriter(mFile, mCodec);
+            try {
+                out.setProgressListener(this);
+                return out.writeSession(dbAdapter
+                        .readHrRrDateDataForStartDate(mSession.getStartDate(),
+                                DATA_CHUNK_SIZE, mSignal));
+            } finally {
+                out.close();
+                onProgress(out.getRows());
+            }
+        }
+
+        private boolean writeGpx(BCMDbAdapter dbAdapter) throws IOException {
+            GpxExportWriter out = new GpxExportWriter(mFile, mCodec);
+            try {
+                out.setProgressListener(this);
+                out.writeStart(mCreator, System.currentTimeMillis());
+                if (!out.writeSession(dbAdapter.readHrDateDataForStartDate(
+                        mSession.getStartDate(), DATA_CHUNK_SIZE,
+                        mSignal))) {
+                    return false;
+                }
+                out.writeEnd();
+                return true;
+            } finally {
+                out.close();
+                onProgress(out.getRows());
+            }
+        }
+
+        @Override
+        public boolean onProgress(long rows) {
+            addRows(rows - mReported);
+            mReported = rows;
+            return !mCancelled;
+        }
+    }
+
+}
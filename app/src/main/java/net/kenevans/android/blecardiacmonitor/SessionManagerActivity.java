@@ -11,6 +11,8 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.preference.PreferenceManager;
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
@@ -26,12 +28,8 @@ import android.widget.CheckBox;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -39,13 +37,14 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.Locale;
-import java.util.TimeZone;
 
 public class SessionManagerActivity extends AppCompatActivity implements IConstants {
     private SessionListAdapter mSessionListAdapter;
     private BCMDbAdapter mDbAdapter;
     private File mDataDir;
     private RestoreTask mRestoreTask;
+    private RebuildSessionsTask mRebuildSessionsTask;
+    private ExportTask mExportTask;
     private ListView mListView;
 
     @Override
@@ -137,6 +136,12 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
             case R.id.menu_save_gpx:
                 saveSessionsAsGpx();
                 return true;
+            case R.id.menu_merge:
+                mergeSessions();
+                return true;
+            case R.id.menu_split:
+                splitSessions();
+                return true;
             case R.id.menu_refresh:
                 refresh();
                 return true;
@@ -147,11 +152,17 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                 setAllSessionsChecked(false);
                 return true;
             case R.id.menu_save_database:
-                saveDatabase();
+                saveDatabase(false);
+                return true;
+            case R.id.menu_save_database_binary:
+                saveDatabase(true);
                 return true;
             case R.id.menu_restore_database:
                 checkRestoreDatabase();
                 return true;
+            case R.id.menu_rebuild_sessions:
+                rebuildSessions();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -185,17 +196,55 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
     }
 
     /**
-     * Merges the selected sessions.
+     * Merges the selected sessions into one with the earliest start date.
+     * The data is not changed, and the merged session can be split again.
      */
     public void mergeSessions() {
-        Utils.infoMsg(this, "Not implented yet");
+        ArrayList<Session> checkedSessions = mSessionListAdapter
+                .getCheckedSessions();
+        if (checkedSessions == null || checkedSessions.size() < 2) {
+            Utils.errMsg(this, "At least two sessions must be checked to " +
+                    "merge");
+            return;
+        }
+        long[] startDates = new long[checkedSessions.size()];
+        for (int i = 0; i < startDates.length; i++) {
+            startDates[i] = checkedSessions.get(i).getStartDate();
+        }
+        long start = System.nanoTime();
+        mDbAdapter.mergeSessions(startDates);
+        Log.d(TAG, this.getClass().getSimpleName() + ": mergeSessions: "
+                + startDates.length + " sessions in "
+                + (System.nanoTime() - start) / 1000 + " us");
+        refresh();
     }
 
     /**
-     * Splits the selected sessions.
+     * Splits the selected sessions into the recordings they were merged
+     * from.
      */
     public void splitSessions() {
-        Utils.infoMsg(this, "Not implented yet");
+        ArrayList<Session> checkedSessions = mSessionListAdapter
+                .getCheckedSessions();
+        if (checkedSessions == null || checkedSessions.size() == 0) {
+            Utils.errMsg(this, "There are no sessions to split");
+            return;
+        }
+        int nSplit = 0;
+        long start = System.nanoTime();
+        for (Session session : checkedSessions) {
+            if (mDbAdapter.splitSession(session.getStartDate()) > 1) {
+                nSplit++;
+            }
+        }
+        Log.d(TAG, this.getClass().getSimpleName() + ": splitSessions: "
+                + nSplit + " sessions in "
+                + (System.nanoTime() - start) / 1000 + " us");
+        if (nSplit == 0) {
+            Utils.errMsg(this, "Only merged sessions can be split");
+            return;
+        }
+        refresh();
     }
 
     /**
@@ -212,50 +261,8 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
             Utils.errMsg(this, "Cannot determine directory for save");
             return;
         }
-        int nErrors = 0;
-        int nWriteErrors;
-        String errMsg = "Error saving sessions:\n";
-        String fileNames = "Saved to:\n";
-        BufferedWriter out = null;
-        String fileName;
-        long startDate;
-        File file;
-        FileWriter writer;
-        for (Session session : checkedSessions) {
-            startDate = session.getStartDate();
-            fileName = session.getName() + ".csv";
-            try {
-                file = new File(mDataDir, fileName);
-                writer = new FileWriter(file);
-                out = new BufferedWriter(writer);
-                // Write the session data
-                nWriteErrors = writeSessionDataToCvsFile(startDate, out);
-                if (nWriteErrors > 0) {
-                    nErrors += nWriteErrors;
-                    errMsg += "  " + session.getName();
-                }
-                fileNames += "  " + file.getName() + "\n";
-            } catch (Exception ex) {
-                nErrors++;
-                errMsg += "  " + session.getName();
-            } finally {
-                try {
-                    if (out != null) out.close();
-                } catch (Exception ex) {
-                    // Do nothing
-                }
-            }
-        }
-        String msg = "Directory:\n" + mDataDir + "\n";
-        if (nErrors > 0) {
-            msg += errMsg;
-        }
-        msg += fileNames;
-        if (nErrors > 0) {
-            Utils.errMsg(this, msg);
-        } else {
-            Utils.infoMsg(this, msg);
-        }
+        startExport(new SaveSessionsTask(checkedSessions,
+                SessionExportJob.FORMAT_CSV, false));
     }
 
     /**
@@ -285,108 +292,46 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                 }
             }
         });
-        int nErrors = 0;
-        int nWriteErrors;
-        String errMsg = "Error saving combined sessions:\n";
-        String fileNames = "Saved to:\n";
-        BufferedWriter out = null;
-        // Use the name of the first session
-        String fileName = checkedSessions.get(0).getName() + "-Combined.csv";
-        long startDate;
-        File file;
-        FileWriter writer;
-        try {
-            file = new File(mDataDir, fileName);
-            writer = new FileWriter(file);
-            out = new BufferedWriter(writer);
-            boolean first = true;
-            for (Session session : checkedSessions) {
-                startDate = session.getStartDate();
-                // Write a blank line to separate sessions
-                if (first) {
-                    first = false;
-                } else {
-                    out.write("\n");
-                }
-                // Write the session data
-                nWriteErrors = writeSessionDataToCvsFile(startDate, out);
-                if (nWriteErrors > 0) {
-                    nErrors += nWriteErrors;
-                    errMsg += "  " + session.getName();
-                }
-            }
-            fileNames += "  " + file.getName() + "\n";
-        } catch (Exception ex) {
-            nErrors++;
-            errMsg += "  " + "Writing combined file";
-        } finally {
+        startExport(new SaveSessionsTask(checkedSessions,
+                SessionExportJob.FORMAT_CSV, true));
+    }
+
+    /**
+     * Gets the codec for exported files from the settings.
+     *
+     * @return The codec.
+     */
+    private ExportCodec getExportCodec() {
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(this);
+        String name = prefs.getString(PREF_EXPORT_COMPRESSION,
+                ExportCodec.NAME_NONE);
+        int level = EXPORT_COMPRESSION_LEVEL;
+        String stringVal = prefs.getString(PREF_EXPORT_COMPRESSION_LEVEL,
+                null);
+        if (stringVal != null) {
             try {
-                if (out != null) out.close();
+                level = Math.max(1, Math.min(9, Integer.parseInt(stringVal)));
             } catch (Exception ex) {
-                // Do nothing
+                level = EXPORT_COMPRESSION_LEVEL;
             }
         }
-        String msg = "Directory:\n" + mDataDir + "\n";
-        if (nErrors > 0) {
-            msg += errMsg;
-        }
-        msg += fileNames;
-        if (nErrors > 0) {
-            Utils.errMsg(this, msg);
-        } else {
-            Utils.infoMsg(this, msg);
-        }
+        return ExportCodec.forName(name, level);
     }
 
     /**
-     * Writes the session data for the given startDate to the given
-     * BufferedWriter.
+     * Starts an export task unless one is already running.
      *
-     * @param startDate The startDate.
-     * @param out       The BufferedWRiter.
-     * @return The number of errors.
+     * @param task The task.
      */
-    private int writeSessionDataToCvsFile(long startDate, BufferedWriter out) {
-        Cursor cursor = null;
-        int nErrors = 0;
-        try {
-            cursor = mDbAdapter.fetchAllHrRrDateDataForStartDate(startDate);
-            int indexDate = cursor.getColumnIndex(COL_DATE);
-            int indexHr = cursor.getColumnIndex(COL_HR);
-            int indexRr = cursor.getColumnIndex(COL_RR);
-            // Loop over items
-            cursor.moveToFirst();
-            String dateStr, hrStr, rrStr, line;
-            long dateNum;
-            while (!cursor.isAfterLast()) {
-                dateStr = INVALID_STRING;
-                if (indexDate > -1) {
-                    dateNum = cursor.getLong(indexDate);
-                    dateStr = sessionSaveFormatter.format(new Date(dateNum));
-                }
-                hrStr = INVALID_STRING;
-                if (indexHr > -1) {
-                    hrStr = cursor.getString(indexHr);
-                }
-                rrStr = INVALID_STRING;
-                if (indexRr > -1) {
-                    rrStr = cursor.getString(indexRr);
-                }
-                line = dateStr + SAVE_SESSION_DELIM + hrStr
-                        + SAVE_SESSION_DELIM + rrStr + "\n";
-                out.write(line);
-                cursor.moveToNext();
-            }
-        } catch (Exception ex) {
-            nErrors++;
-        } finally {
-            try {
-                if (cursor != null) cursor.close();
-            } catch (Exception ex) {
-                // Do nothing
-            }
+    private void startExport(ExportTask task) {
+        if (mExportTask != null) {
+            Log.d(TAG, this.getClass().getSimpleName()
+                    + ": startExport: An export is already running");
+            return;
         }
-        return nErrors;
+        mExportTask = task;
+        mExportTask.execute();
     }
 
     /**
@@ -403,87 +348,8 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
             Utils.errMsg(this, "Cannot determine directory for save");
             return;
         }
-        int nErrors = 0;
-        String errMsg = "Error saving sessions:\n";
-        String fileNames = "Saved to:\n";
-        BufferedWriter out = null;
-        Cursor cursor = null;
-        String fileName;
-        long startDate;
-        File file;
-        FileWriter writer;
-        String name;
-        SimpleDateFormat formatter = new SimpleDateFormat(
-                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-        try {
-            PackageManager pm = getPackageManager();
-            PackageInfo po = pm.getPackageInfo(this.getPackageName(), 0);
-            name = "BLE Cardiac Monitor" + " " + po.versionName;
-        } catch (Exception ex) {
-            name = "BLE Cardiac Monitor";
-        }
-        for (Session session : checkedSessions) {
-            startDate = session.getStartDate();
-            fileName = session.getName() + ".gpx";
-            try {
-                file = new File(mDataDir, fileName);
-                writer = new FileWriter(file);
-                out = new BufferedWriter(writer);
-                // Write the beginning lines
-                out.write(String.format(GPXUtils.GPX_FILE_START_LINES, name,
-                        formatter.format(new Date())));
-                cursor = mDbAdapter.fetchAllHrDateDataForStartDate(startDate);
-                int indexDate = cursor.getColumnIndex(COL_DATE);
-                int indexHr = cursor.getColumnIndex(COL_HR);
-                // Loop over items
-                cursor.moveToFirst();
-                String hrStr, line;
-                long dateNum = INVALID_DATE;
-                while (!cursor.isAfterLast()) {
-                    if (indexDate > -1) {
-                        dateNum = cursor.getLong(indexDate);
-                    }
-                    hrStr = INVALID_STRING;
-                    if (indexHr > -1) {
-                        hrStr = cursor.getString(indexHr);
-                    }
-                    if (hrStr.equals(INVALID_STRING)) {
-                        continue;
-                    }
-                    line = String.format(GPXUtils.GPX_FILE_TRACK_LINES,
-                            formatter.format(new Date(dateNum)), hrStr);
-                    out.write(line);
-                    cursor.moveToNext();
-                }
-                out.write(GPXUtils.GPX_FILE_END_LINES);
-                fileNames += "  " + file.getName() + "\n";
-            } catch (Exception ex) {
-                nErrors++;
-                errMsg += "  " + session.getName();
-            } finally {
-                try {
-                    if (cursor != null) cursor.close();
-                } catch (Exception ex) {
-                    // Do nothing
-                }
-                try {
-                    if (out != null) out.close();
-                } catch (Exception ex) {
-                    // Do nothing
-                }
-            }
-        }
-        String msg = "Directory:\n" + mDataDir + "\n";
-        if (nErrors > 0) {
-            msg += errMsg;
-        }
-        msg += fileNames;
-        if (nErrors > 0) {
-            Utils.errMsg(this, msg);
-        } else {
-            Utils.infoMsg(this, msg);
-        }
+        startExport(new SaveSessionsTask(checkedSessions,
+                SessionExportJob.FORMAT_GPX, false));
     }
 
     /**
@@ -535,91 +401,16 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
     }
 
     /**
-     * Saves the database as a CSV file with a .txt extension.
+     * Saves the database as a CSV file or a binary file.
+     *
+     * @param binary Whether to use the binary format.
      */
-    private void saveDatabase() {
-        BufferedWriter out = null;
-        Cursor cursor = null;
-        try {
-            if (mDataDir == null) {
-                Utils.errMsg(this, "Cannot determine directory for save");
-                return;
-            }
-            String format = "yyyy-MM-dd-HHmmss";
-            SimpleDateFormat df = new SimpleDateFormat(format, Locale.US);
-            Date now = new Date();
-            String fileName = String.format(SAVE_DATABASE_FILENAME_TEMPLATE,
-                    df.format(now));
-            File file = new File(mDataDir, fileName);
-            FileWriter writer = new FileWriter(file);
-            out = new BufferedWriter(writer);
-            cursor = mDbAdapter.fetchAllData(null);
-            int indexDate = cursor.getColumnIndex(COL_DATE);
-            int indexStartDate = cursor.getColumnIndex(COL_START_DATE);
-            int indexHr = cursor.getColumnIndex(COL_HR);
-            int indexRr = cursor.getColumnIndex(COL_RR);
-            // Loop over items
-            cursor.moveToFirst();
-            String rr, info;
-            long dateNum, startDateNum;
-            int hr;
-            while (!cursor.isAfterLast()) {
-                dateNum = startDateNum = INVALID_DATE;
-                hr = INVALID_INT;
-                rr = " ";
-                if (indexDate > -1) {
-                    try {
-                        dateNum = cursor.getLong(indexDate);
-                    } catch (Exception ex) {
-                        // Do nothing
-                    }
-                }
-                if (indexStartDate > -1) {
-                    try {
-                        startDateNum = cursor.getLong(indexStartDate);
-                    } catch (Exception ex) {
-                        // Do nothing
-                    }
-                }
-                if (indexHr > -1) {
-                    try {
-                        hr = cursor.getInt(indexHr);
-                    } catch (Exception ex) {
-                        // Do nothing
-                    }
-                }
-                if (indexRr > -1) {
-                    try {
-                        rr = cursor.getString(indexRr);
-                    } catch (Exception ex) {
-                        // Do nothing
-                    }
-                    // Need to do this, or it isn't recognized as a token
-                    if (rr.length() == 0) {
-                        rr = " ";
-                    }
-                }
-                info = String.format(Locale.US, "%d%s%d%s%d%s%s%s\n", dateNum,
-                        SAVE_DATABASE_DELIM, startDateNum, SAVE_DATABASE_DELIM,
-                        hr, SAVE_DATABASE_DELIM, rr, SAVE_DATABASE_DELIM);
-                out.write(info);
-                cursor.moveToNext();
-            }
-            Utils.infoMsg(this, "Wrote " + file.getPath());
-        } catch (Exception ex) {
-            Utils.excMsg(this, "Error saving database", ex);
-        } finally {
-            try {
-                if (cursor != null) cursor.close();
-            } catch (Exception ex) {
-                // Do nothing
-            }
-            try {
-                if (out != null) out.close();
-            } catch (Exception ex) {
-                // Do nothing
-            }
+    private void saveDatabase(boolean binary) {
+        if (mDataDir == null) {
+            Utils.errMsg(this, "Cannot determine directory for save");
+            return;
         }
+        startExport(new SaveDatabaseTask(binary));
     }
 
     /**
@@ -633,6 +424,48 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
             return;
         }
 
+        // Offer to resume an unfinished restore
+        BCMDbAdapter.RestoreState state = mDbAdapter.getRestoreState();
+        if (state != null) {
+            final File file = new File(state.path);
+            if (state.isFor(file)) {
+                new AlertDialog.Builder(SessionManagerActivity.this)
+                        .setTitle(R.string.confirm)
+                        .setMessage(getString(R.string.restore_resume_prompt,
+                                file.getName(), state.rows))
+                        .setPositiveButton(R.string.resume,
+                                new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(
+                                            DialogInterface dialog,
+                                            int which) {
+                                        dialog.dismiss();
+                                        restoreDatabase(file, true);
+                                    }
+                                })
+                        .setNeutralButton(R.string.start_over,
+                                new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(
+                                            DialogInterface dialog,
+                                            int which) {
+                                        dialog.dismiss();
+                                        selectRestoreFile();
+                                    }
+                                })
+                        .setNegativeButton(R.string.cancel, null)
+                        .show();
+                return;
+            }
+        }
+        selectRestoreFile();
+    }
+
+    /**
+     * Prompts for the file to restore and if it is OK to delete the current
+     * data, and calls restoreData to actually do the delete and restore.
+     */
+    private void selectRestoreFile() {
         // Find the .txt files in the data directory
         final File[] files = mDataDir.listFiles(new FileFilter() {
             @Override
@@ -640,9 +473,11 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                 if (file.isDirectory()) {
                     return false;
                 }
-                String name = file.getName();
+                String name = ExportCodec.stripSuffix(file.getName());
                 return name.startsWith(SAVE_DATABASE_FILENAME_PREFIX)
-                        && name.endsWith(SAVE_DATABASE_FILENAME_SUFFIX);
+                        && (name.endsWith(SAVE_DATABASE_FILENAME_SUFFIX)
+                        || name.endsWith(
+                        SAVE_DATABASE_BINARY_FILENAME_SUFFIX));
             }
         });
         if (files == null || files.length == 0) {
@@ -688,7 +523,8 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                                                     DialogInterface dialog,
                                                     int which) {
                                                 dialog.dismiss();
-                                                restoreDatabase(files[item]);
+                                                restoreDatabase(files[item],
+                                                        false);
                                             }
 
                                         })
@@ -701,9 +537,13 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
     }
 
     /**
-     * Deletes the existing data without prompting and restores the new data.
+     * Deletes the existing data without prompting and restores the new data,
+     * or resumes an unfinished restore.
+     *
+     * @param file   The file.
+     * @param resume Whether to resume an unfinished restore of the file.
      */
-    private void restoreDatabase(File file) {
+    private void restoreDatabase(File file, boolean resume) {
         if (!file.exists()) {
             Utils.errMsg(this, "Cannot find:\n" + file.getPath());
             return;
@@ -717,7 +557,7 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
             return;
         }
 
-        mRestoreTask = new RestoreTask(file);
+        mRestoreTask = new RestoreTask(file, resume);
         mRestoreTask.execute();
     }
 
@@ -731,21 +571,88 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
     }
 
     /**
-     * Class to handle getting the bitmap from the web using a progress bar that
-     * can be cancelled.<br>
-     * <br>
-     * Call with <b>Bitmap bitmap = new MyUpdateTask().execute(String)<b>
+     * Recomputes the session list from the data in the background.
      */
-    private class RestoreTask extends AsyncTask<Void, Void, Boolean> {
+    private void rebuildSessions() {
+        if (mRebuildSessionsTask != null || mRestoreTask != null) {
+            Log.d(TAG, this.getClass().getSimpleName()
+                    + ": rebuildSessions: A task is already running");
+            return;
+        }
+        mRebuildSessionsTask = new RebuildSessionsTask();
+        mRebuildSessionsTask.execute();
+    }
+
+    /**
+     * Task to recompute the sessions table from the data table with a
+     * progress dialog.
+     */
+    private class RebuildSessionsTask extends AsyncTask<Void, Void, Integer> {
         private ProgressDialog dialog;
-        private File file;
-        private int mErrors;
-        private int mLineNumber;
         private String mExceptionMsg;
 
-        private RestoreTask(File file) {
+        @Override
+        protected void onPreExecute() {
+            dialog = new ProgressDialog(SessionManagerActivity.this);
+            dialog.setMessage(getString(R.string
+                    .rebuilding_sessions_progress_text));
+            dialog.setCancelable(false);
+            dialog.setIndeterminate(true);
+            dialog.show();
+        }
+
+        @Override
+        protected Integer doInBackground(Void... dummy) {
+            try {
+                return mDbAdapter.rebuildSessions();
+            } catch (Exception ex) {
+                mExceptionMsg = "Got Exception rebuilding sessions\n"
+                        + ex.getMessage();
+                return -1;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer result) {
+            Log.d(TAG, this.getClass().getSimpleName()
+                    + ": onPostExecute: result=" + result);
+            if (dialog != null) {
+                dialog.dismiss();
+            }
+            mRebuildSessionsTask = null;
+            if (mExceptionMsg != null) {
+                Utils.errMsg(SessionManagerActivity.this, mExceptionMsg);
+            } else {
+                Utils.infoMsg(SessionManagerActivity.this, "Found " + result
+                        + " sessions");
+            }
+            refresh();
+        }
+    }
+
+    /**
+     * Task to restore the database from a file with a progress dialog
+     * showing the number of rows restored. The restore is done by a
+     * DatabaseRestoreJob. The dialog has a cancel button, and a cancelled
+     * restore can be resumed.
+     */
+    private class RestoreTask extends AsyncTask<Void, Long, Void> implements
+            DatabaseRestoreJob.ProgressListener {
+        private ProgressDialog dialog;
+        private final File file;
+        private final DatabaseRestoreJob mJob;
+        private DatabaseRestoreJob.Result mResult;
+
+        private RestoreTask(File file, boolean resume) {
             super();
             this.file = file;
+            mJob = new DatabaseRestoreJob(mDbAdapter, file, resume,
+                    RrFilter.forName(PreferenceManager
+                            .getDefaultSharedPreferences(
+                                    SessionManagerActivity.this)
+                            .getString(PREF_RR_FILTER,
+                                    RrFilter.NAME_MEDIAN)));
+            mJob.setProgressListener(this);
         }
 
         @Override
@@ -755,113 +662,382 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                     .restoring_database_progress_text));
             dialog.setCancelable(false);
             dialog.setIndeterminate(true);
+            dialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                    getString(R.string.cancel),
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog,
+                                            int which) {
+                            // Let the job finish the current batch and
+                            // rebuild the sessions
+                            mJob.cancel();
+                        }
+                    });
             dialog.show();
         }
 
         @Override
-        protected Boolean doInBackground(Void... dummy) {
-            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            BufferedReader in = null;
-            try {
-                // Delete all the data and recreate the table
-                mDbAdapter.recreateDataTable();
-
-                // Read the file and get the data to restore
-                in = new BufferedReader(new FileReader(file));
-                String rr;
-                long dateNum, startDateNum;
-                int hr;
-                String[] tokens;
-                String line;
-                while ((line = in.readLine()) != null) {
-                    dateNum = startDateNum = INVALID_DATE;
-                    mLineNumber++;
-                    tokens = line.trim().split(SAVE_DATABASE_DELIM);
-                    // Skip blank lines
-                    if (line.trim().length() == 0) {
-                        continue;
-                    }
-                    // Skip lines starting with #
-                    if (tokens[0].trim().startsWith("#")) {
-                        continue;
-                    }
-                    hr = 0;
-                    if (tokens.length < 4) {
-                        // Utils.errMsg(this, "Found " + tokens.length
-                        // + " tokens for line " + lineNum
-                        // + "\nShould be 5 or more tokens");
-                        mErrors++;
-                        Log.d(TAG, "tokens.length=" + tokens.length
-                                + " @ line " + mLineNumber);
-                        Log.d(TAG, line);
-                        continue;
-                    }
-                    try {
-                        dateNum = Long.parseLong(tokens[0]);
-                    } catch (Exception ex) {
-                        Log.d(TAG, "Long.parseLong failed for dateNum @ line "
-                                + mLineNumber);
-                    }
-                    try {
-                        startDateNum = Long.parseLong(tokens[1]);
-                    } catch (Exception ex) {
-                        Log.d(TAG,
-                                "Long.parseLong failed for startDateNum @ line "
-                                        + mLineNumber);
-                    }
-                    try {
-                        hr = Integer.parseInt(tokens[2]);
-                    } catch (Exception ex) {
-                        Log.d(TAG, "Integer.parseInt failed for hr @ line "
-                                + mLineNumber);
-                    }
-                    rr = tokens[3].trim();
-                    // Write the row
-                    long id = mDbAdapter.createData(dateNum, startDateNum, hr,
-                            rr);
-                    if (id < 0) {
-                        mErrors++;
-                    }
-                }
-            } catch (Exception ex) {
-                mExceptionMsg = "Got Exception restoring at line "
-                        + mLineNumber + "\n" + ex.getMessage();
-            } finally {
-                try {
-                    if (in != null) {
-                        in.close();
-                    }
-                } catch (Exception ex) {
-                    // Do nothing
-                }
+        protected Void doInBackground(Void... dummy) {
+            mResult = mJob.run();
+            return null;
+        }
+
+        @Override
+        public void onProgress(long rows, long offset, long length) {
+            publishProgress(rows, length > 0 ? 100 * offset / length : 0);
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            if (dialog != null) {
+                dialog.setMessage(getString(R.string
+                        .restoring_database_progress_text) + "\n"
+                        + getString(R.string.restore_rows_format, values[0],
+                        values[1]));
             }
-            return true;
         }
 
         @Override
-        protected void onPostExecute(Boolean result) {
+        protected void onPostExecute(Void result) {
             Log.d(TAG, this.getClass().getSimpleName()
-                    + ": onPostExecute: result=" + result);
+                    + ": onPostExecute: rows=" + mResult.rows);
             if (dialog != null) {
                 dialog.dismiss();
             }
             mRestoreTask = null;
             String info;
-            if (mErrors == 0) {
-                info = "Restored " + mLineNumber + " lines from "
+            if (mResult.cancelled) {
+                info = "Restore cancelled after " + mResult.rows
+                        + " rows from " + file.getPath()
+                        + "\nIt can be resumed with Restore Database";
+            } else if (mResult.errors == 0 && mResult.exceptionMsg == null) {
+                info = "Restored " + mResult.lines + " lines from "
                         + file.getPath();
             } else {
-                info = "Got " + mErrors + " errors processing " + mLineNumber
-                        + " lines from " + file.getPath();
-                if (mExceptionMsg != null) {
-                    info += "\n" + mExceptionMsg;
-                }
+                info = "Got " + mResult.errors + " errors processing "
+                        + mResult.lines + " lines from " + file.getPath();
+            }
+            info += String.format(Locale.US, "\n%d rows in %.1f s (%.0f "
+                            + "rows/s)", mResult.newRows, mResult.elapsed,
+                    mResult.getRowsPerSecond());
+            if (mResult.exceptionMsg != null) {
+                info += "\n" + mResult.exceptionMsg;
             }
             Utils.infoMsg(SessionManagerActivity.this, info);
             refresh();
         }
     }
 
+    /**
+     * Base class for tasks that write files in the background with a
+     * progress dialog showing the number of rows written. The dialog has a
+     * cancel button.
+     */
+    private abstract class ExportTask extends AsyncTask<Void, Long, Void>
+            implements ExportWriter.ProgressListener {
+        private final int mMessageId;
+        private ProgressDialog dialog;
+        private long mRowsDone;
+        private long mRows;
+        private long mStartTime;
+
+        private ExportTask(int messageId) {
+            super();
+            mMessageId = messageId;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mStartTime = System.nanoTime();
+            dialog = new ProgressDialog(SessionManagerActivity.this);
+            dialog.setMessage(getString(mMessageId));
+            dialog.setCancelable(false);
+            dialog.setIndeterminate(true);
+            dialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                    getString(R.string.cancel),
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog,
+                                            int which) {
+                            cancel(false);
+                            onCancelRequested();
+                        }
+                    });
+            dialog.show();
+        }
+
+        /**
+         * Called on the UI thread when the user cancels.
+         */
+        protected void onCancelRequested() {
+        }
+
+        /**
+         * Records that a writer is finished, so its rows are counted in the
+         * progress of the next one.
+         *
+         * @param rows The number of rows the writer wrote.
+         */
+        protected void finishWriter(long rows) {
+            mRowsDone += rows;
+            mRows = mRowsDone;
+        }
+
+        @Override
+        public boolean onProgress(long rows) {
+            reportProgress(mRowsDone + rows, -1, -1);
+            return !isCancelled();
+        }
+
+        /**
+         * Updates the progress dialog. May be called from any thread.
+         *
+         * @param rows      The total number of rows written.
+         * @param filesDone The number of files done or -1 if not known.
+         * @param nFiles    The number of files or -1 if not known.
+         */
+        protected void reportProgress(long rows, int filesDone, int nFiles) {
+            mRows = rows;
+            publishProgress(rows, (long) filesDone, (long) nFiles);
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            if (dialog == null) {
+                return;
+            }
+            String msg = getString(mMessageId) + "\n"
+                    + getString(R.string.export_rows_format, values[0]);
+            if (values[2] > 0) {
+                msg += "\n" + getString(R.string.export_files_format,
+                        values[1], values[2]);
+            }
+            dialog.setMessage(msg);
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            finish();
+        }
+
+        @Override
+        protected void onCancelled(Void result) {
+            finish();
+        }
+
+        private void finish() {
+            double elapsed = 1.e-9 * (System.nanoTime() - mStartTime);
+            Log.d(TAG, this.getClass().getSimpleName() + ": finish: "
+                    + String.format(Locale.US, "%d rows in %.3f s%s", mRows,
+                    elapsed, isCancelled() ? " (cancelled)" : ""));
+            if (dialog != null) {
+                dialog.dismiss();
+            }
+            mExportTask = null;
+            onExportFinished();
+        }
+
+        /**
+         * Called on the UI thread after the dialog is dismissed.
+         */
+        protected abstract void onExportFinished();
+    }
+
+    /**
+     * Task to save sessions as CSV or GPX files, either one file per
+     * session or one combined CSV file. The sessions are written in
+     * parallel by a SessionExportJob.
+     */
+    private class SaveSessionsTask extends ExportTask implements
+            SessionExportJob.ProgressListener {
+        private final SessionExportJob mJob;
+        private final String mErrorTitle;
+        private SessionExportJob.Result mResult;
+
+        /**
+         * Constructor.
+         *
+         * @param sessions The sessions, in increasing order of start date
+         *                 if combined.
+         * @param format   SessionExportJob.FORMAT_CSV or FORMAT_GPX.
+         * @param combined Whether to write one combined file.
+         */
+        private SaveSessionsTask(ArrayList<Session> sessions, int format,
+                                 boolean combined) {
+            super(R.string.saving_sessions_progress_text);
+            String creator = "BLE Cardiac Monitor";
+            if (format == SessionExportJob.FORMAT_GPX) {
+                try {
+                    PackageManager pm = getPackageManager();
+                    PackageInfo po = pm.getPackageInfo(getPackageName(), 0);
+                    creator += " " + po.versionName;
+                } catch (Exception ex) {
+                    // Do nothing
+                }
+            }
+            mJob = new SessionExportJob(SessionManagerActivity.this,
+                    mDataDir, sessions, format, combined, creator,
+                    getExportCodec());
+            mJob.setProgressListener(this);
+            mErrorTitle = combined ? "Error saving combined sessions:\n" :
+                    "Error saving sessions:\n";
+        }
+
+        @Override
+        protected Void doInBackground(Void... dummy) {
+            mResult = mJob.run();
+            return null;
+        }
+
+        @Override
+        public void onProgress(long rows, int filesDone, int nFiles) {
+            reportProgress(rows, filesDone, nFiles);
+        }
+
+        @Override
+        protected void onCancelRequested() {
+            mJob.cancel();
+        }
+
+        @Override
+        protected void onExportFinished() {
+            if (mResult == null) {
+                return;
+            }
+            String msg = "Directory:\n" + mDataDir + "\n";
+            if (mResult.cancelled) {
+                msg += "Cancelled\n";
+            }
+            if (mResult.nErrors > 0) {
+                msg += mErrorTitle;
+                for (String name : mResult.errorNames) {
+                    msg += "  " + name;
+                }
+                msg += "\n";
+            }
+            msg += "Saved to:\n";
+            for (String name : mResult.fileNames) {
+                msg += "  " + name + "\n";
+            }
+            if (mResult.nErrors > 0) {
+                Utils.errMsg(SessionManagerActivity.this, msg);
+            } else {
+                Utils.infoMsg(SessionManagerActivity.this, msg);
+            }
+        }
+    }
+
+    /**
+     * Task to save the whole database as a CSV or binary file.
+     */
+    private class SaveDatabaseTask extends ExportTask {
+        private final boolean mBinary;
+        private final ExportCodec mCodec;
+        private File file;
+        private Exception mException;
+        /**
+         * Whether all the rows were written.
+         */
+        private boolean mComplete;
+        private final CancellationSignal mSignal = new CancellationSignal();
+
+        /**
+         * Constructor.
+         *
+         * @param binary Whether to use the binary format.
+         */
+        private SaveDatabaseTask(boolean binary) {
+            super(R.string.saving_database_progress_text);
+            mBinary = binary;
+            mCodec = getExportCodec();
+        }
+
+        @Override
+        protected void onCancelRequested() {
+            mSignal.cancel();
+        }
+
+        @Override
+        protected Void doInBackground(Void... dummy) {
+            CsvExportWriter out = null;
+            BinaryBackupWriter binaryOut = null;
+            try {
+                String format = "yyyy-MM-dd-HHmmss";
+                SimpleDateFormat df = new SimpleDateFormat(format, Locale.US);
+                Date now = new Date();
+                String fileName = String.format(mBinary ?
+                                SAVE_DATABASE_BINARY_FILENAME_TEMPLATE :
+                                SAVE_DATABASE_FILENAME_TEMPLATE,
+                        df.format(now)) + mCodec.getSuffix();
+                file = new File(mDataDir, fileName);
+                DataChunkReader reader = mDbAdapter.readAllData(
+                        DATA_CHUNK_SIZE, mSignal);
+                if (reader == null) {
+                    throw new IllegalStateException("Database is not open");
+                }
+                if (mBinary) {
+                    binaryOut = new BinaryBackupWriter(file, mCodec);
+                    binaryOut.setProgressListener(this);
+                    binaryOut.setSessionMap(mDbAdapter.getMergedRecordings());
+                    mComplete = binaryOut.writeDatabase(reader);
+                } else {
+                    out = new CsvExportWriter(file, mCodec);
+                    out.setProgressListener(this);
+                    mComplete = out.writeDatabase(reader);
+                    if (mComplete) {
+                        out.writeSessionMap(
+                                mDbAdapter.getMergedRecordings());
+                    }
+                }
+            } catch (OperationCanceledException ex) {
+                // Cancelled by the user
+            } catch (Exception ex) {
+                mException = ex;
+            } finally {
+                try {
+                    if (out != null) {
+                        out.close();
+                        finishWriter(out.getRows());
+                    }
+                    if (binaryOut != null) {
+                        binaryOut.close();
+                        finishWriter(binaryOut.getRows());
+                    }
+                } catch (Exception ex) {
+                    if (mException == null) {
+                        mException = ex;
+                    }
+                }
+                // A partial file looks like a backup to the restore picker,
+                // and a CSV file has no end marker, so do not keep it
+                if ((!mComplete || mException != null) && file != null
+                        && file.exists()) {
+                    Log.d(TAG, "SaveDatabaseTask: Deleting partial "
+                            + file.getPath());
+                    if (!file.delete()) {
+                        Log.d(TAG, "SaveDatabaseTask: Could not delete "
+                                + file.getPath());
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void onExportFinished() {
+            if (mException != null) {
+                Utils.excMsg(SessionManagerActivity.this,
+                        "Error saving database", mException);
+            } else if (!mComplete) {
+                Utils.infoMsg(SessionManagerActivity.this,
+                        "Cancelled saving the database");
+            } else {
+                Utils.infoMsg(SessionManagerActivity.this, "Wrote "
+                        + file.getPath());
+            }
+        }
+    }
+
     /**
      * Sets all the sessions to checked or not.
      *
@@ -918,6 +1094,24 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                             .getColumnIndexOrThrow(COL_START_DATE);
                     int indexEndDate = cursor
                             .getColumnIndexOrThrow(COL_END_DATE);
+                    int indexNSamples = cursor
+                            .getColumnIndexOrThrow(COL_N_SAMPLES);
+                    int indexHrMin = cursor.getColumnIndexOrThrow(COL_HR_MIN);
+                    int indexHrMax = cursor.getColumnIndexOrThrow(COL_HR_MAX);
+                    int indexHrSum = cursor.getColumnIndexOrThrow(COL_HR_SUM);
+                    int indexHrCount = cursor
+                            .getColumnIndexOrThrow(COL_HR_COUNT);
+                    int indexRrCount = cursor
+                            .getColumnIndexOrThrow(COL_RR_COUNT);
+                    int indexRrSum = cursor.getColumnIndexOrThrow(COL_RR_SUM);
+                    int indexRrSumSq = cursor
+                            .getColumnIndexOrThrow(COL_RR_SUM_SQ);
+                    int indexRrDiffSumSq = cursor
+                            .getColumnIndexOrThrow(COL_RR_DIFF_SUM_SQ);
+                    int indexRrDiffCount = cursor
+                            .getColumnIndexOrThrow(COL_RR_DIFF_COUNT);
+                    int indexNn50Count = cursor
+                            .getColumnIndexOrThrow(COL_NN50_COUNT);
                     // int indexTmp = cursor.getColumnIndexOrThrow(COL_TMP);
 
                     // Loop over items
@@ -925,6 +1119,9 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                     long startDate;
                     long endDate;
                     String name;
+                    Session session;
+                    int hrCount;
+                    long diffCount;
                     while (!cursor.isAfterLast()) {
                         nItems++;
                         startDate = cursor.getLong(indexStartDate);
@@ -948,7 +1145,26 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                         // name = "Temporary Session ";
                         // }
                         name = sessionNameFromDate(startDate);
-                        addSession(new Session(name, startDate, endDate));
+                        session = new Session(name, startDate, endDate);
+                        session.setNSamples(cursor.getInt(indexNSamples));
+                        session.setRrCount(cursor.getInt(indexRrCount));
+                        hrCount = cursor.getInt(indexHrCount);
+                        if (hrCount > 0) {
+                            session.setHrStats(cursor.getInt(indexHrMin),
+                                    cursor.getInt(indexHrMax),
+                                    (double) cursor.getLong(indexHrSum)
+                                            / hrCount);
+                        }
+                        diffCount = cursor.getLong(indexRrDiffCount);
+                        session.setHrvStats(HrvAnalyzer.rmssd(
+                                cursor.getLong(indexRrDiffSumSq), diffCount),
+                                HrvAnalyzer.sdnn(cursor.getLong(indexRrSum),
+                                        cursor.getLong(indexRrSumSq),
+                                        cursor.getLong(indexRrCount)),
+                                HrvAnalyzer.pnn50(
+                                        cursor.getLong(indexNn50Count),
+                                        diffCount));
+                        addSession(session);
                         cursor.moveToNext();
                     }
                 }
@@ -1011,6 +1227,8 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                         .findViewById(R.id.session_start);
                 viewHolder.sessionDuration = view
                         .findViewById(R.id.session_end);
+                viewHolder.sessionSummary = view
+                        .findViewById(R.id.session_summary);
                 view.setTag(viewHolder);
 
                 viewHolder.sessionCheckbox
@@ -1060,10 +1278,27 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                 durString += durationSec + " sec";
                 viewHolder.sessionStart.setText(startStr);
                 viewHolder.sessionDuration.setText(durString);
+                String summary;
+                if (Double.isNaN(session.getHrAvg())) {
+                    summary = getString(R.string.session_summary_no_hr_format,
+                            session.getNSamples(), session.getRrCount());
+                } else {
+                    summary = getString(R.string.session_summary_format,
+                            session.getNSamples(), session.getHrMin(),
+                            session.getHrMax(), session.getHrAvg(),
+                            session.getRrCount());
+                }
+                if (!Double.isNaN(session.getRmssd())) {
+                    summary += getString(R.string.session_summary_hrv_format,
+                            session.getRmssd(), session.getSdnn(),
+                            session.getPnn50());
+                }
+                viewHolder.sessionSummary.setText(summary);
             } else {
                 viewHolder.sessionCheckbox.setText(R.string.unknown_device);
                 viewHolder.sessionStart.setText("");
                 viewHolder.sessionDuration.setText("");
+                viewHolder.sessionSummary.setText("");
             }
             // Set the tag for the CheckBox to the session and set its state
             viewHolder.sessionCheckbox.setChecked(session.isChecked());
@@ -1106,6 +1341,7 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
         CheckBox sessionCheckbox;
         TextView sessionStart;
         TextView sessionDuration;
+        TextView sessionSummary;
     }
 
 }
@@ -0,0 +1,238 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the binary backup format with the CSV format for file size,
+ * save time, and restore time, and checks that both give back the rows and
+ * the session map. The restore times are for reading the rows from the
+ * file, without the database inserts, which are the same for both.
+ */
+public class BackupFormatBenchmark implements IConstants {
+    /**
+     * A day of data, as three 8 hour sessions.
+     */
+    private static final int SESSIONS = 3;
+    private static final int ROWS = 8 * 3600;
+    private static final long START_DATE = 1500000000000L;
+
+    private static SessionCache.Entry[] sSessions;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void makeSessions() {
+        sSessions = new SessionCache.Entry[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            sSessions[i] = TestData.session(START_DATE + 86400000L * i,
+                    ROWS);
+            assertEquals(ROWS, sSessions[i].count);
+        }
+    }
+
+    @Test
+    public void csvRoundTrip() throws Exception {
+        File file = mFolder.newFile("db.txt");
+        writeCsv(file, sessionMap());
+        CsvRestoreReader reader = new CsvRestoreReader(
+                new FileInputStream(file).getChannel());
+        checkRows(reader);
+    }
+
+    @Test
+    public void binaryRoundTrip() throws Exception {
+        File file = mFolder.newFile("db.bcmb");
+        writeBinary(file, sessionMap());
+        BinaryBackupReader reader = new BinaryBackupReader(
+                new FileInputStream(file).getChannel());
+        checkRows(reader);
+    }
+
+    @Test
+    public void binaryStoppedEarlyIsTruncated() throws Exception {
+        File file = mFolder.newFile("db.bcmb");
+        BinaryBackupWriter out = new BinaryBackupWriter(file);
+        out.setProgressListener(new ExportWriter.ProgressListener() {
+            @Override
+            public boolean onProgress(long rows) {
+                return rows < 5000;
+            }
+        });
+        out.setSessionMap(sessionMap());
+        assertFalse(out.writeDatabase(TestData.reader(sSessions[0])));
+        out.close();
+        BinaryBackupReader reader = new BinaryBackupReader(
+                new FileInputStream(file).getChannel());
+        while (reader.next()) {
+            // Read the rows in the complete blocks
+        }
+        reader.close();
+        assertEquals(1, reader.getErrors());
+        assertTrue(reader.getSessionMap().isEmpty());
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        final File csv = mFolder.newFile("bench.txt");
+        final File binary = mFolder.newFile("bench.bcmb");
+        final Map<Long, Long> map = sessionMap();
+        double csvSave = new Benchmark("CSV save") {
+            @Override
+            protected long run(int n) throws Exception {
+                for (int i = 0; i < n; i++) {
+                    writeCsv(csv, map);
+                }
+                return csv.length();
+            }
+        }.measure(1);
+        double binarySave = new Benchmark("Binary save") {
+            @Override
+            protected long run(int n) throws Exception {
+                for (int i = 0; i < n; i++) {
+                    writeBinary(binary, map);
+                }
+                return binary.length();
+            }
+        }.measure(1);
+        double csvRestore = new Benchmark("CSV restore") {
+            @Override
+            protected long run(int n) throws Exception {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    sum += readAll(new CsvRestoreReader(
+                            new FileInputStream(csv).getChannel()));
+                }
+                return sum;
+            }
+        }.measure(1);
+        double binaryRestore = new Benchmark("Binary restore") {
+            @Override
+            protected long run(int n) throws Exception {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    sum += readAll(new BinaryBackupReader(
+                            new FileInputStream(binary).getChannel()));
+                }
+                return sum;
+            }
+        }.measure(1);
+        int rows = SESSIONS * ROWS;
+        System.out.println(String.format(Locale.US, "BackupFormat: %d rows"
+                        + "\n  CSV:    %d bytes (%.1f/row) save %.0f ms "
+                        + "restore %.0f ms"
+                        + "\n  Binary: %d bytes (%.1f/row) save %.0f ms "
+                        + "restore %.0f ms"
+                        + "\n  Binary/CSV: size %.2f save %.2f restore %.2f",
+                rows, csv.length(), (double) csv.length() / rows,
+                1.e-6 * csvSave, 1.e-6 * csvRestore, binary.length(),
+                (double) binary.length() / rows, 1.e-6 * binarySave,
+                1.e-6 * binaryRestore,
+                (double) binary.length() / csv.length(),
+                binarySave / csvSave, binaryRestore / csvRestore));
+    }
+
+    /**
+     * Makes a session map that merges the last session into the first.
+     */
+    private static Map<Long, Long> sessionMap() {
+        Map<Long, Long> map = new LinkedHashMap<Long, Long>();
+        map.put(sSessions[SESSIONS - 1].startDate, sSessions[0].startDate);
+        return map;
+    }
+
+    private static void writeCsv(File file, Map<Long, Long> map)
+            throws IOException {
+        CsvExportWriter out = new CsvExportWriter(file);
+        try {
+            for (SessionCache.Entry session : sSessions) {
+                out.writeDatabase(TestData.reader(session));
+            }
+            out.writeSessionMap(map);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeBinary(File file, Map<Long, Long> map)
+            throws IOException {
+        BinaryBackupWriter out = new BinaryBackupWriter(file);
+        try {
+            out.setSessionMap(map);
+            for (SessionCache.Entry session : sSessions) {
+                out.writeDatabase(TestData.reader(session));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads all the rows.
+     *
+     * @return A value that depends on the rows.
+     */
+    private static long readAll(RestoreReader reader) throws IOException {
+        long sum = 0;
+        byte[] rr;
+        try {
+            while (reader.next()) {
+                rr = reader.getRr();
+                sum += reader.getDate() + reader.getHr()
+                        + (rr == null ? 0 : rr.length);
+            }
+        } finally {
+            reader.close();
+        }
+        return sum;
+    }
+
+    /**
+     * Checks that a reader gives back the rows of the sessions and the
+     * session map.
+     */
+    private static void checkRows(RestoreReader reader) throws IOException {
+        try {
+            for (SessionCache.Entry session : sSessions) {
+                for (int i = 0; i < session.count; i++) {
+                    assertTrue(reader.next());
+                    assertEquals(session.dates[i], reader.getDate());
+                    assertEquals(session.startDate, reader.getStartDate());
+                    assertEquals(session.hrs[i], reader.getHr());
+                    byte[] rr = reader.getRr();
+                    if (!session.rrPresent[i]) {
+                        assertEquals(null, rr);
+                    } else {
+                        int start = session.rrStarts[i];
+                        int end = session.rrStarts[i + 1];
+                        assertArrayEquals(BCMDbAdapter.packRr(
+                                Arrays.copyOfRange(session.rrValues, start,
+                                        end), end - start), rr);
+                    }
+                }
+            }
+            assertFalse(reader.next());
+            assertEquals(0, reader.getErrors());
+            assertEquals(sessionMap(), reader.getSessionMap());
+        } finally {
+            reader.close();
+        }
+    }
+
+}
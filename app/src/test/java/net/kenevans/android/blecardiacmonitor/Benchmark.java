@@ -0,0 +1,71 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.Locale;
+
+/**
+ * Times an operation for the JVM benchmarks in this directory. Each
+ * benchmark is a JUnit test, so they run with ./gradlew test. The times are
+ * printed, and only the results are asserted, so a slow machine does not
+ * fail the build. The times are for the JVM the tests run on, not ART, so
+ * they are for comparing implementations rather than predicting the times
+ * on a device.
+ */
+abstract class Benchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    private final String mName;
+    /**
+     * Accumulates the results of run() so the work is not optimized away.
+     */
+    private long mSink;
+
+    /**
+     * Constructor.
+     *
+     * @param name The name to print with the time.
+     */
+    Benchmark(String name) {
+        mName = name;
+    }
+
+    /**
+     * Does the operation n times.
+     *
+     * @param n The number of times.
+     * @return A value that depends on the results.
+     * @throws Exception If there is an error.
+     */
+    protected abstract long run(int n) throws Exception;
+
+    /**
+     * Warms up and then times the fastest of several rounds of n
+     * operations.
+     *
+     * @param n The number of operations in a round.
+     * @return The time per operation in ns.
+     * @throws Exception If there is an error.
+     */
+    double measure(int n) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            mSink += run(n);
+        }
+        long best = Long.MAX_VALUE;
+        long start;
+        for (int i = 0; i < ROUNDS; i++) {
+            start = System.nanoTime();
+            mSink += run(n);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double ns = (double) best / n;
+        if (ns < 1.e6) {
+            System.out.println(String.format(Locale.US,
+                    "%s: %.1f ns/op (%d)", mName, ns, mSink & 0xFF));
+        } else {
+            System.out.println(String.format(Locale.US,
+                    "%s: %.2f ms/op (%d)", mName, 1.e-6 * ns, mSink & 0xFF));
+        }
+        return ns;
+    }
+
+}
@@ -0,0 +1,170 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the export codecs on a saved database and on a GPX session:
+ * the compression ratio, the write throughput, and the throughput of
+ * reading the saved database back for a restore. The throughputs are in MB
+ * of uncompressed data per second.
+ */
+public class ExportCodecBenchmark implements IConstants {
+    /**
+     * A day of data, as three 8 hour sessions.
+     */
+    private static final int SESSIONS = 3;
+    private static final int ROWS = 8 * 3600;
+    private static final long START_DATE = 1500000000000L;
+    private static final int[] GZIP_LEVELS = {1, 3, 6, 9};
+
+    private static SessionCache.Entry[] sSessions;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void makeSessions() {
+        sSessions = new SessionCache.Entry[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            sSessions[i] = TestData.session(START_DATE + 86400000L * i,
+                    ROWS);
+            assertEquals(ROWS, sSessions[i].count);
+        }
+    }
+
+    @Test
+    public void gzipRoundTrip() throws Exception {
+        File plain = mFolder.newFile("db.txt");
+        writeCsv(plain, ExportCodec.NONE);
+        ExportCodec codec = ExportCodec.forName(ExportCodec.NAME_GZIP,
+                EXPORT_COMPRESSION_LEVEL);
+        File file = mFolder.newFile("db.txt" + codec.getSuffix());
+        writeCsv(file, codec);
+        assertTrue(file.length() < plain.length());
+        CsvRestoreReader reader = new CsvRestoreReader(codec.openInput(
+                new FileInputStream(file)));
+        try {
+            for (int i = 0; i < SESSIONS * ROWS; i++) {
+                assertTrue(reader.next());
+            }
+            assertFalse(reader.next());
+            assertEquals(0, reader.getErrors());
+            assertEquals(sSessions[SESSIONS - 1].dates[ROWS - 1],
+                    reader.getDate());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        File csv = mFolder.newFile("bench.txt");
+        File gpx = mFolder.newFile("bench.gpx");
+        // The uncompressed sizes, for the ratios and throughputs
+        writeCsv(csv, ExportCodec.NONE);
+        writeGpx(gpx, ExportCodec.NONE);
+        long csvSize = csv.length();
+        long gpxSize = gpx.length();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "ExportCodec: database %d bytes,"
+                        + " GPX session %d bytes"
+                        + "\n  %-7s %6s %9s %6s %9s %9s", csvSize, gpxSize,
+                "codec", "ratio", "save MB/s", "GPX", "GPX MB/s",
+                "read MB/s"));
+        measure(sb, ExportCodec.NONE, "none", csv, csvSize, gpx, gpxSize);
+        for (int level : GZIP_LEVELS) {
+            ExportCodec codec = ExportCodec.forName(ExportCodec.NAME_GZIP,
+                    level);
+            measure(sb, codec, "gzip " + level, csv, csvSize, gpx, gpxSize);
+        }
+        System.out.println(sb);
+    }
+
+    /**
+     * Measures one codec and appends a line to the table.
+     */
+    private static void measure(StringBuilder sb, final ExportCodec codec,
+                                String name, final File csv, long csvSize,
+                                final File gpx, long gpxSize)
+            throws Exception {
+        double save = new Benchmark(name + " save") {
+            @Override
+            protected long run(int n) throws Exception {
+                for (int i = 0; i < n; i++) {
+                    writeCsv(csv, codec);
+                }
+                return csv.length();
+            }
+        }.measure(1);
+        double gpxSave = new Benchmark(name + " GPX") {
+            @Override
+            protected long run(int n) throws Exception {
+                for (int i = 0; i < n; i++) {
+                    writeGpx(gpx, codec);
+                }
+                return gpx.length();
+            }
+        }.measure(1);
+        double read = new Benchmark(name + " read") {
+            @Override
+            protected long run(int n) throws Exception {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    CsvRestoreReader reader = new CsvRestoreReader(
+                            codec.openInput(new FileInputStream(csv)));
+                    try {
+                        while (reader.next()) {
+                            sum += reader.getHr();
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                }
+                return sum;
+            }
+        }.measure(1);
+        // MB/s is bytes/us
+        sb.append(String.format(Locale.US,
+                "\n  %-7s %6.3f %9.0f %6.3f %9.0f %9.0f", name,
+                (double) csv.length() / csvSize, 1.e3 * csvSize / save,
+                (double) gpx.length() / gpxSize, 1.e3 * gpxSize / gpxSave,
+                1.e3 * csvSize / read));
+    }
+
+    private static void writeCsv(File file, ExportCodec codec)
+            throws IOException {
+        CsvExportWriter out = new CsvExportWriter(file, codec);
+        try {
+            for (SessionCache.Entry session : sSessions) {
+                out.writeDatabase(TestData.reader(session));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeGpx(File file, ExportCodec codec)
+            throws IOException {
+        GpxExportWriter out = new GpxExportWriter(file, codec);
+        try {
+            out.writeStart("BCM", START_DATE);
+            out.writeSession(TestData.reader(sSessions[0]));
+            out.writeEnd();
+        } finally {
+            out.close();
+        }
+    }
+
+}
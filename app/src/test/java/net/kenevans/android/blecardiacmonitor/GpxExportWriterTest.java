@@ -0,0 +1,122 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that GpxExportWriter writes the same bytes as the String.format
+ * code it replaced, so files exported before and after compare equal.
+ */
+public class GpxExportWriterTest implements IConstants {
+    private static final String CREATOR = "BLE Cardiac Monitor";
+    private static final long CREATED = 1500000000123L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void matchesLegacyOutput() throws Exception {
+        // Dates across the epoch, a day, a year, and a leap day, with gaps
+        // of INVALID_INT heart rates, as when the strap loses contact
+        long[] starts = {-1500, 1483228799000L - 1500, 1582934399000L,
+                1500000000000L};
+        int perStart = 2000;
+        long[] dates = new long[starts.length * perStart];
+        int[] hrs = new int[dates.length];
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = starts[i / perStart] + 999L * (i % perStart);
+            hrs[i] = i % 37 < 3 ? INVALID_INT : 40 + i % 180;
+        }
+        SessionCache.Entry session = TestData.session(dates[0], dates, hrs);
+        assertNotNull(session);
+        assertEquals(dates.length, session.count);
+
+        File expected = mFolder.newFile("legacy.gpx");
+        writeLegacy(expected, dates, hrs);
+        File actual = mFolder.newFile("new.gpx");
+        GpxExportWriter out = new GpxExportWriter(actual, ExportCodec.NONE);
+        try {
+            out.writeStart(CREATOR, CREATED);
+            assertEquals(true, out.writeSession(TestData.reader(session)));
+            out.writeEnd();
+        } finally {
+            out.close();
+        }
+        assertEquals(dates.length, out.getRows());
+        assertArrayEquals(Files.readAllBytes(expected.toPath()),
+                Files.readAllBytes(actual.toPath()));
+    }
+
+    @Test
+    public void stopsWhenTheListenerSaysTo() throws Exception {
+        long[] dates = new long[5000];
+        int[] hrs = new int[dates.length];
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = 1600000000000L + 1000L * i;
+            hrs[i] = 60;
+        }
+        SessionCache.Entry session = TestData.session(dates[0], dates, hrs);
+        File file = mFolder.newFile("stopped.gpx");
+        GpxExportWriter out = new GpxExportWriter(file, ExportCodec.NONE);
+        out.setProgressListener(new ExportWriter.ProgressListener() {
+            @Override
+            public boolean onProgress(long rows) {
+                return rows < 2000;
+            }
+        });
+        try {
+            out.writeStart(CREATOR, CREATED);
+            assertFalse(out.writeSession(TestData.reader(session)));
+        } finally {
+            out.close();
+        }
+        assertEquals(2000, out.getRows());
+    }
+
+    /**
+     * Writes a GPX file as SessionExportJob did before GpxExportWriter,
+     * with the heart rates as the strings the Cursor gave.
+     */
+    private static void writeLegacy(File file, long[] dates, int[] hrs)
+            throws IOException {
+        SimpleDateFormat formatter = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"));
+        try {
+            out.write(String.format(GPXUtils.GPX_FILE_START_LINES, CREATOR,
+                    formatter.format(new Date(CREATED))));
+            String hrStr;
+            for (int i = 0; i < dates.length; i++) {
+                hrStr = Integer.toString(hrs[i]);
+                if (hrStr.equals(INVALID_STRING)) {
+                    continue;
+                }
+                out.write(String.format(GPXUtils.GPX_FILE_TRACK_LINES,
+                        formatter.format(new Date(dates[i])), hrStr));
+            }
+            out.write(GPXUtils.GPX_FILE_END_LINES);
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares HeartRateDecoder with the HeartRateValues constructor it
+ * replaced, both for the values decoded and for the time per notification.
+ */
+public class HeartRateDecoderBenchmark implements IConstants {
+    private static final int N = 100000;
+
+    /**
+     * Notifications as sent by straps: an 8-bit HR with one R-R value, an
+     * 8-bit HR with two, a 16-bit HR with energy expended and four, and an
+     * 8-bit HR with none.
+     */
+    private static final byte[][] PACKETS = {
+            {0x16, 72, 0x1A, 0x03},
+            {0x16, 75, 0x00, 0x03, 0x10, 0x03},
+            {0x1F, (byte) 0xB4, 0x00, 0x10, 0x27, 0x50, 0x01, 0x48, 0x01,
+                    0x40, 0x01, 0x52, 0x01},
+            {0x06, 60},
+    };
+
+    @Test
+    public void decodesLikeHeartRateValues() {
+        HeartRateSample sample = new HeartRateSample();
+        for (byte[] packet : PACKETS) {
+            LegacyHeartRateValues values = new LegacyHeartRateValues(
+                    UUID_HEART_RATE_MEASUREMENT, packet);
+            assertTrue(HeartRateDecoder.decode(packet, 1000, sample));
+            assertEquals(values.hr, sample.getHr());
+            assertEquals(values.ee, sample.getEe());
+            assertEquals(values.rr, sample.getRrString());
+        }
+    }
+
+    @Test
+    public void rejectsShortPackets() {
+        HeartRateSample sample = new HeartRateSample();
+        assertFalse(HeartRateDecoder.decode(null, 1000, sample));
+        assertFalse(HeartRateDecoder.decode(new byte[]{0x01, 72}, 1000,
+                sample));
+        assertEquals(INVALID_INT, sample.getHr());
+        assertEquals(1000, sample.getDate());
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        double legacy = new Benchmark("HeartRateValues constructor") {
+            @Override
+            protected long run(int n) {
+                long sum = 0;
+                LegacyHeartRateValues values;
+                for (int i = 0; i < n; i++) {
+                    values = new LegacyHeartRateValues(
+                            UUID_HEART_RATE_MEASUREMENT,
+                            PACKETS[i % PACKETS.length]);
+                    sum += values.hr + values.rr.length();
+                }
+                return sum;
+            }
+        }.measure(N);
+        double decoder = new Benchmark("HeartRateDecoder.decode") {
+            private final HeartRateSample mSample = new HeartRateSample();
+
+            @Override
+            protected long run(int n) {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    HeartRateDecoder.decode(PACKETS[i % PACKETS.length], i,
+                            mSample);
+                    sum += mSample.getHr() + mSample.getRrCount();
+                }
+                return sum;
+            }
+        }.measure(N);
+        System.out.println(String.format(Locale.US,
+                "HeartRateDecoder: %.1fx faster", legacy / decoder));
+    }
+
+    /**
+     * The decoding in the HeartRateValues constructor as it was before
+     * HeartRateDecoder, with the BluetoothGattCharacteristic replaced by
+     * its UUID and value. Only the values compared are kept, so the info
+     * String it also built is not timed. getIntValue() works as
+     * BluetoothGattCharacteristic's does, returning a boxed Integer after a
+     * bounds check.
+     */
+    private static class LegacyHeartRateValues {
+        private static final int FORMAT_UINT8 = 0x11;
+        private static final int FORMAT_UINT16 = 0x12;
+
+        private final byte[] value;
+        private int hr = INVALID_INT;
+        private int ee = INVALID_INT;
+        private String rr = INVALID_STRING;
+
+        private LegacyHeartRateValues(UUID uuid, byte[] value) {
+            this.value = value;
+            if (!uuid.equals(UUID_HEART_RATE_MEASUREMENT)) {
+                return;
+            }
+            int flag = getIntValue(FORMAT_UINT8, 0);
+            int format;
+            int offset = 1;
+            if ((flag & 0x01) != 0) {
+                format = FORMAT_UINT16;
+                offset += 2;
+            } else {
+                format = FORMAT_UINT8;
+                offset += 1;
+            }
+            hr = getIntValue(format, 1);
+            // Energy Expended
+            if ((flag & 0x08) != 0) {
+                ee = getIntValue(FORMAT_UINT16, offset);
+                offset += 2;
+            }
+            // R-R
+            if ((flag & 0x10) != 0) {
+                int len = value.length;
+                // There may be more than 1 R-R value
+                int iVal;
+                StringBuilder sb = new StringBuilder();
+                while (offset < len) {
+                    iVal = getIntValue(FORMAT_UINT16, offset);
+                    offset += 2;
+                    sb.append(" ");
+                    sb.append(iVal);
+                }
+                rr = sb.toString().trim();
+            }
+        }
+
+        private Integer getIntValue(int formatType, int offset) {
+            if (offset + (formatType & 0xF) > value.length) {
+                return null;
+            }
+            switch (formatType) {
+                case FORMAT_UINT8:
+                    return value[offset] & 0xFF;
+                case FORMAT_UINT16:
+                    return (value[offset] & 0xFF)
+                            | ((value[offset + 1] & 0xFF) << 8);
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares HrvAnalyzer with computing the HRV values by going through the
+ * R-R values in the window for each beat, both for the values and for the
+ * time per beat.
+ */
+public class HrvAnalyzerBenchmark implements IConstants {
+    private static final int N = 100000;
+    /**
+     * Fewer beats for the rescan, which is much slower.
+     */
+    private static final int N_RESCAN = 5000;
+    private static final double TOLERANCE = 1.e-6;
+
+    private static final int[] RR = TestData.rrValues(N + 1, 1);
+
+    @Test
+    public void windowMatchesRescan() {
+        HrvAnalyzer analyzer = new HrvAnalyzer(HRV_WINDOW);
+        for (int i = 0; i < 5000; i++) {
+            analyzer.add(RR[i]);
+            if (i % 97 == 0) {
+                check(analyzer, rescan(RR, i + 1, HRV_WINDOW * 1024L));
+            }
+        }
+    }
+
+    @Test
+    public void noWindowMatchesRescan() {
+        HrvAnalyzer analyzer = new HrvAnalyzer(0);
+        for (int i = 0; i < 5000; i++) {
+            analyzer.add(RR[i]);
+        }
+        check(analyzer, rescan(RR, 5000, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void artifactsBreakTheDifferences() {
+        HrvAnalyzer analyzer = new HrvAnalyzer(0);
+        byte[] blob = BCMDbAdapter.packRr(new int[]{800, 810, 1600, 790,
+                800}, 5);
+        byte[] mask = BCMDbAdapter.packRrMask(new boolean[]{false, false,
+                true, false, false}, 5);
+        analyzer.add(blob, mask);
+        assertEquals(4, analyzer.getCount());
+        assertEquals(2, analyzer.getDiffCount());
+        assertEquals(10 * 10 + 10 * 10, analyzer.getDiffSumSq());
+    }
+
+    @Test
+    public void windowRemovesOnlyCountedDifferences() {
+        // 3072 R-R units, so at most 3 values of about 1000
+        HrvAnalyzer analyzer = new HrvAnalyzer(3);
+        analyzer.add(1000);
+        analyzer.add(1020);
+        analyzer.skip();
+        analyzer.add(1100);
+        // 1000 has left the window with its difference to 1020
+        assertEquals(2, analyzer.getCount());
+        assertEquals(0, analyzer.getDiffCount());
+        analyzer.add(1130);
+        // 1020 has left, and there was no difference from it to 1100
+        assertEquals(2, analyzer.getCount());
+        assertEquals(1100 + 1130, analyzer.getSum());
+        assertEquals(1, analyzer.getDiffCount());
+        assertEquals(30 * 30, analyzer.getDiffSumSq());
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        double window = new Benchmark("HrvAnalyzer " + HRV_WINDOW
+                + " sec window") {
+            @Override
+            protected long run(int n) {
+                HrvAnalyzer analyzer = new HrvAnalyzer(HRV_WINDOW);
+                double sum = 0;
+                // Start with a value so the results are not NaN
+                analyzer.add(RR[0]);
+                for (int i = 1; i <= n; i++) {
+                    analyzer.add(RR[i]);
+                    sum += analyzer.getRmssd() + analyzer.getSdnn()
+                            + analyzer.getPnn50() + analyzer.getMeanHr();
+                }
+                return (long) sum;
+            }
+        }.measure(N);
+        new Benchmark("HrvAnalyzer no window") {
+            @Override
+            protected long run(int n) {
+                HrvAnalyzer analyzer = new HrvAnalyzer(0);
+                double sum = 0;
+                // Start with a value so the results are not NaN
+                analyzer.add(RR[0]);
+                for (int i = 1; i <= n; i++) {
+                    analyzer.add(RR[i]);
+                    sum += analyzer.getRmssd() + analyzer.getSdnn()
+                            + analyzer.getPnn50() + analyzer.getMeanHr();
+                }
+                return (long) sum;
+            }
+        }.measure(N);
+        double rescan = new Benchmark("Rescan " + HRV_WINDOW
+                + " sec window") {
+            @Override
+            protected long run(int n) {
+                double sum = 0;
+                for (int i = 1; i <= n; i++) {
+                    double[] values = rescan(RR, i + 1, HRV_WINDOW * 1024L);
+                    sum += values[0] + values[1] + values[2] + values[3];
+                }
+                return (long) sum;
+            }
+        }.measure(N_RESCAN);
+        System.out.println(String.format(Locale.US, "HrvAnalyzer: %.1fx"
+                + " faster than the rescan", rescan / window));
+    }
+
+    private static void check(HrvAnalyzer analyzer, double[] expected) {
+        assertEquals(expected[0], analyzer.getRmssd(), TOLERANCE);
+        assertEquals(expected[1], analyzer.getSdnn(), TOLERANCE);
+        assertEquals(expected[2], analyzer.getPnn50(), TOLERANCE);
+        assertEquals(expected[3], analyzer.getMeanHr(), TOLERANCE);
+    }
+
+    /**
+     * Computes the HRV values from the R-R values in the window, the most
+     * recent values whose total is within it, and at least one value.
+     *
+     * @param rr     The R-R values.
+     * @param end    The index after the last value added.
+     * @param window The window in R-R units.
+     * @return The RMSSD, SDNN, pNN50, and mean HR.
+     */
+    private static double[] rescan(int[] rr, int end, long window) {
+        int start = end - 1;
+        long total = rr[start];
+        while (start > 0 && total + rr[start - 1] <= window) {
+            total += rr[--start];
+        }
+        int count = end - start;
+        double mean = (double) total / count;
+        double var = 0;
+        double diffSq = 0;
+        int nn50 = 0;
+        for (int i = start; i < end; i++) {
+            var += (rr[i] - mean) * (rr[i] - mean);
+            if (i > start) {
+                double diff = (rr[i] - rr[i - 1]) * 1000 / 1024.;
+                diffSq += diff * diff;
+                if (Math.abs(diff) > 50) {
+                    nn50++;
+                }
+            }
+        }
+        double nan = Double.NaN;
+        return new double[]{
+                count < 2 ? nan : Math.sqrt(diffSq / (count - 1)),
+                count < 2 ? nan : 1000 * Math.sqrt(var / (count - 1)) / 1024,
+                count < 2 ? nan : 100. * nn50 / (count - 1),
+                60 * 1024. / mean,
+        };
+    }
+
+}
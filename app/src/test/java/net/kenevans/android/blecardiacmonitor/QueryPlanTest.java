@@ -0,0 +1,64 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests BCMDbAdapter.isTableScan with the EXPLAIN QUERY PLAN details
+ * SQLite gives for queries on the data table. The newer plans are from
+ * SQLite 3.40, and the older ones are in the "SCAN TABLE" wording used
+ * before 3.36, which is what older devices have.
+ */
+public class QueryPlanTest {
+    @Test
+    public void indexSearchIsNotAScan() {
+        // The session query, with the subquery on the session map
+        assertFalse(BCMDbAdapter.isTableScan(
+                "SEARCH data USING COVERING INDEX data_startdate_date_idx "
+                        + "(startdate=?)\n"
+                        + "LIST SUBQUERY 1\n"
+                        + "SEARCH sessionmap USING COVERING INDEX "
+                        + "sessionmap_sessionstart_idx (sessionstart=?)\n"
+                        + "USE TEMP B-TREE FOR ORDER BY\n"));
+        assertFalse(BCMDbAdapter.isTableScan(
+                "SEARCH data USING INDEX data_date_idx (date>?)\n"));
+        assertFalse(BCMDbAdapter.isTableScan(
+                "SEARCH data USING COVERING INDEX data_date_idx "
+                        + "(date>? AND date<?)\n"));
+        assertFalse(BCMDbAdapter.isTableScan(
+                "SEARCH TABLE data USING INDEX data_date_idx (date>?)\n"));
+    }
+
+    @Test
+    public void indexScanIsNotAScan() {
+        // Reading in date order without a selection walks the index
+        assertFalse(BCMDbAdapter.isTableScan(
+                "SCAN data USING COVERING INDEX data_date_idx\n"));
+        assertFalse(BCMDbAdapter.isTableScan(
+                "SCAN data USING INDEX data_date_idx\n"));
+        assertFalse(BCMDbAdapter.isTableScan(
+                "SCAN TABLE data USING INDEX data_date_idx\n"));
+    }
+
+    @Test
+    public void tableScanIsAScan() {
+        assertTrue(BCMDbAdapter.isTableScan("SCAN data\n"));
+        assertTrue(BCMDbAdapter.isTableScan("SCAN TABLE data\n"));
+        assertTrue(BCMDbAdapter.isTableScan(
+                "SCAN TABLE data\nUSE TEMP B-TREE FOR ORDER BY\n"));
+        assertTrue(BCMDbAdapter.isTableScan(
+                "SEARCH sessionmap USING INTEGER PRIMARY KEY (rowid=?)\n"
+                        + "  SCAN data\n"));
+    }
+
+    @Test
+    public void otherTablesAreNotCounted() {
+        assertFalse(BCMDbAdapter.isTableScan("SCAN sessions\n"));
+        assertFalse(BCMDbAdapter.isTableScan("SCAN TABLE sessions AS s\n"));
+        assertFalse(BCMDbAdapter.isTableScan("SCAN database\n"));
+        assertFalse(BCMDbAdapter.isTableScan(""));
+    }
+
+}
@@ -0,0 +1,134 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the R-R filters mark the artifacts and nothing else, and
+ * measures the time per R-R value, which is spent for every value as it is
+ * received or restored.
+ */
+public class RrFilterBenchmark implements IConstants {
+    private static final int N = 100000;
+    /**
+     * The number of values between the artifacts added by values().
+     */
+    private static final int SPACING = 50;
+
+    @Test
+    public void medianMarksArtifacts() {
+        int[] values = values(10000, 1);
+        RrFilter filter = RrFilter.forName(RrFilter.NAME_MEDIAN);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("value " + i + " = " + values[i], isArtifact(i),
+                    filter.isArtifact(values[i]));
+        }
+    }
+
+    @Test
+    public void noneMarksNothing() {
+        int[] values = values(10000, 1);
+        RrFilter filter = RrFilter.forName(RrFilter.NAME_NONE);
+        for (int value : values) {
+            assertEquals(false, filter.isArtifact(value));
+        }
+    }
+
+    @Test
+    public void filterMasksBlob() {
+        RrFilter filter = RrFilter.forName(RrFilter.NAME_MEDIAN);
+        int[] normal = {800, 810, 790, 805, 795, 800, 802};
+        assertNull(filter.filter(BCMDbAdapter.packRr(normal,
+                normal.length)));
+        byte[] mask = filter.filter(BCMDbAdapter.packRr(
+                new int[]{800, 1600, 400, 805}, 4));
+        assertTrue(!BCMDbAdapter.isRrArtifact(mask, 0));
+        assertTrue(BCMDbAdapter.isRrArtifact(mask, 1));
+        assertTrue(BCMDbAdapter.isRrArtifact(mask, 2));
+        assertTrue(!BCMDbAdapter.isRrArtifact(mask, 3));
+        assertNull(filter.filter(null));
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        final int[] values = values(N, 2);
+        final byte[][] blobs = new byte[N / 2][];
+        for (int i = 0; i < blobs.length; i++) {
+            blobs[i] = BCMDbAdapter.packRr(new int[]{values[2 * i],
+                    values[2 * i + 1]}, 2);
+        }
+        for (final String name : new String[]{RrFilter.NAME_NONE,
+                RrFilter.NAME_MEDIAN}) {
+            new Benchmark("RrFilter " + name + " isArtifact") {
+                @Override
+                protected long run(int n) {
+                    RrFilter filter = RrFilter.forName(name);
+                    long sum = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (filter.isArtifact(values[i])) {
+                            sum++;
+                        }
+                    }
+                    return sum;
+                }
+            }.measure(N);
+            // Per value, with two values in a row as a strap sends
+            new Benchmark("RrFilter " + name + " filter") {
+                @Override
+                protected long run(int n) {
+                    RrFilter filter = RrFilter.forName(name);
+                    long sum = 0;
+                    for (int i = 0; i < n / 2; i++) {
+                        if (filter.filter(blobs[i]) != null) {
+                            sum++;
+                        }
+                    }
+                    return sum;
+                }
+            }.measure(N);
+        }
+    }
+
+    /**
+     * Makes R-R values that vary slowly around 800 ms with beat to beat
+     * noise, with an artifact every SPACING values. The artifacts are in
+     * turn a missed beat, an early beat, and values below and above the
+     * physiological range.
+     */
+    private static int[] values(int n, long seed) {
+        Random random = new Random(seed);
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            double rr = 820 + 80 * Math.sin(i / 300.)
+                    + 20 * random.nextGaussian();
+            if (isArtifact(i)) {
+                switch ((i / SPACING) % 4) {
+                    case 0:
+                        rr *= 2;
+                        break;
+                    case 1:
+                        rr *= .5;
+                        break;
+                    case 2:
+                        rr = RR_FILTER_MIN - 1;
+                        break;
+                    default:
+                        rr = RR_FILTER_MAX + 1;
+                        break;
+                }
+            }
+            values[i] = (int) rr;
+        }
+        return values;
+    }
+
+    private static boolean isArtifact(int i) {
+        return i % SPACING == SPACING - 1;
+    }
+
+}
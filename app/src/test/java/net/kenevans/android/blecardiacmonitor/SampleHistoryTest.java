@@ -0,0 +1,212 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests SampleHistory, including snapshots taken while the writer is
+ * adding samples.
+ */
+public class SampleHistoryTest implements IConstants {
+    private static final long START_DATE = 1500000000000L;
+    /**
+     * The time between samples in ms, 4 per second as in HISTORY_CAPACITY.
+     */
+    private static final long INTERVAL = 250;
+
+    @Test
+    public void emptySnapshot() {
+        SampleHistory history = new SampleHistory(10, 5000);
+        assertTrue(history.snapshot(0).isEmpty());
+    }
+
+    @Test
+    public void ringWrapsAround() {
+        SampleHistory history = new SampleHistory(10, Long.MAX_VALUE);
+        HeartRateSample sample = new HeartRateSample();
+        for (int i = 0; i < 25; i++) {
+            add(history, sample);
+        }
+        List<HeartRateSample> samples = history.snapshot(0);
+        assertEquals(10, samples.size());
+        for (int i = 0; i < 10; i++) {
+            check(samples.get(i));
+            assertEquals(16 + i, samples.get(i).getSeq());
+        }
+        assertEquals(26, history.getNextSeq());
+    }
+
+    @Test
+    public void snapshotKeepsMaxAgeAndSince() {
+        SampleHistory history = new SampleHistory(100, 5 * INTERVAL);
+        HeartRateSample sample = new HeartRateSample();
+        for (int i = 0; i < 20; i++) {
+            add(history, sample);
+        }
+        // The newest sample is seq 20, so the oldest kept is seq 15
+        List<HeartRateSample> samples = history.snapshot(0);
+        assertEquals(6, samples.size());
+        assertEquals(15, samples.get(0).getSeq());
+        assertEquals(20, samples.get(5).getSeq());
+        samples = history.snapshot(date(18));
+        assertEquals(3, samples.size());
+        assertEquals(18, samples.get(0).getSeq());
+    }
+
+    @Test
+    public void addStoresACopy() {
+        SampleHistory history = new SampleHistory(10, Long.MAX_VALUE);
+        HeartRateSample sample = new HeartRateSample();
+        add(history, sample);
+        add(history, sample);
+        List<HeartRateSample> samples = history.snapshot(0);
+        assertEquals(2, samples.size());
+        check(samples.get(0));
+        check(samples.get(1));
+    }
+
+    @Test
+    public void snapshotReturnsCopies() {
+        SampleHistory history = new SampleHistory(10, Long.MAX_VALUE);
+        add(history, new HeartRateSample());
+        history.snapshot(0).get(0).setHr(0);
+        check(history.snapshot(0).get(0));
+    }
+
+    @Test
+    public void clearKeepsOnlyNewSamples() {
+        SampleHistory history = new SampleHistory(10, Long.MAX_VALUE);
+        HeartRateSample sample = new HeartRateSample();
+        for (int i = 0; i < 5; i++) {
+            add(history, sample);
+        }
+        history.clear();
+        assertTrue(history.snapshot(0).isEmpty());
+        add(history, sample);
+        add(history, sample);
+        List<HeartRateSample> samples = history.snapshot(0);
+        assertEquals(2, samples.size());
+        // The sequence numbers continue
+        assertEquals(6, samples.get(0).getSeq());
+        assertEquals(7, samples.get(1).getSeq());
+    }
+
+    /**
+     * Takes snapshots on several threads while the writer wraps the ring
+     * many times. Each snapshot must have unchanged samples in order, with
+     * no duplicates, and within the maximum age. The writer here does not
+     * wait between samples, so it can overwrite the slots a reader has not
+     * reached yet, and then the snapshot has fewer samples than the one
+     * before. That is what snapshot() does for slots that are reused, so
+     * the snapshots are not compared with each other.
+     */
+    @Test
+    public void concurrentSnapshots() throws Exception {
+        final int readers = 3;
+        final int count = 200000;
+        final SampleHistory history = new SampleHistory(HISTORY_CAPACITY,
+                HISTORY_MAX_AGE);
+        final AtomicReference<Throwable> error =
+                new AtomicReference<Throwable>();
+        final long[] snapshots = new long[readers];
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HeartRateSample sample = new HeartRateSample();
+                for (int i = 0; i < count; i++) {
+                    add(history, sample);
+                }
+            }
+        });
+        Thread[] threads = new Thread[readers];
+        for (int r = 0; r < readers; r++) {
+            final int index = r;
+            threads[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (writer.isAlive() || snapshots[index] == 0) {
+                            checkSnapshot(history.snapshot(0));
+                            snapshots[index]++;
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        writer.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        writer.join();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        List<HeartRateSample> samples = history.snapshot(0);
+        assertEquals(HISTORY_CAPACITY, samples.size());
+        assertEquals(count, samples.get(HISTORY_CAPACITY - 1).getSeq());
+        for (long n : snapshots) {
+            assertTrue(n > 0);
+        }
+    }
+
+    /**
+     * Checks a snapshot taken while samples are being added.
+     *
+     * @param samples The snapshot.
+     */
+    private static void checkSnapshot(List<HeartRateSample> samples) {
+        int n = samples.size();
+        assertTrue(n <= HISTORY_CAPACITY);
+        if (n == 0) {
+            return;
+        }
+        long last = 0;
+        for (HeartRateSample sample : samples) {
+            check(sample);
+            assertTrue(sample.getSeq() > last);
+            last = sample.getSeq();
+        }
+        assertTrue(samples.get(n - 1).getDate() - samples.get(0).getDate()
+                <= HISTORY_MAX_AGE);
+    }
+
+    /**
+     * Adds a sample as the ingest thread does, with a date and HR that
+     * depend on the seq.
+     */
+    private static void add(SampleHistory history, HeartRateSample sample) {
+        long seq = history.getNextSeq();
+        byte[] packet = {0x16, (byte) hr(seq), 0x00, 0x03};
+        HeartRateDecoder.decode(packet, packet.length, date(seq), sample);
+        sample.setSeq(seq);
+        history.add(sample);
+    }
+
+    /**
+     * Checks that a sample has the date and HR for its seq.
+     */
+    private static void check(HeartRateSample sample) {
+        long seq = sample.getSeq();
+        assertEquals(date(seq), sample.getDate());
+        assertEquals(hr(seq), sample.getHr());
+    }
+
+    private static long date(long seq) {
+        return START_DATE + INTERVAL * seq;
+    }
+
+    private static int hr(long seq) {
+        return 40 + (int) (seq % 200);
+    }
+
+}
@@ -0,0 +1,152 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import java.util.Random;
+
+/**
+ * Makes synthetic sessions for the JVM tests and benchmarks. A session has
+ * one row a second, as a strap sends, with the R-R values of the beats in
+ * that second. The rows are held in a SessionCache entry, so the export
+ * writers can read them through a DataChunkReader without a database.
+ */
+class TestData implements IConstants {
+    /**
+     * The path the sessions are cached under.
+     */
+    private static final String PATH = "test";
+
+    private static SessionCache sCache;
+
+    private TestData() {
+    }
+
+    /**
+     * Makes R-R values that vary slowly around 800 ms with beat to beat
+     * noise. About one value in 500 is a dropout of twice the length.
+     *
+     * @param n    The number of values.
+     * @param seed The seed for the noise.
+     * @return The values in units of 1/1024 sec.
+     */
+    static int[] rrValues(int n, long seed) {
+        Random random = new Random(seed);
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            double rr = 820 + 80 * Math.sin(i / 300.)
+                    + 20 * random.nextGaussian();
+            if (random.nextInt(500) == 0) {
+                rr *= 2;
+            }
+            values[i] = (int) rr;
+        }
+        return values;
+    }
+
+    /**
+     * Makes a session, cached so it can be read by reader().
+     *
+     * @param startDate The start date.
+     * @param rows      The number of rows.
+     * @return The session.
+     */
+    static SessionCache.Entry session(long startDate, int rows) {
+        SessionCache cache = getCache();
+        SessionCache.Recorder recorder = cache.startRecording(PATH,
+                startDate);
+        DataChunk chunk = new DataChunk(DATA_CHUNK_SIZE);
+        int[] rr = rrValues(2 * rows, startDate);
+        int[] beats = new int[2];
+        int next = 0;
+        long elapsed = 0;
+        for (int i = 0; i < rows; i++) {
+            if (chunk.getCount() == DATA_CHUNK_SIZE) {
+                recorder.add(chunk);
+                chunk.clear();
+            }
+            // The beats that end in this second
+            int nBeats = 0;
+            while (nBeats < beats.length && elapsed < 1024L * (i + 1)) {
+                beats[nBeats++] = rr[next];
+                elapsed += rr[next++];
+            }
+            chunk.add(startDate + 1000L * i, startDate,
+                    (int) (60 * 1024L * Math.max(1, nBeats)
+                            / Math.max(1, sum(beats, nBeats))),
+                    i % 600 == 599 ? null : BCMDbAdapter.packRr(beats,
+                            nBeats), null);
+        }
+        recorder.add(chunk);
+        cache.put(recorder);
+        return cache.get(PATH, startDate);
+    }
+
+    /**
+     * Makes a session with the given dates and heart rates and no R-R
+     * values, cached so it can be read by reader().
+     *
+     * @param startDate The start date.
+     * @param dates     The dates.
+     * @param hrs       The heart rates.
+     * @return The session.
+     */
+    static SessionCache.Entry session(long startDate, long[] dates,
+                                      int[] hrs) {
+        SessionCache cache = getCache();
+        SessionCache.Recorder recorder = cache.startRecording(PATH,
+                startDate);
+        DataChunk chunk = new DataChunk(DATA_CHUNK_SIZE);
+        for (int i = 0; i < dates.length; i++) {
+            if (chunk.getCount() == DATA_CHUNK_SIZE) {
+                recorder.add(chunk);
+                chunk.clear();
+            }
+            chunk.add(dates[i], startDate, hrs[i], null, null);
+        }
+        recorder.add(chunk);
+        cache.put(recorder);
+        return cache.get(PATH, startDate);
+    }
+
+    /**
+     * Gets a reader over the rows of a session with the R-R values.
+     *
+     * @param session The session.
+     * @return The reader.
+     */
+    static DataChunkReader reader(SessionCache.Entry session) {
+        return new DataChunkReader(session, true, DATA_CHUNK_SIZE);
+    }
+
+    private static int sum(int[] values, int n) {
+        int sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Gets the SessionCache with a Context that ignores the memory
+     * callbacks.
+     */
+    private static synchronized SessionCache getCache() {
+        if (sCache == null) {
+            sCache = SessionCache.getInstance(new ContextWrapper(null) {
+                @Override
+                public Context getApplicationContext() {
+                    return this;
+                }
+
+                @Override
+                public void registerComponentCallbacks(
+                        ComponentCallbacks callback) {
+                }
+            });
+        }
+        return sCache;
+    }
+
+}